@@ -0,0 +1,68 @@
+package com.simplereverseproxy;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.simplereverseproxy.benchmarks.StubExchange;
+
+/**
+ * Per request work on the request URI with {@code queryParams} query parameters: building the upstream URI, the
+ * 64 bit key throttle rules remember a request by and the canonical key the response cache stores it under.
+ * Query parameters are given out of order, so the keys have to sort them.
+ *
+ * Usage: java -jar benchmarks/target/benchmarks.jar RequestUriBenchmark [-prof gc]
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RequestUriBenchmark {
+
+    @Param({"0", "4", "16"})
+    public int queryParams;
+
+    private StubExchange request;
+    private String path;
+    private String query;
+
+    @Setup
+    public void setup() {
+        StringBuilder uri = new StringBuilder("/app1/api/v2/orders/42");
+        for (int i = queryParams; i > 0; i--) {
+            uri.append(i == queryParams ? '?' : '&').append("param").append(i).append("=value").append(i);
+        }
+        request = new StubExchange(uri.toString(), new InetSocketAddress("127.0.0.1", 40000));
+        path = request.getRequestURI().getPath();
+        query = request.getRequestURI().getQuery();
+    }
+
+    @Benchmark
+    public URI upstreamUri() throws Exception {
+        return RequestRouter.buildUpstreamServerURI("http://localhost:9000", request);
+    }
+
+    @Benchmark
+    public long throttleKey() {
+        return RequestKeys.hash64(path, query);
+    }
+
+    @Benchmark
+    public String cacheKey() {
+        return RequestKeys.canonical(path, query);
+    }
+}
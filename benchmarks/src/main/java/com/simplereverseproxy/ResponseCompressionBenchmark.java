@@ -0,0 +1,113 @@
+package com.simplereverseproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * CPU time of compressing one MiB of response body with {@link ResponseCompression} at each level, against the
+ * bytes it saves. {@code json} is repetitive API output, {@code text} prose-like markup and {@code random}
+ * incompressible data, the cost paid for nothing when already compressed content is not skipped. The score is
+ * microseconds per MiB, the bytes saved per level are printed when each trial ends. {@code jdkGzip} compresses
+ * the same body with a new {@link GZIPOutputStream}, and so a new deflater, per response; {@code -prof gc} shows
+ * what the pooled deflaters save.
+ *
+ * Usage: java -jar benchmarks/target/benchmarks.jar ResponseCompressionBenchmark [-prof gc]
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResponseCompressionBenchmark {
+
+    private static final int BODY_SIZE = 1024 * 1024;
+    private static final String[] WORDS = {"<p>", "</p>", "the", "proxy", "upstream", "request", "response", "of",
+            "and", "to", "a", "cache", "route", "latency", "client", "header", "body", "is", "in", "with"};
+
+    @Param({"1", "6", "9"})
+    public int level;
+
+    @Param({"json", "text", "random"})
+    public String content;
+
+    private byte[] body;
+    private ResponseCompression compression;
+    private final ByteArrayOutputStream sink = new ByteArrayOutputStream(BODY_SIZE + 1024);
+
+    @Setup(Level.Trial)
+    public void setup() {
+        body = body(content);
+        compression = ResponseCompression.builder().level(level).build();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        long in = compression.getBytesIn();
+        long out = compression.getBytesOut();
+        if (in > 0) {
+            System.out.printf("%n%s at level %d: %d bytes -> %d bytes per MiB, %.1f%% saved%n", content, level,
+                              BODY_SIZE, out * BODY_SIZE / in, 100.0 * (in - out) / in);
+        }
+    }
+
+    @Benchmark
+    public int pooled() throws IOException {
+        sink.reset();
+        try (ResponseCompression.CompressingStream os = compression.compress(sink, ResponseCompression.Encoding.GZIP)) {
+            os.write(body);
+        }
+        return sink.size();
+    }
+
+    @Benchmark
+    public int jdkGzip() throws IOException {
+        sink.reset();
+        try (GZIPOutputStream os = new GZIPOutputStream(sink, 8 * 1024) {
+            {
+                def.setLevel(level);
+            }
+        }) {
+            os.write(body);
+        }
+        return sink.size();
+    }
+
+    private static byte[] body(String content) {
+        Random random = new Random(42);
+        byte[] bytes = new byte[BODY_SIZE];
+        if (content.equals("random")) {
+            random.nextBytes(bytes);
+            return bytes;
+        }
+        StringBuilder sb = new StringBuilder(BODY_SIZE + 64);
+        for (int i = 0; sb.length() < BODY_SIZE; i++) {
+            if (content.equals("json")) {
+                sb.append("{\"id\":").append(i).append(",\"name\":\"item-").append(random.nextInt(1000))
+                  .append("\",\"price\":").append(random.nextInt(100_000) / 100.0).append(",\"inStock\":")
+                  .append(random.nextBoolean()).append("},");
+            } else {
+                sb.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+        }
+        System.arraycopy(sb.toString().getBytes(), 0, bytes, 0, BODY_SIZE);
+        return bytes;
+    }
+}
@@ -0,0 +1,69 @@
+package com.simplereverseproxy;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of finding the route of a request path in a {@link RouteTable} of {@code routes} routes. Half of the routes
+ * are nested two segments deep below the other half, and the looked up paths go a few segments below a random
+ * route, so every lookup walks a long shared prefix and picks the longer of two matching prefixes.
+ *
+ * Usage: java -jar benchmarks/target/benchmarks.jar RouteMatchBenchmark [-prof gc]
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouteMatchBenchmark {
+
+    private static final int PATHS = 4096;
+
+    @Param({"10", "1000", "10000"})
+    public int routes;
+
+    private RouteTable<String> table;
+    private String[] paths;
+
+    @Setup
+    public void setup() {
+        RouteTable.Builder<String> builder = RouteTable.builder();
+        for (int i = 0; i < routes / 2; i++) {
+            builder.add(null, "/services/service" + i, false, "service" + i);
+            builder.add(null, "/services/service" + i + "/api/v2", false, "service" + i + "-v2");
+        }
+        Random random = new Random(42);
+        paths = new String[PATHS];
+        for (int i = 0; i < PATHS; i++) {
+            int service = random.nextInt(Math.max(1, routes / 2));
+            paths[i] = random.nextBoolean() ? "/services/service" + service + "/api/v2/orders/" + i
+                                            : "/services/service" + service + "/static/app.js";
+        }
+        table = builder.build();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public String match(Cursor cursor) {
+        String path = paths[cursor.next];
+        cursor.next = (cursor.next + 1) & (PATHS - 1);
+        return table.match(null, path);
+    }
+}
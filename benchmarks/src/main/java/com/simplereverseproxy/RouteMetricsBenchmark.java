@@ -0,0 +1,61 @@
+package com.simplereverseproxy;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of recording everything {@link RouteMetrics} keeps about one proxied request: the upstream latency and
+ * bytes, and the response with its total latency. {@code shared} has every thread record into the metrics of
+ * the same route, which is the worst case for the striped counters.
+ *
+ * Usage: java -jar benchmarks/target/benchmarks.jar RouteMetricsBenchmark [-prof gc]
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RouteMetricsBenchmark {
+
+    private final RouteMetrics metrics = new RouteMetrics();
+
+    @State(Scope.Thread)
+    public static class Request {
+        long latency = 1_000;
+
+        long next() {
+            // Spread the samples over a few hundred buckets like real latencies would be.
+            latency = latency * 33 % 50_000_000 + 1_000;
+            return latency;
+        }
+    }
+
+    @Benchmark
+    public void recordRequest(Request request) {
+        record(request);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void shared(Request request) {
+        record(request);
+    }
+
+    private void record(Request request) {
+        long latency = request.next();
+        metrics.recordUpstreamLatency(latency);
+        metrics.recordUpstreamBytes(512);
+        metrics.recordResponse(200, 512, latency + 20_000);
+    }
+}
@@ -0,0 +1,72 @@
+package com.simplereverseproxy;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.simplereverseproxy.benchmarks.StubExchange;
+
+/**
+ * Cost of a {@link TimeBasedThrottleRule} decision while its state is constantly expiring. The window is one
+ * millisecond, so nearly every decision lets the request through, records it and schedules its expiry on the
+ * shared {@link TimingWheel}, whose thread removes it again concurrently. Together with
+ * {@code ThrottleRuleBenchmark}, where nothing expires, this bounds the cost of keeping throttle state of
+ * {@code keys} distinct requests. Run with {@code -t} to have several threads record and schedule at once.
+ *
+ * Usage: java -jar benchmarks/target/benchmarks.jar ThrottleExpiryBenchmark [-t threads] [-prof gc]
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThrottleExpiryBenchmark {
+
+    @Param({"1024", "65536"})
+    public int keys;
+
+    private TimeBasedThrottleRule rule;
+    private StubExchange[] requests;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        TimingWheel.shared().retain();
+        rule = new TimeBasedThrottleRule(1);
+        InetSocketAddress client = new InetSocketAddress("127.0.0.1", 40000);
+        requests = new StubExchange[keys];
+        for (int i = 0; i < keys; i++) {
+            requests[i] = new StubExchange("/app1/resource?id=" + i, client);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        TimingWheel.shared().release();
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public boolean decide(Cursor cursor) {
+        StubExchange request = requests[cursor.next];
+        cursor.next = cursor.next + 1 == requests.length ? 0 : cursor.next + 1;
+        return rule.throttleRequest(request);
+    }
+}
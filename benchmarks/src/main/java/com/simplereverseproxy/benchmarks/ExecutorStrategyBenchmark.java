@@ -0,0 +1,118 @@
+package com.simplereverseproxy.benchmarks;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.simplereverseproxy.ExecutorStrategy;
+import com.simplereverseproxy.ReverseProxyServer;
+import com.simplereverseproxy.RouteConfig;
+
+/**
+ * Compares the {@link ExecutorStrategy} options of {@link ReverseProxyServer} against a local upstream stub
+ * that takes a fixed time to answer. Every strategy gets the same closed-loop load: {@code concurrency}
+ * requests are kept in flight until {@code requests} have completed.
+ *
+ * Usage: ExecutorStrategyBenchmark [concurrency] [requests] [upstreamDelayMillis] [threadPoolSize]
+ */
+public final class ExecutorStrategyBenchmark {
+
+    private static final int PROXY_PORT = 8100;
+    private static final int UPSTREAM_PORT = 9100;
+
+    public static void main(String[] args) throws Exception {
+        // The stub upstreams and the proxy are all JDK HttpServers, which read this once, with the first of them.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        int concurrency = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 10000;
+        long upstreamDelay = args.length > 2 ? Long.parseLong(args[2]) : 100;
+        int threadPoolSize = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+        StubUpstream upstream = StubUpstream.builder().port(UPSTREAM_PORT).context("slow")
+                                            .latency(Duration.ofMillis(upstreamDelay)).start();
+        System.out.printf("concurrency=%d requests=%d upstreamDelay=%dms threadPoolSize=%d%n",
+                          concurrency, requests, upstreamDelay, threadPoolSize);
+        System.out.printf("%-16s %12s %10s %10s %10s %8s%n", "strategy", "req/s", "p50(ms)", "p99(ms)", "max(ms)",
+                          "errors");
+        try {
+            for (ExecutorStrategy strategy : ExecutorStrategy.values()) {
+                if (!strategy.isSupported()) {
+                    System.out.printf("%-16s skipped, not supported on JDK %s%n", strategy,
+                                      System.getProperty("java.version"));
+                    continue;
+                }
+                run(strategy, concurrency, Math.min(requests, concurrency * 2), threadPoolSize, upstreamDelay, false);
+                run(strategy, concurrency, requests, threadPoolSize, upstreamDelay, true);
+            }
+        } finally {
+            upstream.stop();
+        }
+        System.exit(0);
+    }
+
+    private static void run(ExecutorStrategy strategy, int concurrency, int requests, int threadPoolSize,
+                            long upstreamDelay, boolean report) throws Exception {
+        ReverseProxyServer proxy = ReverseProxyServer.builder()
+                                                     .hostName("localhost").port(PROXY_PORT)
+                                                     .executorStrategy(strategy)
+                                                     .threadPoolSize(threadPoolSize)
+                                                     .requestTimeout(60000)
+                                                     .routeConfig(RouteConfig.builder().appContext("slow")
+                                                                             .hostUrl("http://localhost:" + UPSTREAM_PORT)
+                                                                             .maxConnections(concurrency).build())
+                                                     .build();
+        proxy.start();
+        ExecutorService clientExecutor = Executors.newCachedThreadPool();
+        HttpClient client = HttpClient.newBuilder()
+                                      .version(HttpClient.Version.HTTP_1_1)
+                                      .executor(clientExecutor)
+                                      .connectTimeout(Duration.ofSeconds(10))
+                                      .build();
+        HttpRequest request = HttpRequest.newBuilder()
+                                         .uri(new URI("http://localhost:" + PROXY_PORT + "/slow"))
+                                         .GET().build();
+        try {
+            long[] latencies = new long[requests];
+            AtomicInteger errors = new AtomicInteger();
+            Semaphore inFlight = new Semaphore(concurrency);
+            CountDownLatch done = new CountDownLatch(requests);
+            long start = System.nanoTime();
+            for (int i = 0; i < requests; i++) {
+                inFlight.acquire();
+                final int index = i;
+                final long sent = System.nanoTime();
+                client.sendAsync(request, BodyHandlers.discarding()).whenComplete((response, error) -> {
+                    latencies[index] = System.nanoTime() - sent;
+                    if (error != null || response.statusCode() != 200) {
+                        errors.incrementAndGet();
+                    }
+                    inFlight.release();
+                    done.countDown();
+                });
+            }
+            done.await();
+            long elapsed = System.nanoTime() - start;
+            if (report) {
+                Arrays.sort(latencies);
+                System.out.printf("%-16s %12.0f %10.1f %10.1f %10.1f %8d%n", strategy,
+                                  requests / (elapsed / 1e9), percentile(latencies, 0.50), percentile(latencies, 0.99),
+                                  latencies[latencies.length - 1] / 1e6, errors.get());
+            }
+        } finally {
+            proxy.shutdown();
+            clientExecutor.shutdownNow();
+        }
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        return sorted[(int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1)] / 1e6;
+    }
+}
@@ -0,0 +1,97 @@
+package com.simplereverseproxy.benchmarks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.openjdk.jmh.infra.BenchmarkParams;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of the per request hot paths once per thread count and prints one table of all runs:
+ * route matching, the request URI keys, throttling decisions with and without expiry, and a whole request through
+ * the router. JMH cannot take the thread count as a {@code @Param}, so this runner is the thread count dimension,
+ * every other parameter is still the benchmark's own. The GC profiler is on unless {@code gc=false}, its bytes
+ * allocated per operation are printed next to the score.
+ *
+ * Arguments are {@code name=value} pairs:
+ * <pre>
+ * threads=1,2,4,8   thread counts to run every benchmark with, overriding any {@code @Threads}
+ * include=...       comma separated benchmark regular expressions, the hot path benchmarks by default
+ * gc=true           run with the GC profiler
+ * </pre>
+ * Usage: HotPathBenchmarks threads=1,4,16 include=RequestRouterBenchmark
+ */
+public final class HotPathBenchmarks {
+
+    private static final String ALLOCATION = "gc.alloc.rate.norm";
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> settings = settings(args);
+        int[] threads = Arrays.stream(settings.get("threads").split(",")).mapToInt(Integer::parseInt).toArray();
+        boolean gc = Boolean.parseBoolean(settings.get("gc"));
+
+        List<RunResult> results = new ArrayList<>();
+        for (int t : threads) {
+            ChainedOptionsBuilder options = new OptionsBuilder().threads(t);
+            for (String include : settings.get("include").split(",")) {
+                options.include(include);
+            }
+            if (gc) {
+                options.addProfiler(GCProfiler.class);
+            }
+            results.addAll(new Runner(options.build()).run());
+        }
+
+        System.out.println(settings);
+        System.out.printf("%-48s %-36s %7s %12s %10s %11s%n", "benchmark", "params", "threads", "score", "error",
+                          "alloc(B/op)");
+        for (RunResult run : results) {
+            BenchmarkParams params = run.getParams();
+            Result<?> score = run.getPrimaryResult();
+            Result<?> allocation = allocation(run.getSecondaryResults());
+            System.out.printf("%-48s %-36s %7d %12.3f %10.3f %11s  %s%n", shortName(params.getBenchmark()),
+                              params.getParamsKeys().stream().map(k -> k + "=" + params.getParam(k))
+                                    .collect(Collectors.joining(" ")),
+                              params.getThreads(), score.getScore(), score.getScoreError(),
+                              allocation == null ? "-" : String.format("%.1f", allocation.getScore()),
+                              score.getScoreUnit());
+        }
+    }
+
+    private static Result<?> allocation(Map<String, Result> secondary) {
+        // Older JMH versions prefix the profiler's result labels with a middle dot.
+        return secondary.entrySet().stream().filter(e -> e.getKey().endsWith(ALLOCATION))
+                        .map(Map.Entry::getValue).findFirst().orElse(null);
+    }
+
+    private static String shortName(String benchmark) {
+        int method = benchmark.lastIndexOf('.');
+        return benchmark.substring(benchmark.lastIndexOf('.', method - 1) + 1);
+    }
+
+    private static Map<String, String> settings(String[] args) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("threads", "1,2,4,8");
+        settings.put("include", "RouteMatchBenchmark,RequestUriBenchmark,ThrottleRuleBenchmark,"
+                                + "ThrottleExpiryBenchmark,RequestRouterBenchmark");
+        settings.put("gc", "true");
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0 || !settings.containsKey(arg.substring(0, separator))) {
+                throw new IllegalArgumentException(String.format("Unknown argument %s, expected name=value with one of %s",
+                                                                 arg, settings.keySet()));
+            }
+            settings.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return settings;
+    }
+}
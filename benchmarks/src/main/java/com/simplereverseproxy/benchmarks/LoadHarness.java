@@ -0,0 +1,283 @@
+package com.simplereverseproxy.benchmarks;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.simplereverseproxy.ExecutorStrategy;
+import com.simplereverseproxy.LatencyHistogram;
+import com.simplereverseproxy.ReverseProxyServer;
+import com.simplereverseproxy.RouteConfig;
+import com.simplereverseproxy.ServerEngine;
+
+/**
+ * End to end load test of {@link ReverseProxyServer} against local {@link StubUpstream}s, all in one JVM.
+ *
+ * The load follows an open model: requests are sent at a constant rate whether or not earlier ones have been
+ * answered, the way independent clients arrive at a real proxy. Latency is measured from the time a request was
+ * due to be sent rather than the time it was actually sent, so a stall of the proxy, or of the load generator
+ * itself, shows up in the percentiles of every request it delayed instead of being hidden by sending fewer
+ * requests (coordinated omission). The uncorrected p99 is printed next to it for comparison.
+ *
+ * Heap and thread counts are those of the whole JVM, which also hosts the client and the stubs, the baseline
+ * printed before the first run is what they need without a proxy.
+ *
+ * Arguments are {@code name=value} pairs, {@code rate}, {@code threadPoolSize} and {@code requestTimeout} take
+ * a comma separated list and every combination is run:
+ * <pre>
+ * rate=1000             requests per second
+ * duration=10           measured seconds per run, after warmup=3 seconds at the same rate
+ * latency=20            upstream latency in ms, or a range such as 5-50
+ * payload=512           upstream response size in bytes
+ * errorRate=0           fraction of upstream responses that are 500
+ * upstreams=1           number of stub upstreams behind the route
+ * threadPoolSize=cpus   proxy thread pool size
+ * requestTimeout=5000   proxy upstream timeout in ms
+ * engine=HTTP_SERVER    or NIO
+ * executor=FIXED        proxy executor strategy
+ * maxConnections=1000   connections per upstream
+ * </pre>
+ * Usage: LoadHarness rate=500,1000,2000 threadPoolSize=4,16 latency=5-50
+ */
+public final class LoadHarness {
+
+    private static final int PROXY_PORT = 8200;
+    private static final int UPSTREAM_PORT = 9200;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+
+    public static void main(String[] args) throws Exception {
+        // The stub upstreams and the proxy are all JDK HttpServers, which read this once, with the first of them.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        Map<String, String> settings = settings(args);
+        long[] rates = longs(settings.get("rate"));
+        long[] threadPoolSizes = longs(settings.get("threadPoolSize"));
+        long[] requestTimeouts = longs(settings.get("requestTimeout"));
+        int duration = Integer.parseInt(settings.get("duration"));
+        int warmup = Integer.parseInt(settings.get("warmup"));
+        String[] latency = settings.get("latency").split("-");
+        Duration minLatency = Duration.ofMillis(Long.parseLong(latency[0]));
+        Duration maxLatency = Duration.ofMillis(Long.parseLong(latency[latency.length - 1]));
+
+        List<StubUpstream> upstreams = new ArrayList<>();
+        for (int i = 0; i < Integer.parseInt(settings.get("upstreams")); i++) {
+            upstreams.add(StubUpstream.builder().port(UPSTREAM_PORT + i)
+                                      .latency(minLatency, maxLatency)
+                                      .payloadBytes(Integer.parseInt(settings.get("payload")))
+                                      .errorRate(Double.parseDouble(settings.get("errorRate")))
+                                      .start());
+        }
+        ExecutorService clientExecutor = Executors.newCachedThreadPool();
+        HttpClient client = HttpClient.newBuilder()
+                                      .version(HttpClient.Version.HTTP_1_1)
+                                      .executor(clientExecutor)
+                                      .connectTimeout(Duration.ofSeconds(10))
+                                      .build();
+        System.out.println(settings);
+        System.gc();
+        System.out.printf("baseline without proxy: heap=%dMB threads=%d%n",
+                          MEMORY.getHeapMemoryUsage().getUsed() >> 20, THREADS.getThreadCount());
+        System.out.printf("%6s %5s %7s %9s %8s %6s %6s %7s %8s %8s %8s %8s %9s %8s %7s %7s %6s%n", "rate", "pool",
+                          "timeout", "req/s", "ok", "errors", "failed", "pending", "p50(ms)", "p99(ms)", "p99.9(ms)",
+                          "max(ms)", "p99raw(ms)", "lag(ms)", "heap(MB)", "threads", "gc(ms)");
+        try {
+            for (long rate : rates) {
+                for (long threadPoolSize : threadPoolSizes) {
+                    for (long requestTimeout : requestTimeouts) {
+                        run(client, settings, upstreams.size(), rate, (int) threadPoolSize, (int) requestTimeout,
+                            warmup, duration);
+                    }
+                }
+            }
+        } finally {
+            upstreams.forEach(StubUpstream::stop);
+            clientExecutor.shutdownNow();
+        }
+        System.exit(0);
+    }
+
+    private static void run(HttpClient client, Map<String, String> settings, int upstreams, long rate,
+                            int threadPoolSize, int requestTimeout, int warmup, int duration) throws Exception {
+        RouteConfig.Builder route = RouteConfig.builder().appContext("load")
+                                               .maxConnections(Integer.parseInt(settings.get("maxConnections")));
+        for (int i = 0; i < upstreams; i++) {
+            route.upstream("http://localhost:" + (UPSTREAM_PORT + i));
+        }
+        ReverseProxyServer proxy = ReverseProxyServer.builder()
+                                                     .hostName("localhost").port(PROXY_PORT)
+                                                     .engine(ServerEngine.valueOf(settings.get("engine")))
+                                                     .executorStrategy(ExecutorStrategy.valueOf(settings.get("executor")))
+                                                     .threadPoolSize(threadPoolSize)
+                                                     .requestTimeout(requestTimeout)
+                                                     .routeConfig(route.build())
+                                                     .build();
+        proxy.start();
+        HttpRequest request = HttpRequest.newBuilder()
+                                         .uri(new URI("http://localhost:" + PROXY_PORT + "/load"))
+                                         .timeout(Duration.ofMillis(Math.max(2L * requestTimeout, 10_000)))
+                                         .GET().build();
+        try {
+            drive(client, request, rate, warmup);
+            System.gc();
+            THREADS.resetPeakThreadCount();
+            long gcBefore = gcMillis();
+            HeapSampler heap = new HeapSampler();
+            heap.start();
+            Result result = drive(client, request, rate, duration);
+            heap.interrupt();
+            heap.join();
+            LatencyHistogram.Snapshot corrected = result.corrected.snapshot();
+            System.out.printf("%6d %5d %7d %9.0f %8d %6d %6d %7d %8.1f %8.1f %8.1f %8.1f %9.1f %8.1f %7d %7d %6d%n",
+                              rate, threadPoolSize, requestTimeout, result.throughput(), result.ok.sum(),
+                              result.errors.sum(), result.failed.sum(), result.pending,
+                              millis(corrected.getValueAtPercentile(50)), millis(corrected.getValueAtPercentile(99)),
+                              millis(corrected.getValueAtPercentile(99.9)),
+                              millis(corrected.getMaxMicros()),
+                              millis(result.uncorrected.snapshot().getValueAtPercentile(99)),
+                              result.maxLagNanos.get() / 1e6, heap.peak >> 20, THREADS.getPeakThreadCount(),
+                              gcMillis() - gcBefore);
+        } finally {
+            proxy.shutdown();
+        }
+    }
+
+    /**
+     * Sends requests at {@code rate} per second for {@code seconds} and waits for their responses, at most the
+     * request timeout and a second. Requests still unanswered by then are counted as pending, not in the results.
+     */
+    private static Result drive(HttpClient client, HttpRequest request, long rate, int seconds)
+            throws InterruptedException {
+        long total = rate * seconds;
+        Result result = new Result();
+        CountDownLatch done = new CountDownLatch((int) total);
+        long start = System.nanoTime();
+        for (long i = 0; i < total; i++) {
+            long intended = start + i * 1_000_000_000L / rate;
+            long wait;
+            while ((wait = intended - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            long sent = System.nanoTime();
+            result.maxLagNanos.accumulateAndGet(sent - intended, Math::max);
+            client.sendAsync(request, BodyHandlers.discarding()).whenComplete((response, error) -> {
+                long end = System.nanoTime();
+                result.corrected.recordNanos(end - intended);
+                result.uncorrected.recordNanos(end - sent);
+                if (error != null) {
+                    result.failed.increment();
+                } else if (response.statusCode() == 200) {
+                    result.ok.increment();
+                } else {
+                    result.errors.increment();
+                }
+                done.countDown();
+            });
+        }
+        if (!done.await(request.timeout().orElseThrow().toMillis() + 1000, TimeUnit.MILLISECONDS)) {
+            result.pending = done.getCount();
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        return result;
+    }
+
+    private static final class Result {
+        final LatencyHistogram corrected = new LatencyHistogram();
+        final LatencyHistogram uncorrected = new LatencyHistogram();
+        final LongAdder ok = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final AtomicLong maxLagNanos = new AtomicLong();
+        long elapsedNanos;
+        long pending;
+
+        double throughput() {
+            return (ok.sum() + errors.sum()) / (elapsedNanos / 1e9);
+        }
+    }
+
+    /**
+     * Samples the used heap every 10 ms and keeps the highest value, garbage not yet collected included.
+     */
+    private static final class HeapSampler extends Thread {
+        private static final AtomicInteger COUNT = new AtomicInteger();
+        volatile long peak;
+
+        HeapSampler() {
+            super("heap-sampler-" + COUNT.incrementAndGet());
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                peak = Math.max(peak, MEMORY.getHeapMemoryUsage().getUsed());
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000d;
+    }
+
+    private static Map<String, String> settings(String[] args) {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("rate", "1000");
+        settings.put("duration", "10");
+        settings.put("warmup", "3");
+        settings.put("latency", "20");
+        settings.put("payload", "512");
+        settings.put("errorRate", "0");
+        settings.put("upstreams", "1");
+        settings.put("threadPoolSize", Integer.toString(Runtime.getRuntime().availableProcessors()));
+        settings.put("requestTimeout", "5000");
+        settings.put("engine", ServerEngine.HTTP_SERVER.name());
+        settings.put("executor", ExecutorStrategy.FIXED.name());
+        settings.put("maxConnections", "1000");
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (separator < 0 || !settings.containsKey(arg.substring(0, separator))) {
+                throw new IllegalArgumentException(String.format("Unknown argument %s, expected name=value with one of %s",
+                                                                 arg, settings.keySet()));
+            }
+            settings.put(arg.substring(0, separator), arg.substring(separator + 1));
+        }
+        return settings;
+    }
+
+    private static long[] longs(String values) {
+        return Arrays.stream(values.split(",")).mapToLong(Long::parseLong).toArray();
+    }
+}
@@ -0,0 +1,106 @@
+package com.simplereverseproxy.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.simplereverseproxy.RequestRouter;
+import com.simplereverseproxy.RouteConfig;
+import com.simplereverseproxy.TimeBasedThrottleRule;
+
+/**
+ * Cost of {@link RequestRouter#handle} for one request, from matching the route to writing the response, in a
+ * router of {@code routes} routes. The request ends in one of the ways a request can end:
+ * <ul>
+ *     <li>{@code NOT_FOUND} - no route serves the path</li>
+ *     <li>{@code THROTTLED} - a throttle rule rejects it with 429</li>
+ *     <li>{@code CACHE_HIT} - a fresh response is served from the route's cache</li>
+ *     <li>{@code PROXIED} - it is sent to a local upstream stub, which makes this mostly a measure of the loopback
+ *     round trip and the JDK HttpClient</li>
+ * </ul>
+ * Each thread answers its own in memory exchange, run with {@code -t} to see the router under contention.
+ * The stub runs with {@code sun.net.httpserver.nodelay} so delayed ACKs do not dominate the proxied round trip.
+ *
+ * Usage: java -jar benchmarks/target/benchmarks.jar RequestRouterBenchmark [-t threads] [-prof gc]
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dsun.net.httpserver.nodelay=true")
+@State(Scope.Benchmark)
+public class RequestRouterBenchmark {
+
+    private static final int UPSTREAM_PORT = 9300;
+
+    public enum Outcome {
+        NOT_FOUND, THROTTLED, CACHE_HIT, PROXIED
+    }
+
+    @Param({"1", "1000"})
+    public int routes;
+
+    @Param({"NOT_FOUND", "THROTTLED", "CACHE_HIT", "PROXIED"})
+    public Outcome outcome;
+
+    private StubUpstream upstream;
+    private RequestRouter router;
+    private String path;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        upstream = StubUpstream.builder().port(UPSTREAM_PORT).header("Cache-Control", "max-age=3600").start();
+        String upstreamUrl = "http://localhost:" + UPSTREAM_PORT;
+        Set<RouteConfig> configs = new HashSet<>();
+        for (int i = 0; i < routes - 1; i++) {
+            configs.add(RouteConfig.builder().appContext("service" + i).hostUrl(upstreamUrl).build());
+        }
+        RouteConfig.Builder route = RouteConfig.builder().appContext("target").hostUrl(upstreamUrl);
+        if (outcome == Outcome.THROTTLED) {
+            route.throttleRule(new TimeBasedThrottleRule((int) TimeUnit.HOURS.toMillis(1)));
+        } else if (outcome == Outcome.CACHE_HIT) {
+            route.responseCache(1 << 20);
+        }
+        configs.add(route.build());
+        router = new RequestRouter(configs, 1000);
+        path = outcome == Outcome.NOT_FOUND ? "/unknown/resource?id=1" : "/target/resource?id=1";
+        // Let the one request through that the throttle rule remembers and the cache stores.
+        router.handle(new StubExchange(path, new InetSocketAddress("127.0.0.1", 40000)));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        upstream.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class Exchange {
+        StubExchange request;
+
+        @Setup(Level.Trial)
+        public void setup(RequestRouterBenchmark benchmark) {
+            request = new StubExchange(benchmark.path, new InetSocketAddress("127.0.0.1", 40000));
+        }
+    }
+
+    @Benchmark
+    public int handle(Exchange exchange) throws Exception {
+        router.handle(exchange.request);
+        return exchange.request.getResponseCode();
+    }
+}
@@ -0,0 +1,167 @@
+package com.simplereverseproxy.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Configurable local upstream stub for benchmarks and load tests. Every response is delayed by a latency drawn
+ * uniformly between a minimum and a maximum, and a given fraction of the requests is answered with 500 instead of
+ * the payload. The delay is implemented with a scheduler rather than a sleeping thread, so the stub itself can hold
+ * tens of thousands of requests open and never becomes the bottleneck of a benchmark.
+ */
+public final class StubUpstream {
+
+    private final HttpServer server;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService executor;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    private StubUpstream(Builder builder) throws IOException {
+        long minNanos = builder.minLatency.toNanos();
+        long maxNanos = builder.maxLatency.toNanos();
+        byte[] payload = new byte[builder.payloadBytes];
+        byte[] error = "stub upstream error".getBytes();
+        double errorRate = builder.errorRate;
+        Map<String, String> headers = new LinkedHashMap<>(builder.headers);
+        scheduler = Executors.newScheduledThreadPool(2);
+        executor = Executors.newFixedThreadPool(2);
+        server = HttpServer.create(new InetSocketAddress("localhost", builder.port), 4096);
+        server.createContext("/" + builder.context, exchange -> {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long delay = maxNanos > minNanos ? random.nextLong(minNanos, maxNanos + 1) : minNanos;
+            boolean fail = errorRate > 0 && random.nextDouble() < errorRate;
+            requests.increment();
+            scheduler.schedule(() -> {
+                try {
+                    byte[] body = fail ? error : payload;
+                    if (fail) {
+                        errors.increment();
+                    }
+                    headers.forEach(exchange.getResponseHeaders()::set);
+                    exchange.sendResponseHeaders(fail ? 500 : 200, body.length);
+                    OutputStream os = exchange.getResponseBody();
+                    os.write(body);
+                    os.close();
+                } catch (IOException e) {
+                    exchange.close();
+                }
+            }, delay, TimeUnit.NANOSECONDS);
+        });
+        server.setExecutor(executor);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Requests received so far.
+     */
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    /**
+     * Requests answered with 500 so far.
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public void stop() {
+        server.stop(0);
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    public static final class Builder {
+        private int port;
+        private String context = "";
+        private Duration minLatency = Duration.ZERO;
+        private Duration maxLatency = Duration.ZERO;
+        private int payloadBytes = 512;
+        private double errorRate;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+
+        public Builder port(int port) {
+            this.port = port;
+            return this;
+        }
+
+        /**
+         * Context the stub answers on, without the leading slash. The default answers every path.
+         */
+        public Builder context(String context) {
+            this.context = context;
+            return this;
+        }
+
+        /**
+         * Delays every response by exactly {@code latency}.
+         */
+        public Builder latency(Duration latency) {
+            return latency(latency, latency);
+        }
+
+        /**
+         * Delays every response by a latency drawn uniformly between {@code min} and {@code max}.
+         */
+        public Builder latency(Duration min, Duration max) {
+            if (min.isNegative() || max.compareTo(min) < 0) {
+                throw new IllegalArgumentException("Latency range must not be negative or empty");
+            }
+            this.minLatency = min;
+            this.maxLatency = max;
+            return this;
+        }
+
+        /**
+         * Size of the body of successful responses, 512 bytes by default.
+         */
+        public Builder payloadBytes(int payloadBytes) {
+            if (payloadBytes < 0) {
+                throw new IllegalArgumentException("Payload size must not be negative");
+            }
+            this.payloadBytes = payloadBytes;
+            return this;
+        }
+
+        /**
+         * Fraction of requests answered with 500, between 0 (the default) and 1.
+         */
+        public Builder errorRate(double errorRate) {
+            if (errorRate < 0 || errorRate > 1) {
+                throw new IllegalArgumentException("Error rate must be between 0 and 1");
+            }
+            this.errorRate = errorRate;
+            return this;
+        }
+
+        /**
+         * Header added to every response, e.g. {@code Cache-Control} to make responses cacheable.
+         */
+        public Builder header(String name, String value) {
+            headers.put(name, value);
+            return this;
+        }
+
+        public StubUpstream start() throws IOException {
+            StubUpstream upstream = new StubUpstream(this);
+            upstream.server.start();
+            return upstream;
+        }
+    }
+}
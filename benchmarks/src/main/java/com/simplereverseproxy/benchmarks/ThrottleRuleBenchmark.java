@@ -0,0 +1,93 @@
+package com.simplereverseproxy.benchmarks;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.simplereverseproxy.SlidingWindowThrottleRule;
+import com.simplereverseproxy.ThrottleKey;
+import com.simplereverseproxy.ThrottleRule;
+import com.simplereverseproxy.TimeBasedThrottleRule;
+import com.simplereverseproxy.TokenBucketThrottleRule;
+
+/**
+ * Cost of one throttling decision of each {@link ThrottleRule} over a set of {@code keys} distinct requests.
+ * {@link TimeBasedThrottleRule} is keyed by URL, the rate limiting rules by an API key header.
+ *
+ * The time based rule runs with a window longer than the benchmark, so after the first round every decision is a
+ * lookup that throttles; the rate limits are set high enough that their decisions let the request through and
+ * update the key's state. Run with {@code -t} to see the rules under contention, and with {@code -prof gc} to see
+ * that deciding allocates nothing.
+ *
+ * Usage: java -jar benchmarks/target/benchmarks.jar ThrottleRuleBenchmark [-t threads] [-prof gc]
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ThrottleRuleBenchmark {
+
+    public enum Rule {
+        TIME_BASED, TOKEN_BUCKET, SLIDING_WINDOW
+    }
+
+    @Param({"TIME_BASED", "TOKEN_BUCKET", "SLIDING_WINDOW"})
+    public Rule rule;
+
+    @Param({"1", "1024", "65536"})
+    public int keys;
+
+    private ThrottleRule throttleRule;
+    private StubExchange[] requests;
+
+    @Setup
+    public void setup() {
+        switch (rule) {
+            case TIME_BASED:
+                throttleRule = new TimeBasedThrottleRule((int) TimeUnit.HOURS.toMillis(1));
+                break;
+            case TOKEN_BUCKET:
+                throttleRule = TokenBucketThrottleRule.builder()
+                                                      .rate(1_000_000_000, Duration.ofSeconds(1)).burst(1_000_000)
+                                                      .key(ThrottleKey.header("X-Api-Key")).maxKeys(keys * 2)
+                                                      .build();
+                break;
+            default:
+                throttleRule = SlidingWindowThrottleRule.builder()
+                                                        .limit(SlidingWindowThrottleRule.MAX_LIMIT, Duration.ofMillis(1))
+                                                        .key(ThrottleKey.header("X-Api-Key")).maxKeys(keys * 2)
+                                                        .build();
+        }
+        InetSocketAddress client = new InetSocketAddress("127.0.0.1", 40000);
+        requests = new StubExchange[keys];
+        for (int i = 0; i < keys; i++) {
+            requests[i] = new StubExchange("/app1/resource?id=" + i + "&page=2", client).header("X-Api-Key", "key-" + i);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Benchmark
+    public boolean decide(Cursor cursor) {
+        StubExchange request = requests[cursor.next];
+        cursor.next = cursor.next + 1 == requests.length ? 0 : cursor.next + 1;
+        return throttleRule.throttleRequest(request);
+    }
+}
@@ -0,0 +1,117 @@
+package com.simplereverseproxy;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Queue in front of the request executor that sheds load by queueing delay rather than by queue length. Every
+ * exchange handed to the executor is timestamped, the time it waited before a worker took it, its sojourn time,
+ * is recorded and given to a {@link CoDelController}. Once the queue stands, waits that stay above the target for
+ * a whole interval, exchanges that waited too long are answered with 503 right away instead of being proxied,
+ * and the queue is served newest first so the requests still likely to be waited for are the ones answered.
+ *
+ * The JDK HttpServer hands the executor opaque tasks that read the request and run the handler, so a shed task
+ * still runs, it is only marked for {@link RequestRouter} to answer 503 without routing it; admin endpoints are
+ * served regardless. When more than the maximum are queued, new exchanges are marked as shed when they arrive.
+ * Tasks are never refused, a refused task would leave its connection open with no response.
+ */
+public final class AdmissionQueue implements Executor {
+
+    private static final ThreadLocal<Boolean> SHEDDING = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    private final Executor executor;
+    private final CoDelController codel;
+    private final int maxQueued;
+    private final ConcurrentLinkedDeque<Entry> queue = new ConcurrentLinkedDeque<>();
+    private final AtomicInteger depth = new AtomicInteger();
+    private final LongAdder shed = new LongAdder();
+    private final LatencyHistogram sojournTimes = new LatencyHistogram();
+
+    AdmissionQueue(Executor executor, Duration target, Duration interval, int maxQueued) {
+        if (maxQueued <= 0) {
+            throw new IllegalArgumentException("Admission queue must hold at least one request");
+        }
+        this.executor = executor;
+        this.codel = new CoDelController(target, interval);
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * Whether the task running on this thread was shed and its request must be answered with 503.
+     */
+    static boolean isShedding() {
+        return SHEDDING.get();
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        boolean overflow = depth.incrementAndGet() > maxQueued;
+        queue.offerLast(new Entry(task, System.nanoTime(), overflow));
+        // The executor only runs one dequeue per task, which entry it takes is decided when a worker is free.
+        executor.execute(this::runNext);
+    }
+
+    private void runNext() {
+        Entry entry = codel.isOverloaded() ? queue.pollLast() : queue.pollFirst();
+        if (entry == null) {
+            return;
+        }
+        depth.decrementAndGet();
+        long sojourn = System.nanoTime() - entry.enqueued;
+        sojournTimes.recordNanos(sojourn);
+        if (!codel.shouldShed(sojourn) && !entry.overflow) {
+            entry.task.run();
+            return;
+        }
+        shed.increment();
+        SHEDDING.set(Boolean.TRUE);
+        try {
+            entry.task.run();
+        } finally {
+            SHEDDING.set(Boolean.FALSE);
+        }
+    }
+
+    /**
+     * Exchanges waiting for a worker right now.
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    /**
+     * Exchanges answered with 503 because they waited too long or the queue was full.
+     */
+    public long getShed() {
+        return shed.sum();
+    }
+
+    /**
+     * Whether the queue stood above its target during the last interval and is served newest first.
+     */
+    public boolean isOverloaded() {
+        return codel.isOverloaded();
+    }
+
+    /**
+     * Time exchanges waited for a worker.
+     */
+    public LatencyHistogram getSojournTimes() {
+        return sojournTimes;
+    }
+
+    private static final class Entry {
+        final Runnable task;
+        final long enqueued;
+        final boolean overflow;
+
+        Entry(Runnable task, long enqueued, boolean overflow) {
+            this.task = task;
+            this.enqueued = enqueued;
+            this.overflow = overflow;
+        }
+    }
+}
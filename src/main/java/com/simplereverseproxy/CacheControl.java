@@ -0,0 +1,58 @@
+package com.simplereverseproxy;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Directives of the {@code Cache-Control} headers of a request or response.
+ */
+final class CacheControl {
+
+    private final Map<String, String> directives = new HashMap<>();
+
+    private CacheControl(List<String> headerValues) {
+        for (String value : headerValues) {
+            for (String directive : value.split(",")) {
+                String trimmed = directive.trim();
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                int separator = trimmed.indexOf('=');
+                if (separator < 0) {
+                    directives.put(trimmed.toLowerCase(Locale.ROOT), "");
+                } else {
+                    String argument = trimmed.substring(separator + 1).trim();
+                    if (argument.length() >= 2 && argument.startsWith("\"") && argument.endsWith("\"")) {
+                        argument = argument.substring(1, argument.length() - 1);
+                    }
+                    directives.put(trimmed.substring(0, separator).trim().toLowerCase(Locale.ROOT), argument);
+                }
+            }
+        }
+    }
+
+    static CacheControl parse(List<String> headerValues) {
+        return new CacheControl(headerValues == null ? List.of() : headerValues);
+    }
+
+    boolean has(String directive) {
+        return directives.containsKey(directive);
+    }
+
+    /**
+     * Value of a delta-seconds directive such as {@code max-age}, or -1 if it is missing or not a number.
+     */
+    long seconds(String directive) {
+        String value = directives.get(directive);
+        if (value == null || value.isEmpty()) {
+            return -1;
+        }
+        try {
+            return Math.max(0, Long.parseLong(value));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+package com.simplereverseproxy;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker of one {@link Upstream}. While {@link State#CLOSED} every call is let through and its outcome
+ * counted in a rolling window of ten buckets. Once the window holds enough calls and the share of failed calls,
+ * or of calls slower than a threshold, reaches its limit the breaker opens: the upstream is ejected and calls are
+ * refused without being sent. After the open period a few probe calls are let through {@link State#HALF_OPEN},
+ * all of them succeeding closes the breaker again and any failing opens it for twice as long as the last time,
+ * up to a maximum.
+ *
+ * The state is an immutable phase object swapped with compare and set, so transitions never lock. A call on a
+ * closed breaker costs one volatile read to be admitted and two atomic operations to be recorded, the window is
+ * only summed after a failed or slow call. Counts are approximate: a call recorded while its bucket is being
+ * reused for a new period may be lost.
+ */
+public final class CircuitBreaker {
+
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class.getSimpleName());
+
+    public enum State {
+        /** Calls are let through and counted. */
+        CLOSED,
+        /** The upstream is ejected, calls are refused until the open period ends. */
+        OPEN,
+        /** A limited number of probe calls are let through to find out whether the upstream recovered. */
+        HALF_OPEN
+    }
+
+    private static final int BUCKETS = 10;
+    // Each bucket is four slots of the window: the period it counts, its calls, failed calls and slow calls.
+    private static final int PERIOD = 0;
+    private static final int CALLS = 1;
+    private static final int FAILURES = 2;
+    private static final int SLOW = 3;
+    private static final int SLOTS = 4;
+    // Longest open period is the base period doubled at most this many times, before the maximum applies.
+    private static final int MAX_BACKOFF_SHIFT = 16;
+
+    private final String name;
+    private final double failureRate;
+    private final double slowCallRate;
+    private final long slowCallNanos;
+    private final int minimumCalls;
+    private final long bucketNanos;
+    private final long openNanos;
+    private final long maxOpenNanos;
+    private final int halfOpenCalls;
+    private final AtomicLongArray window = new AtomicLongArray(BUCKETS * SLOTS);
+    private final AtomicReference<Phase> phase = new AtomicReference<>(Phase.CLOSED);
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder openings = new LongAdder();
+    // Times are taken relative to this so they are never negative and period 0 starts with the breaker.
+    private final long origin = System.nanoTime();
+
+    private CircuitBreaker(Builder b, String name) {
+        this.name = name;
+        failureRate = b.failureRate;
+        slowCallRate = b.slowCallRate;
+        slowCallNanos = b.slowCall == null ? Long.MAX_VALUE : b.slowCall.toNanos();
+        minimumCalls = b.minimumCalls;
+        bucketNanos = Math.max(1, b.window.toNanos() / BUCKETS);
+        openNanos = b.openDuration.toNanos();
+        maxOpenNanos = Math.max(openNanos, b.maxOpenDuration.toNanos());
+        halfOpenCalls = b.halfOpenCalls;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Whether a call may be sent to the upstream now. On a half open breaker this takes one of the probe calls,
+     * whose outcome must be {@link #record recorded}; a probe that never reports back is given up after the
+     * open period.
+     */
+    boolean allowRequest() {
+        while (true) {
+            Phase current = phase.get();
+            if (current.state == State.CLOSED) {
+                return true;
+            }
+            long now = now();
+            if (now < current.until) {
+                if (current.state == State.HALF_OPEN && current.permits.get() > 0
+                    && current.permits.getAndDecrement() > 0) {
+                    return true;
+                }
+                rejected.increment();
+                return false;
+            }
+            // The open period is over, or the probes took too long: start probing, this call being the first.
+            Phase probing = new Phase(State.HALF_OPEN, now + openNanos, current.ejections, halfOpenCalls - 1);
+            if (phase.compareAndSet(current, probing)) {
+                logger.info(String.format("Upstream %s: circuit half open, sending %d probe calls", name,
+                                          halfOpenCalls));
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of a call that was let through.
+     *
+     * @param failed      the call failed or the upstream answered with a server error
+     * @param latencyNanos time the upstream took to answer
+     */
+    void record(boolean failed, long latencyNanos) {
+        boolean slow = latencyNanos >= slowCallNanos;
+        Phase current = phase.get();
+        if (current.state == State.CLOSED) {
+            long now = now();
+            count(now, failed, slow);
+            if ((failed || slow) && shouldOpen(now)) {
+                open(current, now, failed ? "failed calls" : "slow calls");
+            }
+        } else if (current.state == State.HALF_OPEN) {
+            if (failed || slow) {
+                open(current, now(), failed ? "failed probe" : "slow probe");
+            } else if (current.successes.incrementAndGet() == halfOpenCalls && phase.compareAndSet(current, Phase.CLOSED)) {
+                clearWindow();
+                logger.info(String.format("Upstream %s: circuit closed, the upstream recovered", name));
+            }
+        }
+        // Calls finishing while the breaker is open were sent before it opened and say nothing new.
+    }
+
+    private void count(long now, boolean failed, boolean slow) {
+        long period = now / bucketNanos;
+        int bucket = (int) (period % BUCKETS) * SLOTS;
+        long counted = window.get(bucket + PERIOD);
+        if (counted != period && window.compareAndSet(bucket + PERIOD, counted, period)) {
+            window.set(bucket + CALLS, 0);
+            window.set(bucket + FAILURES, 0);
+            window.set(bucket + SLOW, 0);
+        }
+        window.getAndIncrement(bucket + CALLS);
+        if (failed) {
+            window.getAndIncrement(bucket + FAILURES);
+        }
+        if (slow) {
+            window.getAndIncrement(bucket + SLOW);
+        }
+    }
+
+    private boolean shouldOpen(long now) {
+        long period = now / bucketNanos;
+        long calls = 0;
+        long failures = 0;
+        long slow = 0;
+        for (int bucket = 0; bucket < BUCKETS * SLOTS; bucket += SLOTS) {
+            if (period - window.get(bucket + PERIOD) < BUCKETS) {
+                calls += window.get(bucket + CALLS);
+                failures += window.get(bucket + FAILURES);
+                slow += window.get(bucket + SLOW);
+            }
+        }
+        return calls >= minimumCalls && (failures >= failureRate * calls || slow >= slowCallRate * calls);
+    }
+
+    private void clearWindow() {
+        for (int bucket = 0; bucket < BUCKETS * SLOTS; bucket += SLOTS) {
+            window.set(bucket + PERIOD, -BUCKETS);
+        }
+    }
+
+    private void open(Phase current, long now, String reason) {
+        int ejections = current.state == State.CLOSED ? 0 : current.ejections + 1;
+        long backoff = Math.min(openNanos << Math.min(ejections, MAX_BACKOFF_SHIFT), maxOpenNanos);
+        if (phase.compareAndSet(current, new Phase(State.OPEN, now + backoff, ejections, 0))) {
+            openings.increment();
+            logger.warning(String.format("Upstream %s: circuit opened for %dms after %s", name,
+                                         TimeUnit.NANOSECONDS.toMillis(backoff), reason));
+        }
+    }
+
+    private long now() {
+        return System.nanoTime() - origin;
+    }
+
+    public State getState() {
+        return phase.get().state;
+    }
+
+    /**
+     * Time until an open breaker lets the next probe call through, 0 if it is not open.
+     */
+    public long getRetryAfterMillis() {
+        Phase current = phase.get();
+        long wait = current.until - now();
+        return current.state != State.OPEN || wait <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+    }
+
+    /**
+     * Calls refused because the breaker was open or out of probe calls.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Number of times the breaker opened.
+     */
+    public long getOpenings() {
+        return openings.sum();
+    }
+
+    private static final class Phase {
+        static final Phase CLOSED = new Phase(State.CLOSED, 0, 0, 0);
+
+        final State state;
+        // End of the open period, or time after which unanswered probes are given up.
+        final long until;
+        // Times the breaker opened again without closing in between, for the backoff.
+        final int ejections;
+        final AtomicInteger permits;
+        final AtomicInteger successes = new AtomicInteger();
+
+        Phase(State state, long until, int ejections, int permits) {
+            this.state = state;
+            this.until = until;
+            this.ejections = ejections;
+            this.permits = new AtomicInteger(permits);
+        }
+    }
+
+    /**
+     * Settings of the breakers of a route, which creates one breaker per upstream from it.
+     */
+    public static final class Builder {
+        private double failureRate = 0.5;
+        private Duration slowCall;
+        private double slowCallRate = 1;
+        private int minimumCalls = 20;
+        private Duration window = Duration.ofSeconds(10);
+        private Duration openDuration = Duration.ofSeconds(5);
+        private Duration maxOpenDuration = Duration.ofMinutes(1);
+        private int halfOpenCalls = 3;
+
+        /**
+         * Share of failed calls in the window that opens the breaker, 0.5 by default. Calls fail when the
+         * upstream cannot be reached, times out or answers with a 5xx status.
+         */
+        public Builder failureRate(double failureRate) {
+            if (failureRate <= 0 || failureRate > 1) {
+                throw new IllegalArgumentException("Circuit breaker failure rate must be above 0 and at most 1");
+            }
+            this.failureRate = failureRate;
+            return this;
+        }
+
+        /**
+         * Opens the breaker when at least {@code rate} of the calls in the window took {@code slowerThan} or
+         * longer to answer. Slow calls are not considered by default.
+         */
+        public Builder slowCalls(Duration slowerThan, double rate) {
+            if (slowerThan == null || slowerThan.isNegative() || slowerThan.isZero()) {
+                throw new IllegalArgumentException("Circuit breaker slow call duration must be positive");
+            }
+            if (rate <= 0 || rate > 1) {
+                throw new IllegalArgumentException("Circuit breaker slow call rate must be above 0 and at most 1");
+            }
+            this.slowCall = slowerThan;
+            this.slowCallRate = rate;
+            return this;
+        }
+
+        /**
+         * Calls the window must hold before the breaker may open, 20 by default.
+         */
+        public Builder minimumCalls(int minimumCalls) {
+            if (minimumCalls <= 0) {
+                throw new IllegalArgumentException("Circuit breaker minimum calls must be greater than 0");
+            }
+            this.minimumCalls = minimumCalls;
+            return this;
+        }
+
+        /**
+         * Period the rates are computed over, 10 seconds by default.
+         */
+        public Builder window(Duration window) {
+            if (window == null || window.toNanos() < BUCKETS) {
+                throw new IllegalArgumentException("Circuit breaker window must be positive");
+            }
+            this.window = window;
+            return this;
+        }
+
+        /**
+         * How long the breaker stays open the first time, 5 seconds by default, and the most it stays open when
+         * it keeps opening again, 1 minute by default.
+         */
+        public Builder openDuration(Duration openDuration, Duration maxOpenDuration) {
+            if (openDuration == null || openDuration.isNegative() || openDuration.isZero()
+                || maxOpenDuration == null || maxOpenDuration.compareTo(openDuration) < 0) {
+                throw new IllegalArgumentException("Circuit breaker open durations must be positive and ordered");
+            }
+            this.openDuration = openDuration;
+            this.maxOpenDuration = maxOpenDuration;
+            return this;
+        }
+
+        /**
+         * Probe calls let through half open, all of which must succeed to close the breaker, 3 by default.
+         */
+        public Builder halfOpenCalls(int halfOpenCalls) {
+            if (halfOpenCalls <= 0) {
+                throw new IllegalArgumentException("Circuit breaker half open calls must be greater than 0");
+            }
+            this.halfOpenCalls = halfOpenCalls;
+            return this;
+        }
+
+        /**
+         * Breaker for the upstream called {@code name} in log messages.
+         */
+        CircuitBreaker build(String name) {
+            return new CircuitBreaker(this, name);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.simplereverseproxy;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Controlled delay (CoDel) decision for a queue of requests, in the variant Facebook describes for its RPC servers:
+ * rather than dropping ever more often as TCP CoDel does, a queue that is overloaded sheds every request that
+ * waited more than twice the target.
+ *
+ * The queue counts as overloaded for the next interval when the shortest wait seen during the last interval was
+ * above the target. A queue that only fills up in bursts drains within an interval and always sees some short
+ * waits, so it is never overloaded; a standing queue that never drains is, however long its requests waited.
+ *
+ * Callers report the wait of every request they take off their queue to {@link #shouldShed(long)}. Updates are
+ * lock free: one caller per interval wins a flag to roll the interval over, the minimum is a racy but monotonic
+ * update of a volatile, so a concurrent report may occasionally be missed.
+ */
+final class CoDelController {
+
+    private final long targetNanos;
+    private final long intervalNanos;
+    private final AtomicBoolean resetting = new AtomicBoolean();
+    private volatile long intervalEnd;
+    private volatile long minDelay;
+    private volatile boolean overloaded;
+
+    CoDelController(Duration target, Duration interval) {
+        if (target == null || target.isNegative() || target.isZero() || interval == null
+            || interval.compareTo(target) <= 0) {
+            throw new IllegalArgumentException("CoDel target must be positive and shorter than its interval");
+        }
+        this.targetNanos = target.toNanos();
+        this.intervalNanos = interval.toNanos();
+        this.intervalEnd = System.nanoTime() + intervalNanos;
+    }
+
+    /**
+     * Records that a request waited {@code delayNanos} in the queue and tells whether it should be rejected
+     * instead of served.
+     */
+    boolean shouldShed(long delayNanos) {
+        long now = System.nanoTime();
+        if (now - intervalEnd >= 0 && resetting.compareAndSet(false, true)) {
+            try {
+                overloaded = minDelay > targetNanos;
+                // The first request of an interval starts its minimum, it is never shed.
+                minDelay = delayNanos;
+                intervalEnd = now + intervalNanos;
+            } finally {
+                resetting.set(false);
+            }
+            return false;
+        }
+        if (delayNanos < minDelay) {
+            minDelay = delayNanos;
+        }
+        return overloaded && delayNanos > 2 * targetNanos;
+    }
+
+    /**
+     * Whether the last interval had a standing queue, in which case new requests are served first.
+     */
+    boolean isOverloaded() {
+        return overloaded;
+    }
+
+    long getTargetNanos() {
+        return targetNanos;
+    }
+}
@@ -0,0 +1,239 @@
+package com.simplereverseproxy;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits the number of requests of one route that are being proxied at the same time, so a route whose upstream
+ * slows down can hold at most that many worker threads and connections and the other routes keep theirs. A
+ * request over the limit is answered with 503 right away instead of queueing behind the slow ones.
+ *
+ * The limit is either fixed, a bulkhead, or adaptive. An adaptive limit is discovered from latency, in the manner
+ * of TCP Vegas and Netflix's gradient limiter: the proxy keeps a long term average of the time its requests take,
+ * the latency without queueing, and every sampling window compares the window's average to it. While they agree
+ * the limit grows by about its square root, the queue it allows the upstream; once the window's latency rises
+ * above the long term average by more than the tolerance, requests are queueing in the upstream and the limit
+ * shrinks in proportion, at most by half per window. A timed out or rejected request shrinks it by a tenth.
+ *
+ * Admitting and releasing a request is a compare and set on the in-flight count and two adds, the limit is only
+ * recomputed by the one thread that closes a sampling window.
+ */
+public final class ConcurrencyLimiter {
+
+    /**
+     * How a request that held a permit ended, for the adaptive limit.
+     */
+    enum Outcome {
+        /** The upstream answered, the time taken is a latency sample. */
+        SUCCESS,
+        /** The upstream timed out or had no connection left, a sign of overload. */
+        DROPPED,
+        /** The request failed for reasons that say nothing about load, like a refused connection. */
+        IGNORED
+    }
+
+    // Share of the new estimate taken into the limit every window.
+    private static final double SMOOTHING = 0.2;
+    // Number of windows the long term latency average spans.
+    private static final int LONG_WINDOWS = 600;
+    // Factor applied to the limit after a window with dropped requests.
+    private static final double BACKOFF = 0.9;
+
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final long windowNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder sampleNanos = new LongAdder();
+    private final LongAdder samples = new LongAdder();
+    private final LongAdder drops = new LongAdder();
+    private final AtomicBoolean updating = new AtomicBoolean();
+    private volatile int limit;
+    private volatile long windowEnd;
+    // Only touched by the thread updating the limit.
+    private double estimate;
+    private double longRttNanos;
+    private int peakInFlight;
+
+    private ConcurrencyLimiter(boolean adaptive, int initialLimit, int minLimit, int maxLimit, double tolerance,
+                               Duration window) {
+        if (minLimit <= 0 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit) {
+            throw new IllegalArgumentException("Concurrency limits must be positive with min <= initial <= max");
+        }
+        this.adaptive = adaptive;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.windowNanos = window.toNanos();
+        this.limit = initialLimit;
+        this.estimate = initialLimit;
+        this.windowEnd = System.nanoTime() + windowNanos;
+    }
+
+    /**
+     * Bulkhead admitting at most {@code limit} requests at a time.
+     */
+    public static ConcurrencyLimiter fixed(int limit) {
+        return new ConcurrencyLimiter(false, limit, limit, limit, 1, Duration.ofSeconds(1));
+    }
+
+    /**
+     * Limit adapting to the upstream's latency, see {@link Builder}.
+     */
+    public static Builder adaptive() {
+        return new Builder();
+    }
+
+    /**
+     * Takes a permit if fewer requests than the limit are in flight.
+     */
+    boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            if (current >= limit) {
+                rejected.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                if (adaptive && current + 1 > peakInFlight) {
+                    // Racy on purpose, it only tells whether the limit was reached in a window.
+                    peakInFlight = current + 1;
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Returns the permit of a request admitted {@code nanos} ago.
+     */
+    void release(long nanos, Outcome outcome) {
+        inFlight.decrementAndGet();
+        if (!adaptive) {
+            return;
+        }
+        if (outcome == Outcome.SUCCESS) {
+            sampleNanos.add(nanos);
+            samples.increment();
+        } else if (outcome == Outcome.DROPPED) {
+            drops.increment();
+        }
+        long now = System.nanoTime();
+        if (now - windowEnd >= 0 && updating.compareAndSet(false, true)) {
+            try {
+                update(now);
+            } finally {
+                updating.set(false);
+            }
+        }
+    }
+
+    private void update(long now) {
+        windowEnd = now + windowNanos;
+        long count = samples.sumThenReset();
+        long total = sampleNanos.sumThenReset();
+        long dropped = drops.sumThenReset();
+        int peak = peakInFlight;
+        peakInFlight = inFlight.get();
+        double next;
+        if (dropped > 0) {
+            next = estimate * BACKOFF;
+        } else if (count == 0) {
+            return;
+        } else {
+            double shortRtt = (double) total / count;
+            if (longRttNanos == 0) {
+                longRttNanos = shortRtt;
+            } else {
+                longRttNanos += (shortRtt - longRttNanos) / LONG_WINDOWS;
+                // After a long slowdown the average lags far behind, let it catch up once latency recovers.
+                if (longRttNanos > 2 * shortRtt) {
+                    longRttNanos *= 0.95;
+                }
+            }
+            double gradient = Math.max(0.5, Math.min(1, tolerance * longRttNanos / shortRtt));
+            next = estimate * gradient + Math.sqrt(estimate);
+            if (peak < estimate / 2) {
+                // The route did not use its limit, so the window says nothing about a higher one.
+                next = Math.min(next, estimate);
+            }
+            next = estimate * (1 - SMOOTHING) + next * SMOOTHING;
+        }
+        estimate = Math.max(minLimit, Math.min(maxLimit, next));
+        limit = (int) estimate;
+    }
+
+    public boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Number of requests admitted at once right now.
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Requests answered with 503 because the route was at its limit.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Settings of an adaptive limit.
+     */
+    public static final class Builder {
+        private int initialLimit = 20;
+        private int minLimit = 1;
+        private int maxLimit = 1000;
+        private double tolerance = 1.5;
+        private Duration window = Duration.ofMillis(100);
+
+        /**
+         * Limit the route starts with, 20 by default, and the range it adapts in, 1 to 1000 by default.
+         */
+        public Builder limits(int initialLimit, int minLimit, int maxLimit) {
+            this.initialLimit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            return this;
+        }
+
+        /**
+         * How much slower than the long term average a window may be before the limit shrinks, 1.5 times by
+         * default.
+         */
+        public Builder tolerance(double tolerance) {
+            if (tolerance < 1) {
+                throw new IllegalArgumentException("Concurrency limit tolerance must be at least 1");
+            }
+            this.tolerance = tolerance;
+            return this;
+        }
+
+        /**
+         * How often the limit is recomputed, 100 ms by default.
+         */
+        public Builder window(Duration window) {
+            if (window == null || window.isNegative() || window.isZero()) {
+                throw new IllegalArgumentException("Concurrency limit window must be positive");
+            }
+            this.window = window;
+            return this;
+        }
+
+        public ConcurrencyLimiter build() {
+            return new ConcurrencyLimiter(true, initialLimit, minLimit, maxLimit, tolerance, window);
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package com.simplereverseproxy;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Threading model used by {@link ReverseProxyServer} to run request handlers.
+ */
+public enum ExecutorStrategy {
+    /**
+     * Fixed number of platform threads, requests beyond the pool size wait in the queue.
+     */
+    FIXED {
+        @Override
+        ExecutorService create(int threadPoolSize) {
+            return Executors.newFixedThreadPool(threadPoolSize);
+        }
+    },
+    /**
+     * Work stealing fork-join pool with a parallelism of the pool size. Idle threads take work from busy ones
+     * instead of contending on a single queue, and while a handler blocks on an upstream response the pool adds
+     * a compensating thread, up to {@link #MAX_WORK_STEALING_SPARES} beyond the pool size.
+     */
+    WORK_STEALING {
+        @Override
+        ExecutorService create(int threadPoolSize) {
+            return new ForkJoinPool(threadPoolSize, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true,
+                                    0, threadPoolSize + MAX_WORK_STEALING_SPARES, 1, null, 60, TimeUnit.SECONDS);
+        }
+    },
+    /**
+     * One virtual thread per request. Blocking on an upstream only parks the virtual thread, so the number of
+     * concurrent slow requests is not limited by a pool size. Requires JDK 21 or newer at runtime.
+     */
+    VIRTUAL_THREADS {
+        @Override
+        ExecutorService create(int threadPoolSize) {
+            // Looked up reflectively so the proxy still builds and runs on JDK 11 when this mode is not used.
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) factory.invoke(null);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalStateException(String.format(
+                        "Virtual threads need JDK 21 or newer, running on %s", System.getProperty("java.version")));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("Could not create virtual thread executor", e);
+            }
+        }
+    };
+
+    public static final int MAX_WORK_STEALING_SPARES = 256;
+
+    abstract ExecutorService create(int threadPoolSize);
+
+    /**
+     * Whether this strategy can be used on the running JVM.
+     */
+    public boolean isSupported() {
+        if (this != VIRTUAL_THREADS) {
+            return true;
+        }
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.simplereverseproxy;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Shares the worker threads between routes, so a spike of one route queues behind itself instead of in front of
+ * every other route. Requests are queued per route and a free worker takes the next one by
+ * {@link RoutePriority}, strictly, and within a priority by the routes' weights.
+ *
+ * Weights are applied with self-clocked fair queueing, the virtual time counterpart of deficit round robin that
+ * needs no shared round: a request is tagged when it is queued with its route's last tag, or the virtual time of
+ * its class if the route was idle, plus the inverse of the route's weight. Workers serve the route whose oldest
+ * request has the smallest tag and move the virtual time to it. A route with twice the weight gets twice the
+ * share of a busy pool, an idle route does not bank credit for later.
+ *
+ * Only routes with queued requests are kept in a heap per priority, ordered by the tag of their oldest request,
+ * so queueing and taking a request cost the logarithm of the busy routes, under a lock held for just that. The
+ * queue of a route removed by a reload is dropped once it has been drained. With load shedding every route queue
+ * has its own {@link CoDelController}, so a route that cannot keep up sheds its own requests and is served
+ * newest first without touching the other routes.
+ */
+final class FairScheduler {
+
+    /**
+     * Request waiting for a worker, or told it was shed.
+     */
+    interface Task {
+        void run();
+
+        void shed();
+    }
+
+    // Virtual time a request of a route of weight 1 takes.
+    private static final long STRIDE = 1L << 20;
+    private static final RoutePriority[] PRIORITIES = RoutePriority.values();
+
+    private final Executor executor;
+    private final Duration sheddingTarget;
+    private final Duration sheddingInterval;
+    private final int maxQueued;
+    private final Map<String, RouteQueue> queuesByContext = new ConcurrentHashMap<>();
+    // Routes with queued requests by priority, guarded by this.
+    private final List<PriorityQueue<RouteQueue>> busy = new ArrayList<>();
+    private final long[] virtualTimes = new long[PRIORITIES.length];
+
+    /**
+     * @param sheddingTarget null to queue requests without limit, otherwise the target and interval of every
+     *                       route's {@link CoDelController} and the most requests a route may queue
+     */
+    FairScheduler(Executor executor, Duration sheddingTarget, Duration sheddingInterval, int maxQueued) {
+        this.executor = executor;
+        this.sheddingTarget = sheddingTarget;
+        this.sheddingInterval = sheddingInterval;
+        this.maxQueued = sheddingTarget == null ? Integer.MAX_VALUE : maxQueued;
+        if (sheddingTarget != null) {
+            // Fails early on bad settings rather than with the first request.
+            new CoDelController(sheddingTarget, sheddingInterval);
+        }
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            busy.add(new PriorityQueue<>(Comparator.comparingLong((RouteQueue queue) -> queue.entries.peekFirst().tag)
+                                                   .thenComparing(queue -> queue.appContext)));
+        }
+    }
+
+    /**
+     * Queues {@code task} behind the other requests of {@code route} and has a worker run it when the route's
+     * turn comes.
+     */
+    void submit(RouteConfig route, Task task) {
+        RouteQueue queue = queuesByContext.get(route.getAppContext());
+        long stride = STRIDE / route.getQueueWeight();
+        synchronized (this) {
+            if (queue == null || queue.removed || queue.priority != route.getPriority()) {
+                // New app context, or a route reloaded with another priority, the weight is read per request.
+                queue = register(route);
+            }
+            long tag = Math.max(queue.lastTag, virtualTimes[queue.priority.ordinal()]) + stride;
+            queue.lastTag = tag;
+            boolean overflow = queue.depth.incrementAndGet() > maxQueued;
+            queue.entries.offerLast(new Entry(route, task, tag, System.nanoTime(), overflow));
+            if (queue.entries.size() == 1) {
+                busy.get(queue.priority.ordinal()).add(queue);
+            }
+        }
+        executor.execute(this::runNext);
+    }
+
+    private RouteQueue register(RouteConfig route) {
+        RouteQueue queue = queuesByContext.get(route.getAppContext());
+        if (queue == null) {
+            queue = new RouteQueue(route.getAppContext(), sheddingTarget == null ? null
+                                                      : new CoDelController(sheddingTarget, sheddingInterval));
+            queuesByContext.put(route.getAppContext(), queue);
+        }
+        queue.removed = false;
+        if (queue.priority != route.getPriority()) {
+            if (!queue.entries.isEmpty()) {
+                busy.get(queue.priority.ordinal()).remove(queue);
+                busy.get(route.getPriority().ordinal()).add(queue);
+            }
+            queue.priority = route.getPriority();
+        }
+        return queue;
+    }
+
+    /**
+     * Drops the queues of the routes not in {@code appContexts}, at once when they are empty and otherwise
+     * once their queued requests have been taken.
+     */
+    synchronized void retainRoutes(Set<String> appContexts) {
+        for (RouteQueue queue : queuesByContext.values()) {
+            if (!appContexts.contains(queue.appContext)) {
+                queue.removed = true;
+                if (queue.entries.isEmpty()) {
+                    queuesByContext.remove(queue.appContext);
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the request whose turn it is and runs it, once per submitted request. Every request is queued
+     * before its run is submitted, so there always is one to take.
+     */
+    private void runNext() {
+        RouteQueue next;
+        Entry entry;
+        synchronized (this) {
+            next = null;
+            for (PriorityQueue<RouteQueue> routes : busy) {
+                next = routes.poll();
+                if (next != null) {
+                    break;
+                }
+            }
+            if (next == null) {
+                return;
+            }
+            int priority = next.priority.ordinal();
+            long tag = next.entries.peekFirst().tag;
+            entry = next.codel != null && next.codel.isOverloaded() ? next.entries.pollLast()
+                                                                   : next.entries.pollFirst();
+            next.depth.decrementAndGet();
+            virtualTimes[priority] = Math.max(virtualTimes[priority], tag);
+            if (!next.entries.isEmpty()) {
+                busy.get(priority).add(next);
+            } else if (next.removed) {
+                queuesByContext.remove(next.appContext);
+            }
+        }
+        run(next, entry);
+    }
+
+    private static void run(RouteQueue queue, Entry entry) {
+        long wait = System.nanoTime() - entry.enqueued;
+        entry.route.getMetrics().recordQueueWait(wait);
+        boolean shed = queue.codel != null && queue.codel.shouldShed(wait);
+        if (shed || entry.overflow) {
+            queue.shed.increment();
+            entry.task.shed();
+        } else {
+            entry.task.run();
+        }
+    }
+
+    /**
+     * Requests of {@code appContext} waiting for a worker.
+     */
+    int getDepth(String appContext) {
+        RouteQueue queue = queuesByContext.get(appContext);
+        return queue == null ? 0 : queue.depth.get();
+    }
+
+    /**
+     * Requests of {@code appContext} shed because they waited too long or too many were queued.
+     */
+    long getShed(String appContext) {
+        RouteQueue queue = queuesByContext.get(appContext);
+        return queue == null ? 0 : queue.shed.sum();
+    }
+
+    /**
+     * Number of app contexts the scheduler keeps a queue for.
+     */
+    int getRouteQueues() {
+        return queuesByContext.size();
+    }
+
+    private static final class RouteQueue {
+        final String appContext;
+        final CoDelController codel;
+        // Guarded by the scheduler, like the fields below but depth and shed, which are read without it.
+        final ArrayDeque<Entry> entries = new ArrayDeque<>();
+        final AtomicInteger depth = new AtomicInteger();
+        final LongAdder shed = new LongAdder();
+        long lastTag;
+        RoutePriority priority;
+        boolean removed;
+
+        RouteQueue(String appContext, CoDelController codel) {
+            this.appContext = appContext;
+            this.codel = codel;
+        }
+    }
+
+    private static final class Entry {
+        final RouteConfig route;
+        final Task task;
+        final long tag;
+        final long enqueued;
+        final boolean overflow;
+
+        Entry(RouteConfig route, Task task, long tag, long enqueued, boolean overflow) {
+            this.route = route;
+            this.task = task;
+            this.tag = tag;
+            this.enqueued = enqueued;
+            this.overflow = overflow;
+        }
+    }
+}
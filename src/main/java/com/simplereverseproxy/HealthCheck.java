@@ -0,0 +1,235 @@
+package com.simplereverseproxy;
+
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+/**
+ * Active health check of one {@link Upstream}. Every interval a probe request is sent to the upstream's health
+ * path, a 2xx or 3xx answer within the timeout passes, anything else fails. After a number of failed probes in a
+ * row the upstream is marked unhealthy and the route skips it, after a number of passed probes in a row it is
+ * healthy again. An upstream starts healthy, so requests are routed before the first probe answers.
+ *
+ * Whenever the upstream is, or becomes again, healthy after the checks started, a few keep-alive connections
+ * are opened to it right away, so the first requests after the proxy starts or the upstream restarts find
+ * connections ready instead of paying for the handshakes.
+ *
+ * Probes are scheduled on the proxy wide {@link TimingWheel} and sent without blocking, so checking any number of
+ * upstreams takes no thread of its own. At most one probe of an upstream is in flight, an interval whose probe
+ * is still waiting for an answer is skipped.
+ */
+public final class HealthCheck {
+
+    private static final Logger logger = Logger.getLogger(HealthCheck.class.getSimpleName());
+
+    private final Upstream upstream;
+    private final UpstreamClient client;
+    private final HttpRequest probe;
+    private final long intervalMillis;
+    private final int healthyThreshold;
+    private final int unhealthyThreshold;
+    private final int warmConnections;
+    private final TimingWheel.Expiry expiry = this::onExpiry;
+    // Stamp of the schedule in force, checks scheduled before the last start or stop are dropped when due.
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private final LongAdder checks = new LongAdder();
+    private final LongAdder failedChecks = new LongAdder();
+    private final LongAdder warmed = new LongAdder();
+    private volatile boolean healthy = true;
+    private volatile boolean warmPending;
+    // Only touched by the completion of the single probe in flight.
+    private int passedInRow;
+    private int failedInRow;
+
+    private HealthCheck(Builder b, Upstream upstream, UpstreamClient client) {
+        this.upstream = upstream;
+        this.client = client;
+        this.probe = HttpRequest.newBuilder(upstream.getURI().resolve(b.path))
+                                .timeout(b.timeout)
+                                .GET()
+                                .build();
+        intervalMillis = b.interval.toMillis();
+        healthyThreshold = b.healthyThreshold;
+        unhealthyThreshold = b.unhealthyThreshold;
+        warmConnections = b.warmConnections;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Sends the first probe at once and one every interval after it, until {@link #stop()}. Connections are
+     * pre-warmed once the first probe passes.
+     */
+    void start() {
+        long stamp = generation.incrementAndGet();
+        warmPending = warmConnections > 0;
+        TimingWheel.shared().schedule(expiry, 0, stamp, 0);
+    }
+
+    /**
+     * Stops sending probes, the upstream keeps its last state.
+     */
+    void stop() {
+        generation.incrementAndGet();
+    }
+
+    private long onExpiry(long key, long stamp, long nowMillis) {
+        if (stamp != generation.get()) {
+            return -1;
+        }
+        check();
+        return intervalMillis;
+    }
+
+    private void check() {
+        if (!probing.compareAndSet(false, true)) {
+            return;
+        }
+        checks.increment();
+        client.getHttpClient().sendAsync(probe, BodyHandlers.discarding())
+              .whenComplete((response, error) -> {
+                  try {
+                      record(error == null && response.statusCode() >= 200 && response.statusCode() < 400);
+                  } finally {
+                      probing.set(false);
+                  }
+              });
+    }
+
+    private void record(boolean passed) {
+        if (!passed) {
+            failedChecks.increment();
+            passedInRow = 0;
+            if (++failedInRow >= unhealthyThreshold && healthy) {
+                healthy = false;
+                logger.warning(String.format("Upstream %s: unhealthy after %d failed health checks",
+                                             upstream.getHostUrl(), failedInRow));
+            }
+            return;
+        }
+        failedInRow = 0;
+        if (!healthy && ++passedInRow >= healthyThreshold) {
+            healthy = true;
+            warmPending = warmConnections > 0;
+            logger.info(String.format("Upstream %s: healthy again after %d passed health checks",
+                                      upstream.getHostUrl(), passedInRow));
+        }
+        if (healthy && warmPending) {
+            warmPending = false;
+            client.warmUp(probe, warmConnections).thenAccept(warmed::add);
+        }
+    }
+
+    /**
+     * Whether the upstream passed its recent probes and may be sent requests.
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * Time until the next probe may find the upstream healthy again.
+     */
+    long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    /**
+     * Probes sent.
+     */
+    public long getChecks() {
+        return checks.sum();
+    }
+
+    /**
+     * Probes that failed or timed out.
+     */
+    public long getFailedChecks() {
+        return failedChecks.sum();
+    }
+
+    /**
+     * Pre-warming requests the upstream answered, an upper bound of the connections they opened: the client may
+     * send one on a connection another has just returned, or on the probe's.
+     */
+    public long getWarmedConnections() {
+        return warmed.sum();
+    }
+
+    /**
+     * Settings of the health checks of a route, which creates one check per upstream from it.
+     */
+    public static final class Builder {
+        private String path = "/health";
+        private Duration interval = Duration.ofSeconds(5);
+        private Duration timeout = Duration.ofSeconds(1);
+        private int healthyThreshold = 2;
+        private int unhealthyThreshold = 3;
+        private int warmConnections;
+
+        /**
+         * Path probed on every upstream, {@code /health} by default.
+         */
+        public Builder path(String path) {
+            if (path == null || !path.startsWith("/")) {
+                throw new IllegalArgumentException("Health check path must start with /");
+            }
+            this.path = path;
+            return this;
+        }
+
+        /**
+         * Time between probes, 5 seconds by default, and how long a probe may take to pass, 1 second by default.
+         */
+        public Builder interval(Duration interval, Duration timeout) {
+            if (interval == null || interval.toMillis() < TimingWheel.TICK_MILLIS
+                || timeout == null || timeout.isNegative() || timeout.isZero()) {
+                throw new IllegalArgumentException(String.format(
+                        "Health check interval must be at least %dms and the timeout positive", TimingWheel.TICK_MILLIS));
+            }
+            this.interval = interval;
+            this.timeout = timeout;
+            return this;
+        }
+
+        /**
+         * Passed probes in a row that make an unhealthy upstream healthy, 2 by default, and failed probes in a
+         * row that make a healthy upstream unhealthy, 3 by default.
+         */
+        public Builder thresholds(int healthy, int unhealthy) {
+            if (healthy <= 0 || unhealthy <= 0) {
+                throw new IllegalArgumentException("Health check thresholds must be greater than 0");
+            }
+            this.healthyThreshold = healthy;
+            this.unhealthyThreshold = unhealthy;
+            return this;
+        }
+
+        /**
+         * Keep-alive connections opened, at most, to an upstream when the checks start and whenever it becomes healthy
+         * again, none by default. At most the route's {@code maxConnections} are opened. The health path should
+         * answer with a body, the JDK client does not reuse a connection after a bodiless answer.
+         */
+        public Builder warmConnections(int connections) {
+            if (connections < 0) {
+                throw new IllegalArgumentException("Pre-warmed connections must not be negative");
+            }
+            this.warmConnections = connections;
+            return this;
+        }
+
+        /**
+         * Check of {@code upstream}, probed with the route's {@code client}.
+         */
+        HealthCheck build(Upstream upstream, UpstreamClient client) {
+            return new HealthCheck(this, upstream, client);
+        }
+    }
+}
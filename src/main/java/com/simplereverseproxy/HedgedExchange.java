@@ -0,0 +1,266 @@
+package com.simplereverseproxy;
+
+import java.net.ConnectException;
+import java.net.http.HttpConnectTimeoutException;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * One client request sent upstream under a {@link RetryPolicy}: the first request, a hedge if it is not answered
+ * in time and retries of requests that could not connect. The first response completes the exchange and the
+ * requests still in flight are cancelled, the exchange fails once every request it sent failed and none may be
+ * retried.
+ *
+ * Requests run on the upstream client's futures, the exchange only locks itself to count them.
+ *
+ * A request's connection permit is only returned when its exchange actually ended. Before JDK 16 cancelling the
+ * future of {@link java.net.http.HttpClient#sendAsync} does not abort the exchange, which keeps its connection,
+ * so there a losing request is left to finish and its response ignored rather than cancelled; otherwise its
+ * permit would be handed on while the connection is still busy and hedging could exceed
+ * {@code maxConnections}.
+ */
+final class HedgedExchange {
+
+    // Whether cancelling a sendAsync future aborts the exchange and frees its connection, JDK 16 and later.
+    private static final boolean CANCEL_ABORTS_EXCHANGE = Runtime.version().feature() >= 16;
+
+    /**
+     * Builds the upstream request for one upstream of the route.
+     */
+    interface Requests {
+        HttpRequest forUpstream(Upstream upstream) throws Exception;
+    }
+
+    private final RouteConfig route;
+    private final RetryPolicy policy;
+    private final long timeoutMillis;
+    private final Supplier<Upstream> upstreams;
+    private final Requests requests;
+    private final BiConsumer<Upstream, Throwable> failures;
+    private final CompletableFuture<HttpResponse<byte[]>> result = new CompletableFuture<>();
+    private final List<Attempt> attempts = new ArrayList<>(2);
+    private long start;
+    private int pending;
+    private int retries;
+    private Throwable lastError;
+    // Set once under the lock by the response or failure that completes the exchange, before it completes it.
+    private boolean answered;
+
+    /**
+     * @param upstreams picks the upstream of a hedge or retry, may throw
+     *                  {@link com.simplereverseproxy.exceptions.UpstreamUnavailableException}
+     * @param failures  records a failed request against its upstream
+     */
+    HedgedExchange(RouteConfig route, long timeoutMillis, Supplier<Upstream> upstreams, Requests requests,
+                   BiConsumer<Upstream, Throwable> failures) {
+        this.route = route;
+        this.policy = route.getRetryPolicy();
+        this.timeoutMillis = timeoutMillis;
+        this.upstreams = upstreams;
+        this.requests = requests;
+        this.failures = failures;
+    }
+
+    /**
+     * Sends {@code request} to {@code upstream} and, if the route hedges, schedules the hedge.
+     *
+     * @param bodyHandler reads the body of the first request, hedges and retries use a plain one
+     */
+    CompletableFuture<HttpResponse<byte[]>> send(Upstream upstream, HttpRequest request,
+                                                 BodyHandler<byte[]> bodyHandler) {
+        policy.deposit();
+        start = System.nanoTime();
+        synchronized (this) {
+            pending++;
+        }
+        new Attempt(upstream, false).send(request, bodyHandler);
+        long hedgeNanos = policy.hedgeDelayNanos();
+        if (hedgeNanos >= 0) {
+            CompletableFuture.delayedExecutor(hedgeNanos, TimeUnit.NANOSECONDS, upstream.getClient().getExecutor())
+                             .execute(() -> hedge(upstream));
+        }
+        return result;
+    }
+
+    private void hedge(Upstream first) {
+        synchronized (this) {
+            if (answered || !policy.tryHedge()) {
+                return;
+            }
+            pending++;
+        }
+        start(other(first), true);
+    }
+
+    private void start(Upstream upstream, boolean hedge) {
+        if (upstream == null) {
+            // Every upstream was ejected meanwhile, the exchange fails like the requests before it.
+            attemptFailed(null, null);
+            return;
+        }
+        HttpRequest request;
+        try {
+            request = requests.forUpstream(upstream);
+        } catch (Exception e) {
+            attemptFailed(null, e);
+            return;
+        }
+        new Attempt(upstream, hedge).send(request, BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * Another upstream than {@code previous} if the load balancer offers one, {@code previous} otherwise and
+     * null if every upstream is ejected.
+     */
+    private Upstream other(Upstream previous) {
+        try {
+            Upstream next = upstreams.get();
+            if (next == previous && route.getUpstreams().size() > 1) {
+                next = upstreams.get();
+            }
+            return next;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private void attemptFailed(Attempt attempt, Throwable error) {
+        Throwable failure;
+        synchronized (this) {
+            pending--;
+            if (error != null && !(error instanceof CancellationException)) {
+                lastError = error;
+            }
+            if (answered) {
+                return;
+            }
+            if (attempt == null || !isConnectFailure(error) || retries == policy.getMaxRetries()
+                || !policy.tryRetry()) {
+                if (pending > 0) {
+                    // Another request is still in flight and may yet answer.
+                    return;
+                }
+                answered = true;
+                failure = lastError != null ? lastError : new IllegalStateException("No upstream to send to");
+            } else {
+                retries++;
+                pending++;
+                failure = null;
+            }
+        }
+        if (failure == null) {
+            start(other(attempt.upstream), false);
+        } else {
+            result.completeExceptionally(failure);
+        }
+    }
+
+    private void succeeded(Attempt attempt, HttpResponse<byte[]> response) {
+        List<Attempt> losers;
+        synchronized (this) {
+            if (answered) {
+                return;
+            }
+            answered = true;
+            losers = new ArrayList<>(attempts);
+        }
+        // Counted before the response is handed on, so it is in the metrics once the client has it.
+        if (attempt.hedge) {
+            policy.recordHedgeWin(System.nanoTime() - start);
+        }
+        result.complete(response);
+        for (Attempt loser : losers) {
+            if (loser != attempt) {
+                loser.cancel();
+            }
+        }
+    }
+
+    private static boolean isConnectFailure(Throwable error) {
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof HttpConnectTimeoutException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * One request to one upstream.
+     */
+    private final class Attempt {
+        final Upstream upstream;
+        final boolean hedge;
+        volatile CompletableFuture<?> inFlight;
+
+        Attempt(Upstream upstream, boolean hedge) {
+            this.upstream = upstream;
+            this.hedge = hedge;
+        }
+
+        void send(HttpRequest request, BodyHandler<byte[]> bodyHandler) {
+            synchronized (HedgedExchange.this) {
+                attempts.add(this);
+            }
+            UpstreamClient client = upstream.getClient();
+            long begin = upstream.begin();
+            client.acquireAsync(timeoutMillis)
+                  .thenCompose(ignored -> {
+                      CompletableFuture<HttpResponse<byte[]>> sent = client.getHttpClient()
+                                                                          .sendAsync(request, bodyHandler);
+                      inFlight = sent;
+                      if (result.isDone()) {
+                          // Answered by another request while this one waited for a connection.
+                          abort(sent);
+                      }
+                      return sent.whenComplete((response, error) -> client.release());
+                  })
+                  .whenComplete((response, error) -> {
+                      upstream.end();
+                      if (error == null) {
+                          client.onResponse(response);
+                          route.getMetrics().recordUpstreamLatency(upstream.recordLatency(begin, response.statusCode()));
+                          succeeded(this, response);
+                          return;
+                      }
+                      Throwable cause = error instanceof CompletionException && error.getCause() != null
+                                        ? error.getCause() : error;
+                      if (!(cause instanceof CancellationException)) {
+                          failures.accept(upstream, cause);
+                      }
+                      attemptFailed(this, cause);
+                  });
+        }
+
+        /**
+         * Aborts the losing request where the runtime can, see {@link #abort}. A cancelled request is not counted
+         * against its upstream.
+         */
+        void cancel() {
+            CompletableFuture<?> sent = inFlight;
+            if (sent != null) {
+                abort(sent);
+            }
+        }
+
+        /**
+         * Cancels the request where that aborts its exchange. The permit is released by the future's completion,
+         * which before JDK 16 would come before the connection is free, so there the request runs to its end.
+         */
+        private void abort(CompletableFuture<?> sent) {
+            if (CANCEL_ABORTS_EXCHANGE) {
+                sent.cancel(true);
+            }
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.simplereverseproxy;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * Minimal HTTP/1.x message head parsing used by the NIO engine. Only the request line or status line and the
+ * header fields are parsed, bodies are never touched here.
+ */
+final class HttpHead {
+
+    static final int MAX_HEAD_SIZE = 16 * 1024;
+
+    private HttpHead() {
+    }
+
+    /**
+     * Returns the index just past the blank line ending the head in {@code buf[from, to)}, or -1 if the head
+     * is not complete yet. Uses absolute reads so it works on direct buffers without copying them.
+     */
+    static int findHeadEnd(ByteBuffer buf, int from, int to) {
+        for (int i = Math.max(from, 3); i < to; i++) {
+            if (buf.get(i) == '\n' && buf.get(i - 1) == '\r' && buf.get(i - 2) == '\n' && buf.get(i - 3) == '\r') {
+                return i + 1;
+            }
+        }
+        return -1;
+    }
+
+    static byte[] copy(ByteBuffer buf, int from, int to) {
+        byte[] bytes = new byte[to - from];
+        for (int i = from; i < to; i++) {
+            bytes[i - from] = buf.get(i);
+        }
+        return bytes;
+    }
+
+    static Request parseRequest(byte[] head) {
+        String[] lines = lines(head);
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length != 3 || !requestLine[2].startsWith("HTTP/1.")) {
+            throw new IllegalArgumentException("Malformed request line: " + lines[0]);
+        }
+        Headers headers = new Headers();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Malformed header: " + lines[i]);
+            }
+            headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+        }
+        return new Request(requestLine[0], requestLine[1], requestLine[2], headers);
+    }
+
+    static Response parseResponse(byte[] head) {
+        String[] lines = lines(head);
+        String statusLine = lines[0];
+        int firstSpace = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/1.") || firstSpace < 0 || statusLine.length() < firstSpace + 4) {
+            throw new IllegalArgumentException("Malformed status line: " + statusLine);
+        }
+        int status = Integer.parseInt(statusLine.substring(firstSpace + 1, firstSpace + 4));
+        List<String[]> headers = new ArrayList<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Malformed header: " + lines[i]);
+            }
+            headers.add(new String[] {lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim()});
+        }
+        return new Response(statusLine, statusLine.substring(0, firstSpace), status, headers);
+    }
+
+    private static String[] lines(byte[] head) {
+        String text = new String(head, StandardCharsets.ISO_8859_1);
+        // Drop the blank line terminating the head.
+        int end = text.endsWith("\r\n\r\n") ? text.length() - 4 : text.length();
+        return text.substring(0, end).split("\r\n");
+    }
+
+    static boolean hasToken(String headerValue, String token) {
+        if (headerValue == null) {
+            return false;
+        }
+        for (String part : headerValue.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static final class Request {
+        final String method;
+        final String target;
+        final String version;
+        final Headers headers;
+
+        Request(String method, String target, String version, Headers headers) {
+            this.method = method;
+            this.target = target;
+            this.version = version;
+            this.headers = headers;
+        }
+
+        boolean isHttp11() {
+            return "HTTP/1.1".equals(version);
+        }
+
+        boolean wantsKeepAlive() {
+            String connection = headers.getFirst("Connection");
+            return isHttp11() ? !hasToken(connection, "close") : hasToken(connection, "keep-alive");
+        }
+
+        long contentLength() {
+            String value = headers.getFirst("Content-Length");
+            return value == null ? 0 : Long.parseLong(value.trim());
+        }
+
+        boolean isChunked() {
+            return hasToken(headers.getFirst("Transfer-Encoding"), "chunked");
+        }
+    }
+
+    static final class Response {
+        final String statusLine;
+        final String version;
+        final int status;
+        final List<String[]> headers;
+
+        Response(String statusLine, String version, int status, List<String[]> headers) {
+            this.statusLine = statusLine;
+            this.version = version;
+            this.status = status;
+            this.headers = headers;
+        }
+
+        String header(String name) {
+            for (String[] header : headers) {
+                if (header[0].equalsIgnoreCase(name)) {
+                    return header[1];
+                }
+            }
+            return null;
+        }
+
+        boolean hasBody() {
+            return status >= 200 && status != 204 && status != 304;
+        }
+
+        boolean isChunked() {
+            return hasToken(header("Transfer-Encoding"), "chunked");
+        }
+
+        /**
+         * Content length of the body, or -1 if the head does not declare one.
+         */
+        long contentLength() {
+            String value = header("Content-Length");
+            return value == null ? -1 : Long.parseLong(value.trim());
+        }
+
+        boolean upstreamKeepsAlive() {
+            String connection = header("Connection");
+            return "HTTP/1.1".equals(version) ? !hasToken(connection, "close") : hasToken(connection, "keep-alive");
+        }
+
+        /**
+         * Serializes the head for the client with our own connection management headers in place of the
+         * upstream's, which only described the upstream hop.
+         */
+        byte[] rewrite(boolean keepAlive, boolean http11Client) {
+            StringBuilder sb = new StringBuilder(256);
+            sb.append(statusLine).append("\r\n");
+            for (String[] header : headers) {
+                String name = header[0].toLowerCase(Locale.ROOT);
+                if (name.equals("connection") || name.equals("keep-alive")) {
+                    continue;
+                }
+                sb.append(header[0]).append(": ").append(header[1]).append("\r\n");
+            }
+            if (!keepAlive) {
+                sb.append("Connection: close\r\n");
+            } else if (!http11Client) {
+                sb.append("Connection: keep-alive\r\n");
+            }
+            sb.append("\r\n");
+            return sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Tracks where a chunked body ends without decoding or copying it, so the bytes can be relayed as they are.
+     */
+    static final class ChunkedBodyScanner {
+        private static final int SIZE = 0;
+        private static final int EXTENSION = 1;
+        private static final int SIZE_LF = 2;
+        private static final int DATA = 3;
+        private static final int DATA_CR = 4;
+        private static final int DATA_LF = 5;
+        private static final int TRAILER_START = 6;
+        private static final int TRAILER_LINE = 7;
+        private static final int FINAL_LF = 8;
+        private static final int DONE = 9;
+
+        private int state = SIZE;
+        private long remaining;
+
+        /**
+         * Scans {@code buf[from, to)} and returns the index just past the end of the body, or -1 if the body
+         * continues beyond {@code to}.
+         */
+        int scan(ByteBuffer buf, int from, int to) {
+            int i = from;
+            while (i < to) {
+                if (state == DATA) {
+                    long skip = Math.min(remaining, to - i);
+                    i += (int) skip;
+                    remaining -= skip;
+                    if (remaining == 0) {
+                        state = DATA_CR;
+                    }
+                    continue;
+                }
+                byte b = buf.get(i++);
+                switch (state) {
+                    case SIZE:
+                        int digit = Character.digit(b, 16);
+                        if (digit >= 0) {
+                            remaining = remaining * 16 + digit;
+                        } else if (b == '\r') {
+                            state = SIZE_LF;
+                        } else {
+                            state = EXTENSION;
+                        }
+                        break;
+                    case EXTENSION:
+                        if (b == '\r') {
+                            state = SIZE_LF;
+                        }
+                        break;
+                    case SIZE_LF:
+                        expect(b, '\n');
+                        state = remaining == 0 ? TRAILER_START : DATA;
+                        break;
+                    case DATA_CR:
+                        expect(b, '\r');
+                        state = DATA_LF;
+                        break;
+                    case DATA_LF:
+                        expect(b, '\n');
+                        state = SIZE;
+                        break;
+                    case TRAILER_START:
+                        state = b == '\r' ? FINAL_LF : TRAILER_LINE;
+                        break;
+                    case TRAILER_LINE:
+                        if (b == '\n') {
+                            state = TRAILER_START;
+                        }
+                        break;
+                    case FINAL_LF:
+                        expect(b, '\n');
+                        state = DONE;
+                        return i;
+                    default:
+                        return i - 1;
+                }
+            }
+            return state == DONE ? to : -1;
+        }
+
+        private static void expect(byte actual, char expected) {
+            if (actual != expected) {
+                throw new IllegalArgumentException("Malformed chunked body");
+            }
+        }
+    }
+}
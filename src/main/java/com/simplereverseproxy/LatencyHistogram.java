@@ -0,0 +1,185 @@
+package com.simplereverseproxy;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency histogram in the style of HdrHistogram: values are kept in microseconds, exactly below 128 and in
+ * log-linear buckets above, 64 per power of two, so every recorded value is off by less than 1.6% up to an
+ * hour. Values beyond that are counted in the last bucket.
+ *
+ * Recording is one index computation and two atomic updates, without locks or allocation. A stripe of counts
+ * takes about 14 KB, so like a {@code LongAdder} a histogram starts with a single stripe and doubles its stripes,
+ * up to {@code MAX_STRIPES}, only when recorders collide on a bucket. Threads are spread over the stripes by id.
+ * Readers sum the stripes into a {@link Snapshot}, which is consistent per bucket but not across buckets while
+ * values are recorded.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 6;
+    private static final int SUB_BUCKET_HALF = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKETS = SUB_BUCKET_HALF << 1;
+    private static final long MAX_VALUE = (1L << 32) - 1;
+    static final int BUCKETS = index(MAX_VALUE) + 1;
+    // Slot after the buckets holding the sum of the recorded values.
+    private static final int SUM = BUCKETS;
+
+    static final int MAX_STRIPES = maxStripes();
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(MAX_STRIPES);
+    // Number of stripes in use, a power of two growing on contention.
+    private final AtomicInteger active = new AtomicInteger(1);
+
+    private static int maxStripes() {
+        int cpus = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+        return cpus <= 1 ? 1 : Integer.highestOneBit(cpus - 1) << 1;
+    }
+
+    /**
+     * Records a latency measured with {@link System#nanoTime()}.
+     */
+    public void recordNanos(long nanos) {
+        long micros = Math.min(Math.max(0, nanos / 1000), MAX_VALUE);
+        int width = active.get();
+        AtomicLongArray stripe = stripe(width);
+        int bucket = index(micros);
+        long count = stripe.get(bucket);
+        if (!stripe.compareAndSet(bucket, count, count + 1)) {
+            stripe.getAndIncrement(bucket);
+            if (width < MAX_STRIPES) {
+                active.compareAndSet(width, width << 1);
+            }
+        }
+        stripe.getAndAdd(SUM, micros);
+    }
+
+    int stripes() {
+        return active.get();
+    }
+
+    private AtomicLongArray stripe(int width) {
+        // Thread ids are handed out in sequence, so threads started together land on different stripes.
+        int index = (int) Thread.currentThread().getId() & (width - 1);
+        AtomicLongArray stripe = stripes.get(index);
+        if (stripe == null) {
+            stripes.compareAndSet(index, null, new AtomicLongArray(BUCKETS + 1));
+            stripe = stripes.get(index);
+        }
+        return stripe;
+    }
+
+    static int index(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS;
+        return (shift << SUB_BUCKET_BITS) + (int) (micros >>> shift);
+    }
+
+    /**
+     * Highest value in microseconds counted in bucket {@code index}.
+     */
+    static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >>> SUB_BUCKET_BITS) - 1;
+        long sub = (index & (SUB_BUCKET_HALF - 1)) + SUB_BUCKET_HALF;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long sum = 0;
+        for (int s = 0; s < MAX_STRIPES; s++) {
+            AtomicLongArray stripe = stripes.get(s);
+            if (stripe == null) {
+                continue;
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+            sum += stripe.get(SUM);
+        }
+        return new Snapshot(counts, sum);
+    }
+
+    /**
+     * Counts of a histogram at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sumMicros;
+
+        private Snapshot(long[] counts, long sumMicros) {
+            this.counts = counts;
+            this.sumMicros = sumMicros;
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            this.count = total;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSumMicros() {
+            return sumMicros;
+        }
+
+        public double getMeanMicros() {
+            return count == 0 ? 0 : (double) sumMicros / count;
+        }
+
+        /**
+         * Value in microseconds that {@code percentile} percent of the recorded values are at or below, 0 if
+         * nothing was recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(Math.min(100, percentile) / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return highestValue(i);
+                }
+            }
+            return highestValue(counts.length - 1);
+        }
+
+        public long getMaxMicros() {
+            for (int i = counts.length - 1; i >= 0; i--) {
+                if (counts[i] != 0) {
+                    return highestValue(i);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Number of recorded values at or below {@code micros}, exact at bucket boundaries and otherwise
+         * counting the bucket holding {@code micros} only if its highest value does not exceed it.
+         */
+        public long getCountAtOrBelow(long micros) {
+            long seen = 0;
+            for (int i = 0; i < counts.length && highestValue(i) <= micros; i++) {
+                seen += counts[i];
+            }
+            return seen;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d mean=%.1fus p50=%dus p99=%dus p99.9=%dus max=%dus", count,
+                                 getMeanMicros(), getValueAtPercentile(50), getValueAtPercentile(99),
+                                 getValueAtPercentile(99.9), getMaxMicros());
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package com.simplereverseproxy;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Picks the upstream of a route a request is sent to. Implementations are created once per route by
+ * {@link LoadBalancingStrategy} over a fixed list of upstreams and are called concurrently by every request
+ * thread, so none of them takes a lock when choosing.
+ */
+interface LoadBalancer {
+
+    Upstream choose(HttpExchange request);
+
+    /**
+     * Cycles through the upstreams in order.
+     */
+    final class RoundRobin implements LoadBalancer {
+        private final Upstream[] upstreams;
+        private final AtomicInteger next = new AtomicInteger();
+
+        RoundRobin(List<Upstream> upstreams) {
+            this.upstreams = upstreams.toArray(new Upstream[0]);
+        }
+
+        @Override
+        public Upstream choose(HttpExchange request) {
+            return upstreams[Math.floorMod(next.getAndIncrement(), upstreams.length)];
+        }
+    }
+
+    /**
+     * Round robin over a schedule in which every upstream appears as often as its weight. The schedule is
+     * built with the smooth weighted round robin algorithm, so heavier upstreams are interleaved with the others
+     * instead of receiving their share in bursts, and choosing is a single atomic increment.
+     */
+    final class Weighted implements LoadBalancer {
+        private final Upstream[] schedule;
+        private final AtomicInteger next = new AtomicInteger();
+
+        Weighted(List<Upstream> upstreams) {
+            int divisor = 0;
+            for (Upstream upstream : upstreams) {
+                divisor = gcd(divisor, upstream.getWeight());
+            }
+            int[] weights = new int[upstreams.size()];
+            int total = 0;
+            for (int i = 0; i < weights.length; i++) {
+                weights[i] = upstreams.get(i).getWeight() / divisor;
+                total += weights[i];
+            }
+            schedule = new Upstream[total];
+            int[] current = new int[weights.length];
+            for (int slot = 0; slot < total; slot++) {
+                int best = 0;
+                for (int i = 0; i < weights.length; i++) {
+                    current[i] += weights[i];
+                    if (current[i] > current[best]) {
+                        best = i;
+                    }
+                }
+                current[best] -= total;
+                schedule[slot] = upstreams.get(best);
+            }
+        }
+
+        private static int gcd(int a, int b) {
+            return b == 0 ? a : gcd(b, a % b);
+        }
+
+        @Override
+        public Upstream choose(HttpExchange request) {
+            return schedule[Math.floorMod(next.getAndIncrement(), schedule.length)];
+        }
+    }
+
+    /**
+     * Upstream with the fewest requests in flight relative to its weight. The scan starts at a rotating offset
+     * so ties do not all land on the first upstream.
+     */
+    final class LeastOutstanding implements LoadBalancer {
+        private final Upstream[] upstreams;
+        private final AtomicInteger offset = new AtomicInteger();
+
+        LeastOutstanding(List<Upstream> upstreams) {
+            this.upstreams = upstreams.toArray(new Upstream[0]);
+        }
+
+        @Override
+        public Upstream choose(HttpExchange request) {
+            int start = Math.floorMod(offset.getAndIncrement(), upstreams.length);
+            Upstream best = upstreams[start];
+            for (int i = 1; i < upstreams.length; i++) {
+                Upstream candidate = upstreams[(start + i) % upstreams.length];
+                // candidate.inFlight / candidate.weight < best.inFlight / best.weight, without dividing.
+                if ((long) candidate.getInFlight() * best.getWeight()
+                    < (long) best.getInFlight() * candidate.getWeight()) {
+                    best = candidate;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * Power of two choices: samples two distinct upstreams at random and takes the one with the lower expected
+     * cost, its latency average scaled by the requests already waiting on it. This follows latency shifts
+     * almost as well as comparing every upstream, while two random samples keep concurrent callers from all
+     * stampeding to the same momentarily best upstream.
+     */
+    final class PowerOfTwoChoices implements LoadBalancer {
+        private final Upstream[] upstreams;
+
+        PowerOfTwoChoices(List<Upstream> upstreams) {
+            this.upstreams = upstreams.toArray(new Upstream[0]);
+        }
+
+        @Override
+        public Upstream choose(HttpExchange request) {
+            if (upstreams.length == 1) {
+                return upstreams[0];
+            }
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            int first = random.nextInt(upstreams.length);
+            int second = random.nextInt(upstreams.length - 1);
+            if (second >= first) {
+                second++;
+            }
+            return cost(upstreams[first]) <= cost(upstreams[second]) ? upstreams[first] : upstreams[second];
+        }
+
+        private static double cost(Upstream upstream) {
+            return upstream.latencyNanos() * (upstream.getInFlight() + 1) / upstream.getWeight();
+        }
+    }
+
+    /**
+     * Consistent hashing on the canonical request key of {@link RequestKeys#hash64}, the one throttle rules use
+     * as well, so the same path and query always reach the same upstream and its caches stay warm. Each upstream
+     * is placed on the ring {@link #POINTS_PER_WEIGHT} times per unit of weight, which keeps the split even and
+     * moves only the keys of an upstream that is added or removed.
+     */
+    final class ConsistentHash implements LoadBalancer {
+        static final int POINTS_PER_WEIGHT = 160;
+
+        private final long[] points;
+        private final Upstream[] owners;
+
+        ConsistentHash(List<Upstream> upstreams) {
+            int total = 0;
+            for (Upstream upstream : upstreams) {
+                total += upstream.getWeight() * POINTS_PER_WEIGHT;
+            }
+            long[][] ring = new long[total][2];
+            int n = 0;
+            for (int u = 0; u < upstreams.size(); u++) {
+                Upstream upstream = upstreams.get(u);
+                for (int i = 0; i < upstream.getWeight() * POINTS_PER_WEIGHT; i++) {
+                    ring[n][0] = RequestKeys.hash64(upstream.getHostUrl() + '#' + i, null);
+                    ring[n][1] = u;
+                    n++;
+                }
+            }
+            Arrays.sort(ring, (a, b) -> Long.compare(a[0], b[0]));
+            points = new long[total];
+            owners = new Upstream[total];
+            for (int i = 0; i < total; i++) {
+                points[i] = ring[i][0];
+                owners[i] = upstreams.get((int) ring[i][1]);
+            }
+        }
+
+        @Override
+        public Upstream choose(HttpExchange request) {
+            return owner(RequestKeys.hash64(request.getRequestURI().getPath(), request.getRequestURI().getQuery()));
+        }
+
+        Upstream owner(long keyHash) {
+            int index = Arrays.binarySearch(points, keyHash);
+            if (index < 0) {
+                index = -index - 1;
+            }
+            return owners[index == points.length ? 0 : index];
+        }
+    }
+}
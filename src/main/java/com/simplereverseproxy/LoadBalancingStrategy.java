@@ -0,0 +1,57 @@
+package com.simplereverseproxy;
+
+import java.util.List;
+
+/**
+ * How a route with several upstreams spreads its requests over them.
+ */
+public enum LoadBalancingStrategy {
+    /**
+     * Each upstream in turn, ignoring weights.
+     */
+    ROUND_ROBIN {
+        @Override
+        LoadBalancer create(List<Upstream> upstreams) {
+            return new LoadBalancer.RoundRobin(upstreams);
+        }
+    },
+    /**
+     * Each upstream in turn, as often as its weight.
+     */
+    WEIGHTED {
+        @Override
+        LoadBalancer create(List<Upstream> upstreams) {
+            return new LoadBalancer.Weighted(upstreams);
+        }
+    },
+    /**
+     * The upstream with the fewest requests in flight relative to its weight.
+     */
+    LEAST_OUTSTANDING {
+        @Override
+        LoadBalancer create(List<Upstream> upstreams) {
+            return new LoadBalancer.LeastOutstanding(upstreams);
+        }
+    },
+    /**
+     * The better of two randomly sampled upstreams, comparing their average latency times their requests in
+     * flight.
+     */
+    POWER_OF_TWO_CHOICES {
+        @Override
+        LoadBalancer create(List<Upstream> upstreams) {
+            return new LoadBalancer.PowerOfTwoChoices(upstreams);
+        }
+    },
+    /**
+     * Identical requests, same path and query parameters in any order, always go to the same upstream.
+     */
+    CONSISTENT_HASH {
+        @Override
+        LoadBalancer create(List<Upstream> upstreams) {
+            return new LoadBalancer.ConsistentHash(upstreams);
+        }
+    };
+
+    abstract LoadBalancer create(List<Upstream> upstreams);
+}
@@ -0,0 +1,227 @@
+package com.simplereverseproxy;
+
+/**
+ * Map from {@code long} keys to {@code long} values without boxing. The table is split into stripes by key,
+ * each an open addressing hash table with linear probing guarded by its own monitor, so updates of different
+ * keys rarely contend and every operation on one key is atomic. Apart from the occasional resize no operation
+ * allocates.
+ *
+ * Keys are expected to be well mixed hashes, the stripe is picked from their high bits and the slot from the
+ * low bits.
+ */
+final class LongLongTable {
+
+    static final int DEFAULT_STRIPES = 64;
+    private static final int INITIAL_STRIPE_CAPACITY = 16;
+
+    private final Stripe[] stripes;
+    private final int stripeShift;
+
+    LongLongTable() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripeCount rounded up to a power of two
+     */
+    LongLongTable(int stripeCount) {
+        int count = stripeCount <= 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+        stripeShift = 64 - Integer.numberOfTrailingZeros(count);
+    }
+
+    private Stripe stripe(long key) {
+        return stripes.length == 1 ? stripes[0] : stripes[(int) (key >>> stripeShift)];
+    }
+
+    /**
+     * Stores {@code now} for {@code key} if the key is absent or its value is more than {@code ttl} older than
+     * {@code now}, and tells whether it did. The check and the update happen atomically, so of several callers
+     * racing on the same expired key exactly one succeeds.
+     */
+    boolean setIfExpired(long key, long now, long ttl) {
+        return stripe(key).setIfExpired(key, now, ttl);
+    }
+
+    /**
+     * Value of {@code key}, or {@code absent} if there is none.
+     */
+    long get(long key, long absent) {
+        return stripe(key).get(key, absent);
+    }
+
+    /**
+     * Removes {@code key} if it is still mapped to {@code expected}.
+     */
+    boolean remove(long key, long expected) {
+        return stripe(key).remove(key, expected);
+    }
+
+    /**
+     * Removes every entry whose value is more than {@code ttl} older than {@code now}, returns how many.
+     */
+    int removeExpired(long now, long ttl) {
+        int removed = 0;
+        for (Stripe stripe : stripes) {
+            removed += stripe.removeExpired(now, ttl);
+        }
+        return removed;
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe stripe : stripes) {
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    private static final class Stripe {
+        // Free slots hold key 0, so a key of 0 is kept on the side.
+        private long[] keys = new long[INITIAL_STRIPE_CAPACITY];
+        private long[] values = new long[INITIAL_STRIPE_CAPACITY];
+        private int mask = INITIAL_STRIPE_CAPACITY - 1;
+        private int size;
+        private boolean hasZeroKey;
+        private long zeroKeyValue;
+
+        private int home(long key) {
+            return (int) (key ^ (key >>> 32)) & mask;
+        }
+
+        /**
+         * Slot holding {@code key}, or the free slot it would go into as {@code -slot - 1}.
+         */
+        private int find(long key) {
+            int slot = home(key);
+            while (true) {
+                long candidate = keys[slot];
+                if (candidate == key) {
+                    return slot;
+                }
+                if (candidate == 0) {
+                    return -slot - 1;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        synchronized boolean setIfExpired(long key, long now, long ttl) {
+            if (key == 0) {
+                if (hasZeroKey && now - zeroKeyValue <= ttl) {
+                    return false;
+                }
+                if (!hasZeroKey) {
+                    size++;
+                }
+                hasZeroKey = true;
+                zeroKeyValue = now;
+                return true;
+            }
+            int slot = find(key);
+            if (slot >= 0) {
+                if (now - values[slot] <= ttl) {
+                    return false;
+                }
+                values[slot] = now;
+                return true;
+            }
+            slot = -slot - 1;
+            keys[slot] = key;
+            values[slot] = now;
+            size++;
+            if (size > (mask + 1) / 2) {
+                resize();
+            }
+            return true;
+        }
+
+        synchronized long get(long key, long absent) {
+            if (key == 0) {
+                return hasZeroKey ? zeroKeyValue : absent;
+            }
+            int slot = find(key);
+            return slot >= 0 ? values[slot] : absent;
+        }
+
+        synchronized boolean remove(long key, long expected) {
+            if (key == 0) {
+                if (!hasZeroKey || zeroKeyValue != expected) {
+                    return false;
+                }
+                hasZeroKey = false;
+                size--;
+                return true;
+            }
+            int slot = find(key);
+            if (slot < 0 || values[slot] != expected) {
+                return false;
+            }
+            deleteAt(slot);
+            return true;
+        }
+
+        synchronized int removeExpired(long now, long ttl) {
+            int removed = 0;
+            if (hasZeroKey && now - zeroKeyValue > ttl) {
+                hasZeroKey = false;
+                size--;
+                removed++;
+            }
+            int slot = 0;
+            while (slot <= mask) {
+                if (keys[slot] != 0 && now - values[slot] > ttl) {
+                    // The deletion may shift a later entry into this slot, so look at it again.
+                    deleteAt(slot);
+                    removed++;
+                } else {
+                    slot++;
+                }
+            }
+            return removed;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+
+        /**
+         * Backward shift deletion: entries after the freed slot that probed past it are moved back, so lookups
+         * never need tombstones.
+         */
+        private void deleteAt(int slot) {
+            int gap = slot;
+            int next = (slot + 1) & mask;
+            while (keys[next] != 0) {
+                int home = home(keys[next]);
+                if (((next - home) & mask) >= ((next - gap) & mask)) {
+                    keys[gap] = keys[next];
+                    values[gap] = values[next];
+                    gap = next;
+                }
+                next = (next + 1) & mask;
+            }
+            keys[gap] = 0;
+            values[gap] = 0;
+            size--;
+        }
+
+        private void resize() {
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    int slot = -find(oldKeys[i]) - 1;
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+}
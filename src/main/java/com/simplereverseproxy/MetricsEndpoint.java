@@ -0,0 +1,319 @@
+package com.simplereverseproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Admin endpoint exporting the {@link RouteMetrics} of every route in the Prometheus text format, served at
+ * {@link #CONTEXT}. Latency histograms are exported with a fixed set of buckets from 100 microseconds to 10
+ * seconds, the full resolution is available through {@link LatencyHistogram#snapshot()}.
+ */
+final class MetricsEndpoint implements HttpHandler {
+
+    static final String CONTEXT = "/metrics";
+
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    // Upper bounds of the exported histogram buckets, in microseconds.
+    private static final long[] BUCKET_BOUNDS = {100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000,
+                                                 100_000, 250_000, 500_000, 1_000_000, 2_500_000, 5_000_000,
+                                                 10_000_000};
+
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+
+    private final RequestRouter router;
+    private final AdmissionQueue admissionQueue;
+    private final FairScheduler scheduler;
+
+    MetricsEndpoint(RequestRouter router, AdmissionQueue admissionQueue, FairScheduler scheduler) {
+        this.router = router;
+        this.admissionQueue = admissionQueue;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public void handle(HttpExchange request) throws IOException {
+        if (!request.getRequestURI().getPath().equals(CONTEXT) || !request.getRequestMethod().equalsIgnoreCase("GET")) {
+            byte[] response = "Only GET /metrics is supported".getBytes(StandardCharsets.UTF_8);
+            request.sendResponseHeaders(404, response.length);
+            OutputStream os = request.getResponseBody();
+            os.write(response);
+            os.close();
+            return;
+        }
+        byte[] response = render(router.getSnapshot().getRoutesByContext(), admissionQueue, scheduler).getBytes(StandardCharsets.UTF_8);
+        request.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        request.sendResponseHeaders(200, response.length);
+        OutputStream os = request.getResponseBody();
+        os.write(response);
+        os.close();
+    }
+
+    static String render(Map<String, RouteConfig> routes, AdmissionQueue admissionQueue, FairScheduler scheduler) {
+        List<String> names = new ArrayList<>();
+        List<RouteMetrics> metrics = new ArrayList<>();
+        for (Map.Entry<String, RouteConfig> route : routes.entrySet()) {
+            names.add(escape(route.getKey()));
+            metrics.add(route.getValue().getMetrics());
+        }
+        StringBuilder sb = new StringBuilder(1024 + 4096 * names.size());
+        header(sb, "proxy_responses_total", "counter", "Responses sent to clients by route and status class.");
+        for (int i = 0; i < names.size(); i++) {
+            for (int statusClass = 1; statusClass <= STATUS_CLASSES.length; statusClass++) {
+                sb.append("proxy_responses_total{route=\"").append(names.get(i)).append("\",code=\"")
+                  .append(STATUS_CLASSES[statusClass - 1]).append("\"} ")
+                  .append(metrics.get(i).getResponses(statusClass)).append('\n');
+            }
+        }
+        counter(sb, "proxy_throttled_total", "Requests rejected by a throttle rule.", names, metrics,
+                RouteMetrics::getThrottled);
+        counter(sb, "proxy_upstream_errors_total", "Requests whose upstream call failed other than by timing out.",
+                names, metrics, RouteMetrics::getUpstreamErrors);
+        counter(sb, "proxy_upstream_timeouts_total", "Requests whose upstream did not answer in time.", names,
+                metrics, RouteMetrics::getUpstreamTimeouts);
+        counter(sb, "proxy_upstream_unavailable_total", "Requests failed fast because every upstream was ejected.",
+                names, metrics, RouteMetrics::getUnavailable);
+        circuitStates(sb, routes);
+        healthChecks(sb, routes);
+        concurrencyLimits(sb, routes);
+        retryPolicies(sb, routes);
+        compression(sb, routes);
+        counter(sb, "proxy_upstream_received_bytes_total", "Response body bytes received from upstreams.", names,
+                metrics, RouteMetrics::getBytesIn);
+        counter(sb, "proxy_sent_bytes_total", "Response body bytes sent to clients.", names, metrics,
+                RouteMetrics::getBytesOut);
+        histogram(sb, "proxy_request_duration_seconds", "Time from receiving a request to sending its response.",
+                  names, metrics, RouteMetrics::getRequestLatency);
+        histogram(sb, "proxy_upstream_duration_seconds", "Time from sending a request upstream to its response head.",
+                  names, metrics, RouteMetrics::getUpstreamLatency);
+        if (admissionQueue != null) {
+            admission(sb, admissionQueue);
+        }
+        if (scheduler != null) {
+            header(sb, "proxy_route_queue_depth", "gauge", "Requests of a route waiting for a worker thread.");
+            for (String name : routes.keySet()) {
+                sb.append("proxy_route_queue_depth{route=\"").append(escape(name)).append("\"} ")
+                  .append(scheduler.getDepth(name)).append('\n');
+            }
+            header(sb, "proxy_route_queue_shed_total", "counter", "Requests of a route shed by its queue.");
+            for (String name : routes.keySet()) {
+                sb.append("proxy_route_queue_shed_total{route=\"").append(escape(name)).append("\"} ")
+                  .append(scheduler.getShed(name)).append('\n');
+            }
+            histogram(sb, "proxy_route_queue_wait_seconds", "Time requests waited in their route's queue.", names,
+                      metrics, RouteMetrics::getQueueLatency);
+        }
+        return sb.toString();
+    }
+
+    private static void counter(StringBuilder sb, String name, String help, List<String> names,
+                                List<RouteMetrics> metrics, Function<RouteMetrics, Long> value) {
+        header(sb, name, "counter", help);
+        for (int i = 0; i < names.size(); i++) {
+            sb.append(name).append("{route=\"").append(names.get(i)).append("\"} ")
+              .append(value.apply(metrics.get(i))).append('\n');
+        }
+    }
+
+    /**
+     * State of the circuit breaker of every upstream of routes with circuit breaking: 0 closed, 1 open and 2
+     * half open.
+     */
+    private static void circuitStates(StringBuilder sb, Map<String, RouteConfig> routes) {
+        header(sb, "proxy_upstream_circuit_state", "gauge", "Circuit breaker state, 0 closed, 1 open, 2 half open.");
+        for (Map.Entry<String, RouteConfig> route : routes.entrySet()) {
+            for (Upstream upstream : route.getValue().getUpstreams()) {
+                CircuitBreaker breaker = upstream.getCircuitBreaker();
+                if (breaker != null) {
+                    sb.append("proxy_upstream_circuit_state{route=\"").append(escape(route.getKey()))
+                      .append("\",upstream=\"").append(escape(upstream.getHostUrl())).append("\"} ")
+                      .append(breaker.getState().ordinal()).append('\n');
+                }
+            }
+        }
+    }
+
+    /**
+     * Health and failed probes of every upstream of routes with health checks.
+     */
+    private static void healthChecks(StringBuilder sb, Map<String, RouteConfig> routes) {
+        StringBuilder failed = new StringBuilder();
+        header(sb, "proxy_upstream_healthy", "gauge", "Whether the upstream passes its health checks, 1 or 0.");
+        header(failed, "proxy_upstream_health_checks_failed_total", "counter", "Health checks the upstream failed.");
+        for (Map.Entry<String, RouteConfig> route : routes.entrySet()) {
+            for (Upstream upstream : route.getValue().getUpstreams()) {
+                HealthCheck check = upstream.getHealthCheck();
+                if (check != null) {
+                    String labels = "{route=\"" + escape(route.getKey()) + "\",upstream=\""
+                                    + escape(upstream.getHostUrl()) + "\"} ";
+                    sb.append("proxy_upstream_healthy").append(labels).append(check.isHealthy() ? 1 : 0).append('\n');
+                    failed.append("proxy_upstream_health_checks_failed_total").append(labels)
+                          .append(check.getFailedChecks()).append('\n');
+                }
+            }
+        }
+        sb.append(failed);
+    }
+
+    /**
+     * Limit, requests in flight and shed requests of every route with a concurrency limit.
+     */
+    private static void concurrencyLimits(StringBuilder sb, Map<String, RouteConfig> routes) {
+        List<String> names = new ArrayList<>();
+        List<ConcurrencyLimiter> limiters = new ArrayList<>();
+        for (Map.Entry<String, RouteConfig> route : routes.entrySet()) {
+            if (route.getValue().getConcurrencyLimiter() != null) {
+                names.add(escape(route.getKey()));
+                limiters.add(route.getValue().getConcurrencyLimiter());
+            }
+        }
+        header(sb, "proxy_concurrency_limit", "gauge", "Requests a route proxies at the same time at most.");
+        for (int i = 0; i < names.size(); i++) {
+            sb.append("proxy_concurrency_limit{route=\"").append(names.get(i)).append("\"} ")
+              .append(limiters.get(i).getLimit()).append('\n');
+        }
+        header(sb, "proxy_inflight_requests", "gauge", "Requests a route is proxying right now.");
+        for (int i = 0; i < names.size(); i++) {
+            sb.append("proxy_inflight_requests{route=\"").append(names.get(i)).append("\"} ")
+              .append(limiters.get(i).getInFlight()).append('\n');
+        }
+        header(sb, "proxy_concurrency_rejected_total", "counter", "Requests shed because a route was at its limit.");
+        for (int i = 0; i < names.size(); i++) {
+            sb.append("proxy_concurrency_rejected_total{route=\"").append(names.get(i)).append("\"} ")
+              .append(limiters.get(i).getRejected()).append('\n');
+        }
+    }
+
+    /**
+     * Hedges, retries, budget and estimated time saved of every route with a retry policy.
+     */
+    private static void retryPolicies(StringBuilder sb, Map<String, RouteConfig> routes) {
+        List<String> names = new ArrayList<>();
+        List<RetryPolicy> policies = new ArrayList<>();
+        for (Map.Entry<String, RouteConfig> route : routes.entrySet()) {
+            if (route.getValue().getRetryPolicy() != null) {
+                names.add(escape(route.getKey()));
+                policies.add(route.getValue().getRetryPolicy());
+            }
+        }
+        retryCounter(sb, "proxy_hedges_total", "Hedged upstream requests sent.", names, policies,
+                     RetryPolicy::getHedges);
+        retryCounter(sb, "proxy_hedge_wins_total", "Hedged requests whose response came first.", names, policies,
+                     RetryPolicy::getHedgeWins);
+        retryCounter(sb, "proxy_retries_total", "Upstream requests sent again after failing to connect.", names,
+                     policies, RetryPolicy::getRetries);
+        retryCounter(sb, "proxy_retry_budget_exhausted_total", "Hedges and retries not sent for lack of budget.",
+                     names, policies, RetryPolicy::getBudgetExhausted);
+        header(sb, "proxy_hedge_saved_seconds_total", "counter", "Estimated latency saved by hedged requests.");
+        for (int i = 0; i < names.size(); i++) {
+            sb.append("proxy_hedge_saved_seconds_total{route=\"").append(names.get(i)).append("\"} ")
+              .append(seconds(policies.get(i).getSavedMicros())).append('\n');
+        }
+        header(sb, "proxy_hedge_delay_seconds", "gauge", "Time after which an unanswered request is hedged.");
+        for (int i = 0; i < names.size(); i++) {
+            if (policies.get(i).getHedgeDelayMicros() >= 0) {
+                sb.append("proxy_hedge_delay_seconds{route=\"").append(names.get(i)).append("\"} ")
+                  .append(seconds(policies.get(i).getHedgeDelayMicros())).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Bodies compressed and their bytes before and after compression, of every route that compresses. Hits
+     * served from a kept compressed variant are not compressed again and not counted.
+     */
+    private static void compression(StringBuilder sb, Map<String, RouteConfig> routes) {
+        List<String> names = new ArrayList<>();
+        List<ResponseCompression> compressions = new ArrayList<>();
+        for (Map.Entry<String, RouteConfig> route : routes.entrySet()) {
+            if (route.getValue().getCompression() != null) {
+                names.add(escape(route.getKey()));
+                compressions.add(route.getValue().getCompression());
+            }
+        }
+        compressionCounter(sb, "proxy_compressed_responses_total", "Response bodies compressed.", names,
+                           compressions, ResponseCompression::getCompressedResponses);
+        compressionCounter(sb, "proxy_compression_input_bytes_total", "Response body bytes before compression.",
+                           names, compressions, ResponseCompression::getBytesIn);
+        compressionCounter(sb, "proxy_compression_output_bytes_total", "Response body bytes after compression.",
+                           names, compressions, ResponseCompression::getBytesOut);
+    }
+
+    private static void compressionCounter(StringBuilder sb, String name, String help, List<String> names,
+                                           List<ResponseCompression> compressions,
+                                           Function<ResponseCompression, Long> value) {
+        header(sb, name, "counter", help);
+        for (int i = 0; i < names.size(); i++) {
+            sb.append(name).append("{route=\"").append(names.get(i)).append("\"} ")
+              .append(value.apply(compressions.get(i))).append('\n');
+        }
+    }
+
+    private static void retryCounter(StringBuilder sb, String name, String help, List<String> names,
+                                     List<RetryPolicy> policies, Function<RetryPolicy, Long> value) {
+        header(sb, name, "counter", help);
+        for (int i = 0; i < names.size(); i++) {
+            sb.append(name).append("{route=\"").append(names.get(i)).append("\"} ")
+              .append(value.apply(policies.get(i))).append('\n');
+        }
+    }
+
+    /**
+     * Depth, shed requests and sojourn time histogram of the server's admission queue.
+     */
+    private static void admission(StringBuilder sb, AdmissionQueue queue) {
+        header(sb, "proxy_queue_depth", "gauge", "Requests waiting for a worker thread.");
+        sb.append("proxy_queue_depth ").append(queue.getDepth()).append('\n');
+        header(sb, "proxy_queue_overloaded", "gauge", "1 while the queue stands above its target and sheds.");
+        sb.append("proxy_queue_overloaded ").append(queue.isOverloaded() ? 1 : 0).append('\n');
+        header(sb, "proxy_queue_shed_total", "counter", "Requests answered with 503 after waiting too long.");
+        sb.append("proxy_queue_shed_total ").append(queue.getShed()).append('\n');
+        header(sb, "proxy_queue_sojourn_seconds", "histogram", "Time requests waited for a worker thread.");
+        buckets(sb, "proxy_queue_sojourn_seconds", "", queue.getSojournTimes().snapshot());
+    }
+
+    private static void histogram(StringBuilder sb, String name, String help, List<String> names,
+                                  List<RouteMetrics> metrics, Function<RouteMetrics, LatencyHistogram> histogram) {
+        header(sb, name, "histogram", help);
+        for (int i = 0; i < names.size(); i++) {
+            buckets(sb, name, "route=\"" + names.get(i) + "\"", histogram.apply(metrics.get(i)).snapshot());
+        }
+    }
+
+    /**
+     * Buckets, sum and count of one histogram series, {@code labels} being its labels other than the bucket's.
+     */
+    private static void buckets(StringBuilder sb, String name, String labels, LatencyHistogram.Snapshot snapshot) {
+        String separator = labels.isEmpty() ? "" : ",";
+        for (long bound : BUCKET_BOUNDS) {
+            sb.append(name).append("_bucket{").append(labels).append(separator).append("le=\"")
+              .append(seconds(bound)).append("\"} ").append(snapshot.getCountAtOrBelow(bound)).append('\n');
+        }
+        sb.append(name).append("_bucket{").append(labels).append(separator).append("le=\"+Inf\"} ")
+          .append(snapshot.getCount()).append('\n');
+        String series = labels.isEmpty() ? " " : "{" + labels + "} ";
+        sb.append(name).append("_sum").append(series).append(seconds(snapshot.getSumMicros())).append('\n');
+        sb.append(name).append("_count").append(series).append(snapshot.getCount()).append('\n');
+    }
+
+    private static void header(StringBuilder sb, String name, String type, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String seconds(long micros) {
+        return Double.toString(micros / 1_000_000d);
+    }
+
+    private static String escape(String label) {
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
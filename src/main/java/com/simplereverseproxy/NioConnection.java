@@ -0,0 +1,515 @@
+package com.simplereverseproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.simplereverseproxy.exceptions.UpstreamUnavailableException;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Downstream connection of the NIO engine. Requests are handled one at a time in the order they arrive, so
+ * pipelined requests simply wait in the input buffer until the previous response has been written.
+ */
+final class NioConnection {
+
+    private static final Logger logger = Logger.getLogger(NioConnection.class.getSimpleName());
+
+    private static final int INITIAL_BUFFER_SIZE = 8 * 1024;
+    private static final int MAX_BODY_SIZE = 1024 * 1024;
+
+    private enum State { READING, HANDLING, PROXYING, WRITING, CLOSED }
+
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+
+    private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private State state = State.READING;
+    private long lastActivity = System.currentTimeMillis();
+
+    private HttpHead.Request request;
+    private boolean keepAlive;
+    private boolean responseStarted;
+    private ByteBuffer headOut;
+    private ByteBuffer bodyOut;
+
+    // Metrics of the route serving the current request, null if it is not served by a route.
+    private RouteMetrics metrics;
+    private long requestStart;
+    private RequestTrace trace;
+    private int responseStatus;
+    private long responseBytes;
+    // Concurrency limit of the route the current request holds a permit of, and when it was admitted.
+    private ConcurrencyLimiter limiter;
+    private long admitted;
+
+    private NioUpstreamConnection upstream;
+    private Upstream selectedUpstream;
+    private long upstreamStart;
+    private InetSocketAddress upstreamAddress;
+    private byte[] upstreamRequest;
+
+    NioConnection(NioEventLoop loop, SocketChannel channel) throws IOException {
+        this.loop = loop;
+        this.channel = channel;
+        this.remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        this.localAddress = (InetSocketAddress) channel.getLocalAddress();
+        this.key = channel.register(loop.selector(), SelectionKey.OP_READ, this);
+    }
+
+    void onReady(int readyOps) {
+        if ((readyOps & SelectionKey.OP_READ) != 0 && state == State.READING) {
+            onReadable();
+        }
+        if (key.isValid() && (readyOps & SelectionKey.OP_WRITE) != 0) {
+            flush();
+        }
+    }
+
+    private void onReadable() {
+        try {
+            if (!in.hasRemaining()) {
+                grow(in.capacity() * 2);
+            }
+            int read = channel.read(in);
+            if (read == -1) {
+                close();
+                return;
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        lastActivity = System.currentTimeMillis();
+        processInput();
+    }
+
+    private void grow(int capacity) {
+        if (capacity > in.capacity()) {
+            ByteBuffer bigger = ByteBuffer.allocate(capacity);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+    }
+
+    /**
+     * Parses and dispatches the next complete request in the input buffer, if there is one.
+     */
+    private void processInput() {
+        if (state != State.READING) {
+            return;
+        }
+        int headEnd = HttpHead.findHeadEnd(in, 0, in.position());
+        if (headEnd < 0) {
+            if (in.position() >= HttpHead.MAX_HEAD_SIZE) {
+                keepAlive = false;
+                respond("HTTP/1.1", 431, "Request headers too large");
+            }
+            return;
+        }
+        HttpHead.Request parsed;
+        long contentLength;
+        try {
+            parsed = HttpHead.parseRequest(HttpHead.copy(in, 0, headEnd));
+            contentLength = parsed.contentLength();
+        } catch (IllegalArgumentException e) {
+            keepAlive = false;
+            respond("HTTP/1.1", 400, "Malformed request");
+            return;
+        }
+        if (parsed.isChunked()) {
+            keepAlive = false;
+            respond(parsed.version, 411, "Chunked request bodies are not supported");
+            return;
+        }
+        if (contentLength > MAX_BODY_SIZE) {
+            keepAlive = false;
+            respond(parsed.version, 413, "Request body too large");
+            return;
+        }
+        int requestEnd = headEnd + (int) contentLength;
+        if (in.position() < requestEnd) {
+            grow(requestEnd);
+            return;
+        }
+        byte[] body = HttpHead.copy(in, headEnd, requestEnd);
+        in.flip();
+        in.position(requestEnd);
+        in.compact();
+        dispatch(parsed, body);
+    }
+
+    private void dispatch(HttpHead.Request parsed, byte[] body) {
+        requestStart = System.nanoTime();
+        metrics = null;
+        trace = null;
+        responseBytes = 0;
+        request = parsed;
+        keepAlive = parsed.wantsKeepAlive();
+        responseStarted = false;
+        NioHttpExchange exchange;
+        try {
+            exchange = new NioHttpExchange(parsed, body, remoteAddress, localAddress, this::onHandlerResponse);
+        } catch (IllegalArgumentException e) {
+            keepAlive = false;
+            respond(parsed.version, 400, "Malformed request target");
+            return;
+        }
+        String path = exchange.getRequestURI().getPath();
+        if (path == null || !path.startsWith("/")) {
+            respond(parsed.version, 400, "Malformed request target");
+            return;
+        }
+        HttpHandler handler = loop.server().contextHandler(path);
+        if (handler != null) {
+            runHandler(handler, exchange);
+            return;
+        }
+        RequestRouter router = loop.server().getRouter();
+        trace = router.getTracer().start(requestStart, exchange);
+        if (!"GET".equals(parsed.method)) {
+            logger.warning(RequestRouter.ONLY_GET_SUPPORTED);
+            respond(parsed.version, 405, RequestRouter.ONLY_GET_SUPPORTED);
+            return;
+        }
+        RouteConfig routeConfig = router.findRoute(exchange);
+        if (trace != null) {
+            trace.mark(RequestTrace.Phase.ROUTE);
+            trace.route(routeConfig == null ? null : routeConfig.getAppContext());
+        }
+        if (routeConfig == null) {
+            logger.warning(String.format("Route for app %s not configure", path));
+            respond(parsed.version, 404, RequestRouter.ROUTE_NOT_CONFIGURED);
+            return;
+        }
+        metrics = routeConfig.getMetrics();
+        ThrottleRule throttledBy = routeConfig.getThrottlePipeline().evaluate(exchange);
+        mark(RequestTrace.Phase.THROTTLE);
+        if (throttledBy != null) {
+            metrics.recordThrottled();
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine("Request is being throttled due to " + throttledBy.getClass().getSimpleName() + " rule");
+            }
+            Headers headers = new Headers();
+            headers.set("Retry-After", String.valueOf(ThrottlePipeline.retryAfterSeconds(throttledBy, exchange)));
+            respond(parsed.version, 429, RequestRouter.TOO_MANY_REQUESTS, headers);
+            return;
+        }
+        ConcurrencyLimiter routeLimiter = routeConfig.getConcurrencyLimiter();
+        if (routeLimiter != null) {
+            if (!routeLimiter.tryAcquire()) {
+                respond(parsed.version, 503, RequestRouter.ROUTE_OVERLOADED);
+                return;
+            }
+            limiter = routeLimiter;
+            admitted = System.nanoTime();
+        }
+        Upstream selected;
+        try {
+            selected = routeConfig.chooseUpstream(exchange);
+        } catch (UpstreamUnavailableException e) {
+            releaseLimit(ConcurrencyLimiter.Outcome.IGNORED);
+            metrics.recordUnavailable();
+            Headers headers = new Headers();
+            headers.set("Retry-After", String.valueOf(RequestRouter.retryAfterSeconds(e.getRetryAfterMillis())));
+            respond(parsed.version, 503, RequestRouter.UPSTREAM_UNAVAILABLE, headers);
+            return;
+        }
+        startProxy(selected, exchange.getRequestURI());
+    }
+
+    private void runHandler(HttpHandler handler, NioHttpExchange exchange) {
+        state = State.HANDLING;
+        key.interestOps(0);
+        loop.server().getHandlerExecutor().execute(() -> {
+            try {
+                handler.handle(exchange);
+            } catch (Exception e) {
+                logger.warning(String.format("Handler failed for %s %s", exchange.getRequestURI(), e));
+            } finally {
+                exchange.close();
+            }
+        });
+    }
+
+    private void onHandlerResponse(byte[] response) {
+        loop.execute(() -> {
+            if (state == State.HANDLING) {
+                write(response);
+            }
+        });
+    }
+
+    private void startProxy(Upstream selected, URI requestURI) {
+        URI upstreamURI = selected.getURI();
+        if (!"http".equalsIgnoreCase(upstreamURI.getScheme())) {
+            logger.warning(String.format("NIO engine only proxies plain http upstreams, not %s", upstreamURI));
+            releaseLimit(ConcurrencyLimiter.Outcome.IGNORED);
+            respond(request.version, 502, RequestRouter.UPSTREAM_UNREACHABLE);
+            return;
+        }
+        int port = upstreamURI.getPort() == -1 ? 80 : upstreamURI.getPort();
+        upstreamAddress = loop.resolve(upstreamURI.getHost(), port);
+        String basePath = upstreamURI.getRawPath() == null ? "" : upstreamURI.getRawPath();
+        if (basePath.endsWith("/")) {
+            basePath = basePath.substring(0, basePath.length() - 1);
+        }
+        StringBuilder sb = new StringBuilder(128);
+        sb.append("GET ").append(basePath).append(requestURI.getRawPath());
+        if (requestURI.getRawQuery() != null) {
+            sb.append('?').append(requestURI.getRawQuery());
+        }
+        sb.append(' ').append(request.version).append("\r\n");
+        sb.append("Host: ").append(upstreamURI.getHost());
+        if (upstreamURI.getPort() != -1) {
+            sb.append(':').append(port);
+        }
+        sb.append("\r\n\r\n");
+        upstreamRequest = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+
+        state = State.PROXYING;
+        key.interestOps(0);
+        selectedUpstream = selected;
+        upstreamStart = selected.begin();
+        NioUpstreamConnection pooled = loop.takeIdle(upstreamAddress);
+        connectUpstream(pooled);
+    }
+
+    /**
+     * Sends the request on the given pooled connection, or on a new one if there is none.
+     */
+    private void connectUpstream(NioUpstreamConnection pooled) {
+        long deadline = System.currentTimeMillis() + loop.server().getRouter().getRequestTimeout();
+        try {
+            upstream = pooled != null ? pooled : NioUpstreamConnection.open(loop, upstreamAddress);
+            upstream.start(this, upstreamRequest, deadline);
+        } catch (IOException e) {
+            upstreamFailed(502, e);
+        }
+    }
+
+    /**
+     * Called by the upstream once the request was written to it.
+     */
+    void upstreamRequestSent() {
+        mark(RequestTrace.Phase.CONNECT);
+    }
+
+    private void mark(RequestTrace.Phase phase) {
+        if (trace != null) {
+            trace.mark(phase);
+        }
+    }
+
+    /**
+     * Called when a pooled connection turned out to be closed by the upstream before answering. The request
+     * has no side effects, so it is safe to send it again on a fresh connection.
+     */
+    void retryOnFreshConnection() {
+        connectUpstream(null);
+    }
+
+    void upstreamFailed(int status, Exception cause) {
+        upstream = null;
+        if (selectedUpstream != null && !responseStarted) {
+            // Count the failure as a request that took the whole timeout, see RequestRouter#recordFailure.
+            selectedUpstream.recordFailure(loop.server().getRouter().getRequestTimeout() * 1_000_000L);
+        }
+        endUpstream();
+        releaseLimit(status == 504 ? ConcurrencyLimiter.Outcome.DROPPED : ConcurrencyLimiter.Outcome.IGNORED);
+        if (metrics != null) {
+            metrics.recordUpstreamFailure(status == 504);
+        }
+        logger.warning(String.format("Upstream %s failed with %s", upstreamAddress, cause));
+        if (state != State.PROXYING) {
+            return;
+        }
+        if (responseStarted) {
+            // Part of the response is already on the wire, all we can do is cut it short.
+            close();
+            return;
+        }
+        respond(request.version, status, status == 504 ? RequestRouter.UPSTREAM_TIMEOUT
+                                                       : RequestRouter.UPSTREAM_UNREACHABLE);
+    }
+
+    boolean wantsKeepAlive() {
+        return keepAlive;
+    }
+
+    void setKeepAlive(boolean keepAlive) {
+        this.keepAlive = keepAlive;
+    }
+
+    boolean isHttp11() {
+        return request.isHttp11();
+    }
+
+    /**
+     * Queues the rewritten upstream response head ahead of the first body bytes.
+     */
+    void sendResponseHead(int status, byte[] head) {
+        responseStarted = true;
+        responseStatus = status;
+        mark(RequestTrace.Phase.FIRST_BYTE);
+        metrics.recordUpstreamLatency(selectedUpstream.recordLatency(upstreamStart, status));
+        headOut = ByteBuffer.wrap(head);
+    }
+
+    /**
+     * Writes the readable bytes of {@code body}, after any pending head, to the client. The upstream is told
+     * through {@link NioUpstreamConnection#onClientDrained()} once everything was written, which may happen
+     * before this method returns.
+     */
+    void sendBody(ByteBuffer body) {
+        responseBytes += body.remaining();
+        bodyOut = body;
+        lastActivity = System.currentTimeMillis();
+        flush();
+    }
+
+    /**
+     * Called by the upstream after the last body byte reached the client.
+     */
+    void upstreamComplete() {
+        upstream = null;
+        metrics.recordUpstreamBytes(responseBytes);
+        endUpstream();
+        finishExchange();
+    }
+
+    private void endUpstream() {
+        if (selectedUpstream != null) {
+            selectedUpstream.end();
+            selectedUpstream = null;
+        }
+    }
+
+    private void releaseLimit(ConcurrencyLimiter.Outcome outcome) {
+        if (limiter != null) {
+            limiter.release(System.nanoTime() - admitted, outcome);
+            limiter = null;
+        }
+    }
+
+    private void respond(String version, int status, String message) {
+        respond(version, status, message, new Headers());
+    }
+
+    private void respond(String version, int status, String message, Headers headers) {
+        if (!keepAlive) {
+            headers.set("Connection", "close");
+        }
+        responseStatus = status;
+        responseBytes = message.length();
+        write(NioHttpExchange.serialize(version, status, headers, message.getBytes()));
+    }
+
+    private void write(byte[] response) {
+        state = State.WRITING;
+        headOut = ByteBuffer.wrap(response);
+        bodyOut = null;
+        lastActivity = System.currentTimeMillis();
+        flush();
+    }
+
+    private void flush() {
+        long written = 0;
+        try {
+            if (headOut != null && bodyOut != null) {
+                written = channel.write(new ByteBuffer[] {headOut, bodyOut});
+            } else if (headOut != null) {
+                written = channel.write(headOut);
+            } else if (bodyOut != null) {
+                written = channel.write(bodyOut);
+            }
+        } catch (IOException e) {
+            close();
+            return;
+        }
+        if (headOut != null && headOut.hasRemaining() || bodyOut != null && bodyOut.hasRemaining()) {
+            if (written > 0) {
+                lastActivity = System.currentTimeMillis();
+            }
+            key.interestOps(SelectionKey.OP_WRITE);
+            return;
+        }
+        headOut = null;
+        bodyOut = null;
+        lastActivity = System.currentTimeMillis();
+        if (state == State.WRITING) {
+            finishExchange();
+        } else if (state == State.PROXYING) {
+            key.interestOps(0);
+            if (upstream != null) {
+                upstream.onClientDrained();
+            }
+        }
+    }
+
+    private void finishExchange() {
+        releaseLimit(ConcurrencyLimiter.Outcome.SUCCESS);
+        if (metrics != null) {
+            metrics.recordResponse(responseStatus, responseBytes, System.nanoTime() - requestStart);
+            metrics = null;
+        }
+        if (trace != null) {
+            loop.server().getRouter().getTracer().finish(trace, responseStatus);
+            trace = null;
+        }
+        request = null;
+        if (!keepAlive) {
+            close();
+            return;
+        }
+        state = State.READING;
+        key.interestOps(SelectionKey.OP_READ);
+        processInput();
+    }
+
+    /**
+     * Closes a connection idle between requests, or whose client has not taken a byte of its pending response for
+     * the request timeout. Closing lets go of the upstream connection, its relay buffer and the route's permit.
+     * An upstream that stops sending is timed out by {@link NioUpstreamConnection#sweep(long)}.
+     */
+    void sweep(long now) {
+        if (state == State.READING) {
+            if (now - lastActivity > NioEventLoop.IDLE_TIMEOUT_MILLIS) {
+                close();
+            }
+        } else if ((headOut != null || bodyOut != null)
+                   && now - lastActivity > loop.server().getRouter().getRequestTimeout()) {
+            if (logger.isLoggable(Level.FINE)) {
+                logger.fine(String.format("Client %s stopped reading its response", remoteAddress));
+            }
+            close();
+        }
+    }
+
+    void close() {
+        if (state == State.CLOSED) {
+            return;
+        }
+        state = State.CLOSED;
+        key.cancel();
+        NioEventLoop.closeQuietly(channel);
+        if (upstream != null) {
+            upstream.close();
+            upstream = null;
+        }
+        endUpstream();
+        releaseLimit(ConcurrencyLimiter.Outcome.IGNORED);
+        loop.removed(this);
+    }
+}
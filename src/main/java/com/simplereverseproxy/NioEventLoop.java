@@ -0,0 +1,222 @@
+package com.simplereverseproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Logger;
+
+/**
+ * Single threaded loop driving one selector of the {@link NioProxyServer}. Everything attached to the selector,
+ * downstream connections, their upstream connections and the idle upstream pool, is only touched from the loop
+ * thread, other threads hand work over through {@link #execute(Runnable)}.
+ */
+final class NioEventLoop implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(NioEventLoop.class.getSimpleName());
+
+    static final long IDLE_TIMEOUT_MILLIS = 30_000;
+    static final int RELAY_BUFFER_SIZE = 32 * 1024;
+    private static final long SWEEP_INTERVAL_MILLIS = 100;
+    private static final int MAX_POOLED_BUFFERS = 64;
+
+    private final NioProxyServer server;
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<NioConnection> connections = new HashSet<>();
+    private final Set<NioUpstreamConnection> upstreams = new HashSet<>();
+    private final Map<InetSocketAddress, ArrayDeque<NioUpstreamConnection>> idleUpstreams = new HashMap<>();
+    private final Map<String, InetSocketAddress> resolvedUpstreams = new HashMap<>();
+    private final ArrayDeque<ByteBuffer> relayBuffers = new ArrayDeque<>();
+    private volatile boolean running = true;
+    private long lastSweep;
+
+    NioEventLoop(NioProxyServer server, String name) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                connections.add(new NioConnection(this, channel));
+            } catch (IOException e) {
+                logger.warning(String.format("Failed to register connection %s", e.getMessage()));
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                selector.select(SWEEP_INTERVAL_MILLIS);
+                runTasks();
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    dispatch(key);
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastSweep >= SWEEP_INTERVAL_MILLIS) {
+                    lastSweep = now;
+                    sweep(now);
+                }
+            } catch (IOException e) {
+                logger.severe(String.format("%s: selector failed %s", thread.getName(), e.getMessage()));
+                break;
+            }
+        }
+        closeAll();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void dispatch(SelectionKey key) {
+        Object attachment = key.attachment();
+        try {
+            if (!key.isValid()) {
+                return;
+            }
+            if (attachment instanceof NioConnection) {
+                ((NioConnection) attachment).onReady(key.readyOps());
+            } else if (attachment instanceof NioUpstreamConnection) {
+                ((NioUpstreamConnection) attachment).onReady(key.readyOps());
+            }
+        } catch (CancelledKeyException e) {
+            // The connection was closed while handling an earlier event of this round.
+        }
+    }
+
+    private void sweep(long now) {
+        for (NioConnection connection : new ArrayList<>(connections)) {
+            connection.sweep(now);
+        }
+        for (NioUpstreamConnection upstream : new ArrayList<>(upstreams)) {
+            upstream.sweep(now);
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        selector.wakeup();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeAll() {
+        for (NioConnection connection : new ArrayList<>(connections)) {
+            connection.close();
+        }
+        for (NioUpstreamConnection upstream : new ArrayList<>(upstreams)) {
+            upstream.close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.warning(String.format("%s: failed to close selector %s", thread.getName(), e.getMessage()));
+        }
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    NioProxyServer server() {
+        return server;
+    }
+
+    void removed(NioConnection connection) {
+        connections.remove(connection);
+    }
+
+    void opened(NioUpstreamConnection upstream) {
+        upstreams.add(upstream);
+    }
+
+    void removed(NioUpstreamConnection upstream) {
+        upstreams.remove(upstream);
+        ArrayDeque<NioUpstreamConnection> idle = idleUpstreams.get(upstream.address());
+        if (idle != null) {
+            idle.remove(upstream);
+        }
+    }
+
+    /**
+     * Most recently used idle connection to {@code address}, or null if there is none.
+     */
+    NioUpstreamConnection takeIdle(InetSocketAddress address) {
+        ArrayDeque<NioUpstreamConnection> idle = idleUpstreams.get(address);
+        return idle == null ? null : idle.pollLast();
+    }
+
+    void offerIdle(NioUpstreamConnection upstream) {
+        idleUpstreams.computeIfAbsent(upstream.address(), a -> new ArrayDeque<>()).addLast(upstream);
+    }
+
+    /**
+     * Resolves the upstream address once per loop, so DNS is not hit for every request.
+     */
+    InetSocketAddress resolve(String host, int port) {
+        String key = host + ':' + port;
+        InetSocketAddress address = resolvedUpstreams.get(key);
+        if (address == null || address.isUnresolved()) {
+            address = new InetSocketAddress(host, port);
+            resolvedUpstreams.put(key, address);
+        }
+        return address;
+    }
+
+    ByteBuffer acquireBuffer() {
+        ByteBuffer buffer = relayBuffers.pollLast();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(RELAY_BUFFER_SIZE);
+    }
+
+    void releaseBuffer(ByteBuffer buffer) {
+        if (relayBuffers.size() < MAX_POOLED_BUFFERS) {
+            buffer.clear();
+            relayBuffers.addLast(buffer);
+        }
+    }
+
+    static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing left to do with a channel we failed to close.
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.simplereverseproxy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+
+/**
+ * {@link HttpExchange} view of a request parsed by the NIO engine. It lets {@link ThrottleRule}s and the admin
+ * {@link com.sun.net.httpserver.HttpHandler}s run unchanged on that engine. The response is buffered and handed
+ * to the connection as a single serialized message when the exchange is closed.
+ */
+final class NioHttpExchange extends HttpExchange {
+
+    private final HttpHead.Request request;
+    private final URI requestURI;
+    private final InetSocketAddress remoteAddress;
+    private final InetSocketAddress localAddress;
+    private final Consumer<byte[]> onClose;
+    private final Headers responseHeaders = new Headers();
+    private final Map<String, Object> attributes = new HashMap<>();
+
+    private InputStream in;
+    private OutputStream out;
+    private ByteArrayOutputStream responseBody;
+    private int responseCode = -1;
+    private boolean closed;
+
+    NioHttpExchange(HttpHead.Request request, byte[] requestBody, InetSocketAddress remoteAddress,
+                    InetSocketAddress localAddress, Consumer<byte[]> onClose) {
+        this.request = request;
+        this.requestURI = URI.create(request.target);
+        this.remoteAddress = remoteAddress;
+        this.localAddress = localAddress;
+        this.onClose = onClose;
+        this.in = new ByteArrayInputStream(requestBody);
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return request.headers;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return responseHeaders;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return requestURI;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return request.method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return null;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (responseCode == -1) {
+            responseCode = 500;
+        }
+        onClose.accept(serialize());
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return in;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        if (out == null) {
+            responseBody = new ByteArrayOutputStream();
+            out = new OutputStream() {
+                @Override
+                public void write(int b) {
+                    responseBody.write(b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    responseBody.write(b, off, len);
+                }
+
+                @Override
+                public void close() {
+                    NioHttpExchange.this.close();
+                }
+            };
+        }
+        return out;
+    }
+
+    @Override
+    public void sendResponseHeaders(int rCode, long responseLength) throws IOException {
+        if (responseCode != -1) {
+            throw new IOException("headers already sent");
+        }
+        responseCode = rCode;
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public int getResponseCode() {
+        return responseCode;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    @Override
+    public String getProtocol() {
+        return request.version;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream i, OutputStream o) {
+        if (i != null) {
+            in = i;
+        }
+        if (o != null) {
+            out = o;
+        }
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+
+    private byte[] serialize() {
+        byte[] body = responseBody != null ? responseBody.toByteArray() : new byte[0];
+        return serialize(request.version, responseCode, responseHeaders, body);
+    }
+
+    static byte[] serialize(String version, int status, Headers headers, byte[] body) {
+        StringBuilder sb = new StringBuilder(128);
+        sb.append(version).append(' ').append(status).append(' ').append(reasonPhrase(status)).append("\r\n");
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase("Content-Length")
+                || header.getKey().equalsIgnoreCase("Transfer-Encoding")) {
+                continue;
+            }
+            for (String value : header.getValue()) {
+                sb.append(header.getKey()).append(": ").append(value).append("\r\n");
+            }
+        }
+        boolean hasBody = status >= 200 && status != 204 && status != 304;
+        if (hasBody) {
+            sb.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        sb.append("\r\n");
+        byte[] head = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+        if (!hasBody || body.length == 0) {
+            return head;
+        }
+        byte[] message = new byte[head.length + body.length];
+        System.arraycopy(head, 0, message, 0, head.length);
+        System.arraycopy(body, 0, message, head.length, body.length);
+        return message;
+    }
+
+    static String reasonPhrase(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 204:
+                return "No Content";
+            case 304:
+                return "Not Modified";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 411:
+                return "Length Required";
+            case 413:
+                return "Payload Too Large";
+            case 429:
+                return "Too Many Requests";
+            case 431:
+                return "Request Header Fields Too Large";
+            case 500:
+                return "Internal Server Error";
+            case 502:
+                return "Bad Gateway";
+            case 503:
+                return "Service Unavailable";
+            case 504:
+                return "Gateway Timeout";
+            default:
+                return "Status " + status;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.simplereverseproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Proxy engine built directly on NIO selectors instead of {@link com.sun.net.httpserver.HttpServer}. Accepted
+ * connections are spread over a fixed number of event loops, each owning one selector and running every
+ * downstream and upstream channel registered with it, so an in-flight request costs a couple of channels and
+ * buffers rather than a thread.
+ *
+ * Requests are parsed and routed on the event loop, throttle rules run against a {@link NioHttpExchange} view of
+ * the request, and upstream response bytes are relayed to the client through direct buffers as they are
+ * without being decoded. Handlers registered as admin contexts, such as {@code /config}, run on the handler
+ * executor exactly as they would behind the JDK server.
+ */
+final class NioProxyServer implements Server {
+
+    private static final Logger logger = Logger.getLogger(NioProxyServer.class.getSimpleName());
+
+    private final InetSocketAddress address;
+    private final RequestRouter router;
+    private final Executor handlerExecutor;
+    private final NioEventLoop[] eventLoops;
+    // Sorted in reverse so the longest matching context is found first.
+    private final TreeMap<String, HttpHandler> contexts = new TreeMap<>((a, b) -> b.compareTo(a));
+
+    private ServerSocketChannel serverChannel;
+    private Thread acceptor;
+
+    NioProxyServer(InetSocketAddress address, int eventLoopCount, RequestRouter router, Executor handlerExecutor,
+                   Map<String, HttpHandler> adminContexts) {
+        if (eventLoopCount <= 0) {
+            throw new IllegalArgumentException("At least one event loop is required");
+        }
+        this.address = address;
+        this.router = router;
+        this.handlerExecutor = handlerExecutor;
+        this.eventLoops = new NioEventLoop[eventLoopCount];
+        this.contexts.putAll(adminContexts);
+    }
+
+    @Override
+    public void start() {
+        try {
+            for (int i = 0; i < eventLoops.length; i++) {
+                eventLoops[i] = new NioEventLoop(this, "nio-event-loop-" + i);
+                eventLoops[i].start();
+            }
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            serverChannel.bind(address, 1024);
+        } catch (IOException e) {
+            logger.severe(String.format("Problem creating NIO proxy server at %s %s", address, e.getMessage()));
+            shutdown();
+            return;
+        }
+        acceptor = new Thread(this::acceptLoop, "nio-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (serverChannel.isOpen()) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                eventLoops[next].register(channel);
+                next = (next + 1) % eventLoops.length;
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                logger.warning(String.format("Failed to accept connection %s", e.getMessage()));
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            logger.warning(String.format("Problem closing NIO proxy server %s", e.getMessage()));
+        }
+        for (NioEventLoop eventLoop : eventLoops) {
+            if (eventLoop != null) {
+                eventLoop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Admin handler whose context is the longest prefix of {@code path}, or null if the path is proxied.
+     */
+    HttpHandler contextHandler(String path) {
+        for (Map.Entry<String, HttpHandler> context : contexts.entrySet()) {
+            if (path.startsWith(context.getKey())) {
+                return context.getValue();
+            }
+        }
+        return null;
+    }
+
+    RequestRouter getRouter() {
+        return router;
+    }
+
+    Executor getHandlerExecutor() {
+        return handlerExecutor;
+    }
+}
@@ -0,0 +1,274 @@
+package com.simplereverseproxy;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Connection from the NIO engine to an upstream server. The response head is parsed to learn how the body is
+ * framed, after that the body bytes go from the upstream socket into a direct buffer and from there straight
+ * to the client socket without being copied onto the heap. Reading from the upstream pauses whenever the
+ * client has not drained the previous buffer, which pushes back on the upstream through TCP flow control.
+ *
+ * Connections whose response was fully read are kept open in the event loop's idle pool and reused by later
+ * requests to the same address.
+ */
+final class NioUpstreamConnection {
+
+    private static final int NO_BODY = 0;
+    private static final int CONTENT_LENGTH = 1;
+    private static final int CHUNKED = 2;
+    private static final int UNTIL_CLOSE = 3;
+
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final InetSocketAddress address;
+
+    private boolean connected;
+    private boolean reused;
+    private long idleSince;
+
+    private NioConnection owner;
+    private ByteBuffer requestOut;
+    private ByteBuffer relay;
+    private long deadline;
+    private boolean waitingForClient;
+    private HttpHead.Response response;
+    private int framing;
+    private long remaining;
+    private HttpHead.ChunkedBodyScanner chunkedScanner;
+    private boolean bodyDone;
+
+    private NioUpstreamConnection(NioEventLoop loop, SocketChannel channel, InetSocketAddress address,
+                                  boolean connected) throws IOException {
+        this.loop = loop;
+        this.channel = channel;
+        this.address = address;
+        this.connected = connected;
+        this.key = channel.register(loop.selector(), 0, this);
+        loop.opened(this);
+    }
+
+    static NioUpstreamConnection open(NioEventLoop loop, InetSocketAddress address) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            boolean connected = channel.connect(address);
+            return new NioUpstreamConnection(loop, channel, address, connected);
+        } catch (IOException e) {
+            NioEventLoop.closeQuietly(channel);
+            throw e;
+        }
+    }
+
+    InetSocketAddress address() {
+        return address;
+    }
+
+    /**
+     * Sends {@code request} for {@code owner}. The response head has to arrive before {@code deadline}, and then
+     * each part of the body within the request timeout of the client having drained the previous one.
+     */
+    void start(NioConnection owner, byte[] request, long deadline) {
+        this.reused = idleSince != 0;
+        this.owner = owner;
+        this.requestOut = ByteBuffer.wrap(request);
+        this.relay = loop.acquireBuffer();
+        this.deadline = deadline;
+        this.waitingForClient = false;
+        this.response = null;
+        this.bodyDone = false;
+        this.chunkedScanner = null;
+        key.interestOps(connected ? SelectionKey.OP_WRITE : SelectionKey.OP_CONNECT);
+    }
+
+    void onReady(int readyOps) {
+        if (owner == null) {
+            // Idle connections only become ready when the upstream closed them or sent garbage.
+            close();
+            return;
+        }
+        try {
+            if ((readyOps & SelectionKey.OP_CONNECT) != 0) {
+                channel.finishConnect();
+                connected = true;
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+            if ((readyOps & SelectionKey.OP_WRITE) != 0 || connected && requestOut.hasRemaining()) {
+                channel.write(requestOut);
+                if (requestOut.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_WRITE);
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                    owner.upstreamRequestSent();
+                }
+            }
+            if ((readyOps & SelectionKey.OP_READ) != 0) {
+                read();
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            fail(e);
+        }
+    }
+
+    private void read() throws IOException {
+        int read = channel.read(relay);
+        if (read == -1) {
+            onEndOfStream();
+            return;
+        }
+        int bodyStart = 0;
+        if (response == null) {
+            int headEnd = HttpHead.findHeadEnd(relay, 0, relay.position());
+            if (headEnd < 0) {
+                if (!relay.hasRemaining()) {
+                    throw new IOException("Upstream response head too large");
+                }
+                return;
+            }
+            startResponse(HttpHead.parseResponse(HttpHead.copy(relay, 0, headEnd)));
+            bodyStart = headEnd;
+        }
+        int bodyEnd = consumeBody(bodyStart, relay.position());
+        relay.limit(bodyEnd);
+        relay.position(bodyStart);
+        key.interestOps(0);
+        waitingForClient = true;
+        // May complete the exchange, and even start the next one, before returning.
+        owner.sendBody(relay);
+    }
+
+    private void startResponse(HttpHead.Response head) {
+        response = head;
+        if (!head.hasBody()) {
+            framing = NO_BODY;
+        } else if (head.isChunked()) {
+            framing = CHUNKED;
+            chunkedScanner = new HttpHead.ChunkedBodyScanner();
+        } else if (head.contentLength() >= 0) {
+            framing = CONTENT_LENGTH;
+            remaining = head.contentLength();
+        } else {
+            framing = UNTIL_CLOSE;
+        }
+        boolean keepAlive = owner.wantsKeepAlive() && framing != UNTIL_CLOSE;
+        owner.setKeepAlive(keepAlive);
+        owner.sendResponseHead(head.status, head.rewrite(keepAlive, owner.isHttp11()));
+    }
+
+    /**
+     * Accounts for the body bytes in {@code relay[from, to)} and returns where the body ends within them.
+     */
+    private int consumeBody(int from, int to) {
+        switch (framing) {
+            case NO_BODY:
+                bodyDone = true;
+                return from;
+            case CONTENT_LENGTH:
+                long take = Math.min(remaining, to - from);
+                remaining -= take;
+                bodyDone = remaining == 0;
+                return from + (int) take;
+            case CHUNKED:
+                int end = chunkedScanner.scan(relay, from, to);
+                bodyDone = end >= 0;
+                return bodyDone ? end : to;
+            default:
+                return to;
+        }
+    }
+
+    /**
+     * Called by the owner once the last relayed bytes reached the client.
+     */
+    void onClientDrained() {
+        waitingForClient = false;
+        if (bodyDone) {
+            complete();
+        } else {
+            deadline = System.currentTimeMillis() + loop.server().getRouter().getRequestTimeout();
+            relay.clear();
+            key.interestOps(SelectionKey.OP_READ);
+        }
+    }
+
+    private void onEndOfStream() {
+        NioConnection current = owner;
+        if (response == null) {
+            if (reused && relay.position() == 0) {
+                // The upstream closed the pooled connection before we used it.
+                release();
+                close();
+                current.retryOnFreshConnection();
+            } else {
+                fail(new IOException("Upstream closed the connection before responding"));
+            }
+            return;
+        }
+        if (framing == UNTIL_CLOSE) {
+            bodyDone = true;
+            complete();
+        } else {
+            fail(new IOException("Upstream closed the connection in the middle of the body"));
+        }
+    }
+
+    private void complete() {
+        NioConnection current = owner;
+        boolean reusable = framing != UNTIL_CLOSE && response.upstreamKeepsAlive();
+        release();
+        if (reusable) {
+            idleSince = System.currentTimeMillis();
+            key.interestOps(SelectionKey.OP_READ);
+            loop.offerIdle(this);
+        } else {
+            close();
+        }
+        current.upstreamComplete();
+    }
+
+    private void fail(Exception e) {
+        NioConnection current = owner;
+        release();
+        close();
+        if (current != null) {
+            current.upstreamFailed(502, e);
+        }
+    }
+
+    private void release() {
+        owner = null;
+        if (relay != null) {
+            loop.releaseBuffer(relay);
+            relay = null;
+        }
+    }
+
+    void sweep(long now) {
+        if (owner == null) {
+            if (now - idleSince > NioEventLoop.IDLE_TIMEOUT_MILLIS) {
+                close();
+            }
+        } else if (!waitingForClient && now > deadline) {
+            // A client that does not drain the relay buffer is the owner's to time out, not the upstream's.
+            NioConnection current = owner;
+            boolean headReceived = response != null;
+            release();
+            close();
+            current.upstreamFailed(504, new IOException(headReceived ? "Upstream stalled in the middle of the body"
+                                                                     : "Upstream did not respond in time"));
+        }
+    }
+
+    void close() {
+        release();
+        key.cancel();
+        NioEventLoop.closeQuietly(channel);
+        loop.removed(this);
+    }
+}
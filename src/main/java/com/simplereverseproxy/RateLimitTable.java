@@ -0,0 +1,144 @@
+package com.simplereverseproxy;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed capacity, lock free table of per key rate limiting state for {@link TokenBucketThrottleRule} and
+ * {@link SlidingWindowThrottleRule}. A key's state is a single {@code long} the rules update with one compare and
+ * set, so deciding on a request of a known key takes no lock and allocates nothing.
+ *
+ * Every key may live in one of two neighbouring slots. A new key takes an empty slot or one whose state has gone
+ * idle, which loses nothing since idle state throttles no request. Only when both slots hold live state of
+ * other keys is one of them evicted, which hands the evicted key a fresh budget. Memory stays bounded by the
+ * capacity however many distinct keys arrive, at the price of being lenient towards keys crowded out by a flood.
+ */
+final class RateLimitTable {
+
+    static final int DEFAULT_MAX_KEYS = 65_536;
+
+    /**
+     * Tells whether a state value no longer affects any decision, so its slot can be reused.
+     */
+    @FunctionalInterface
+    interface IdleState {
+        boolean isIdle(long state, long now);
+    }
+
+    private final AtomicReferenceArray<Slot> slots;
+    private final int mask;
+    private final IdleState idleState;
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxKeys rounded up to a power of two, at least 2
+     */
+    RateLimitTable(int maxKeys, IdleState idleState) {
+        if (maxKeys <= 0) {
+            throw new IllegalArgumentException("Rate limit table needs room for at least one key");
+        }
+        int capacity = maxKeys <= 2 ? 2 : Integer.highestOneBit(maxKeys - 1) << 1;
+        this.slots = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+        this.idleState = idleState;
+    }
+
+    /**
+     * State of {@code key}, created with a state of 0 if the key is not in the table.
+     */
+    Slot slot(long key, long now) {
+        int first = (int) (key ^ (key >>> 32)) & mask;
+        int second = first ^ 1;
+        while (true) {
+            Slot a = slots.get(first);
+            if (a != null && a.key == key) {
+                return a;
+            }
+            Slot b = slots.get(second);
+            if (b != null && b.key == key) {
+                return b;
+            }
+            int victim;
+            Slot replaced;
+            if (a == null || idleState.isIdle(a.state, now)) {
+                victim = first;
+                replaced = a;
+            } else if (b == null || idleState.isIdle(b.state, now)) {
+                victim = second;
+                replaced = b;
+            } else if (ThreadLocalRandom.current().nextBoolean()) {
+                victim = first;
+                replaced = a;
+            } else {
+                victim = second;
+                replaced = b;
+            }
+            Slot created = new Slot(key);
+            if (slots.compareAndSet(victim, replaced, created)) {
+                if (replaced != null && !idleState.isIdle(replaced.state, now)) {
+                    evictions.incrementAndGet();
+                }
+                return created;
+            }
+            // Another request changed the slots, it may have added this very key.
+        }
+    }
+
+    /**
+     * Current state of {@code key}, 0 if the key is not in the table. Does not add the key.
+     */
+    long state(long key) {
+        int first = (int) (key ^ (key >>> 32)) & mask;
+        Slot slot = slots.get(first);
+        if (slot == null || slot.key != key) {
+            slot = slots.get(first ^ 1);
+        }
+        return slot != null && slot.key == key ? slot.state : 0;
+    }
+
+    /**
+     * Number of keys whose live state was evicted to make room for another key.
+     */
+    long getEvictions() {
+        return evictions.get();
+    }
+
+    int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Number of keys in the table whose state is not idle.
+     */
+    int liveKeys(long now) {
+        int live = 0;
+        for (int i = 0; i <= mask; i++) {
+            Slot slot = slots.get(i);
+            if (slot != null && !idleState.isIdle(slot.state, now)) {
+                live++;
+            }
+        }
+        return live;
+    }
+
+    static final class Slot {
+        private static final AtomicLongFieldUpdater<Slot> STATE = AtomicLongFieldUpdater.newUpdater(Slot.class, "state");
+
+        private final long key;
+        private volatile long state;
+
+        private Slot(long key) {
+            this.key = key;
+        }
+
+        long get() {
+            return state;
+        }
+
+        boolean compareAndSet(long expected, long updated) {
+            return STATE.compareAndSet(this, expected, updated);
+        }
+    }
+}
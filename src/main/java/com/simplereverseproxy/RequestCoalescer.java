@@ -0,0 +1,171 @@
+package com.simplereverseproxy;
+
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collapses identical upstream requests of a route that are in flight at the same time. The first request for a
+ * key becomes the leader and is sent upstream, requests arriving while it is outstanding follow it and are all
+ * answered with its response, so a burst of identical requests costs the upstream a single one.
+ *
+ * Followers give up and send their own request if the leader has not answered within the maximum wait, and once
+ * a flight has the maximum number of followers further requests are sent on their own as well, which bounds how
+ * much a single slow upstream call can hold up.
+ */
+public final class RequestCoalescer {
+
+    public static final Duration DEFAULT_MAX_WAIT = Duration.ofSeconds(5);
+    public static final int DEFAULT_MAX_FOLLOWERS = 1000;
+
+    private final ConcurrentHashMap<String, Flight> inFlight = new ConcurrentHashMap<>();
+    private final long maxWaitMillis;
+    private final int maxFollowers;
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+
+    public RequestCoalescer() {
+        this(DEFAULT_MAX_WAIT, DEFAULT_MAX_FOLLOWERS);
+    }
+
+    public RequestCoalescer(Duration maxWait, int maxFollowers) {
+        if (maxWait.isNegative() || maxWait.isZero() || maxFollowers <= 0) {
+            throw new IllegalArgumentException("Max wait and max followers must be greater than 0");
+        }
+        this.maxWaitMillis = maxWait.toMillis();
+        this.maxFollowers = maxFollowers;
+    }
+
+    private static final class Flight {
+        private final CompletableFuture<HttpResponse<byte[]>> response = new CompletableFuture<>();
+        private final AtomicInteger followers = new AtomicInteger();
+    }
+
+    /**
+     * A request's place in the flight for its key: the leader sends the request upstream and completes
+     * {@link #response} through {@link #complete} or {@link #fail}, a follower waits for it.
+     */
+    static final class Join {
+        final CompletableFuture<HttpResponse<byte[]>> response;
+        final boolean leader;
+
+        private Join(CompletableFuture<HttpResponse<byte[]>> response, boolean leader) {
+            this.response = response;
+            this.leader = leader;
+        }
+    }
+
+    /**
+     * Joins the flight for {@code key}, leading a new one if there is none. Looking up and starting the flight is
+     * one atomic step, so of identical requests arriving together exactly one leads and the rest follow. Returns
+     * null if the caller has to send its own request because the flight already has {@link #getMaxFollowers()}
+     * followers.
+     */
+    Join join(String key) {
+        Flight created = new Flight();
+        Flight flight = inFlight.putIfAbsent(key, created);
+        if (flight == null) {
+            leaders.increment();
+            return new Join(created.response, true);
+        }
+        if (flight.followers.incrementAndGet() > maxFollowers) {
+            flight.followers.decrementAndGet();
+            overflows.increment();
+            return null;
+        }
+        return new Join(flight.response, false);
+    }
+
+    void complete(String key, CompletableFuture<HttpResponse<byte[]>> leader, HttpResponse<byte[]> response) {
+        // Removed first, so requests arriving from now on start a new flight instead of reusing this answer.
+        inFlight.computeIfPresent(key, (k, flight) -> flight.response == leader ? null : flight);
+        leader.complete(response);
+    }
+
+    void fail(String key, CompletableFuture<HttpResponse<byte[]>> leader, Throwable error) {
+        inFlight.computeIfPresent(key, (k, flight) -> flight.response == leader ? null : flight);
+        leader.completeExceptionally(error);
+    }
+
+    void recordCollapsed() {
+        collapsed.increment();
+    }
+
+    void recordTimeout() {
+        timeouts.increment();
+    }
+
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    public int getMaxFollowers() {
+        return maxFollowers;
+    }
+
+    public CoalescingStats getStats() {
+        return new CoalescingStats(leaders.sum(), collapsed.sum(), overflows.sum(), timeouts.sum(), inFlight.size());
+    }
+
+    /**
+     * Point in time view of how many upstream requests were saved.
+     */
+    public static final class CoalescingStats {
+        private final long leaders;
+        private final long collapsed;
+        private final long overflows;
+        private final long timeouts;
+        private final int inFlight;
+
+        CoalescingStats(long leaders, long collapsed, long overflows, long timeouts, int inFlight) {
+            this.leaders = leaders;
+            this.collapsed = collapsed;
+            this.overflows = overflows;
+            this.timeouts = timeouts;
+            this.inFlight = inFlight;
+        }
+
+        /**
+         * Requests sent upstream as the leader of a flight.
+         */
+        public long getLeaders() {
+            return leaders;
+        }
+
+        /**
+         * Requests answered with the response of another request instead of going upstream.
+         */
+        public long getCollapsed() {
+            return collapsed;
+        }
+
+        /**
+         * Requests sent on their own because the flight they matched already had the maximum followers.
+         */
+        public long getOverflows() {
+            return overflows;
+        }
+
+        /**
+         * Followers that stopped waiting for their leader and sent their own request.
+         */
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("leaders=%d collapsed=%d overflows=%d timeouts=%d inFlight=%d",
+                                 leaders, collapsed, overflows, timeouts, inFlight);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.simplereverseproxy;
+
+import java.util.Arrays;
+
+/**
+ * Canonical form of a proxied request. Requests that only differ in the order of their query parameters are
+ * the same request.
+ *
+ * {@link #canonical} spells that form out as a string, for keys that must never mix up two requests such as the
+ * response cache's. {@link #hash64} derives a 64 bit hash of the same form straight from the path and query
+ * without allocating, for the hot paths that only need a key that practically never collides, like throttling
+ * and consistent hashing.
+ */
+final class RequestKeys {
+
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+    private static final long PATH_SEED = 0x27D4EB2F165667C5L;
+    private static final long PARAMETER_SEED = 0x85EBCA77C2B2AE63L;
+
+    private RequestKeys() {
+    }
+
+    /**
+     * {@code path} followed by {@code ?} and the query parameters sorted by name, or just {@code path} when
+     * there is no query.
+     */
+    static String canonical(String path, String query) {
+        if (query == null || query.isEmpty()) {
+            return path;
+        }
+        String[] parameters = query.split("&");
+        Arrays.sort(parameters, (a, b) -> {
+            int byName = name(a).compareTo(name(b));
+            return byName != 0 ? byName : a.compareTo(b);
+        });
+        StringBuilder sb = new StringBuilder(path.length() + query.length() + 1);
+        sb.append(path).append('?');
+        for (int i = 0; i < parameters.length; i++) {
+            if (i > 0) {
+                sb.append('&');
+            }
+            sb.append(parameters[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 64 bit hash of {@code path} and the query parameters in any order. Each parameter is hashed on its own
+     * and the parameter hashes are summed, which makes the result independent of their order without sorting
+     * them, while every character still goes through a full multiply and rotate round.
+     */
+    static long hash64(String path, String query) {
+        long hash = hashRange(path, 0, path.length(), PATH_SEED);
+        if (query != null && !query.isEmpty()) {
+            long parameters = 0;
+            int count = 0;
+            int start = 0;
+            while (start <= query.length()) {
+                int end = query.indexOf('&', start);
+                if (end < 0) {
+                    end = query.length();
+                }
+                if (end > start) {
+                    parameters += mix(hashRange(query, start, end, PARAMETER_SEED));
+                    count++;
+                }
+                start = end + 1;
+            }
+            hash = mix(hash + PRIME_3 * count + Long.rotateLeft(parameters, 23) * PRIME_1);
+        }
+        return hash;
+    }
+
+    /**
+     * 64 bit hash of raw bytes, such as an IPv6 address.
+     */
+    static long hash64(byte[] bytes) {
+        long hash = PATH_SEED + bytes.length * PRIME_3;
+        for (byte b : bytes) {
+            hash ^= (b & 0xFF) * PRIME_2;
+            hash = Long.rotateLeft(hash, 31) * PRIME_1;
+        }
+        return mix(hash);
+    }
+
+    private static long hashRange(String value, int from, int to, long seed) {
+        long hash = seed + (to - from) * PRIME_3;
+        for (int i = from; i < to; i++) {
+            hash ^= value.charAt(i) * PRIME_2;
+            hash = Long.rotateLeft(hash, 31) * PRIME_1;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Finalizer of MurmurHash3, every input bit affects every output bit.
+     */
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static String name(String parameter) {
+        int separator = parameter.indexOf('=');
+        return separator < 0 ? parameter : parameter.substring(0, separator);
+    }
+}
@@ -1,97 +1,957 @@
 package com.simplereverseproxy;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandler;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.net.http.HttpResponse.BodySubscribers;
+import java.net.http.HttpTimeoutException;
 import java.time.Duration;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import com.simplereverseproxy.exceptions.RouteConfigurationNotFoundException;
+import com.simplereverseproxy.exceptions.RouteOverloadedException;
+import com.simplereverseproxy.exceptions.UpstreamBusyException;
+import com.simplereverseproxy.exceptions.UpstreamUnavailableException;
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
 public class RequestRouter implements HttpHandler {
     private static final Logger logger = Logger.getLogger(RequestRouter.class.getSimpleName());
 
-    private final Map<String, RouteConfig> routeMap;
+    static final String ROUTE_NOT_CONFIGURED = "Requested route not configured. Please check the configuration";
+    static final String ONLY_GET_SUPPORTED = "We are currently only handling GET traffic";
+    static final String TOO_MANY_REQUESTS = "Too many requests. Try again later";
+    static final String UPSTREAM_BUSY = "Upstream server is busy. Try again later";
+    static final String UPSTREAM_TIMEOUT = "Upstream server did not respond in time";
+    static final String UPSTREAM_UNREACHABLE = "Upstream server could not be reached";
+    static final String UPSTREAM_UNAVAILABLE = "Upstream server is unavailable. Try again later";
+    static final String ROUTE_OVERLOADED = "Too many requests in progress for this route. Try again later";
+    static final String SERVER_OVERLOADED = "Server is overloaded. Try again later";
+
+    // Current routes, replaced as a whole on every reload. Requests read it once and keep the route they matched.
+    private volatile RouteSnapshot snapshot;
     private final int requestTimeout;
+    private final BufferPool bufferPool;
+    private final boolean asyncRouting;
+    private final RequestTracer tracer;
+    private FairScheduler scheduler;
+    // Whether the routes' upstreams are probed, from the server's start to its shutdown. Guarded by this.
+    private boolean healthChecking;
 
     public RequestRouter(Set<RouteConfig> configs, int requestTimeout) {
-        routeMap = new HashMap<>();
-        for (RouteConfig config : configs) {
-            routeMap.put(config.getAppContext(), config);
-        }
+        this(configs, requestTimeout, new BufferPool(), false);
+    }
+
+    public RequestRouter(Set<RouteConfig> configs, int requestTimeout, BufferPool bufferPool, boolean asyncRouting) {
+        this(configs, requestTimeout, bufferPool, asyncRouting, RequestTracer.disabled());
+    }
+
+    /**
+     * @param asyncRouting when true upstream calls are made with {@code sendAsync} and the worker thread is
+     *                     released while the upstream is working on the request.
+     * @param tracer       decides which requests are traced and keeps their traces
+     */
+    public RequestRouter(Set<RouteConfig> configs, int requestTimeout, BufferPool bufferPool, boolean asyncRouting,
+                         RequestTracer tracer) {
+        snapshot = new RouteSnapshot(0, configs);
         this.requestTimeout = requestTimeout;
+        this.bufferPool = bufferPool;
+        this.asyncRouting = asyncRouting;
+        this.tracer = tracer;
+    }
+
+    /**
+     * Queues requests per route on {@code scheduler} once they are matched to their route, instead of routing
+     * them on the thread that read them. Must be set before the first request.
+     */
+    void scheduleOn(FairScheduler scheduler) {
+        this.scheduler = scheduler;
     }
 
     @Override
     public void handle(HttpExchange request) throws IOException {
+        if (AdmissionQueue.isShedding()) {
+            // The request waited too long for a worker, answering it is all the work it gets.
+            String response = SERVER_OVERLOADED;
+            request.getResponseHeaders().set("Retry-After", "1");
+            request.sendResponseHeaders(503, response.length());
+            OutputStream os = request.getResponseBody();
+            os.write(response.getBytes());
+            os.close();
+            return;
+        }
+        long start = System.nanoTime();
+        RequestTrace trace = tracer.start(start, request);
         if (request.getRequestMethod().equals("GET")) {
-            String routeContext = extractRouteContext(request.getRequestURI().getPath());
-            if (!routeMap.containsKey(routeContext)) {
-                logger.warning(String.format("Route for app %s not configure", routeContext));
-                String response = "Requested route not configured. Please check the configuration";
+            RouteConfig routeConfig = findRoute(request);
+            if (trace != null) {
+                trace.mark(RequestTrace.Phase.ROUTE);
+                trace.route(routeConfig == null ? null : routeConfig.getAppContext());
+            }
+            if (routeConfig == null) {
+                logger.warning(String.format("Route for app %s not configure", request.getRequestURI().getPath()));
+                String response = ROUTE_NOT_CONFIGURED;
                 request.sendResponseHeaders( 404, response.length());
                 OutputStream os = request.getResponseBody();
                 os.write(response.getBytes());
                 os.close();
+                tracer.finish(trace, 404);
             } else {
-                try {
-                    routeRequest(request, routeContext);
-                } catch (Exception e) {
-                    e.printStackTrace();
+                RequestContext context = new RequestContext(start, trace);
+                if (scheduler == null) {
+                    route(request, routeConfig, context);
+                } else {
+                    scheduler.submit(routeConfig, new FairScheduler.Task() {
+                        @Override
+                        public void run() {
+                            context.mark(RequestTrace.Phase.QUEUE);
+                            route(request, routeConfig, context);
+                        }
+
+                        @Override
+                        public void shed() {
+                            // Shed by the route's queue, which counts it, logging it would only add to the load.
+                            context.mark(RequestTrace.Phase.QUEUE);
+                            request.getResponseHeaders().set("Retry-After", "1");
+                            respondWithError(request, routeConfig, context, 503, SERVER_OVERLOADED);
+                        }
+                    });
                 }
             }
         } else {
-            logger.warning("We are currently only handling GET traffic");
-            String response = "We are currently only handling GET traffic";
+            logger.warning(ONLY_GET_SUPPORTED);
+            String response = ONLY_GET_SUPPORTED;
             request.sendResponseHeaders( 405, response.length());
             OutputStream os = request.getResponseBody();
             os.write(response.getBytes());
             os.close();
+            tracer.finish(trace, 405);
+        }
+    }
+
+    private void route(HttpExchange request, RouteConfig routeConfig, RequestContext context) {
+        try {
+            routeRequest(request, routeConfig, context);
+        } catch (Exception e) {
+            logger.severe(String.format("Route %s: failed to route request %s", routeConfig.getAppContext(), e));
+            context.release(ConcurrencyLimiter.Outcome.IGNORED);
+            request.close();
         }
     }
 
-    private void routeRequest(HttpExchange request, String routeContext) throws Exception {
-        RouteConfig routeConfig = routeMap.get(routeContext);
-        boolean requestThrottled = false;
+    private void routeRequest(HttpExchange request, RouteConfig routeConfig, RequestContext context)
+            throws Exception {
         if (routeConfig != null) {
-            String upstreamServerUrl = routeConfig.getHostUrl();
-            for (ThrottleRule throttleRule : routeConfig.getThrottleRules()) {
-                if (throttleRule.throttleRequest(request)) {
-                    logger.info("Request is being throttled due to " + throttleRule.getClass().getSimpleName() + " rule");
-                    String response = "Too many requests. Try again later";
-                    request.sendResponseHeaders( 404, response.length());
-                    OutputStream os = request.getResponseBody();
-                    os.write(response.getBytes());
-                    os.close();
-                    requestThrottled = true;
+            ThrottleRule throttledBy = routeConfig.getThrottlePipeline().evaluate(request);
+            context.mark(RequestTrace.Phase.THROTTLE);
+            if (throttledBy != null) {
+                routeConfig.getMetrics().recordThrottled();
+                if (logger.isLoggable(Level.FINE)) {
+                    logger.fine("Request is being throttled due to " + throttledBy.getClass().getSimpleName() + " rule");
+                }
+                String response = TOO_MANY_REQUESTS;
+                request.getResponseHeaders().set("Retry-After",
+                                                 String.valueOf(ThrottlePipeline.retryAfterSeconds(throttledBy, request)));
+                request.sendResponseHeaders(429, response.length());
+                OutputStream os = request.getResponseBody();
+                os.write(response.getBytes());
+                os.close();
+                completed(request, routeConfig, context, response.length());
+            } else {
+                ResponseCache cache = routeConfig.getResponseCache();
+                String cacheKey = null;
+                ResponseCache.Entry cached = null;
+                CacheControl requestCacheControl = CacheControl.parse(request.getRequestHeaders().get("Cache-Control"));
+                if (cache != null && !requestCacheControl.has("no-store")) {
+                    cacheKey = RequestKeys.canonical(request.getRequestURI().getPath(),
+                                                     request.getRequestURI().getQuery());
+                    if (!requestCacheControl.has("no-cache")) {
+                        long now = System.currentTimeMillis();
+                        cached = cache.get(cacheKey, request.getRequestHeaders(), now);
+                        if (cached != null && cached.isFresh(now)) {
+                            context.mark(RequestTrace.Phase.CACHE);
+                            long written = writeCached(request, routeConfig, cached, ResponseCache.CacheStatus.HIT, now);
+                            completed(request, routeConfig, context, written);
+                            return;
+                        }
+                        if (cached != null && cached.isStaleServable(now)) {
+                            context.mark(RequestTrace.Phase.CACHE);
+                            long written = writeCached(request, routeConfig, cached, ResponseCache.CacheStatus.STALE, now);
+                            completed(request, routeConfig, context, written);
+                            revalidateInBackground(request, routeConfig, cacheKey, cached);
+                            return;
+                        }
+                    }
+                }
+
+                context.cache(cacheKey, cached);
+                RequestCoalescer coalescer = routeConfig.getCoalescer();
+                if (coalescer != null) {
+                    String flightKey = flightKey(request, cacheKey, cached);
+                    RequestCoalescer.Join join = coalescer.join(flightKey);
+                    context.mark(RequestTrace.Phase.CACHE);
+                    if (join != null && !join.leader) {
+                        followInFlightRequest(request, routeConfig, context, join.response);
+                        return;
+                    }
+                    context.lead(flightKey, join == null ? null : join.response);
+                } else if (cache != null) {
+                    context.mark(RequestTrace.Phase.CACHE);
                 }
+                sendUpstream(request, routeConfig, context);
             }
+        }
+    }
 
-            if (!requestThrottled) {
-                HttpRequest httpRequest = HttpRequest.newBuilder()
-                                                     .uri(buildUpstreamServerURI(routeConfig.getHostUrl(), request))
-                                                     .GET().timeout(Duration.ofMillis(requestTimeout)).build();
-                HttpClient client = HttpClient.newHttpClient(); // This can be reused. Change later.
-                HttpResponse<byte[]> response = client.send(httpRequest, BodyHandlers.ofByteArray());
-                byte[] upstreamServerResponse = response.body();
-                request.sendResponseHeaders(response.statusCode(), upstreamServerResponse.length);
-                OutputStream os = request.getResponseBody();
+    private void sendUpstream(HttpExchange request, RouteConfig routeConfig, RequestContext context)
+            throws Exception {
+        ConcurrencyLimiter limiter = routeConfig.getConcurrencyLimiter();
+        if (limiter != null && !context.acquire(limiter)) {
+            RouteOverloadedException e = new RouteOverloadedException(
+                    String.format("Route %s is at its limit of %d requests", routeConfig.getAppContext(), limiter.getLimit()));
+            context.failed(routeConfig, e);
+            handleUpstreamFailure(request, routeConfig, context, e);
+            return;
+        }
+        Upstream upstream;
+        try {
+            upstream = routeConfig.chooseUpstream(request);
+        } catch (UpstreamUnavailableException e) {
+            context.failed(routeConfig, e);
+            handleUpstreamFailure(request, routeConfig, context, e);
+            return;
+        }
+        HttpRequest httpRequest;
+        try {
+            httpRequest = buildUpstreamRequest(upstream, request, context.cached);
+        } catch (Exception e) {
+            context.failed(routeConfig, e);
+            throw e;
+        }
+        if (routeConfig.getRetryPolicy() != null) {
+            sendHedged(request, routeConfig, upstream, httpRequest, context);
+            return;
+        }
+        if (asyncRouting) {
+            routeRequestAsync(request, routeConfig, upstream, httpRequest, context);
+            return;
+        }
+        long start = upstream.begin();
+        if (routeConfig.isStreaming()) {
+            relayStreaming(request, routeConfig, upstream, start, httpRequest, context);
+        } else {
+            relayBuffered(request, routeConfig, upstream, start, httpRequest, context);
+        }
+    }
+
+    /**
+     * Sends the request under the route's {@link RetryPolicy}, hedging and retrying it on the upstream client's
+     * futures. Without async routing the worker thread waits for the outcome as it would for a single request.
+     */
+    private void sendHedged(HttpExchange request, RouteConfig routeConfig, Upstream upstream, HttpRequest httpRequest,
+                            RequestContext context) throws InterruptedException {
+        context.mark(RequestTrace.Phase.CONNECT);
+        CompletableFuture<HttpResponse<byte[]>> exchange =
+                new HedgedExchange(routeConfig, requestTimeout, () -> routeConfig.chooseUpstream(request),
+                                   next -> buildUpstreamRequest(next, request, context.cached), this::recordFailure)
+                        .send(upstream, httpRequest, bufferedBody(context));
+        if (asyncRouting) {
+            exchange.whenComplete((response, error) -> deliverHedged(request, routeConfig, context, response, error));
+            return;
+        }
+        try {
+            deliverHedged(request, routeConfig, context, exchange.get(), null);
+        } catch (ExecutionException e) {
+            deliverHedged(request, routeConfig, context, null, e.getCause());
+        }
+    }
+
+    private void deliverHedged(HttpExchange request, RouteConfig routeConfig, RequestContext context,
+                               HttpResponse<byte[]> response, Throwable error) {
+        if (error != null) {
+            context.failed(routeConfig, error);
+            handleUpstreamFailure(request, routeConfig, context, error);
+            return;
+        }
+        context.mark(RequestTrace.Phase.UPSTREAM_BODY);
+        context.received(routeConfig, response);
+        deliverBuffered(request, routeConfig, context, response);
+    }
+
+    /**
+     * Key under which identical requests are coalesced. A request revalidating a stored response is only
+     * identical to others revalidating the same version, since the upstream may answer it with 304.
+     */
+    private static String flightKey(HttpExchange request, String cacheKey, ResponseCache.Entry cached) {
+        String key = cacheKey != null ? cacheKey : RequestKeys.canonical(request.getRequestURI().getPath(),
+                                                                         request.getRequestURI().getQuery());
+        return cached != null && cached.etag != null ? key + '\n' + cached.etag : key;
+    }
+
+    /**
+     * Answers the request with the response of the identical request already in flight. If that takes
+     * longer than the coalescer's maximum wait the request is sent upstream on its own after all, and if the
+     * request in flight failed this one fails the same way instead of adding to the upstream's load.
+     */
+    private void followInFlightRequest(HttpExchange request, RouteConfig routeConfig,
+                                       RequestContext context,
+                                       CompletableFuture<HttpResponse<byte[]>> shared) throws Exception {
+        RequestCoalescer coalescer = routeConfig.getCoalescer();
+        if (asyncRouting) {
+            shared.copy()
+                  .orTimeout(coalescer.getMaxWaitMillis(), TimeUnit.MILLISECONDS)
+                  .whenComplete((response, error) -> {
+                      try {
+                          if (error instanceof TimeoutException) {
+                              coalescer.recordTimeout();
+                              sendUpstream(request, routeConfig, context);
+                          } else if (error != null) {
+                              handleUpstreamFailure(request, routeConfig, context, error);
+                          } else {
+                              coalescer.recordCollapsed();
+                              context.mark(RequestTrace.Phase.UPSTREAM_BODY);
+                              deliverBuffered(request, routeConfig, context, response);
+                          }
+                      } catch (Exception e) {
+                          handleUpstreamFailure(request, routeConfig, context, e);
+                      }
+                  });
+            return;
+        }
+        HttpResponse<byte[]> response;
+        try {
+            response = shared.get(coalescer.getMaxWaitMillis(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            coalescer.recordTimeout();
+            sendUpstream(request, routeConfig, context);
+            return;
+        } catch (ExecutionException e) {
+            handleUpstreamFailure(request, routeConfig, context, e.getCause());
+            return;
+        }
+        coalescer.recordCollapsed();
+        context.mark(RequestTrace.Phase.UPSTREAM_BODY);
+        deliverBuffered(request, routeConfig, context, response);
+    }
+
+    /**
+     * Upstream request for the client's request. When a stored response with an {@code ETag} is being
+     * revalidated the request is made conditional, so an unchanged response costs the upstream no body.
+     */
+    private HttpRequest buildUpstreamRequest(Upstream upstream, HttpExchange request, ResponseCache.Entry cached)
+            throws Exception {
+        HttpRequest.Builder builder = HttpRequest.newBuilder()
+                                                 .uri(buildUpstreamServerURI(upstream.getHostUrl(), request))
+                                                 .GET().timeout(Duration.ofMillis(requestTimeout));
+        if (cached != null && cached.etag != null) {
+            builder.header("If-None-Match", cached.etag);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Sends the request and waits for the whole upstream response. Only a failure of this exchange is held against
+     * the upstream, not one of writing the response to the client afterwards.
+     */
+    private void relayBuffered(HttpExchange request, RouteConfig routeConfig, Upstream upstream, long start,
+                               HttpRequest httpRequest, RequestContext context) throws InterruptedException {
+        UpstreamClient upstreamClient = upstream.getClient();
+        HttpResponse<byte[]> response;
+        try {
+            upstreamClient.acquire(requestTimeout);
+            context.mark(RequestTrace.Phase.CONNECT);
+            try {
+                response = upstreamClient.getHttpClient().send(httpRequest, bufferedBody(context));
+                upstreamClient.onResponse(response);
+            } finally {
+                upstreamClient.release();
+            }
+            context.mark(RequestTrace.Phase.UPSTREAM_BODY);
+            routeConfig.getMetrics().recordUpstreamLatency(upstream.recordLatency(start, response.statusCode()));
+        } catch (IOException | UpstreamBusyException e) {
+            context.failed(routeConfig, e);
+            recordFailure(upstream, e);
+            handleUpstreamFailure(request, routeConfig, context, e);
+            return;
+        } catch (InterruptedException | RuntimeException e) {
+            context.failed(routeConfig, e);
+            throw e;
+        } finally {
+            upstream.end();
+        }
+        context.received(routeConfig, response);
+        deliverBuffered(request, routeConfig, context, response);
+    }
+
+    /**
+     * Writes a fully read upstream response to the client, going through the route's cache if it has one: a
+     * 304 answer to our revalidation serves the refreshed stored response, anything else may be stored. A client
+     * that hangs up meanwhile is not the upstream's failure, see {@link #clientAborted}.
+     */
+    private void deliverBuffered(HttpExchange request, RouteConfig routeConfig, RequestContext context,
+                                 HttpResponse<byte[]> response) {
+        ResponseCache cache = routeConfig.getResponseCache();
+        String cacheKey = context.cacheKey;
+        ResponseCache.Entry cached = context.cached;
+        long written;
+        try {
+            if (cacheKey == null) {
+                written = writeBuffered(request, routeConfig, response, null);
+            } else {
+                long now = System.currentTimeMillis();
+                if (response.statusCode() == 304 && cached != null) {
+                    ResponseCache.Entry refreshed = cache.revalidated(cacheKey, cached, response.headers(), now);
+                    written = writeCached(request, routeConfig, refreshed, ResponseCache.CacheStatus.REVALIDATED, now);
+                } else {
+                    ResponseCache.Entry stored = cache.put(cacheKey, request.getRequestHeaders(), response, now);
+                    cache.record(ResponseCache.CacheStatus.MISS);
+                    request.getResponseHeaders().set("X-Cache", ResponseCache.CacheStatus.MISS.name());
+                    written = writeBuffered(request, routeConfig, response, stored);
+                }
+            }
+        } catch (IOException e) {
+            clientAborted(request, routeConfig, context, e);
+            return;
+        }
+        completed(request, routeConfig, context, written);
+    }
+
+    /**
+     * Answers from a stored response, compressed from the entry's kept variant if the route compresses. A client
+     * that already holds the same version, per its {@code If-None-Match}, gets 304 Not Modified without the body.
+     *
+     * @return number of body bytes written
+     */
+    private static long writeCached(HttpExchange request, RouteConfig routeConfig, ResponseCache.Entry entry,
+                                    ResponseCache.CacheStatus status, long now) throws IOException {
+        ResponseCache cache = routeConfig.getResponseCache();
+        cache.record(status);
+        Headers headers = request.getResponseHeaders();
+        headers.putAll(entry.headers);
+        headers.set("Age", String.valueOf(entry.age(now)));
+        headers.set("X-Cache", status.name());
+        ResponseCompression compression = routeConfig.getCompression();
+        ResponseCompression.Encoding encoding = compression == null ? null
+                : compression.negotiate(request.getRequestHeaders(), 200, headers, entry.body.length);
+        String ifNoneMatch = request.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && entry.etag != null && matchesETag(ifNoneMatch, entry.etag)) {
+            request.sendResponseHeaders(304, -1);
+            request.close();
+            return 0;
+        }
+        byte[] body = encoding == null ? entry.body : cache.variant(entry, compression, encoding);
+        request.sendResponseHeaders(200, responseLength(200, body.length));
+        OutputStream os = request.getResponseBody();
+        os.write(body);
+        os.close();
+        return body.length;
+    }
+
+    /**
+     * Weak comparison of {@code If-None-Match} with a stored {@code ETag}, as a compressed response was sent
+     * with the weak form of the tag.
+     */
+    private static boolean matchesETag(String ifNoneMatch, String etag) {
+        if (ifNoneMatch.trim().equals("*")) {
+            return true;
+        }
+        String opaque = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : ifNoneMatch.trim().split("\\s*,\\s*")) {
+            if ((candidate.startsWith("W/") ? candidate.substring(2) : candidate).equals(opaque)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Refreshes a stale entry that was just served under {@code stale-while-revalidate}. Only one request per
+     * entry triggers the refresh, and it runs entirely on the upstream client's futures. It takes a permit of the
+     * route's concurrency limit like any other upstream request, a route at its limit skips the refresh and a
+     * later request of the entry tries again.
+     */
+    private void revalidateInBackground(HttpExchange request, RouteConfig routeConfig, String cacheKey,
+                                        ResponseCache.Entry cached) {
+        if (!cached.startRevalidation()) {
+            return;
+        }
+        ConcurrencyLimiter limiter = routeConfig.getConcurrencyLimiter();
+        if (limiter != null && !limiter.tryAcquire()) {
+            cached.revalidationFailed();
+            return;
+        }
+        long admitted = System.nanoTime();
+        ResponseCache cache = routeConfig.getResponseCache();
+        Headers requestHeaders = request.getRequestHeaders();
+        Upstream upstream;
+        HttpRequest httpRequest;
+        try {
+            upstream = routeConfig.chooseUpstream(request);
+            httpRequest = buildUpstreamRequest(upstream, request, cached);
+        } catch (Exception e) {
+            if (limiter != null) {
+                limiter.release(System.nanoTime() - admitted, ConcurrencyLimiter.Outcome.IGNORED);
+            }
+            cached.revalidationFailed();
+            if (!(e instanceof UpstreamUnavailableException)) {
+                logger.warning(String.format("Route %s: revalidation of %s failed with %s",
+                                             routeConfig.getAppContext(), cacheKey, e));
+            }
+            return;
+        }
+        UpstreamClient upstreamClient = upstream.getClient();
+        long start = upstream.begin();
+        upstreamClient.acquireAsync(requestTimeout)
+                      .thenCompose(ignored -> upstreamClient.sendAsync(httpRequest, BodyHandlers.ofByteArray())
+                                                            .whenComplete((response, error) -> upstreamClient.release()))
+                      .whenComplete((response, error) -> {
+                          upstream.end();
+                          if (limiter != null) {
+                              limiter.release(System.nanoTime() - admitted, error == null
+                                      ? ConcurrencyLimiter.Outcome.SUCCESS : outcome(error));
+                          }
+                          if (error != null) {
+                              recordFailure(upstream, error);
+                              cached.revalidationFailed();
+                              logger.warning(String.format("Route %s: revalidation of %s failed with %s",
+                                                           routeConfig.getAppContext(), cacheKey, error));
+                              return;
+                          }
+                          routeConfig.getMetrics().recordUpstreamLatency(upstream.recordLatency(start, response.statusCode()));
+                          routeConfig.getMetrics().recordUpstreamBytes(response.body().length);
+                          long now = System.currentTimeMillis();
+                          try {
+                              if (response.statusCode() == 304) {
+                                  cache.revalidated(cacheKey, cached, response.headers(), now);
+                              } else if (cache.put(cacheKey, requestHeaders, response, now) == null) {
+                                  cached.revalidationFailed();
+                              }
+                          } catch (RuntimeException e) {
+                              cached.revalidationFailed();
+                              logger.warning(String.format("Route %s: storing the revalidation of %s failed with %s",
+                                                           routeConfig.getAppContext(), cacheKey, e));
+                          }
+                      });
+    }
+
+    /**
+     * Writes a fully read upstream response, compressed if the route compresses and the client accepts it. The
+     * compressed body of a response just stored in the cache is kept with the entry for the next hits.
+     *
+     * @param stored cache entry of the response, or null if it was not stored
+     * @return number of body bytes written
+     */
+    private static long writeBuffered(HttpExchange request, RouteConfig routeConfig, HttpResponse<byte[]> response,
+                                      ResponseCache.Entry stored) throws IOException {
+        byte[] upstreamServerResponse = response.body();
+        int status = response.statusCode();
+        request.getResponseHeaders().putAll(ResponseCache.forwardedHeaders(response.headers()));
+        ResponseCompression compression = routeConfig.getCompression();
+        ResponseCompression.Encoding encoding = compression == null ? null
+                : compression.negotiate(request.getRequestHeaders(), status, request.getResponseHeaders(),
+                                        upstreamServerResponse.length);
+        if (encoding != null && stored == null) {
+            request.sendResponseHeaders(status, responseLength(status, -1));
+            ResponseCompression.CompressingStream os = compression.compress(request.getResponseBody(), encoding);
+            try (os) {
                 os.write(upstreamServerResponse);
-                os.close();
             }
+            return os.getWritten();
+        }
+        byte[] body = encoding == null ? upstreamServerResponse
+                : routeConfig.getResponseCache().variant(stored, compression, encoding);
+        request.sendResponseHeaders(status, responseLength(status, body.length));
+        OutputStream os = request.getResponseBody();
+        os.write(body);
+        os.close();
+        return body.length;
+    }
+
+    /**
+     * Forwards the upstream body to the client as it arrives. The upstream stream only asks for more data once
+     * we consumed what it has, so a slow client slows down the upstream instead of growing the heap, and the
+     * copy goes through a single pooled buffer per request.
+     */
+    private void relayStreaming(HttpExchange request, RouteConfig routeConfig, Upstream upstream, long start,
+                                HttpRequest httpRequest, RequestContext context) throws InterruptedException {
+        UpstreamClient upstreamClient = upstream.getClient();
+        try {
+            upstreamClient.acquire(requestTimeout);
+        } catch (UpstreamBusyException e) {
+            upstream.end();
+            handleUpstreamFailure(request, routeConfig, context, e);
+            return;
+        } catch (RuntimeException | InterruptedException e) {
+            upstream.end();
+            throw e;
+        }
+        context.mark(RequestTrace.Phase.CONNECT);
+        try {
+            HttpResponse<InputStream> response = upstreamClient.getHttpClient()
+                                                               .send(httpRequest, BodyHandlers.ofInputStream());
+            context.mark(RequestTrace.Phase.FIRST_BYTE);
+            upstreamClient.onResponse(response);
+            routeConfig.getMetrics().recordUpstreamLatency(upstream.recordLatency(start, response.statusCode()));
+            writeStreaming(request, routeConfig, context, response);
+        } catch (IOException e) {
+            recordFailure(upstream, e);
+            handleUpstreamFailure(request, routeConfig, context, e);
+        } finally {
+            upstreamClient.release();
+            upstream.end();
+        }
+    }
+
+    /**
+     * Copies the upstream body to the client. A client that hangs up is handled here, see {@link #clientAborted},
+     * only a failure reading the upstream body is thrown.
+     */
+    private void writeStreaming(HttpExchange request, RouteConfig routeConfig, RequestContext context,
+                                HttpResponse<InputStream> response) throws IOException {
+        // Without a Content-Length from the upstream the body is sent to the client chunked.
+        long contentLength = response.headers().firstValueAsLong("Content-Length").orElse(-1L);
+        request.getResponseHeaders().putAll(ResponseCache.forwardedHeaders(response.headers()));
+        ResponseCompression compression = routeConfig.getCompression();
+        ResponseCompression.Encoding encoding = compression == null ? null
+                : compression.negotiate(request.getRequestHeaders(), response.statusCode(),
+                                        request.getResponseHeaders(), contentLength);
+        byte[] buffer = null;
+        long received = 0;
+        long written;
+        boolean reading = false;
+        try (InputStream in = response.body()) {
+            request.sendResponseHeaders(response.statusCode(), responseLength(response.statusCode(),
+                                                                              encoding == null ? contentLength : -1));
+            buffer = bufferPool.acquire();
+            OutputStream body = request.getResponseBody();
+            ResponseCompression.CompressingStream compressed = null;
+            if (encoding != null) {
+                compressed = compression.compress(body, encoding);
+                body = compressed;
+            }
+            try (OutputStream os = body) {
+                int read;
+                while (true) {
+                    reading = true;
+                    read = in.read(buffer);
+                    reading = false;
+                    if (read == -1) {
+                        break;
+                    }
+                    os.write(buffer, 0, read);
+                    received += read;
+                    if (compressed != null && in.available() == 0) {
+                        // The upstream paused, send what it sent so far instead of holding it in the deflater.
+                        os.flush();
+                    }
+                }
+            }
+            written = compressed == null ? received : compressed.getWritten();
+        } catch (IOException e) {
+            if (reading) {
+                throw e;
+            }
+            clientAborted(request, routeConfig, context, e);
+            return;
+        } finally {
+            bufferPool.release(buffer);
+            routeConfig.getMetrics().recordUpstreamBytes(received);
+        }
+        completed(request, routeConfig, context, written);
+    }
+
+    /**
+     * Proxies the request without holding the calling worker thread. The connection permit and the upstream
+     * call are both awaited through futures, and the exchange is finished by whichever thread completes them.
+     * Streaming bodies are copied on the upstream client's executor once the response headers arrived.
+     */
+    private void routeRequestAsync(HttpExchange request, RouteConfig routeConfig, Upstream upstream,
+                                   HttpRequest httpRequest, RequestContext context) {
+        UpstreamClient upstreamClient = upstream.getClient();
+        long start = upstream.begin();
+        if (routeConfig.isStreaming()) {
+            upstreamClient.acquireAsync(requestTimeout)
+                          .thenCompose(ignored -> {
+                              context.mark(RequestTrace.Phase.CONNECT);
+                              return upstreamClient.sendAsync(httpRequest, BodyHandlers.ofInputStream())
+                                                   .whenComplete((response, error) -> {
+                                                       if (error != null) {
+                                                           upstreamClient.release();
+                                                       } else {
+                                                           context.mark(RequestTrace.Phase.FIRST_BYTE);
+                                                       }
+                                                   });
+                          })
+                          .whenCompleteAsync((response, error) -> {
+                              if (error != null) {
+                                  recordFailure(upstream, error);
+                                  upstream.end();
+                                  handleUpstreamFailure(request, routeConfig, context, error);
+                                  return;
+                              }
+                              routeConfig.getMetrics().recordUpstreamLatency(upstream.recordLatency(start, response.statusCode()));
+                              try {
+                                  writeStreaming(request, routeConfig, context, response);
+                              } catch (IOException e) {
+                                  recordFailure(upstream, e);
+                                  handleUpstreamFailure(request, routeConfig, context, e);
+                              } finally {
+                                  upstreamClient.release();
+                                  upstream.end();
+                              }
+                          }, upstreamClient.getExecutor());
+        } else {
+            upstreamClient.acquireAsync(requestTimeout)
+                          .thenCompose(ignored -> {
+                              context.mark(RequestTrace.Phase.CONNECT);
+                              return upstreamClient.sendAsync(httpRequest, bufferedBody(context))
+                                                   .whenComplete((response, error) -> upstreamClient.release());
+                          })
+                          .whenComplete((response, error) -> {
+                              if (error != null) {
+                                  recordFailure(upstream, error);
+                                  upstream.end();
+                                  context.failed(routeConfig, error);
+                                  handleUpstreamFailure(request, routeConfig, context, error);
+                                  return;
+                              }
+                              context.mark(RequestTrace.Phase.UPSTREAM_BODY);
+                              routeConfig.getMetrics().recordUpstreamLatency(upstream.recordLatency(start, response.statusCode()));
+                              upstream.end();
+                              context.received(routeConfig, response);
+                              deliverBuffered(request, routeConfig, context, response);
+                          });
+        }
+    }
+
+    /**
+     * State of a request carried to whichever thread completes it: when it arrived and its trace, for the
+     * route's metrics and the tracer, the route's concurrency permit it holds, and what has to happen with a fully
+     * read upstream response besides writing it to the client, storing it in or refreshing it from the route's
+     * cache and handing it to the requests coalesced with this one.
+     */
+    private static final class RequestContext {
+        private final long start;
+        private final RequestTrace trace;
+        private String cacheKey;
+        private ResponseCache.Entry cached;
+        private String flightKey;
+        private CompletableFuture<HttpResponse<byte[]>> leader;
+        private ConcurrencyLimiter limiter;
+        private long admitted;
+
+        private RequestContext(long start, RequestTrace trace) {
+            this.start = start;
+            this.trace = trace;
+        }
+
+        private void cache(String cacheKey, ResponseCache.Entry cached) {
+            this.cacheKey = cacheKey;
+            this.cached = cached;
+        }
+
+        private void mark(RequestTrace.Phase phase) {
+            if (trace != null) {
+                trace.mark(phase);
+            }
+        }
+
+        private boolean acquire(ConcurrencyLimiter limiter) {
+            if (!limiter.tryAcquire()) {
+                return false;
+            }
+            this.limiter = limiter;
+            this.admitted = System.nanoTime();
+            return true;
+        }
+
+        /**
+         * Returns the route's concurrency permit if the request holds one, only the first call counts.
+         */
+        private void release(ConcurrencyLimiter.Outcome outcome) {
+            if (limiter != null) {
+                limiter.release(System.nanoTime() - admitted, outcome);
+                limiter = null;
+            }
+        }
+
+        private void lead(String flightKey, CompletableFuture<HttpResponse<byte[]>> leader) {
+            this.flightKey = flightKey;
+            this.leader = leader;
+        }
+
+        private void received(RouteConfig routeConfig, HttpResponse<byte[]> response) {
+            routeConfig.getMetrics().recordUpstreamBytes(response.body().length);
+            if (leader != null) {
+                routeConfig.getCoalescer().complete(flightKey, leader, response);
+                leader = null;
+            }
+        }
+
+        private void failed(RouteConfig routeConfig, Throwable error) {
+            if (leader != null) {
+                routeConfig.getCoalescer().fail(flightKey, leader, error);
+                leader = null;
+            }
+        }
+    }
+
+    /**
+     * Counts a failed upstream call as if it took the whole request timeout, so latency aware load balancing
+     * moves away from an upstream that errors quickly, and as a failed call for its circuit breaker. Running out
+     * of local connection permits says nothing about the upstream and is not recorded.
+     */
+    private void recordFailure(Upstream upstream, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (!(cause instanceof UpstreamBusyException)) {
+            upstream.recordFailure(TimeUnit.MILLISECONDS.toNanos(requestTimeout));
+        }
+    }
+
+    /**
+     * Outcome of a failed upstream call for the adaptive limit, timeouts and exhausted connections are overload.
+     */
+    private static ConcurrencyLimiter.Outcome outcome(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause instanceof HttpTimeoutException || cause instanceof UpstreamBusyException
+               ? ConcurrencyLimiter.Outcome.DROPPED : ConcurrencyLimiter.Outcome.IGNORED;
+    }
+
+    /**
+     * Answers the client when the upstream could not be reached: 503 when no connection was available, the route
+     * is at its concurrency limit or every upstream is ejected by its circuit breaker, 504 when the upstream timed out and 502 for everything else.
+     * If the response was already started the exchange is closed so the client sees a truncated response rather
+     * than hanging.
+     */
+    private void handleUpstreamFailure(HttpExchange request, RouteConfig routeConfig, RequestContext context,
+                                       Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        context.release(outcome(cause));
+        int status;
+        String message;
+        if (cause instanceof RouteOverloadedException) {
+            // Shedding load is counted by the limiter, logging every shed request would only add to the load.
+            respondWithError(request, routeConfig, context, 503, ROUTE_OVERLOADED);
+            return;
+        }
+        if (cause instanceof UpstreamUnavailableException) {
+            // Failing fast is the point of an open circuit, it is logged when the breaker opens, not per request.
+            routeConfig.getMetrics().recordUnavailable();
+            request.getResponseHeaders().set("Retry-After", String.valueOf(
+                    retryAfterSeconds(((UpstreamUnavailableException) cause).getRetryAfterMillis())));
+            respondWithError(request, routeConfig, context, 503, UPSTREAM_UNAVAILABLE);
+            return;
+        }
+        if (cause instanceof UpstreamBusyException) {
+            status = 503;
+            message = UPSTREAM_BUSY;
+        } else if (cause instanceof HttpTimeoutException) {
+            status = 504;
+            message = UPSTREAM_TIMEOUT;
+            routeConfig.getMetrics().recordUpstreamFailure(true);
+        } else {
+            status = 502;
+            message = UPSTREAM_UNREACHABLE;
+            routeConfig.getMetrics().recordUpstreamFailure(false);
+        }
+        logger.warning(String.format("Route %s: upstream request failed with %s", routeConfig.getAppContext(), cause));
+        respondWithError(request, routeConfig, context, status, message);
+    }
+
+    /**
+     * The client hung up while its response was written. The upstream answered, so nothing is held against it:
+     * the exchange is closed and the permit returned without counting an upstream error.
+     */
+    private void clientAborted(HttpExchange request, RouteConfig routeConfig, RequestContext context, IOException e) {
+        context.release(ConcurrencyLimiter.Outcome.IGNORED);
+        request.close();
+        tracer.finish(context.trace, request.getResponseCode());
+        if (logger.isLoggable(Level.FINE)) {
+            logger.fine(String.format("Route %s: client went away during the response with %s",
+                                      routeConfig.getAppContext(), e));
         }
     }
 
-    private static URI buildUpstreamServerURI(String hostnameUrl, HttpExchange request)
+    private void respondWithError(HttpExchange request, RouteConfig routeConfig, RequestContext context, int status,
+                                  String message) {
+        if (request.getResponseCode() != -1) {
+            request.close();
+            tracer.finish(context.trace, request.getResponseCode());
+            return;
+        }
+        try {
+            request.sendResponseHeaders(status, message.length());
+            OutputStream os = request.getResponseBody();
+            os.write(message.getBytes());
+            os.close();
+            completed(request, routeConfig, context, message.length());
+        } catch (IOException e) {
+            request.close();
+        }
+    }
+
+    /**
+     * Whole seconds to put in a {@code Retry-After} header, at least 1.
+     */
+    static long retryAfterSeconds(long millis) {
+        return Math.max(1, TimeUnit.MILLISECONDS.toSeconds(millis + 999));
+    }
+
+    /**
+     * Records the response just sent for {@code request} in the route's metrics, completes its trace and returns
+     * its concurrency permit.
+     */
+    private void completed(HttpExchange request, RouteConfig routeConfig, RequestContext context, long bytes) {
+        context.release(ConcurrencyLimiter.Outcome.SUCCESS);
+        routeConfig.getMetrics().recordResponse(request.getResponseCode(), bytes, System.nanoTime() - context.start);
+        tracer.finish(context.trace, request.getResponseCode());
+    }
+
+    /**
+     * Reads the upstream body into memory, marking when the response head arrived if the request is traced.
+     */
+    private static BodyHandler<byte[]> bufferedBody(RequestContext context) {
+        RequestTrace trace = context.trace;
+        if (trace == null) {
+            return BodyHandlers.ofByteArray();
+        }
+        return responseInfo -> {
+            trace.mark(RequestTrace.Phase.FIRST_BYTE);
+            return BodySubscribers.ofByteArray();
+        };
+    }
+
+    /**
+     * Maps a body length (-1 when unknown) to the value {@link HttpExchange#sendResponseHeaders(int, long)}
+     * expects, where 0 means chunked and -1 means no body at all.
+     */
+    private static long responseLength(int statusCode, long length) {
+        if (statusCode == 204 || statusCode == 304 || length == 0) {
+            return -1;
+        }
+        return length < 0 ? 0 : length;
+    }
+
+    static URI buildUpstreamServerURI(String hostnameUrl, HttpExchange request)
             throws Exception {
         StringBuilder sb = new StringBuilder();
         sb.append(hostnameUrl);
@@ -106,22 +966,164 @@ public class RequestRouter implements HttpHandler {
         return new URI(sb.toString());
     }
 
-    private static String extractRouteContext(String path) {
-        return path.indexOf("/", 1) == -1 ?  path.substring(1) : path.substring(1, path.indexOf("/", 1));
+    /**
+     * Route serving the given request, by its {@code Host} header and raw path, or null if none is configured.
+     */
+    RouteConfig findRoute(HttpExchange request) {
+        RouteTable<RouteConfig> table = snapshot.getTable();
+        String host = table.hasVirtualHosts() ? request.getRequestHeaders().getFirst("Host") : null;
+        return table.match(host, request.getRequestURI().getRawPath());
     }
 
-    public void updateTimeBasedThrottlingRuleParameter(String appName, int timeBtwRequest) {
-        if (routeMap.containsKey(appName)) {
-            Set<ThrottleRule> throttleRuleSet = routeMap.get(appName).getThrottleRules();
-            if (throttleRuleSet != null) {
-                for (ThrottleRule r : throttleRuleSet) {
-                    if (r instanceof TimeBasedThrottleRule) {
-                        ((TimeBasedThrottleRule)r).updateTimeBetweenRequestParameter(timeBtwRequest);
-                    }
+    RequestTracer getTracer() {
+        return tracer;
+    }
+
+    RouteSnapshot getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Publishes a new snapshot made of the current routes, minus {@code removed}, with {@code routes} added or
+     * replacing the routes of the same app context, or of only {@code routes} when {@code replace} is set.
+     * Readers are never blocked, concurrent updates are applied one after the other.
+     *
+     * @return the published snapshot
+     * @throws IllegalArgumentException if the resulting routes conflict or a removed route does not exist, in
+     *                                  which case nothing is published
+     */
+    synchronized RouteSnapshot updateRoutes(Collection<RouteConfig> routes, Collection<String> removed, boolean replace) {
+        RouteSnapshot current = snapshot;
+        Map<String, RouteConfig> next = replace ? new LinkedHashMap<>() : new LinkedHashMap<>(current.getRoutesByContext());
+        for (String appContext : removed) {
+            if (next.remove(appContext) == null) {
+                throw new IllegalArgumentException(String.format("Route %s does not exist", appContext));
+            }
+        }
+        for (RouteConfig route : routes) {
+            next.put(route.getAppContext(), route);
+        }
+        RouteSnapshot published = new RouteSnapshot(current.getVersion() + 1, next.values());
+        snapshot = published;
+        if (scheduler != null) {
+            scheduler.retainRoutes(next.keySet());
+        }
+        if (healthChecking) {
+            // Routes kept across the reload go on being probed, replaced routes hand over to their successors.
+            Set<RouteConfig> kept = Collections.newSetFromMap(new IdentityHashMap<>());
+            kept.addAll(current.getRoutes());
+            kept.retainAll(published.getRoutes());
+            for (RouteConfig route : current.getRoutes()) {
+                if (!kept.contains(route)) {
+                    route.stopHealthChecks();
                 }
             }
-        } else {
+            for (RouteConfig route : published.getRoutes()) {
+                if (!kept.contains(route)) {
+                    route.startHealthChecks();
+                }
+            }
+        }
+        return published;
+    }
+
+    /**
+     * Starts the health checks of every route, and of the routes published later, until
+     * {@link #stopHealthChecks()}.
+     */
+    synchronized void startHealthChecks() {
+        if (!healthChecking) {
+            healthChecking = true;
+            snapshot.getRoutes().forEach(RouteConfig::startHealthChecks);
+        }
+    }
+
+    /**
+     * Stops the health checks of every route, the upstreams keep their last state.
+     */
+    synchronized void stopHealthChecks() {
+        if (healthChecking) {
+            healthChecking = false;
+            snapshot.getRoutes().forEach(RouteConfig::stopHealthChecks);
+        }
+    }
+
+    private RouteConfig route(String appName) {
+        RouteConfig route = snapshot.get(appName);
+        if (route == null) {
             throw new RouteConfigurationNotFoundException(String.format("Route for app %s not configure", appName));
         }
+        return route;
+    }
+
+    int getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    /**
+     * Connection pool statistics of the upstreams behind the given app context, added up.
+     */
+    public UpstreamClient.ConnectionPoolStats getConnectionPoolStats(String appName) {
+        return route(appName).getConnectionPoolStats();
+    }
+
+    /**
+     * Statistics of the response cache of the given app context, or null if the route does not cache.
+     */
+    public ResponseCache.CacheStats getCacheStats(String appName) {
+        ResponseCache cache = route(appName).getResponseCache();
+        return cache == null ? null : cache.getStats();
+    }
+
+    /**
+     * Statistics of the throttle rules of the given app context, in the order they are evaluated.
+     */
+    public List<ThrottlePipeline.RuleStats> getThrottleStats(String appName) {
+        return route(appName).getThrottlePipeline().getStats();
+    }
+
+    /**
+     * How many requests of the given app context were answered by coalescing, or null if the route does not
+     * coalesce requests.
+     */
+    public RequestCoalescer.CoalescingStats getCoalescingStats(String appName) {
+        RequestCoalescer coalescer = route(appName).getCoalescer();
+        return coalescer == null ? null : coalescer.getStats();
+    }
+
+    /**
+     * Request counts and latency histograms of the given app context.
+     */
+    public RouteMetrics getMetrics(String appName) {
+        return route(appName).getMetrics();
+    }
+
+    /**
+     * Concurrency limit of the given app context with its requests in flight, or null if the route is not limited.
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter(String appName) {
+        return route(appName).getConcurrencyLimiter();
+    }
+
+    /**
+     * Hedges, retries and retry budget of the given app context, or null if the route has no retry policy.
+     */
+    public RetryPolicy getRetryPolicy(String appName) {
+        return route(appName).getRetryPolicy();
+    }
+
+    /**
+     * Upstreams of the given app context with their in-flight requests and latency average.
+     */
+    public List<Upstream> getUpstreams(String appName) {
+        return route(appName).getUpstreams();
+    }
+
+    public void updateTimeBasedThrottlingRuleParameter(String appName, int timeBtwRequest) {
+        for (ThrottleRule r : route(appName).getThrottleRules()) {
+            if (r instanceof TimeBasedThrottleRule) {
+                ((TimeBasedThrottleRule)r).updateTimeBetweenRequestParameter(timeBtwRequest);
+            }
+        }
     }
 }
@@ -0,0 +1,150 @@
+package com.simplereverseproxy;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Timestamps of the phases of one request, taken with {@link System#nanoTime()} by whichever thread is working on
+ * the request at the time. A trace is only created for requests {@link RequestTracer} may keep, and is not
+ * changed anymore once it was handed to {@link RequestTracer#finish}.
+ */
+public final class RequestTrace {
+
+    /**
+     * Phases of a request in the order they happen, each marked when it ends. Phases a request skips, such as
+     * everything upstream for a cache hit, are left out of its trace.
+     */
+    public enum Phase {
+        /** Finding the route serving the request. */
+        ROUTE,
+        /** Waiting in the route's queue for a worker thread, when the server queues requests per route. */
+        QUEUE,
+        /** Evaluating the route's throttle rules. */
+        THROTTLE,
+        /** Looking up the response cache and requests in flight to coalesce with. */
+        CACHE,
+        /**
+         * Getting an upstream connection: waiting for a connection permit on {@link ServerEngine#HTTP_SERVER},
+         * connecting and sending the request on {@link ServerEngine#NIO}.
+         */
+        CONNECT,
+        /** Waiting for the upstream's response head. */
+        FIRST_BYTE,
+        /** Reading the upstream's response body, for responses that are read fully before being sent. */
+        UPSTREAM_BODY,
+        /** Writing the response to the client. */
+        WRITE
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+
+    private final long startNanos;
+    private final long startMillis;
+    private final String method;
+    private final String path;
+    private final boolean sampled;
+    private final long[] marks = new long[PHASES.length];
+    private String route;
+    private int status;
+    private long totalNanos;
+    private long sequence;
+
+    RequestTrace(long startNanos, String method, String path, boolean sampled) {
+        this.startNanos = startNanos;
+        this.startMillis = System.currentTimeMillis();
+        this.method = method;
+        this.path = path;
+        this.sampled = sampled;
+    }
+
+    void mark(Phase phase) {
+        marks[phase.ordinal()] = System.nanoTime();
+    }
+
+    void route(String route) {
+        this.route = route;
+    }
+
+    void finish(int status, long endNanos) {
+        this.status = status;
+        this.totalNanos = endNanos - startNanos;
+        marks[Phase.WRITE.ordinal()] = endNanos;
+    }
+
+    void sequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    boolean isSampled() {
+        return sampled;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Wall clock time the request arrived at, in epoch milliseconds.
+     */
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * App context of the route that served the request, null if no route did.
+     */
+    public String getRoute() {
+        return route;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Time spent in every phase the request went through, in the order they happened. A phase lasts from the
+     * end of the phase before it, or the arrival of the request, until it was marked.
+     */
+    public Map<Phase, Long> getPhaseNanos() {
+        Map<Phase, Long> phases = new LinkedHashMap<>();
+        long previous = startNanos;
+        for (Phase phase : PHASES) {
+            long mark = marks[phase.ordinal()];
+            if (mark != 0) {
+                phases.put(phase, mark - previous);
+                previous = mark;
+            }
+        }
+        return phases;
+    }
+
+    Map<String, Object> describe() {
+        Map<String, Object> described = new LinkedHashMap<>();
+        described.put("sequence", sequence);
+        described.put("startMillis", startMillis);
+        described.put("method", method);
+        described.put("path", path);
+        described.put("route", route);
+        described.put("status", status);
+        described.put("sampled", sampled);
+        described.put("totalMicros", totalNanos / 1000);
+        Map<String, Object> phases = new LinkedHashMap<>();
+        for (Map.Entry<Phase, Long> phase : getPhaseNanos().entrySet()) {
+            phases.put(phase.getKey().name().toLowerCase(), phase.getValue() / 1000);
+        }
+        described.put("phaseMicros", phases);
+        return described;
+    }
+}
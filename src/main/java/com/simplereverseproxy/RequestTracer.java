@@ -0,0 +1,159 @@
+package com.simplereverseproxy;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Keeps the {@link RequestTrace}s of a sample of requests, plus every request slower than a threshold, in a
+ * fixed size ring buffer that is dumped on {@code /admin/traces}. Writers claim a slot with one atomic increment
+ * and overwrite the oldest trace, readers never block them.
+ *
+ * Whether a request is sampled is decided when it arrives. Without a slow request threshold requests that are
+ * not sampled get no trace at all, so with sampling off the proxy only pays for a null check per phase. With a
+ * threshold every request is timed, since it is only known at the end whether it was slow.
+ */
+public final class RequestTracer {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final AtomicReferenceArray<RequestTrace> ring;
+    private final int mask;
+    private final AtomicLong next = new AtomicLong();
+    private volatile double sampleRate;
+    private volatile long slowerThanNanos;
+
+    private RequestTracer(Builder builder) {
+        int capacity = Integer.highestOneBit(Math.max(1, builder.capacity - 1)) << 1;
+        ring = new AtomicReferenceArray<>(capacity);
+        mask = capacity - 1;
+        configure(builder.sampleRate, builder.slowerThan);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Tracer that keeps nothing until it is configured, the default of every server.
+     */
+    static RequestTracer disabled() {
+        return builder().build();
+    }
+
+    /**
+     * Changes what is traced from now on, traces already kept stay.
+     *
+     * @param sampleRate fraction of requests to trace, 0 for none
+     * @param slowerThan requests taking at least this long are traced regardless, null or zero for none
+     */
+    public void configure(double sampleRate, Duration slowerThan) {
+        if (sampleRate < 0 || sampleRate > 1) {
+            throw new IllegalArgumentException("Sample rate must be between 0 and 1");
+        }
+        if (slowerThan != null && slowerThan.isNegative()) {
+            throw new IllegalArgumentException("Slow request threshold must not be negative");
+        }
+        this.sampleRate = sampleRate;
+        this.slowerThanNanos = slowerThan == null ? 0 : slowerThan.toNanos();
+    }
+
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    public Duration getSlowerThan() {
+        return Duration.ofNanos(slowerThanNanos);
+    }
+
+    public int getCapacity() {
+        return ring.length();
+    }
+
+    /**
+     * Trace for a request that arrived at {@code startNanos}, or null if it cannot end up being kept.
+     */
+    RequestTrace start(long startNanos, HttpExchange request) {
+        double rate = sampleRate;
+        boolean sampled = rate > 0 && (rate >= 1 || ThreadLocalRandom.current().nextDouble() < rate);
+        if (!sampled && slowerThanNanos == 0) {
+            return null;
+        }
+        return new RequestTrace(startNanos, request.getRequestMethod(), request.getRequestURI().getPath(), sampled);
+    }
+
+    /**
+     * Completes {@code trace} with the status of the response just written and keeps it if it was sampled or
+     * slow. Does nothing for a null trace.
+     */
+    void finish(RequestTrace trace, int status) {
+        if (trace == null) {
+            return;
+        }
+        trace.finish(status, System.nanoTime());
+        long threshold = slowerThanNanos;
+        if (trace.isSampled() || (threshold > 0 && trace.getTotalNanos() >= threshold)) {
+            long sequence = next.getAndIncrement();
+            trace.sequence(sequence);
+            ring.set((int) sequence & mask, trace);
+        }
+    }
+
+    /**
+     * Traces kept, newest first.
+     */
+    public List<RequestTrace> getTraces() {
+        List<RequestTrace> traces = new ArrayList<>(ring.length());
+        for (int i = 0; i < ring.length(); i++) {
+            RequestTrace trace = ring.get(i);
+            if (trace != null) {
+                traces.add(trace);
+            }
+        }
+        traces.sort(Comparator.comparingLong(RequestTrace::getSequence).reversed());
+        return traces;
+    }
+
+    public static final class Builder {
+        private double sampleRate;
+        private Duration slowerThan;
+        private int capacity = DEFAULT_CAPACITY;
+
+        /**
+         * Fraction of requests to trace, between 0 (the default) and 1.
+         */
+        public Builder sampleRate(double sampleRate) {
+            this.sampleRate = sampleRate;
+            return this;
+        }
+
+        /**
+         * Traces every request that takes at least {@code slowerThan}, on top of the sampled ones.
+         */
+        public Builder slowerThan(Duration slowerThan) {
+            this.slowerThan = slowerThan;
+            return this;
+        }
+
+        /**
+         * Number of traces kept, rounded up to a power of two, 1024 by default.
+         */
+        public Builder capacity(int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("Trace capacity must be positive");
+            }
+            this.capacity = capacity;
+            return this;
+        }
+
+        public RequestTracer build() {
+            return new RequestTracer(this);
+        }
+    }
+}
@@ -0,0 +1,663 @@
+package com.simplereverseproxy;
+
+import java.io.IOException;
+import java.net.http.HttpHeaders;
+import java.net.http.HttpResponse;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * In-memory cache of upstream responses of one route, bounded by the bytes its entries take.
+ *
+ * Entries are keyed on the canonical request from {@link RequestKeys}, so requests only differing in the order of
+ * their query parameters share an entry and different requests can never be mixed up. The cache is split into
+ * segments by key hash, each with its own lock and byte budget, so concurrent lookups of different keys rarely
+ * wait on each other. Within a segment entries are evicted with segmented LRU: new entries start in a probation
+ * list and only move to the protected list, which may hold most of the budget, once they are requested again.
+ * A burst of one-off requests therefore only churns probation and does not push out the entries that are
+ * actually hot.
+ *
+ * What may be stored and for how long follows the response's {@code Cache-Control}, {@code Expires}, {@code Age}
+ * and {@code Vary} headers. Stale entries are served while a background revalidation runs if the response
+ * allowed it with {@code stale-while-revalidate}, and entries with an {@code ETag} are revalidated with
+ * {@code If-None-Match} once they expired.
+ *
+ * An entry also keeps the compressed variants of its body the route's {@link ResponseCompression} produced, so a
+ * hot response is compressed once rather than on every hit. Variants count against the segment's budget like
+ * the body.
+ */
+public final class ResponseCache {
+
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    // Share of a segment's budget the protected list may take, the rest is left to probation.
+    private static final double PROTECTED_SHARE = 0.8;
+    // Rough per entry bookkeeping overhead, so a cache of tiny responses is still bounded.
+    private static final int ENTRY_OVERHEAD = 128;
+
+    /**
+     * How a request was answered with respect to the cache, also sent to the client as {@code X-Cache}.
+     */
+    public enum CacheStatus {
+        /** Served from a fresh entry. */
+        HIT,
+        /** Served from a stale entry while it is revalidated in the background. */
+        STALE,
+        /** The upstream confirmed the stored entry with 304 Not Modified and it was served. */
+        REVALIDATED,
+        /** The upstream was asked for the full response. */
+        MISS
+    }
+
+    private final Segment[] segments;
+    private final long maxBytes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder revalidations = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public ResponseCache(long maxBytes) {
+        this(maxBytes, DEFAULT_SEGMENTS);
+    }
+
+    public ResponseCache(long maxBytes, int segmentCount) {
+        if (maxBytes <= 0 || segmentCount <= 0) {
+            throw new IllegalArgumentException("Cache size and segment count must be greater than 0");
+        }
+        this.maxBytes = maxBytes;
+        this.segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(maxBytes / segmentCount);
+        }
+    }
+
+    private Segment segment(String key) {
+        int hash = key.hashCode();
+        return segments[Math.floorMod(hash ^ (hash >>> 16), segments.length)];
+    }
+
+    /**
+     * Stored entry for {@code key} whose {@code Vary} headers match the request, or null.
+     */
+    Entry get(String key, Headers requestHeaders, long now) {
+        Entry entry = segment(key).get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.etag == null && now >= entry.staleUntil) {
+            // Expired without a way to revalidate, nothing left to serve it for.
+            segment(key).remove(key, entry);
+            return null;
+        }
+        return entry.matchesVary(requestHeaders) ? entry : null;
+    }
+
+    /**
+     * Stores the upstream response if its headers allow a shared cache to keep it, and returns the new entry or
+     * null if it was not stored.
+     */
+    Entry put(String key, Headers requestHeaders, HttpResponse<byte[]> response, long now) {
+        if (response.statusCode() != 200) {
+            return null;
+        }
+        HttpHeaders headers = response.headers();
+        List<String> vary = varyNames(headers);
+        if (vary == null) {
+            return null;
+        }
+        Entry entry = Entry.create(key, forwardedHeaders(headers), response.body(), vary, requestHeaders, now);
+        if (entry == null || entry.bytes > segment(key).maxBytes) {
+            return null;
+        }
+        segment(key).put(key, entry);
+        return entry;
+    }
+
+    /**
+     * Replaces {@code stale} with a copy refreshed by the headers of the upstream's 304 Not Modified answer.
+     */
+    Entry revalidated(String key, Entry stale, HttpHeaders notModified, long now) {
+        Map<String, List<String>> merged = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        merged.putAll(stale.headers);
+        merged.putAll(forwardedHeaders(notModified));
+        Entry entry = Entry.create(key, merged, stale.body, stale.varyNames, stale.varyValues, now);
+        Segment segment = segment(key);
+        if (entry == null) {
+            segment.remove(key, stale);
+            return stale;
+        }
+        // Same body, so the compressed variants still apply. The entry is not shared yet, no lock needed.
+        for (int i = 0; i < entry.variants.length(); i++) {
+            byte[] variant = stale.variants.get(i);
+            if (variant != null) {
+                entry.variants.set(i, variant);
+                entry.bytes += variant.length;
+            }
+        }
+        segment.replace(key, stale, entry);
+        return entry;
+    }
+
+    /**
+     * Body of {@code entry} compressed with {@code encoding}, compressed on first use and then kept with the
+     * entry. Two requests racing for a variant may both compress the body, only one result is kept.
+     */
+    byte[] variant(Entry entry, ResponseCompression compression, ResponseCompression.Encoding encoding)
+            throws IOException {
+        int index = encoding.ordinal();
+        byte[] variant = entry.variants.get(index);
+        if (variant != null) {
+            return variant;
+        }
+        variant = compression.compress(entry.body, encoding);
+        if (entry.variants.compareAndSet(index, null, variant)) {
+            if (!segment(entry.key).grow(entry, variant.length)) {
+                // Would not fit the segment alongside the body, served but not kept.
+                entry.variants.compareAndSet(index, variant, null);
+            }
+            return variant;
+        }
+        return entry.variants.get(index);
+    }
+
+    void record(CacheStatus status) {
+        switch (status) {
+            case HIT:
+                hits.increment();
+                break;
+            case STALE:
+                staleHits.increment();
+                break;
+            case REVALIDATED:
+                revalidations.increment();
+                break;
+            default:
+                misses.increment();
+        }
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public CacheStats getStats() {
+        long bytes = 0;
+        int entries = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                bytes += segment.probationBytes + segment.protectedBytes;
+                entries += segment.probation.size() + segment.protectedEntries.size();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return new CacheStats(hits.sum(), staleHits.sum(), revalidations.sum(), misses.sum(), evictions.sum(),
+                              entries, bytes, maxBytes);
+    }
+
+    /**
+     * Names of the request headers the response varies on, or null if it varies on everything.
+     */
+    private static List<String> varyNames(HttpHeaders headers) {
+        List<String> names = new ArrayList<>();
+        for (String value : headers.allValues("Vary")) {
+            for (String name : value.split(",")) {
+                String trimmed = name.trim();
+                if (trimmed.equals("*")) {
+                    return null;
+                }
+                if (!trimmed.isEmpty()) {
+                    names.add(trimmed.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Upstream response headers that are passed on to the client. Hop-by-hop headers only apply to the
+     * upstream connection, and framing and {@code Date} are set by the server answering the client.
+     */
+    static Map<String, List<String>> forwardedHeaders(HttpHeaders headers) {
+        Map<String, List<String>> forwarded = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, List<String>> header : headers.map().entrySet()) {
+            String name = header.getKey();
+            if (!name.startsWith(":") && !isHopByHop(name)) {
+                forwarded.put(name, header.getValue());
+            }
+        }
+        return forwarded;
+    }
+
+    private static boolean isHopByHop(String name) {
+        switch (name.toLowerCase(Locale.ROOT)) {
+            case "connection":
+            case "keep-alive":
+            case "proxy-authenticate":
+            case "proxy-authorization":
+            case "te":
+            case "trailer":
+            case "transfer-encoding":
+            case "upgrade":
+            case "content-length":
+            case "date":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * A stored response and how long it may be used.
+     */
+    static final class Entry {
+        final String key;
+        final Map<String, List<String>> headers;
+        final byte[] body;
+        final String etag;
+        final long storedAt;
+        final long initialAgeSeconds;
+        final long freshUntil;
+        final long staleUntil;
+        final List<String> varyNames;
+        final List<String> varyValues;
+        // Body and bookkeeping, plus the compressed variants once added under the segment lock.
+        long bytes;
+        private final AtomicReferenceArray<byte[]> variants =
+                new AtomicReferenceArray<>(ResponseCompression.Encoding.values().length);
+        private final AtomicBoolean revalidating = new AtomicBoolean();
+
+        private Entry(String key, Map<String, List<String>> headers, byte[] body, String etag, long storedAt,
+                      long initialAgeSeconds, long freshUntil, long staleUntil, List<String> varyNames,
+                      List<String> varyValues) {
+            this.key = key;
+            this.headers = Collections.unmodifiableMap(headers);
+            this.body = body;
+            this.etag = etag;
+            this.storedAt = storedAt;
+            this.initialAgeSeconds = initialAgeSeconds;
+            this.freshUntil = freshUntil;
+            this.staleUntil = staleUntil;
+            this.varyNames = varyNames;
+            this.varyValues = varyValues;
+            long size = ENTRY_OVERHEAD + body.length + 2L * key.length();
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                for (String value : header.getValue()) {
+                    size += 2L * (header.getKey().length() + value.length());
+                }
+            }
+            this.bytes = size;
+        }
+
+        private static Entry create(String key, Map<String, List<String>> headers, byte[] body,
+                                    List<String> varyNames, Headers requestHeaders, long now) {
+            List<String> varyValues = new ArrayList<>(varyNames.size());
+            for (String name : varyNames) {
+                varyValues.add(headerValue(requestHeaders, name));
+            }
+            return create(key, headers, body, varyNames, varyValues, now);
+        }
+
+        /**
+         * Works out the freshness of a response received at {@code now}, returns null if it must not be stored.
+         */
+        private static Entry create(String key, Map<String, List<String>> headers, byte[] body,
+                                    List<String> varyNames, List<String> varyValues, long now) {
+            CacheControl cacheControl = CacheControl.parse(headers.get("Cache-Control"));
+            if (cacheControl.has("no-store") || cacheControl.has("private")) {
+                return null;
+            }
+            String etag = first(headers, "ETag");
+            long age = Math.max(0, parseLong(first(headers, "Age")));
+            long lifetime;
+            if (cacheControl.has("no-cache")) {
+                lifetime = 0;
+            } else if (cacheControl.seconds("s-maxage") >= 0) {
+                lifetime = cacheControl.seconds("s-maxage");
+            } else if (cacheControl.seconds("max-age") >= 0) {
+                lifetime = cacheControl.seconds("max-age");
+            } else if (headers.containsKey("Expires")) {
+                long expires = parseDate(first(headers, "Expires"));
+                long date = headers.containsKey("Date") ? parseDate(first(headers, "Date")) : now;
+                lifetime = expires < 0 || date < 0 ? 0 : Math.max(0, (expires - date) / 1000);
+            } else {
+                // No explicit freshness, the entry is only useful if it can be revalidated.
+                lifetime = 0;
+            }
+            if (lifetime == 0 && etag == null) {
+                return null;
+            }
+            long freshUntil = now + (lifetime - age) * 1000;
+            long staleWindow = cacheControl.has("must-revalidate") || cacheControl.has("proxy-revalidate")
+                               || cacheControl.has("no-cache") ? 0
+                               : Math.max(0, cacheControl.seconds("stale-while-revalidate"));
+            return new Entry(key, headers, body, etag, now, age, freshUntil, freshUntil + staleWindow * 1000,
+                             varyNames, varyValues);
+        }
+
+        boolean isFresh(long now) {
+            return now < freshUntil;
+        }
+
+        /**
+         * Whether the entry is past its freshness but within its {@code stale-while-revalidate} window.
+         */
+        boolean isStaleServable(long now) {
+            return now >= freshUntil && now < staleUntil;
+        }
+
+        /**
+         * Age in seconds to report to the client.
+         */
+        long age(long now) {
+            return initialAgeSeconds + Math.max(0, (now - storedAt) / 1000);
+        }
+
+        /**
+         * Claims the background revalidation of this entry, only one caller gets it.
+         */
+        boolean startRevalidation() {
+            return revalidating.compareAndSet(false, true);
+        }
+
+        void revalidationFailed() {
+            revalidating.set(false);
+        }
+
+        boolean matchesVary(Headers requestHeaders) {
+            for (int i = 0; i < varyNames.size(); i++) {
+                String value = headerValue(requestHeaders, varyNames.get(i));
+                String stored = varyValues.get(i);
+                if (value == null ? stored != null : !value.equals(stored)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static String headerValue(Headers headers, String name) {
+            List<String> values = headers.get(name);
+            return values == null ? null : String.join(",", values);
+        }
+
+        private static String first(Map<String, List<String>> headers, String name) {
+            List<String> values = headers.get(name);
+            return values == null || values.isEmpty() ? null : values.get(0);
+        }
+
+        private static long parseLong(String value) {
+            if (value == null) {
+                return 0;
+            }
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+
+        /**
+         * Milliseconds since the epoch of an HTTP date, or -1 if it cannot be parsed. An invalid
+         * {@code Expires} means the response is already expired.
+         */
+        private static long parseDate(String value) {
+            if (value == null) {
+                return -1;
+            }
+            try {
+                return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * One lock protected slice of the cache with its own segmented LRU lists.
+     */
+    private final class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final long maxBytes;
+        private final long maxProtectedBytes;
+        // Access ordered, so iteration starts at the least recently used entry.
+        private final LinkedHashMap<String, Entry> probation = new LinkedHashMap<>(16, 0.75f, true);
+        private final LinkedHashMap<String, Entry> protectedEntries = new LinkedHashMap<>(16, 0.75f, true);
+        private long probationBytes;
+        private long protectedBytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.maxProtectedBytes = (long) (maxBytes * PROTECTED_SHARE);
+        }
+
+        Entry get(String key) {
+            lock.lock();
+            try {
+                Entry entry = protectedEntries.get(key);
+                if (entry != null) {
+                    return entry;
+                }
+                entry = probation.remove(key);
+                if (entry == null) {
+                    return null;
+                }
+                // Requested a second time, promote it and make room by demoting the coldest protected entries.
+                probationBytes -= entry.bytes;
+                protectedEntries.put(key, entry);
+                protectedBytes += entry.bytes;
+                Iterator<Entry> coldest = protectedEntries.values().iterator();
+                while (protectedBytes > maxProtectedBytes && coldest.hasNext()) {
+                    Entry demoted = coldest.next();
+                    if (demoted == entry) {
+                        break;
+                    }
+                    coldest.remove();
+                    protectedBytes -= demoted.bytes;
+                    probation.put(demoted.key, demoted);
+                    probationBytes += demoted.bytes;
+                }
+                return entry;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void put(String key, Entry entry) {
+            lock.lock();
+            try {
+                removeLocked(key);
+                probation.put(key, entry);
+                probationBytes += entry.bytes;
+                evictLocked(entry);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Swaps in {@code updated} if {@code expected} is still the stored entry, keeping its place in the lists.
+         */
+        void replace(String key, Entry expected, Entry updated) {
+            lock.lock();
+            try {
+                if (protectedEntries.get(key) == expected) {
+                    protectedEntries.put(key, updated);
+                    protectedBytes += updated.bytes - expected.bytes;
+                } else if (probation.get(key) == expected) {
+                    probation.put(key, updated);
+                    probationBytes += updated.bytes - expected.bytes;
+                } else {
+                    return;
+                }
+                evictLocked(updated);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Adds {@code delta} bytes of compressed variant to {@code entry}, false if the entry would no longer
+         * fit the segment.
+         */
+        boolean grow(Entry entry, long delta) {
+            lock.lock();
+            try {
+                if (entry.bytes + delta > maxBytes) {
+                    return false;
+                }
+                entry.bytes += delta;
+                // The entry was just requested, so counting this as an access in the list order is right.
+                if (protectedEntries.get(entry.key) == entry) {
+                    protectedBytes += delta;
+                } else if (probation.get(entry.key) == entry) {
+                    probationBytes += delta;
+                } else {
+                    return true;
+                }
+                evictLocked(entry);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(String key, Entry expected) {
+            lock.lock();
+            try {
+                if (protectedEntries.get(key) == expected || probation.get(key) == expected) {
+                    removeLocked(key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void removeLocked(String key) {
+            Entry removed = probation.remove(key);
+            if (removed != null) {
+                probationBytes -= removed.bytes;
+            }
+            removed = protectedEntries.remove(key);
+            if (removed != null) {
+                protectedBytes -= removed.bytes;
+            }
+        }
+
+        /**
+         * Evicts the least recently used probation entries, then protected ones, until the segment fits its
+         * budget again. {@code keep} was just stored and is never evicted.
+         */
+        private void evictLocked(Entry keep) {
+            evictFrom(probation, keep, true);
+            evictFrom(protectedEntries, keep, false);
+        }
+
+        private void evictFrom(LinkedHashMap<String, Entry> list, Entry keep, boolean isProbation) {
+            Iterator<Entry> coldest = list.values().iterator();
+            while (probationBytes + protectedBytes > maxBytes && coldest.hasNext()) {
+                Entry evicted = coldest.next();
+                if (evicted == keep) {
+                    continue;
+                }
+                coldest.remove();
+                if (isProbation) {
+                    probationBytes -= evicted.bytes;
+                } else {
+                    protectedBytes -= evicted.bytes;
+                }
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * Point in time view of the cache's effectiveness and memory use.
+     */
+    public static final class CacheStats {
+        private final long hits;
+        private final long staleHits;
+        private final long revalidations;
+        private final long misses;
+        private final long evictions;
+        private final int entries;
+        private final long bytes;
+        private final long maxBytes;
+
+        CacheStats(long hits, long staleHits, long revalidations, long misses, long evictions, int entries,
+                   long bytes, long maxBytes) {
+            this.hits = hits;
+            this.staleHits = staleHits;
+            this.revalidations = revalidations;
+            this.misses = misses;
+            this.evictions = evictions;
+            this.entries = entries;
+            this.bytes = bytes;
+            this.maxBytes = maxBytes;
+        }
+
+        public long getHits() {
+            return hits;
+        }
+
+        public long getStaleHits() {
+            return staleHits;
+        }
+
+        public long getRevalidations() {
+            return revalidations;
+        }
+
+        public long getMisses() {
+            return misses;
+        }
+
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public int getEntries() {
+            return entries;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getMaxBytes() {
+            return maxBytes;
+        }
+
+        /**
+         * Share of requests answered with a stored body, fresh, stale or revalidated.
+         */
+        public double getHitRatio() {
+            long served = hits + staleHits + revalidations;
+            long total = served + misses;
+            return total == 0 ? 0 : (double) served / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("hits=%d stale=%d revalidated=%d misses=%d hitRatio=%.3f entries=%d bytes=%d/%d "
+                                 + "evictions=%d", hits, staleHits, revalidations, misses, getHitRatio(), entries,
+                                 bytes, maxBytes, evictions);
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package com.simplereverseproxy;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import com.sun.net.httpserver.Headers;
+
+/**
+ * Compresses the responses of one route for clients that accept it. The encoding is negotiated on the request's
+ * {@code Accept-Encoding}, gzip preferred over deflate at equal quality. Responses that are small, already
+ * encoded, of a content type that is compressed already, such as images and archives, or marked
+ * {@code no-transform} are sent as they are.
+ *
+ * Bodies are compressed as they are written, through a {@link Deflater} taken from a bounded pool and reset
+ * afterwards: a deflater holds a few hundred kilobytes of native memory and creating one per response costs
+ * more than compressing a small body. gzip framing is written here around raw deflate output, since
+ * {@link java.util.zip.GZIPOutputStream} always creates a deflater of its own.
+ */
+public final class ResponseCompression {
+
+    public static final int DEFAULT_LEVEL = 6;
+    public static final int DEFAULT_MIN_SIZE = 1024;
+    public static final int DEFAULT_MAX_POOLED = 64;
+
+    // Content types whose bodies are compressed already, matched as prefixes.
+    private static final List<String> DEFAULT_SKIPPED_TYPES = Arrays.asList(
+            "image/", "video/", "audio/", "font/woff", "application/zip", "application/gzip",
+            "application/x-gzip", "application/x-bzip2", "application/x-7z-compressed", "application/x-rar",
+            "application/zstd", "application/pdf", "application/octet-stream");
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int CHUNK = 8 * 1024;
+
+    /**
+     * Content codings the proxy produces.
+     */
+    public enum Encoding {
+        GZIP("gzip"),
+        DEFLATE("deflate");
+
+        private final String token;
+
+        Encoding(String token) {
+            this.token = token;
+        }
+
+        public String getToken() {
+            return token;
+        }
+    }
+
+    private final int level;
+    private final int minSize;
+    private final boolean deflate;
+    private final List<String> skippedTypes;
+    // gzip wraps raw deflate output, deflate is the zlib format, so they need differently created deflaters.
+    private final ArrayBlockingQueue<Deflater> rawDeflaters;
+    private final ArrayBlockingQueue<Deflater> zlibDeflaters;
+    private final LongAdder compressed = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+
+    private ResponseCompression(Builder b) {
+        level = b.level;
+        minSize = b.minSize;
+        deflate = b.deflate;
+        skippedTypes = new ArrayList<>(b.skippedTypes);
+        rawDeflaters = new ArrayBlockingQueue<>(b.maxPooled);
+        zlibDeflaters = new ArrayBlockingQueue<>(b.maxPooled);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Encoding to send the response in, or null to send it as it is. For a response that could be compressed
+     * {@code Vary: Accept-Encoding} is added to {@code responseHeaders} whether or not this client accepts an
+     * encoding, and for a compressed one {@code Content-Encoding} is set and a strong {@code ETag} made weak, as
+     * the compressed body is not byte for byte the upstream's.
+     *
+     * @param length body length, -1 if unknown
+     */
+    Encoding negotiate(Headers requestHeaders, int status, Headers responseHeaders, long length) {
+        if (status < 200 || status >= 300 || status == 204 || status == 206 || (length >= 0 && length < minSize)
+            || values(responseHeaders, "Content-Encoding") != null || values(responseHeaders, "Content-Range") != null
+            || !isCompressible(first(responseHeaders, "Content-Type"))
+            || CacheControl.parse(values(responseHeaders, "Cache-Control")).has("no-transform")) {
+            return null;
+        }
+        List<String> vary = values(responseHeaders, "Vary");
+        if (vary == null || !String.join(",", vary).toLowerCase(Locale.ROOT).contains("accept-encoding")) {
+            List<String> varied = vary == null ? new ArrayList<>() : new ArrayList<>(vary);
+            varied.add("Accept-Encoding");
+            replace(responseHeaders, "Vary", varied);
+        }
+        Encoding encoding = accepted(values(requestHeaders, "Accept-Encoding"));
+        if (encoding == null) {
+            return null;
+        }
+        responseHeaders.set("Content-Encoding", encoding.token);
+        String etag = first(responseHeaders, "ETag");
+        if (etag != null && !etag.startsWith("W/")) {
+            replace(responseHeaders, "ETag", new ArrayList<>(List.of("W/" + etag)));
+        }
+        return encoding;
+    }
+
+    /**
+     * Values of a header whatever the case of its name, {@link Headers} only normalizes the first letter and
+     * upstream header names arrive in lower case.
+     */
+    private static List<String> values(Headers headers, String name) {
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase(name)) {
+                return header.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Sets a header under whatever case its name has. The lists of forwarded headers may be shared with a cache
+     * entry, so they are replaced rather than changed.
+     */
+    private static void replace(Headers headers, String name, List<String> values) {
+        headers.keySet().removeIf(key -> key.equalsIgnoreCase(name));
+        headers.put(name, values);
+    }
+
+    private static String first(Headers headers, String name) {
+        List<String> values = values(headers, name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    private boolean isCompressible(String contentType) {
+        if (contentType == null) {
+            return true;
+        }
+        String type = contentType.trim().toLowerCase(Locale.ROOT);
+        if (type.startsWith("image/svg")) {
+            return true;
+        }
+        for (String skipped : skippedTypes) {
+            if (type.startsWith(skipped)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encoding of the highest quality the client accepts, gzip on a tie.
+     */
+    private Encoding accepted(List<String> acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        double gzip = -1;
+        double zlib = -1;
+        double any = -1;
+        for (String header : acceptEncoding) {
+            for (String coding : header.split(",")) {
+                String[] parts = coding.split(";");
+                String name = parts[0].trim().toLowerCase(Locale.ROOT);
+                double quality = 1;
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim();
+                    if (parameter.startsWith("q=")) {
+                        try {
+                            quality = Double.parseDouble(parameter.substring(2));
+                        } catch (NumberFormatException e) {
+                            quality = 0;
+                        }
+                    }
+                }
+                if (name.equals("gzip") || name.equals("x-gzip")) {
+                    gzip = quality;
+                } else if (name.equals("deflate")) {
+                    zlib = quality;
+                } else if (name.equals("*")) {
+                    any = quality;
+                }
+            }
+        }
+        gzip = gzip < 0 ? any : gzip;
+        zlib = deflate ? (zlib < 0 ? any : zlib) : 0;
+        if (gzip > 0 && gzip >= zlib) {
+            return Encoding.GZIP;
+        }
+        return zlib > 0 ? Encoding.DEFLATE : null;
+    }
+
+    /**
+     * Stream compressing what is written to it into {@code out}. Closing it finishes the encoding, closes
+     * {@code out} and returns the deflater to the pool.
+     */
+    CompressingStream compress(OutputStream out, Encoding encoding) throws IOException {
+        return new CompressingStream(out, encoding);
+    }
+
+    /**
+     * {@code body} compressed with {@code encoding}, for storing compressed variants.
+     */
+    byte[] compress(byte[] body, Encoding encoding) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, body.length / 4));
+        try (CompressingStream stream = compress(out, encoding)) {
+            stream.write(body);
+        }
+        return out.toByteArray();
+    }
+
+    private Deflater acquire(Encoding encoding) {
+        Deflater deflater = (encoding == Encoding.GZIP ? rawDeflaters : zlibDeflaters).poll();
+        return deflater != null ? deflater : new Deflater(level, encoding == Encoding.GZIP);
+    }
+
+    private void release(Encoding encoding, Deflater deflater) {
+        deflater.reset();
+        if (!(encoding == Encoding.GZIP ? rawDeflaters : zlibDeflaters).offer(deflater)) {
+            // The pool is full, free the native memory now rather than when the deflater is collected.
+            deflater.end();
+        }
+    }
+
+    /**
+     * Responses compressed.
+     */
+    public long getCompressedResponses() {
+        return compressed.sum();
+    }
+
+    /**
+     * Body bytes of the compressed responses before compression.
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * Body bytes of the compressed responses after compression.
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * Deflater output stream over a pooled deflater, writing the gzip header and trailer itself.
+     */
+    final class CompressingStream extends FilterOutputStream {
+        private final Encoding encoding;
+        private final CRC32 crc;
+        private final byte[] chunk = new byte[CHUNK];
+        private Deflater deflater;
+        private long read;
+        private long written;
+
+        private CompressingStream(OutputStream out, Encoding encoding) throws IOException {
+            super(out);
+            this.encoding = encoding;
+            this.deflater = acquire(encoding);
+            this.crc = encoding == Encoding.GZIP ? new CRC32() : null;
+            if (crc != null) {
+                out.write(GZIP_HEADER);
+                written += GZIP_HEADER.length;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            if (crc != null) {
+                crc.update(b, off, len);
+            }
+            read += len;
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                drain();
+            }
+        }
+
+        private void drain() throws IOException {
+            int length = deflater.deflate(chunk, 0, chunk.length, Deflater.NO_FLUSH);
+            if (length > 0) {
+                out.write(chunk, 0, length);
+                written += length;
+            }
+        }
+
+        /**
+         * Sends what was compressed so far, so a streamed body reaches the client as it arrives.
+         */
+        @Override
+        public void flush() throws IOException {
+            int length;
+            while ((length = deflater.deflate(chunk, 0, chunk.length, Deflater.SYNC_FLUSH)) > 0) {
+                out.write(chunk, 0, length);
+                written += length;
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (deflater == null) {
+                return;
+            }
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    int length = deflater.deflate(chunk);
+                    out.write(chunk, 0, length);
+                    written += length;
+                }
+                if (crc != null) {
+                    byte[] trailer = new byte[8];
+                    writeIntLE(trailer, 0, crc.getValue());
+                    writeIntLE(trailer, 4, read);
+                    out.write(trailer);
+                    written += trailer.length;
+                }
+                compressed.increment();
+                bytesIn.add(read);
+                bytesOut.add(written);
+            } finally {
+                release(encoding, deflater);
+                deflater = null;
+                out.close();
+            }
+        }
+
+        /**
+         * Compressed bytes written to the underlying stream.
+         */
+        long getWritten() {
+            return written;
+        }
+
+        private void writeIntLE(byte[] target, int offset, long value) {
+            for (int i = 0; i < 4; i++) {
+                target[offset + i] = (byte) (value >>> (8 * i));
+            }
+        }
+    }
+
+    /**
+     * Settings of the compression of a route.
+     */
+    public static final class Builder {
+        private int level = DEFAULT_LEVEL;
+        private int minSize = DEFAULT_MIN_SIZE;
+        private boolean deflate;
+        private int maxPooled = DEFAULT_MAX_POOLED;
+        private final List<String> skippedTypes = new ArrayList<>(DEFAULT_SKIPPED_TYPES);
+
+        /**
+         * Compression level from 1, fastest, to 9, smallest, {@value #DEFAULT_LEVEL} by default.
+         */
+        public Builder level(int level) {
+            if (level < 1 || level > 9) {
+                throw new IllegalArgumentException("Compression level must be between 1 and 9");
+            }
+            this.level = level;
+            return this;
+        }
+
+        /**
+         * Smallest body compressed, {@value #DEFAULT_MIN_SIZE} bytes by default. Below a few hundred bytes the
+         * encoding's framing eats most of the savings.
+         */
+        public Builder minSize(int minSize) {
+            if (minSize < 0) {
+                throw new IllegalArgumentException("Minimum compressed size must not be negative");
+            }
+            this.minSize = minSize;
+            return this;
+        }
+
+        /**
+         * Offers deflate to clients that prefer it over gzip, only gzip by default.
+         */
+        public Builder deflate(boolean deflate) {
+            this.deflate = deflate;
+            return this;
+        }
+
+        /**
+         * Sends responses whose content type starts with {@code prefix} uncompressed, on top of the default
+         * images, audio, video, fonts, archives, PDF and binary streams.
+         */
+        public Builder skipContentType(String prefix) {
+            skippedTypes.add(prefix.toLowerCase(Locale.ROOT));
+            return this;
+        }
+
+        /**
+         * Idle deflaters kept per encoding, {@value #DEFAULT_MAX_POOLED} by default.
+         */
+        public Builder maxPooledDeflaters(int maxPooled) {
+            if (maxPooled <= 0) {
+                throw new IllegalArgumentException("Deflater pool size must be greater than 0");
+            }
+            this.maxPooled = maxPooled;
+            return this;
+        }
+
+        ResponseCompression build() {
+            return new ResponseCompression(this);
+        }
+    }
+}
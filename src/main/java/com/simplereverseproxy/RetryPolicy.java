@@ -0,0 +1,288 @@
+package com.simplereverseproxy;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Extra upstream requests a route may send for one client request: hedges and retries, paid for from a shared
+ * retry budget.
+ *
+ * A hedge is a second request sent when the first has not been answered within a delay, fixed or a percentile of
+ * the route's upstream latency, so one slow upstream response no longer sets the tail latency: whichever response
+ * comes first is used and the other request is cancelled. A retry is a new request sent when the previous one
+ * could not connect. Both go to another upstream of the route when there is one.
+ *
+ * The budget is a token bucket: every client request adds a fraction of a token, the budget ratio, and a few
+ * tokens are added every second regardless of traffic; every hedge and retry takes a whole token. While the
+ * upstreams are healthy the bucket stays full, during an outage extra requests are held to the ratio of the
+ * traffic and cannot multiply the load on upstreams that are already failing.
+ *
+ * Only responses read fully before being sent, of routes that do not stream, are hedged and retried, on the
+ * {@link ServerEngine#HTTP_SERVER} engine.
+ */
+public final class RetryPolicy {
+
+    // Tokens are counted in thousandths so the budget ratio needs no floating point arithmetic.
+    private static final long TOKEN = 1000;
+    private static final long REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long REFILL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    // Upstream responses needed before the hedge delay follows the latency percentile.
+    private static final long MIN_SAMPLES = 100;
+
+    private final long fixedHedgeNanos;
+    private final double hedgePercentile;
+    private final int maxRetries;
+    private final long deposit;
+    private final long refillPerSecond;
+    private final long capacity;
+    private final LatencyHistogram upstreamLatency;
+    private final AtomicLong balance;
+    private final AtomicLong lastRefill = new AtomicLong(System.nanoTime());
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile long hedgeNanos;
+    private volatile long nextRefresh;
+    private volatile LatencyHistogram.Snapshot latencies;
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final LongAdder exhausted = new LongAdder();
+    private final LongAdder savedMicros = new LongAdder();
+
+    private RetryPolicy(Builder b, RouteMetrics metrics) {
+        fixedHedgeNanos = b.hedgeDelay == null ? -1 : b.hedgeDelay.toNanos();
+        hedgePercentile = b.hedgePercentile;
+        hedgeNanos = fixedHedgeNanos;
+        maxRetries = b.maxRetries;
+        deposit = Math.round(b.budgetRatio * TOKEN);
+        refillPerSecond = b.minPerSecond * TOKEN;
+        capacity = Math.max(10, 10L * b.minPerSecond) * TOKEN;
+        balance = new AtomicLong(capacity);
+        upstreamLatency = metrics.getUpstreamLatency();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Time after which a request still unanswered is hedged, -1 if the route does not hedge. A delay following a
+     * percentile is recomputed from the route's upstream latency at most once a second.
+     */
+    long hedgeDelayNanos() {
+        if (fixedHedgeNanos < 0) {
+            return -1;
+        }
+        long now = System.nanoTime();
+        if (now - nextRefresh >= 0 && refreshing.compareAndSet(false, true)) {
+            try {
+                nextRefresh = now + REFRESH_NANOS;
+                // Kept for estimating the time hedges save as well.
+                LatencyHistogram.Snapshot snapshot = upstreamLatency.snapshot();
+                latencies = snapshot;
+                if (hedgePercentile > 0 && snapshot.getCount() >= MIN_SAMPLES) {
+                    hedgeNanos = Math.max(fixedHedgeNanos, TimeUnit.MICROSECONDS.toNanos(
+                            snapshot.getValueAtPercentile(hedgePercentile)));
+                }
+            } finally {
+                refreshing.set(false);
+            }
+        }
+        return hedgeNanos;
+    }
+
+    int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * Adds the share of a token every client request earns the budget.
+     */
+    void deposit() {
+        add(deposit);
+    }
+
+    /**
+     * Takes a token for a hedge, false if the budget is spent.
+     */
+    boolean tryHedge() {
+        if (!withdraw()) {
+            return false;
+        }
+        hedges.increment();
+        return true;
+    }
+
+    /**
+     * Takes a token for a retry, false if the budget is spent.
+     */
+    boolean tryRetry() {
+        if (!withdraw()) {
+            return false;
+        }
+        retries.increment();
+        return true;
+    }
+
+    private boolean withdraw() {
+        long now = System.nanoTime();
+        long last = lastRefill.get();
+        if (refillPerSecond > 0 && now - last >= REFILL_NANOS && lastRefill.compareAndSet(last, now)) {
+            add((now - last) * refillPerSecond / REFRESH_NANOS);
+        }
+        while (true) {
+            long current = balance.get();
+            if (current < TOKEN) {
+                exhausted.increment();
+                return false;
+            }
+            if (balance.compareAndSet(current, current - TOKEN)) {
+                return true;
+            }
+        }
+    }
+
+    private void add(long amount) {
+        while (true) {
+            long current = balance.get();
+            long next = Math.min(capacity, current + amount);
+            if (next == current || balance.compareAndSet(current, next)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records that a hedge answered first, {@code elapsedNanos} after the first request was sent. The time saved
+     * is estimated from the route's upstream latency: the first request had not answered by then, so it would
+     * have taken the median of the upstream responses slower than that.
+     */
+    void recordHedgeWin(long elapsedNanos) {
+        hedgeWins.increment();
+        LatencyHistogram.Snapshot snapshot = latencies;
+        if (snapshot == null || snapshot.getCount() < MIN_SAMPLES) {
+            return;
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMicros(elapsedNanos);
+        long count = snapshot.getCount();
+        long faster = snapshot.getCountAtOrBelow(elapsed);
+        if (faster < count) {
+            long slower = snapshot.getValueAtPercentile(100.0 * (faster + count) / 2 / count);
+            savedMicros.add(Math.max(0, slower - elapsed));
+        }
+    }
+
+    /**
+     * Hedges sent.
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * Hedges whose response was used because it came before the first request's.
+     */
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * Requests sent again after failing to connect.
+     */
+    public long getRetries() {
+        return retries.sum();
+    }
+
+    /**
+     * Hedges and retries not sent because the budget was spent.
+     */
+    public long getBudgetExhausted() {
+        return exhausted.sum();
+    }
+
+    /**
+     * Estimated latency hedges saved clients in total, see {@link #recordHedgeWin}.
+     */
+    public long getSavedMicros() {
+        return savedMicros.sum();
+    }
+
+    /**
+     * Current hedge delay in microseconds, -1 if the route does not hedge.
+     */
+    public long getHedgeDelayMicros() {
+        return hedgeNanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(hedgeNanos);
+    }
+
+    /**
+     * Settings of the retry policy of a route, which builds its own policy and budget from it.
+     */
+    public static final class Builder {
+        private Duration hedgeDelay;
+        private double hedgePercentile;
+        private int maxRetries;
+        private double budgetRatio = 0.1;
+        private int minPerSecond = 10;
+
+        /**
+         * Hedges requests not answered within {@code delay}. Requests are not hedged by default.
+         */
+        public Builder hedgeAfter(Duration delay) {
+            if (delay == null || delay.isNegative() || delay.isZero()) {
+                throw new IllegalArgumentException("Hedge delay must be positive");
+            }
+            this.hedgeDelay = delay;
+            this.hedgePercentile = 0;
+            return this;
+        }
+
+        /**
+         * Hedges requests not answered within the given percentile of the route's upstream latency, such as 95,
+         * and never sooner than {@code minDelay}, which also applies until the route has enough responses.
+         */
+        public Builder hedgeAtPercentile(double percentile, Duration minDelay) {
+            if (percentile <= 0 || percentile >= 100) {
+                throw new IllegalArgumentException("Hedge percentile must be above 0 and below 100");
+            }
+            hedgeAfter(minDelay);
+            this.hedgePercentile = percentile;
+            return this;
+        }
+
+        /**
+         * Sends a request again, up to {@code maxRetries} times, when it could not connect to its upstream. Such
+         * a request never reached the upstream, so this is safe for any request. Not retried by default.
+         */
+        public Builder retryOnConnectFailure(int maxRetries) {
+            if (maxRetries < 0) {
+                throw new IllegalArgumentException("Retries must not be negative");
+            }
+            this.maxRetries = maxRetries;
+            return this;
+        }
+
+        /**
+         * Share of the client requests that may be hedged or retried, 0.1 by default, and the hedges and retries
+         * allowed every second regardless of traffic, 10 by default. Up to ten seconds of the latter, at least
+         * 10, can be saved up for a burst.
+         */
+        public Builder budget(double ratio, int minPerSecond) {
+            if (ratio < 0 || ratio > 1 || minPerSecond < 0) {
+                throw new IllegalArgumentException(
+                        "Retry budget ratio must be between 0 and 1 and the retries per second not negative");
+            }
+            this.budgetRatio = ratio;
+            this.minPerSecond = minPerSecond;
+            return this;
+        }
+
+        /**
+         * Policy of the route whose upstream latency is recorded in {@code metrics}.
+         */
+        RetryPolicy build(RouteMetrics metrics) {
+            return new RetryPolicy(this, metrics);
+        }
+    }
+}
@@ -3,11 +3,17 @@ package com.simplereverseproxy;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.logging.Logger;
 
 import com.simplereverseproxy.exceptions.RouteConfigurationNotFoundException;
@@ -29,18 +35,45 @@ public final class ReverseProxyServer implements Server {
     private int requestTimeout;
     private HttpServer server;
     private RequestRouter requestRouter;
+    private ExecutorStrategy executorStrategy;
     private ExecutorService executor;
+    private AdmissionQueue admissionQueue;
+    private FairScheduler scheduler;
+    private ExecutorService exchangeExecutor;
+    private ServerEngine engine;
+    private int eventLoops;
+    private boolean expiryRetained;
+    private NioProxyServer nioServer;
+    private RequestTracer tracer;
+    private boolean tcpNoDelay;
 
     private ReverseProxyServer(Builder builder) {
         threadPoolSize = builder.threadPoolSize;
         requestTimeout = builder.requestTimeout;
         port = builder.port;
         hostName = builder.hostName;
-        requestRouter = new RequestRouter(builder.routeConfigs, requestTimeout);
+        tracer = builder.tracer != null ? builder.tracer : RequestTracer.disabled();
+        requestRouter = new RequestRouter(builder.routeConfigs, requestTimeout,
+                                          new BufferPool(builder.bufferSize, builder.maxPooledBuffers),
+                                          builder.asyncRouting, tracer);
         if (port == 0 || Objects.isNull(hostName)) {
             throw new IllegalStateException("Proxy server is setup correctly. Please setup port and hostname");
         }
-        executor = Executors.newFixedThreadPool(threadPoolSize);
+        engine = builder.engine;
+        eventLoops = builder.eventLoops;
+        tcpNoDelay = builder.tcpNoDelay;
+        executorStrategy = builder.executorStrategy;
+        executor = executorStrategy.create(threadPoolSize);
+        if (builder.fairQueuing && engine == ServerEngine.HTTP_SERVER) {
+            // Exchanges are read on their own threads and queued per route, the workers only proxy.
+            scheduler = new FairScheduler(executor, builder.sheddingTarget, builder.sheddingInterval,
+                                          builder.maxQueued);
+            requestRouter.scheduleOn(scheduler);
+            exchangeExecutor = ExecutorStrategy.FIXED.create(Runtime.getRuntime().availableProcessors());
+        } else if (builder.sheddingTarget != null) {
+            admissionQueue = new AdmissionQueue(executor, builder.sheddingTarget, builder.sheddingInterval,
+                                                builder.maxQueued);
+        }
     }
 
     public static final class Builder {
@@ -49,6 +82,18 @@ public final class ReverseProxyServer implements Server {
         private String hostName;
         private int requestTimeout;
         private Set<RouteConfig> routeConfigs;
+        private int bufferSize = BufferPool.DEFAULT_BUFFER_SIZE;
+        private int maxPooledBuffers = BufferPool.DEFAULT_MAX_POOLED;
+        private boolean asyncRouting;
+        private ExecutorStrategy executorStrategy = ExecutorStrategy.FIXED;
+        private ServerEngine engine = ServerEngine.HTTP_SERVER;
+        private int eventLoops = Runtime.getRuntime().availableProcessors();
+        private RequestTracer tracer;
+        private Duration sheddingTarget;
+        private Duration sheddingInterval;
+        private int maxQueued;
+        private boolean fairQueuing;
+        private boolean tcpNoDelay;
 
         public Builder() {
             // Default thread pool size
@@ -61,6 +106,31 @@ public final class ReverseProxyServer implements Server {
             return this;
         }
 
+        /**
+         * Threading model for request handlers, {@link ExecutorStrategy#FIXED} by default. The thread pool size
+         * is ignored for {@link ExecutorStrategy#VIRTUAL_THREADS}.
+         */
+        public Builder executorStrategy(ExecutorStrategy executorStrategy) {
+            this.executorStrategy = Objects.requireNonNull(executorStrategy);
+            return this;
+        }
+
+        /**
+         * Network engine to run on, {@link ServerEngine#HTTP_SERVER} by default.
+         */
+        public Builder engine(ServerEngine engine) {
+            this.engine = Objects.requireNonNull(engine);
+            return this;
+        }
+
+        /**
+         * Number of selector event loops used by {@link ServerEngine#NIO}, one per core by default.
+         */
+        public Builder eventLoops(int eventLoops) {
+            this.eventLoops = eventLoops;
+            return this;
+        }
+
         public Builder port(int port) {
             this.port = port;
             return this;
@@ -76,6 +146,86 @@ public final class ReverseProxyServer implements Server {
             return this;
         }
 
+        /**
+         * Size and number of the pooled buffers used to relay streaming responses.
+         */
+        public Builder bufferPool(int bufferSize, int maxPooledBuffers) {
+            this.bufferSize = bufferSize;
+            this.maxPooledBuffers = maxPooledBuffers;
+            return this;
+        }
+
+        /**
+         * Call upstreams asynchronously so worker threads are not held while an upstream is slow. Concurrency
+         * is then bounded by the routes' connection limits instead of the thread pool size.
+         */
+        public Builder asyncRouting(boolean asyncRouting) {
+            this.asyncRouting = asyncRouting;
+            return this;
+        }
+
+        /**
+         * Traces a sample of requests and every slow request phase by phase, see {@code /admin/traces}. Nothing
+         * is traced by default, the tracer can still be configured while the server runs.
+         */
+        public Builder tracer(RequestTracer tracer) {
+            this.tracer = Objects.requireNonNull(tracer);
+            return this;
+        }
+
+        /**
+         * Sheds requests that wait too long for a worker thread, see {@link AdmissionQueue}. Once the shortest
+         * wait of an {@code interval} is above {@code target}, requests that waited more than twice the target
+         * are answered with 503, as are requests arriving while {@code maxQueued} are waiting. 5 ms and 100 ms
+         * suit most deployments. Requests queue without limit by default. The {@link ServerEngine#NIO} engine
+         * proxies on its event loops and only queues admin requests, so it never sheds. With
+         * {@link #fairQueuing} the settings apply to every route queue instead.
+         */
+        public Builder loadShedding(Duration target, Duration interval, int maxQueued) {
+            this.sheddingTarget = Objects.requireNonNull(target);
+            this.sheddingInterval = Objects.requireNonNull(interval);
+            this.maxQueued = maxQueued;
+            return this;
+        }
+
+        /**
+         * Queues requests per route and shares the worker threads between routes by their
+         * {@link RouteConfig.Builder#scheduling priority and weight}, see {@link FairScheduler}, so a spike on one
+         * route does not delay the others. Requests are then read and matched to their route on a separate small
+         * pool. With {@link #loadShedding} every route queue sheds its own requests. Requests share one FIFO queue
+         * by default. Only applies to {@link ServerEngine#HTTP_SERVER}.
+         */
+        public Builder fairQueuing(boolean fairQueuing) {
+            this.fairQueuing = fairQueuing;
+            return this;
+        }
+
+        /**
+         * Turns Nagle's algorithm off on the connections of {@link ServerEngine#HTTP_SERVER}, which otherwise
+         * delays small responses by the client's delayed ACK. The JDK HttpServer only has the JVM wide
+         * {@code sun.net.httpserver.nodelay} property for it, read when the first HttpServer of the JVM is
+         * created, so this sets the property on {@link #start()} unless it is set already, and has no effect
+         * once another HttpServer was created. Off by default, the NIO engine always turns Nagle's algorithm off.
+         */
+        public Builder tcpNoDelay(boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        /**
+         * How long the JDK client keeps idle upstream connections open for reuse, 1200 seconds unless set. The
+         * client reads it from the JVM wide {@code jdk.httpclient.keepalive.timeout} property when the first
+         * client of the JVM is created, so this sets the property right away, for every route and every other
+         * HTTP client of the JVM, and must come before the first route is built. Chained ahead of
+         * {@link #routeConfig} it does.
+         *
+         * @throws IllegalArgumentException if a different timeout is already in force, or a route was built before
+         */
+        public Builder upstreamKeepAliveTimeout(Duration keepAliveTimeout) {
+            UpstreamClient.applyKeepAliveTimeout(keepAliveTimeout);
+            return this;
+        }
+
         public Builder routeConfig(RouteConfig config) {
             if (routeConfigs == null) {
                 routeConfigs = new HashSet<>();
@@ -95,12 +245,30 @@ public final class ReverseProxyServer implements Server {
 
     @Override
     public void start() {
+        if (!expiryRetained) {
+            // Throttle state of every route expires on the shared wheel, which runs while any server does.
+            TimingWheel.shared().retain();
+            expiryRetained = true;
+        }
+        // Probes run on the wheel too, they pre-warm connections before the first requests arrive.
+        requestRouter.startHealthChecks();
+        if (engine == ServerEngine.NIO) {
+            logger.info("Starting NIO proxy server at port " + port);
+            nioServer = new NioProxyServer(new InetSocketAddress(hostName, port), eventLoops, requestRouter,
+                                           requestExecutor(), adminContexts());
+            nioServer.start();
+            return;
+        }
         try {
             logger.info("Starting proxy server at port " + port);
+            if (tcpNoDelay && System.getProperty("sun.net.httpserver.nodelay") == null) {
+                System.setProperty("sun.net.httpserver.nodelay", "true");
+            }
             server = HttpServer.create(new InetSocketAddress(hostName, port), 0); // backlog=0 uses default system value.
-            server.setExecutor(executor);
-            // Create config endpoint that is used to configure the throttling rate limiter configuration
-            server.createContext("/config", routingConfigUpdateHandler());
+            server.setExecutor(requestExecutor());
+            for (Map.Entry<String, HttpHandler> context : adminContexts().entrySet()) {
+                server.createContext(context.getKey(), context.getValue());
+            }
             server.createContext("/", requestRouter);
             server.start();
         } catch (IOException e) {
@@ -108,10 +276,144 @@ public final class ReverseProxyServer implements Server {
         }
     }
 
+    /**
+     * Executor exchanges are handed to: the pool reading them when requests are queued per route, the admission
+     * queue when load shedding is on.
+     */
+    private Executor requestExecutor() {
+        if (exchangeExecutor != null) {
+            return exchangeExecutor;
+        }
+        return admissionQueue != null ? admissionQueue : executor;
+    }
+
+    /**
+     * Administrative endpoints served next to the proxied routes, keyed by context path.
+     */
+    private Map<String, HttpHandler> adminContexts() {
+        Map<String, HttpHandler> contexts = new LinkedHashMap<>();
+        // Create config endpoint that is used to configure the throttling rate limiter configuration
+        contexts.put("/config", routingConfigUpdateHandler());
+        contexts.put(MetricsEndpoint.CONTEXT, new MetricsEndpoint(requestRouter, admissionQueue, scheduler));
+        contexts.put(RouteAdmin.CONTEXT, new RouteAdmin(requestRouter));
+        contexts.put(TraceAdmin.CONTEXT, new TraceAdmin(tracer));
+        return contexts;
+    }
+
     @Override
     public void shutdown() {
-        server.stop(0);
+        if (nioServer != null) {
+            nioServer.shutdown();
+        }
+        if (server != null) {
+            server.stop(0);
+        }
         executor.shutdownNow();
+        if (exchangeExecutor != null) {
+            exchangeExecutor.shutdownNow();
+        }
+        requestRouter.stopHealthChecks();
+        if (expiryRetained) {
+            expiryRetained = false;
+            TimingWheel.shared().release();
+        }
+    }
+
+    /**
+     * Adds {@code routes}, replacing routes with the same app context, and removes the routes of
+     * {@code removedAppContexts}, all in one atomic switch. Requests in flight complete on the routes they were
+     * matched to, routes not mentioned keep their state.
+     *
+     * @return version of the published route table
+     * @throws IllegalArgumentException if the routes conflict, nothing is changed then
+     */
+    public long updateRoutes(Collection<RouteConfig> routes, Collection<String> removedAppContexts) {
+        return requestRouter.updateRoutes(routes, removedAppContexts, false).getVersion();
+    }
+
+    /**
+     * Replaces every route with {@code routes} in one atomic switch.
+     *
+     * @return version of the published route table
+     * @throws IllegalArgumentException if the routes conflict, nothing is changed then
+     */
+    public long replaceRoutes(Collection<RouteConfig> routes) {
+        return requestRouter.updateRoutes(routes, Collections.emptyList(), true).getVersion();
+    }
+
+    /**
+     * Connection pool statistics for the upstreams behind {@code appContext}, added up. Useful to check that
+     * connections are actually being reused. {@link Upstream#getConnectionPoolStats()} has them per upstream.
+     */
+    public UpstreamClient.ConnectionPoolStats getConnectionPoolStats(String appContext) {
+        return requestRouter.getConnectionPoolStats(appContext);
+    }
+
+    /**
+     * Hit ratio and memory use of the response cache of {@code appContext}, null if the route does not cache.
+     */
+    public ResponseCache.CacheStats getCacheStats(String appContext) {
+        return requestRouter.getCacheStats(appContext);
+    }
+
+    /**
+     * Evaluations, throttled requests and evaluation time of every throttle rule of {@code appContext}, in the
+     * order the rules are evaluated.
+     */
+    public List<ThrottlePipeline.RuleStats> getThrottleStats(String appContext) {
+        return requestRouter.getThrottleStats(appContext);
+    }
+
+    /**
+     * Requests of {@code appContext} answered with the response of an identical request already in flight,
+     * null if the route does not coalesce requests.
+     */
+    public RequestCoalescer.CoalescingStats getCoalescingStats(String appContext) {
+        return requestRouter.getCoalescingStats(appContext);
+    }
+
+    /**
+     * Responses by status class, throttled requests, upstream failures, bytes and latency histograms of
+     * {@code appContext}, the same numbers {@code /metrics} exports for every route.
+     */
+    public RouteMetrics getMetrics(String appContext) {
+        return requestRouter.getMetrics(appContext);
+    }
+
+    /**
+     * Concurrency limit and requests in flight of {@code appContext}, null if the route is not limited.
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter(String appContext) {
+        return requestRouter.getConcurrencyLimiter(appContext);
+    }
+
+    /**
+     * Hedges, retries and retry budget of {@code appContext}, null if the route has no retry policy.
+     */
+    public RetryPolicy getRetryPolicy(String appContext) {
+        return requestRouter.getRetryPolicy(appContext);
+    }
+
+    /**
+     * Queue depth, shed requests and queueing delay of the request executor, null if load shedding is off or
+     * requests are queued per route.
+     */
+    public AdmissionQueue getAdmissionQueue() {
+        return admissionQueue;
+    }
+
+    /**
+     * Tracer of this server, holding the traces of sampled and slow requests.
+     */
+    public RequestTracer getTracer() {
+        return tracer;
+    }
+
+    /**
+     * Upstreams behind {@code appContext} with their requests in flight and latency average.
+     */
+    public List<Upstream> getUpstreams(String appContext) {
+        return requestRouter.getUpstreams(appContext);
     }
 
     public HttpHandler routingConfigUpdateHandler() {
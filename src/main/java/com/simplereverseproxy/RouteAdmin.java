@@ -0,0 +1,421 @@
+package com.simplereverseproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Admin endpoint reloading the route table while the proxy runs, served at {@link #CONTEXT}.
+ * <ul>
+ *     <li>{@code GET} returns the current routes and the snapshot version</li>
+ *     <li>{@code PUT} replaces the whole table with the routes in the body</li>
+ *     <li>{@code POST} adds or replaces the routes in the body and removes the app contexts listed under
+ *     {@code remove}, leaving every other route alone</li>
+ * </ul>
+ * The body is {@code {"routes": [...], "remove": [...]}}, every route an object like
+ * <pre>
+ * {"appContext": "orders", "path": "/api/v2/orders", "virtualHost": "shop.example.com",
+ *  "upstreams": ["http://10.0.0.1:8080", {"url": "http://10.0.0.2:8080", "weight": 2}],
+ *  "loadBalancing": "LEAST_OUTSTANDING", "maxConnections": 64, "connectTimeoutMillis": 1000,
+ *  "streaming": false, "responseCacheBytes": 0, "coalesceRequests": false,
+ *  "circuitBreaker": {"failureRate": 0.5, "slowCallMillis": 2000, "slowCallRate": 0.8, "minimumCalls": 20,
+ *                     "windowMillis": 10000, "openMillis": 5000, "maxOpenMillis": 60000, "halfOpenCalls": 3},
+ *  "healthCheck": {"path": "/health", "intervalMillis": 5000, "timeoutMillis": 1000, "healthyThreshold": 2,
+ *                  "unhealthyThreshold": 3, "warmConnections": 4},
+ *  "maxConcurrentRequests": 64, "priority": "NORMAL", "queueWeight": 1,
+ *  "retryPolicy": {"hedgePercentile": 95, "hedgeDelayMillis": 10, "maxRetries": 1, "budgetRatio": 0.1,
+ *                  "minRetriesPerSecond": 10},
+ *  "compression": {"level": 6, "minSize": 1024, "deflate": false},
+ *  "throttleRules": [{"type": "timeBased", "millis": 1000},
+ *                    {"type": "tokenBucket", "requests": 500, "perMillis": 1000, "burst": 50, "key": "remoteAddress"},
+ *                    {"type": "slidingWindow", "limit": 10000, "windowMillis": 1000, "key": "header:X-Api-Key"}]}
+ * </pre>
+ * {@code exactPath} may be given instead of {@code path}, and {@code "adaptiveConcurrency": {"initialLimit": 20,
+ * "minLimit": 1, "maxLimit": 1000, "tolerance": 1.5, "windowMillis": 100}} instead of a fixed
+ * {@code maxConcurrentRequests}. The whole body is validated before anything is
+ * published, an invalid body is answered with 400 and leaves the routes as they were.
+ *
+ * A route whose definition is identical to the one it was loaded with before is kept as it is, with its throttle
+ * state, upstream connections, statistics and cache. Routes built in code have no definition and are rebuilt if
+ * the body names their app context.
+ */
+final class RouteAdmin implements HttpHandler {
+
+    static final String CONTEXT = "/admin/routes";
+
+    private static final Logger logger = Logger.getLogger(RouteAdmin.class.getSimpleName());
+
+    private final RequestRouter router;
+
+    RouteAdmin(RequestRouter router) {
+        this.router = router;
+    }
+
+    @Override
+    public void handle(HttpExchange request) throws IOException {
+        String method = request.getRequestMethod().toUpperCase();
+        if (!request.getRequestURI().getPath().equals(CONTEXT)) {
+            respond(request, 404, Collections.singletonMap("error", "Unknown admin endpoint"));
+            return;
+        }
+        if (method.equals("GET")) {
+            respond(request, 200, describe(router.getSnapshot()));
+            return;
+        }
+        if (!method.equals("PUT") && !method.equals("POST")) {
+            respond(request, 405, Collections.singletonMap("error", "Use GET, PUT or POST"));
+            return;
+        }
+        try {
+            Object body = Json.parse(new String(request.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            RouteSnapshot published = apply(body, method.equals("PUT"));
+            logger.info(String.format("Published route table version %d with %d routes", published.getVersion(),
+                                      published.getRoutes().size()));
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("version", published.getVersion());
+            result.put("routes", published.getRoutes().size());
+            respond(request, 200, result);
+        } catch (IllegalArgumentException | IllegalStateException e) {
+            logger.warning(String.format("Rejected route table update: %s", e.getMessage()));
+            respond(request, 400, Collections.singletonMap("error", e.getMessage()));
+        }
+    }
+
+    /**
+     * Validates {@code body} and publishes the routes it describes. Serialized on the router so the routes to
+     * keep are picked from the snapshot the update is applied to.
+     */
+    RouteSnapshot apply(Object body, boolean replace) {
+        Map<String, Object> update = object(body, "body");
+        List<Object> definitions = update.containsKey("routes") ? list(update.get("routes"), "routes")
+                                                                : Collections.emptyList();
+        List<String> removed = new ArrayList<>();
+        if (update.containsKey("remove")) {
+            if (replace) {
+                throw new IllegalArgumentException("remove only applies to POST, PUT replaces every route");
+            }
+            for (Object appContext : list(update.get("remove"), "remove")) {
+                removed.add(string(appContext, "remove"));
+            }
+        }
+        synchronized (router) {
+            RouteSnapshot current = router.getSnapshot();
+            List<RouteConfig> routes = new ArrayList<>();
+            for (Object definition : definitions) {
+                Map<String, Object> route = object(definition, "route");
+                RouteConfig existing = current.get(string(route.get("appContext"), "appContext"));
+                routes.add(existing != null && route.equals(existing.getDefinition()) ? existing : build(route));
+            }
+            return router.updateRoutes(routes, removed, replace);
+        }
+    }
+
+    private static RouteConfig build(Map<String, Object> route) {
+        String appContext = string(route.get("appContext"), "appContext");
+        String where = "route " + appContext + ": ";
+        RouteConfig.Builder builder = RouteConfig.builder().appContext(appContext).definition(route);
+        if (route.containsKey("exactPath")) {
+            builder.exactPath(string(route.get("exactPath"), where + "exactPath"));
+        } else if (route.containsKey("path")) {
+            builder.path(string(route.get("path"), where + "path"));
+        }
+        if (route.containsKey("virtualHost")) {
+            builder.virtualHost(string(route.get("virtualHost"), where + "virtualHost"));
+        }
+        List<Object> upstreams = list(route.get("upstreams"), where + "upstreams");
+        if (upstreams.isEmpty()) {
+            throw new IllegalArgumentException(where + "needs at least one upstream");
+        }
+        for (Object upstream : upstreams) {
+            if (upstream instanceof String) {
+                builder.upstream((String) upstream);
+            } else {
+                Map<String, Object> weighted = object(upstream, where + "upstream");
+                builder.upstream(string(weighted.get("url"), where + "upstream url"),
+                                 (int) number(weighted, "weight", Upstream.DEFAULT_WEIGHT, where));
+            }
+        }
+        if (route.containsKey("loadBalancing")) {
+            String strategy = string(route.get("loadBalancing"), where + "loadBalancing");
+            try {
+                builder.loadBalancing(LoadBalancingStrategy.valueOf(strategy));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(where + "unknown loadBalancing " + strategy);
+            }
+        }
+        if (route.containsKey("maxConnections")) {
+            builder.maxConnections((int) number(route, "maxConnections", 0, where));
+        }
+        if (route.containsKey("connectTimeoutMillis")) {
+            builder.connectTimeout(Duration.ofMillis(number(route, "connectTimeoutMillis", 0, where)));
+        }
+        builder.streaming(bool(route, "streaming", where));
+        long cacheBytes = number(route, "responseCacheBytes", 0, where);
+        if (cacheBytes > 0) {
+            builder.responseCache(cacheBytes);
+        }
+        if (bool(route, "coalesceRequests", where)) {
+            builder.coalesceRequests();
+        }
+        if (route.containsKey("maxConcurrentRequests")) {
+            builder.concurrencyLimit(ConcurrencyLimiter.fixed((int) number(route, "maxConcurrentRequests", 0, where)));
+        } else if (route.containsKey("adaptiveConcurrency")) {
+            Map<String, Object> adaptive = object(route.get("adaptiveConcurrency"), where + "adaptiveConcurrency");
+            builder.concurrencyLimit(ConcurrencyLimiter.adaptive()
+                                                       .limits((int) number(adaptive, "initialLimit", 20, where),
+                                                               (int) number(adaptive, "minLimit", 1, where),
+                                                               (int) number(adaptive, "maxLimit", 1000, where))
+                                                       .tolerance(adaptive.containsKey("tolerance")
+                                                                  ? decimal(adaptive, "tolerance", where) : 1.5)
+                                                       .window(Duration.ofMillis(number(adaptive, "windowMillis", 100, where)))
+                                                       .build());
+        }
+        if (route.containsKey("priority") || route.containsKey("queueWeight")) {
+            String priority = route.containsKey("priority") ? string(route.get("priority"), where + "priority")
+                                                            : RoutePriority.NORMAL.name();
+            RoutePriority routePriority;
+            try {
+                routePriority = RoutePriority.valueOf(priority);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException(where + "unknown priority " + priority);
+            }
+            builder.scheduling(routePriority, (int) number(route, "queueWeight", 1, where));
+        }
+        if (route.containsKey("retryPolicy")) {
+            builder.retryPolicy(retryPolicy(object(route.get("retryPolicy"), where + "retryPolicy"), where));
+        }
+        if (route.containsKey("compression")) {
+            builder.compression(compression(object(route.get("compression"), where + "compression"), where));
+        }
+        if (route.containsKey("circuitBreaker")) {
+            builder.circuitBreaker(circuitBreaker(object(route.get("circuitBreaker"), where + "circuitBreaker"), where));
+        }
+        if (route.containsKey("healthCheck")) {
+            builder.healthCheck(healthCheck(object(route.get("healthCheck"), where + "healthCheck"), where));
+        }
+        if (route.containsKey("throttleRules")) {
+            for (Object rule : list(route.get("throttleRules"), where + "throttleRules")) {
+                builder.throttleRule(throttleRule(object(rule, where + "throttle rule"), where));
+            }
+        }
+        try {
+            return builder.build();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(where + e.getMessage(), e);
+        }
+    }
+
+    private static ThrottleRule throttleRule(Map<String, Object> rule, String where) {
+        String type = string(rule.get("type"), where + "throttle rule type");
+        switch (type) {
+            case "timeBased":
+                long millis = number(rule, "millis", -1, where);
+                if (millis <= 0 || millis > Integer.MAX_VALUE) {
+                    throw new IllegalArgumentException(where + "timeBased rule needs a positive millis");
+                }
+                return new TimeBasedThrottleRule((int) millis);
+            case "tokenBucket":
+                return TokenBucketThrottleRule.builder()
+                                              .rate(number(rule, "requests", -1, where),
+                                                    Duration.ofMillis(number(rule, "perMillis", 1000, where)))
+                                              .burst((int) number(rule, "burst", 1, where))
+                                              .key(throttleKey(rule, where))
+                                              .maxKeys((int) number(rule, "maxKeys", RateLimitTable.DEFAULT_MAX_KEYS, where))
+                                              .build();
+            case "slidingWindow":
+                return SlidingWindowThrottleRule.builder()
+                                                .limit((int) number(rule, "limit", -1, where),
+                                                       Duration.ofMillis(number(rule, "windowMillis", 1000, where)))
+                                                .key(throttleKey(rule, where))
+                                                .maxKeys((int) number(rule, "maxKeys", RateLimitTable.DEFAULT_MAX_KEYS, where))
+                                                .build();
+            default:
+                throw new IllegalArgumentException(where + "unknown throttle rule type " + type);
+        }
+    }
+
+    /**
+     * Hedges after {@code hedgeDelayMillis}, or at {@code hedgePercentile} of the upstream latency but no sooner
+     * than {@code hedgeDelayMillis}, and retries failed connections {@code maxRetries} times.
+     */
+    private static RetryPolicy.Builder retryPolicy(Map<String, Object> settings, String where) {
+        RetryPolicy.Builder builder = RetryPolicy.builder();
+        if (settings.containsKey("hedgePercentile")) {
+            builder.hedgeAtPercentile(decimal(settings, "hedgePercentile", where),
+                                      Duration.ofMillis(number(settings, "hedgeDelayMillis", 1, where)));
+        } else if (settings.containsKey("hedgeDelayMillis")) {
+            builder.hedgeAfter(Duration.ofMillis(number(settings, "hedgeDelayMillis", 0, where)));
+        }
+        builder.retryOnConnectFailure((int) number(settings, "maxRetries", 0, where));
+        builder.budget(settings.containsKey("budgetRatio") ? decimal(settings, "budgetRatio", where) : 0.1,
+                       (int) number(settings, "minRetriesPerSecond", 10, where));
+        return builder;
+    }
+
+    private static CircuitBreaker.Builder circuitBreaker(Map<String, Object> settings, String where) {
+        CircuitBreaker.Builder builder = CircuitBreaker.builder();
+        try {
+            if (settings.containsKey("failureRate")) {
+                builder.failureRate(decimal(settings, "failureRate", where));
+            }
+            if (settings.containsKey("slowCallMillis")) {
+                builder.slowCalls(Duration.ofMillis(number(settings, "slowCallMillis", 0, where)),
+                                  settings.containsKey("slowCallRate") ? decimal(settings, "slowCallRate", where) : 1);
+            }
+            builder.minimumCalls((int) number(settings, "minimumCalls", 20, where));
+            builder.window(Duration.ofMillis(number(settings, "windowMillis", 10_000, where)));
+            long openMillis = number(settings, "openMillis", 5_000, where);
+            builder.openDuration(Duration.ofMillis(openMillis),
+                                 Duration.ofMillis(number(settings, "maxOpenMillis", Math.max(openMillis, 60_000), where)));
+            builder.halfOpenCalls((int) number(settings, "halfOpenCalls", 3, where));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(e.getMessage().startsWith(where) ? e.getMessage() : where + e.getMessage());
+        }
+        return builder;
+    }
+
+    private static HealthCheck.Builder healthCheck(Map<String, Object> settings, String where) {
+        HealthCheck.Builder builder = HealthCheck.builder();
+        try {
+            if (settings.containsKey("path")) {
+                builder.path(string(settings.get("path"), where + "health check path"));
+            }
+            builder.interval(Duration.ofMillis(number(settings, "intervalMillis", 5_000, where)),
+                             Duration.ofMillis(number(settings, "timeoutMillis", 1_000, where)));
+            builder.thresholds((int) number(settings, "healthyThreshold", 2, where),
+                               (int) number(settings, "unhealthyThreshold", 3, where));
+            builder.warmConnections((int) number(settings, "warmConnections", 0, where));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(e.getMessage().startsWith(where) ? e.getMessage() : where + e.getMessage());
+        }
+        return builder;
+    }
+
+    private static ResponseCompression.Builder compression(Map<String, Object> settings, String where) {
+        ResponseCompression.Builder builder = ResponseCompression.builder();
+        try {
+            builder.level((int) number(settings, "level", ResponseCompression.DEFAULT_LEVEL, where));
+            builder.minSize((int) number(settings, "minSize", ResponseCompression.DEFAULT_MIN_SIZE, where));
+            builder.deflate(bool(settings, "deflate", where));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException(e.getMessage().startsWith(where) ? e.getMessage() : where + e.getMessage());
+        }
+        return builder;
+    }
+
+    private static ThrottleKey throttleKey(Map<String, Object> rule, String where) {
+        String key = rule.containsKey("key") ? string(rule.get("key"), where + "throttle key") : "remoteAddress";
+        if (key.equals("remoteAddress")) {
+            return ThrottleKey.remoteAddress();
+        }
+        if (key.equals("route")) {
+            return ThrottleKey.route();
+        }
+        if (key.startsWith("header:") && key.length() > "header:".length()) {
+            return ThrottleKey.header(key.substring("header:".length()));
+        }
+        throw new IllegalArgumentException(where + "unknown throttle key " + key);
+    }
+
+    private static Map<String, Object> describe(RouteSnapshot snapshot) {
+        List<Object> routes = new ArrayList<>();
+        for (RouteConfig route : snapshot.getRoutes()) {
+            if (route.getDefinition() != null) {
+                routes.add(route.getDefinition());
+                continue;
+            }
+            Map<String, Object> described = new LinkedHashMap<>();
+            described.put("appContext", route.getAppContext());
+            described.put(route.isExactPath() ? "exactPath" : "path", route.getPath());
+            if (route.getVirtualHost() != null) {
+                described.put("virtualHost", route.getVirtualHost());
+            }
+            List<Object> upstreams = new ArrayList<>();
+            for (Upstream upstream : route.getUpstreams()) {
+                Map<String, Object> describedUpstream = new LinkedHashMap<>();
+                describedUpstream.put("url", upstream.getHostUrl());
+                describedUpstream.put("weight", upstream.getWeight());
+                upstreams.add(describedUpstream);
+            }
+            described.put("upstreams", upstreams);
+            described.put("streaming", route.isStreaming());
+            routes.add(described);
+        }
+        Map<String, Object> described = new LinkedHashMap<>();
+        described.put("version", snapshot.getVersion());
+        described.put("routes", routes);
+        return described;
+    }
+
+    private static void respond(HttpExchange request, int status, Object body) throws IOException {
+        byte[] response = Json.write(body).getBytes(StandardCharsets.UTF_8);
+        request.getResponseHeaders().set("Content-Type", "application/json");
+        request.sendResponseHeaders(status, response.length);
+        OutputStream os = request.getResponseBody();
+        os.write(response);
+        os.close();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> object(Object value, String name) {
+        if (!(value instanceof Map)) {
+            throw new IllegalArgumentException(name + " must be a JSON object");
+        }
+        return (Map<String, Object>) value;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> list(Object value, String name) {
+        if (!(value instanceof List)) {
+            throw new IllegalArgumentException(name + " must be a JSON array");
+        }
+        return (List<Object>) value;
+    }
+
+    private static String string(Object value, String name) {
+        if (!(value instanceof String) || ((String) value).isEmpty()) {
+            throw new IllegalArgumentException(name + " must be a non empty string");
+        }
+        return (String) value;
+    }
+
+    private static long number(Map<String, Object> object, String name, long absent, String where) {
+        Object value = object.get(name);
+        if (value == null) {
+            return absent;
+        }
+        if (!(value instanceof Long)) {
+            throw new IllegalArgumentException(where + name + " must be a whole number");
+        }
+        return (Long) value;
+    }
+
+    private static double decimal(Map<String, Object> object, String name, String where) {
+        Object value = object.get(name);
+        if (!(value instanceof Number)) {
+            throw new IllegalArgumentException(where + name + " must be a number");
+        }
+        return ((Number) value).doubleValue();
+    }
+
+    private static boolean bool(Map<String, Object> object, String name, String where) {
+        Object value = object.get(name);
+        if (value == null) {
+            return false;
+        }
+        if (!(value instanceof Boolean)) {
+            throw new IllegalArgumentException(where + name + " must be true or false");
+        }
+        return (Boolean) value;
+    }
+}
@@ -1,32 +1,277 @@
 package com.simplereverseproxy;
 
-import java.util.HashSet;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Executor;
+
+import com.simplereverseproxy.exceptions.UpstreamUnavailableException;
+import com.sun.net.httpserver.HttpExchange;
 
 /**
  * Configuration rules for each upstream server you may have behind the proxy.
  */
 public final class RouteConfig {
     private String appContext;
+    private String path;
+    private boolean exactPath;
+    private String virtualHost;
     private String hostUrl;
+    private List<Upstream> upstreams;
+    private LoadBalancer loadBalancer;
     private Set<ThrottleRule> throttleRules;
+    private ThrottlePipeline throttlePipeline;
+    private boolean streaming;
+    private ResponseCache responseCache;
+    private RequestCoalescer coalescer;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private RetryPolicy retryPolicy;
+    private ResponseCompression compression;
+    private RoutePriority priority;
+    private int queueWeight;
+    private RouteMetrics metrics = new RouteMetrics();
+    private Object definition;
 
+    /**
+     * Throttle rules of the route in the order they were added.
+     */
     public Set<ThrottleRule> getThrottleRules() {
         return throttleRules;
     }
 
+    /**
+     * The route's throttle rules compiled into the order they are evaluated in, with their statistics.
+     */
+    public ThrottlePipeline getThrottlePipeline() {
+        return throttlePipeline;
+    }
+
     public String getAppContext() {
         return appContext;
     }
 
+    /**
+     * Path the route serves, every path below it unless {@link #isExactPath()}. {@code /appContext} by default.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    public boolean isExactPath() {
+        return exactPath;
+    }
+
+    /**
+     * Host name the route is bound to, or null if it serves requests for any host.
+     */
+    public String getVirtualHost() {
+        return virtualHost;
+    }
+
+    /**
+     * Url of the first upstream of the route.
+     */
     public String getHostUrl() {
         return hostUrl;
     }
 
+    /**
+     * Every upstream the route balances its requests over, with their in-flight and latency statistics.
+     */
+    public List<Upstream> getUpstreams() {
+        return upstreams;
+    }
+
+    /**
+     * Upstream the given request should be sent to. When the load balancer picks an upstream that is unhealthy
+     * or that its circuit breaker ejected, the request goes to the next upstream in the route's order that
+     * accepts it.
+     *
+     * @throws UpstreamUnavailableException if every upstream is unhealthy or refused by its breaker
+     */
+    Upstream chooseUpstream(HttpExchange request) {
+        Upstream chosen = loadBalancer.choose(request);
+        if (chosen.allowRequest()) {
+            return chosen;
+        }
+        int index = upstreams.indexOf(chosen);
+        long retryAfter = chosen.getRetryAfterMillis();
+        for (int i = 1; i < upstreams.size(); i++) {
+            Upstream next = upstreams.get((index + i) % upstreams.size());
+            if (next.allowRequest()) {
+                return next;
+            }
+            retryAfter = Math.min(retryAfter, next.getRetryAfterMillis());
+        }
+        throw new UpstreamUnavailableException(
+                String.format("Route %s: every upstream is unhealthy or ejected by its circuit breaker", appContext),
+                retryAfter);
+    }
+
+    /**
+     * Starts probing the route's upstreams if it has health checks, see {@link HealthCheck#start()}.
+     */
+    void startHealthChecks() {
+        for (Upstream upstream : upstreams) {
+            if (upstream.getHealthCheck() != null) {
+                upstream.getHealthCheck().start();
+            }
+        }
+    }
+
+    /**
+     * Stops probing the route's upstreams, when the server stops or the route is replaced.
+     */
+    void stopHealthChecks() {
+        for (Upstream upstream : upstreams) {
+            if (upstream.getHealthCheck() != null) {
+                upstream.getHealthCheck().stop();
+            }
+        }
+    }
+
+    /**
+     * Connections held for the upstreams of this route added up, {@link Upstream#getConnectionPoolStats()} has
+     * them per upstream.
+     */
+    public UpstreamClient.ConnectionPoolStats getConnectionPoolStats() {
+        UpstreamClient.ConnectionPoolStats total = upstreams.get(0).getConnectionPoolStats();
+        for (int i = 1; i < upstreams.size(); i++) {
+            total = total.plus(upstreams.get(i).getConnectionPoolStats());
+        }
+        return total;
+    }
+
+    /**
+     * Whether upstream bodies are forwarded to the client as they arrive instead of being buffered first.
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Cache of upstream responses for this route, or null if responses are not cached.
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    /**
+     * Collapses identical concurrent upstream requests of this route, or null if they are all sent.
+     */
+    public RequestCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    /**
+     * Limit on the requests of this route proxied at the same time, or null if the route is not limited.
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * Hedges and retries of the route's upstream requests with their budget, or null if every request is sent
+     * once.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Compression of the route's responses for clients that accept it, or null if responses are sent as the
+     * upstream sent them.
+     */
+    public ResponseCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * Class the route's requests are served in when the server queues requests per route.
+     */
+    public RoutePriority getPriority() {
+        return priority;
+    }
+
+    /**
+     * Share of the worker threads the route gets among the routes of its priority when the server queues
+     * requests per route.
+     */
+    public int getQueueWeight() {
+        return queueWeight;
+    }
+
+    /**
+     * Request counts, bytes and latency histograms of this route. A route kept across a reload keeps them.
+     */
+    public RouteMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Parsed JSON the route was loaded from through the admin API, null for routes built in code.
+     */
+    Object getDefinition() {
+        return definition;
+    }
+
     private RouteConfig(Builder b) {
-        appContext = b.appContext;
-        hostUrl = b.hostUrl;
-        throttleRules = b.rules;
+        if (b.appContext == null && b.path == null) {
+            throw new IllegalArgumentException("Route needs an app context or a path");
+        }
+        path = b.path != null ? b.path : "/" + b.appContext;
+        appContext = b.appContext != null ? b.appContext : path;
+        exactPath = b.exactPath;
+        virtualHost = b.virtualHost;
+        List<Upstream> configured = new ArrayList<>(b.upstreams);
+        if (b.hostUrl != null) {
+            configured.add(0, new Upstream(b.hostUrl, Upstream.DEFAULT_WEIGHT));
+        }
+        if (configured.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Route %s has no upstream", appContext));
+        }
+        // Rejected before the upstream client is built, a route that is never used would never close it.
+        if (b.streaming && (b.responseCache != null || b.coalescer != null)) {
+            throw new IllegalArgumentException(String.format(
+                    "Route %s: streaming responses are relayed as they arrive and cannot be cached or shared",
+                    appContext));
+        }
+        if (b.streaming && b.retryPolicy != null) {
+            throw new IllegalArgumentException(String.format(
+                    "Route %s: streaming responses are relayed as they arrive and cannot be hedged or retried",
+                    appContext));
+        }
+        if (b.circuitBreaker != null) {
+            for (Upstream upstream : configured) {
+                upstream.circuitBreaker(b.circuitBreaker.build(upstream.getHostUrl()));
+            }
+        }
+        upstreams = Collections.unmodifiableList(configured);
+        hostUrl = upstreams.get(0).getHostUrl();
+        loadBalancer = b.loadBalancingStrategy.create(upstreams);
+        throttleRules = Collections.unmodifiableSet(b.rules != null ? b.rules : new LinkedHashSet<>());
+        throttlePipeline = new ThrottlePipeline(throttleRules, b.adaptiveThrottleOrder);
+        UpstreamClient first = b.upstreamClientBuilder.build();
+        for (Upstream upstream : upstreams) {
+            upstream.client(upstream == upstreams.get(0) ? first : b.upstreamClientBuilder.build(first));
+            if (b.healthCheck != null) {
+                upstream.healthCheck(b.healthCheck.build(upstream, upstream.getClient()));
+            }
+        }
+        streaming = b.streaming;
+        responseCache = b.responseCache;
+        coalescer = b.coalescer;
+        concurrencyLimiter = b.concurrencyLimiter;
+        retryPolicy = b.retryPolicy == null ? null : b.retryPolicy.build(metrics);
+        compression = b.compression == null ? null : b.compression.build();
+        priority = b.priority;
+        queueWeight = b.queueWeight;
+        definition = b.definition;
     }
 
     public static Builder builder() {
@@ -37,26 +282,253 @@ public final class RouteConfig {
 
         public String appContext;
         public String hostUrl;
+        private String path;
+        private boolean exactPath;
+        private String virtualHost;
+        private final List<Upstream> upstreams = new ArrayList<>();
+        private LoadBalancingStrategy loadBalancingStrategy = LoadBalancingStrategy.ROUND_ROBIN;
         private Set<ThrottleRule> rules;
+        private boolean adaptiveThrottleOrder;
+        private final UpstreamClient.Builder upstreamClientBuilder = UpstreamClient.builder();
+        private boolean streaming;
+        private ResponseCache responseCache;
+        private RequestCoalescer coalescer;
+        private CircuitBreaker.Builder circuitBreaker;
+        private HealthCheck.Builder healthCheck;
+        private ConcurrencyLimiter concurrencyLimiter;
+        private RetryPolicy.Builder retryPolicy;
+        private ResponseCompression.Builder compression;
+        private RoutePriority priority = RoutePriority.NORMAL;
+        private int queueWeight = 1;
+        private Object definition;
 
         public Builder appContext(String appContext) {
             this.appContext = appContext;
             return this;
         }
 
+        /**
+         * Serves every request whose path starts with {@code pathPrefix}, matched segment by segment, instead of
+         * {@code /appContext}. Prefixes may span several segments, like {@code /api/v2/orders}; when the prefixes
+         * of several routes match, the longest one serves the request.
+         */
+        public Builder path(String pathPrefix) {
+            this.path = pathPrefix;
+            this.exactPath = false;
+            return this;
+        }
+
+        /**
+         * Serves only requests for exactly {@code path}. An exact path wins over every prefix.
+         */
+        public Builder exactPath(String path) {
+            this.path = path;
+            this.exactPath = true;
+            return this;
+        }
+
+        /**
+         * Serves the route's path only to requests whose {@code Host} header names {@code host}, ignoring case and
+         * port. Routes of the request's host are matched before routes without a host.
+         */
+        public Builder virtualHost(String host) {
+            this.virtualHost = host;
+            return this;
+        }
+
         public Builder hostUrl(String hostUrl) {
             this.hostUrl = hostUrl;
             return this;
         }
 
+        /**
+         * Adds another upstream serving this route. Requests are spread over the {@link #hostUrl(String)} and
+         * every upstream added here according to the {@link #loadBalancing(LoadBalancingStrategy)} strategy.
+         */
+        public Builder upstream(String hostUrl) {
+            return upstream(hostUrl, Upstream.DEFAULT_WEIGHT);
+        }
+
+        /**
+         * Adds an upstream that receives a share of the requests proportional to {@code weight} under the
+         * weighted, least outstanding, power of two choices and consistent hash strategies.
+         */
+        public Builder upstream(String hostUrl, int weight) {
+            upstreams.add(new Upstream(hostUrl, weight));
+            return this;
+        }
+
+        /**
+         * Strategy used to pick an upstream, round robin by default.
+         */
+        public Builder loadBalancing(LoadBalancingStrategy loadBalancingStrategy) {
+            this.loadBalancingStrategy = loadBalancingStrategy;
+            return this;
+        }
+
+        /**
+         * Adds a throttle rule. Rules are evaluated in the order they are added until one throttles the request.
+         */
         public Builder throttleRule(ThrottleRule rule) {
             if (rules == null) {
-                rules = new HashSet<>();
+                rules = new LinkedHashSet<>();
             }
             rules.add(rule);
             return this;
         }
 
+        /**
+         * Lets the route reorder its throttle rules by observed cost and reject rate, see {@link ThrottlePipeline}.
+         */
+        public Builder adaptiveThrottleOrder(boolean adaptiveThrottleOrder) {
+            this.adaptiveThrottleOrder = adaptiveThrottleOrder;
+            return this;
+        }
+
+        /**
+         * Maximum number of concurrent connections opened to each upstream server of the route,
+         * {@link UpstreamClient#DEFAULT_MAX_CONNECTIONS} by default.
+         */
+        public Builder maxConnections(int maxConnections) {
+            upstreamClientBuilder.maxConnections(maxConnections);
+            return this;
+        }
+
+        public Builder connectTimeout(Duration connectTimeout) {
+            upstreamClientBuilder.connectTimeout(connectTimeout);
+            return this;
+        }
+
+        /**
+         * Protocol version used for the upstream, HTTP/1.1 by default. HTTP/2 falls back to HTTP/1.1 if the
+         * upstream does not support it.
+         */
+        public Builder httpVersion(HttpClient.Version version) {
+            upstreamClientBuilder.version(version);
+            return this;
+        }
+
+        /**
+         * Dedicated executor for the upstream client. Routes without one share {@link UpstreamClient#sharedExecutor()}.
+         */
+        public Builder executor(Executor executor) {
+            upstreamClientBuilder.executor(executor);
+            return this;
+        }
+
+        /**
+         * Relay upstream bodies chunk by chunk instead of buffering the whole body. Use for routes serving
+         * large downloads.
+         */
+        public Builder streaming(boolean streaming) {
+            this.streaming = streaming;
+            return this;
+        }
+
+        /**
+         * Caches upstream responses in memory, up to {@code maxBytes}, as far as their caching headers allow.
+         * Cannot be combined with {@link #streaming(boolean)}.
+         */
+        public Builder responseCache(long maxBytes) {
+            return responseCache(new ResponseCache(maxBytes));
+        }
+
+        public Builder responseCache(ResponseCache responseCache) {
+            this.responseCache = responseCache;
+            return this;
+        }
+
+        /**
+         * Answers identical requests that arrive while one of them is already waiting on the upstream with
+         * that request's response, using {@link RequestCoalescer#DEFAULT_MAX_WAIT} and
+         * {@link RequestCoalescer#DEFAULT_MAX_FOLLOWERS}. Cannot be combined with {@link #streaming(boolean)}.
+         */
+        public Builder coalesceRequests() {
+            return coalesceRequests(new RequestCoalescer());
+        }
+
+        /**
+         * Like {@link #coalesceRequests()}, waiting at most {@code maxWait} for the request already in flight
+         * and sharing its response with at most {@code maxFollowers} other requests.
+         */
+        public Builder coalesceRequests(Duration maxWait, int maxFollowers) {
+            return coalesceRequests(new RequestCoalescer(maxWait, maxFollowers));
+        }
+
+        public Builder coalesceRequests(RequestCoalescer coalescer) {
+            this.coalescer = coalescer;
+            return this;
+        }
+
+        /**
+         * Gives every upstream of the route a {@link CircuitBreaker} with these settings. An upstream whose
+         * breaker is open is skipped by the load balancer, and once all of them are the route answers with 503
+         * right away instead of waiting for the upstreams to time out.
+         */
+        public Builder circuitBreaker(CircuitBreaker.Builder circuitBreaker) {
+            this.circuitBreaker = circuitBreaker;
+            return this;
+        }
+
+        /**
+         * Probes every upstream of the route with a {@link HealthCheck} with these settings while the server runs.
+         * Unhealthy upstreams are skipped by the load balancer, and connections are pre-warmed when the server
+         * starts and when an upstream recovers.
+         */
+        public Builder healthCheck(HealthCheck.Builder healthCheck) {
+            this.healthCheck = healthCheck;
+            return this;
+        }
+
+        /**
+         * Caps the requests of this route that are proxied at the same time, with a fixed limit from
+         * {@link ConcurrencyLimiter#fixed(int)} or one adapting to the upstream's latency from
+         * {@link ConcurrencyLimiter#adaptive()}. Requests over the limit are answered with 503 at once, so a slow
+         * upstream cannot take every worker thread from the other routes. Cached responses are not limited.
+         */
+        public Builder concurrencyLimit(ConcurrencyLimiter concurrencyLimiter) {
+            this.concurrencyLimiter = concurrencyLimiter;
+            return this;
+        }
+
+        /**
+         * Hedges slow upstream requests and retries those that could not connect, within a retry budget, see
+         * {@link RetryPolicy}. Every request is sent once by default.
+         */
+        public Builder retryPolicy(RetryPolicy.Builder retryPolicy) {
+            this.retryPolicy = retryPolicy;
+            return this;
+        }
+
+        /**
+         * Compresses responses with gzip, or deflate if enabled, for clients whose {@code Accept-Encoding} allows
+         * it, see {@link ResponseCompression}. Responses are sent as the upstream sent them by default.
+         */
+        public Builder compression(ResponseCompression.Builder compression) {
+            this.compression = compression;
+            return this;
+        }
+
+        /**
+         * How the route's requests are scheduled when the server queues requests per route, see
+         * {@link ReverseProxyServer.Builder#fairQueuing(boolean)}: routes of a higher priority are always served
+         * first, routes of the same priority share the worker threads in proportion to their weights.
+         * {@link RoutePriority#NORMAL} and 1 by default.
+         */
+        public Builder scheduling(RoutePriority priority, int queueWeight) {
+            if (queueWeight <= 0 || queueWeight > 1024) {
+                throw new IllegalArgumentException("Route queue weight must be between 1 and 1024");
+            }
+            this.priority = Objects.requireNonNull(priority);
+            this.queueWeight = queueWeight;
+            return this;
+        }
+
+        Builder definition(Object definition) {
+            this.definition = definition;
+            return this;
+        }
+
         public RouteConfig build() {
             return new RouteConfig(this);
         }
@@ -0,0 +1,155 @@
+package com.simplereverseproxy;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request counters and latency histograms of one route, recorded by both engines and exported on
+ * {@code /metrics}. Everything is recorded into {@link LongAdder}s and {@link LatencyHistogram}s, so recording
+ * never blocks and allocates nothing once a thread recorded its first request.
+ *
+ * Requests that never reach a route, because no route serves their path or they are not {@code GET}, are not
+ * counted anywhere.
+ */
+public final class RouteMetrics {
+
+    private final LongAdder[] responses = new LongAdder[5];
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder upstreamErrors = new LongAdder();
+    private final LongAdder upstreamTimeouts = new LongAdder();
+    private final LongAdder unavailable = new LongAdder();
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LatencyHistogram requestLatency = new LatencyHistogram();
+    private final LatencyHistogram upstreamLatency = new LatencyHistogram();
+    private final LatencyHistogram queueLatency = new LatencyHistogram();
+
+    RouteMetrics() {
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a response sent to a client with {@code bytes} of body, {@code nanos} after the request was
+     * received.
+     */
+    void recordResponse(int status, long bytes, long nanos) {
+        responses[statusClassIndex(status)].increment();
+        if (bytes > 0) {
+            bytesOut.add(bytes);
+        }
+        requestLatency.recordNanos(nanos);
+    }
+
+    void recordThrottled() {
+        throttled.increment();
+    }
+
+    /**
+     * Records the time from sending a request upstream until its response head arrived.
+     */
+    void recordUpstreamLatency(long nanos) {
+        upstreamLatency.recordNanos(nanos);
+    }
+
+    /**
+     * Records the time a request waited in the route's queue for a worker thread.
+     */
+    void recordQueueWait(long nanos) {
+        queueLatency.recordNanos(nanos);
+    }
+
+    void recordUpstreamBytes(long bytes) {
+        if (bytes > 0) {
+            bytesIn.add(bytes);
+        }
+    }
+
+    /**
+     * Records an upstream call that failed, {@code timeout} if the upstream did not answer in time.
+     */
+    void recordUpstreamFailure(boolean timeout) {
+        (timeout ? upstreamTimeouts : upstreamErrors).increment();
+    }
+
+    void recordUnavailable() {
+        unavailable.increment();
+    }
+
+    private static int statusClassIndex(int status) {
+        return Math.min(Math.max(status / 100, 1), 5) - 1;
+    }
+
+    /**
+     * Responses sent with a status of the given class, 1 for 1xx up to 5 for 5xx.
+     */
+    public long getResponses(int statusClass) {
+        return responses[statusClass - 1].sum();
+    }
+
+    /**
+     * Requests rejected by a throttle rule, also counted as 4xx responses.
+     */
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    /**
+     * Requests answered with an error because their upstream call failed for any reason but a timeout, such as
+     * a refused or reset connection.
+     */
+    public long getUpstreamErrors() {
+        return upstreamErrors.sum();
+    }
+
+    /**
+     * Requests answered with 504 because their upstream did not respond in time.
+     */
+    public long getUpstreamTimeouts() {
+        return upstreamTimeouts.sum();
+    }
+
+    /**
+     * Requests answered with 503 right away because the circuit breakers of all upstreams of the route were
+     * open, also counted as 5xx responses.
+     */
+    public long getUnavailable() {
+        return unavailable.sum();
+    }
+
+    /**
+     * Response body bytes received from the upstreams.
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * Response body bytes sent to clients, including responses served from the cache.
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * Time from receiving a request until its response was handed to the client.
+     */
+    public LatencyHistogram getRequestLatency() {
+        return requestLatency;
+    }
+
+    /**
+     * Time from sending a request upstream until the upstream's response head arrived.
+     */
+    public LatencyHistogram getUpstreamLatency() {
+        return upstreamLatency;
+    }
+
+    /**
+     * Time requests waited in the route's queue for a worker thread, empty unless the server queues requests
+     * per route.
+     */
+    public LatencyHistogram getQueueLatency() {
+        return queueLatency;
+    }
+}
@@ -0,0 +1,15 @@
+package com.simplereverseproxy;
+
+/**
+ * Scheduling class of a route when the server queues requests per route, see
+ * {@link ReverseProxyServer.Builder#fairQueuing(boolean)}. A free worker thread always takes a request of the
+ * highest class that has one waiting, routes of the same class share the workers by their weights.
+ */
+public enum RoutePriority {
+    /** Latency sensitive routes, served before any other. */
+    HIGH,
+    /** The default. */
+    NORMAL,
+    /** Batch and background routes, served when nothing else waits. */
+    LOW
+}
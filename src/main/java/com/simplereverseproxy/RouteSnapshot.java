@@ -0,0 +1,62 @@
+package com.simplereverseproxy;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable set of routes {@link RequestRouter} serves at one point in time: the routes by app context and the
+ * compiled {@link RouteTable} matching requests to them. A reload builds a new snapshot next to the current one
+ * and publishes it with a single volatile write, so requests never wait for a reload and a request keeps the
+ * route it was matched to until it completes.
+ */
+final class RouteSnapshot {
+
+    private final long version;
+    private final Map<String, RouteConfig> routes;
+    private final RouteTable<RouteConfig> table;
+
+    /**
+     * @throws IllegalArgumentException if two routes share an app context or serve the same path
+     */
+    RouteSnapshot(long version, Collection<RouteConfig> configs) {
+        Map<String, RouteConfig> byContext = new LinkedHashMap<>();
+        RouteTable.Builder<RouteConfig> builder = RouteTable.builder();
+        for (RouteConfig config : configs) {
+            if (byContext.put(config.getAppContext(), config) != null) {
+                throw new IllegalArgumentException(String.format("Two routes use app context %s", config.getAppContext()));
+            }
+            builder.add(config.getVirtualHost(), config.getPath(), config.isExactPath(), config);
+        }
+        this.version = version;
+        this.routes = Collections.unmodifiableMap(byContext);
+        this.table = builder.build();
+    }
+
+    /**
+     * Incremented with every published reload, 0 for the routes the server was built with.
+     */
+    long getVersion() {
+        return version;
+    }
+
+    /**
+     * Route with the given app context, or null.
+     */
+    RouteConfig get(String appContext) {
+        return routes.get(appContext);
+    }
+
+    Collection<RouteConfig> getRoutes() {
+        return routes.values();
+    }
+
+    Map<String, RouteConfig> getRoutesByContext() {
+        return routes;
+    }
+
+    RouteTable<RouteConfig> getTable() {
+        return table;
+    }
+}
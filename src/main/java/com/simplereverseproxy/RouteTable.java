@@ -0,0 +1,255 @@
+package com.simplereverseproxy;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compiled radix tree that finds the route of a request from its {@code Host} header and path. Routes either
+ * serve a path prefix, matched segment by segment so {@code /api/v1} serves {@code /api/v1/orders} but not
+ * {@code /api/v10}, or exactly one path. An exact match wins over any prefix, otherwise the longest prefix wins.
+ *
+ * Routes bound to a virtual host sit in a second tree keyed by host name, compared case insensitively and
+ * without the port. A request is matched against the routes of its host first, routes without a host serve
+ * whatever those do not.
+ *
+ * Matching walks the characters of the raw path and host once, comparing them against the edge labels of the
+ * tree, so it allocates nothing and its cost depends on the length of the path, not on the number of routes.
+ * The tree is immutable once built and can be read by any number of threads.
+ */
+final class RouteTable<T> {
+
+    private final Node<T> paths;
+    private final Node<T> hosts;
+
+    private RouteTable(Node<T> paths, Node<T> hosts) {
+        this.paths = paths;
+        this.hosts = hosts;
+    }
+
+    static <T> Builder<T> builder() {
+        return new Builder<>();
+    }
+
+    /**
+     * Route serving {@code path} on {@code host}, or null if there is none.
+     *
+     * @param host value of the {@code Host} header, with or without a port, or null
+     */
+    T match(String host, String path) {
+        if (hosts != null && host != null) {
+            Node<T> hostPaths = matchHost(host);
+            if (hostPaths != null) {
+                T route = matchPath(hostPaths, path);
+                if (route != null) {
+                    return route;
+                }
+            }
+        }
+        return matchPath(paths, path);
+    }
+
+    /**
+     * Whether any route is bound to a virtual host, callers can skip looking up the {@code Host} header if not.
+     */
+    boolean hasVirtualHosts() {
+        return hosts != null;
+    }
+
+    private static <T> T matchPath(Node<T> root, String path) {
+        Node<T> node = root;
+        int length = path.length();
+        int i = 0;
+        T longestPrefix = null;
+        while (true) {
+            // A prefix only matches up to a segment boundary, the empty root prefix matches everything.
+            if (node.prefix != null && (i == 0 || i == length || path.charAt(i) == '/')) {
+                longestPrefix = node.prefix;
+            }
+            if (i == length) {
+                return node.exact != null ? node.exact : longestPrefix;
+            }
+            Node<T> child = node.child(path.charAt(i));
+            if (child == null || !child.labelMatches(path, i, length, false)) {
+                return longestPrefix;
+            }
+            i += child.label.length;
+            node = child;
+        }
+    }
+
+    private Node<T> matchHost(String host) {
+        int end = hostEnd(host);
+        Node<T> node = hosts;
+        int i = 0;
+        while (i < end) {
+            Node<T> child = node.child(Character.toLowerCase(host.charAt(i)));
+            if (child == null || !child.labelMatches(host, i, end, true)) {
+                return null;
+            }
+            i += child.label.length;
+            node = child;
+        }
+        return node.hostPaths;
+    }
+
+    /**
+     * End of the host name within a {@code Host} header value, before the port. IPv6 literals keep their brackets.
+     */
+    private static int hostEnd(String host) {
+        if (host.startsWith("[")) {
+            int close = host.indexOf(']');
+            return close < 0 ? host.length() : close + 1;
+        }
+        int colon = host.indexOf(':');
+        return colon < 0 ? host.length() : colon;
+    }
+
+    private static final class Node<T> {
+        private final char[] label;
+        private final char[] firsts;
+        private final Node<T>[] children;
+        private final T prefix;
+        private final T exact;
+        private final Node<T> hostPaths;
+
+        Node(char[] label, char[] firsts, Node<T>[] children, T prefix, T exact, Node<T> hostPaths) {
+            this.label = label;
+            this.firsts = firsts;
+            this.children = children;
+            this.prefix = prefix;
+            this.exact = exact;
+            this.hostPaths = hostPaths;
+        }
+
+        Node<T> child(char c) {
+            int index = Arrays.binarySearch(firsts, c);
+            return index < 0 ? null : children[index];
+        }
+
+        /**
+         * Whether the whole label matches {@code value} from {@code from} without running past {@code to}. The
+         * first character already selected this node.
+         */
+        boolean labelMatches(String value, int from, int to, boolean ignoreCase) {
+            if (to - from < label.length) {
+                return false;
+            }
+            for (int k = 1; k < label.length; k++) {
+                char c = value.charAt(from + k);
+                if ((ignoreCase ? Character.toLowerCase(c) : c) != label[k]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    static final class Builder<T> {
+        private final Trie<T> paths = new Trie<>();
+        private Trie<T> hosts;
+
+        /**
+         * Adds a route serving every path below the prefix {@code path}, or only {@code path} itself when
+         * {@code exact}, on {@code host} or on any host when it is null.
+         */
+        Builder<T> add(String host, String path, boolean exact, T route) {
+            if (path == null || !path.startsWith("/")) {
+                throw new IllegalArgumentException(String.format("Route path %s must start with /", path));
+            }
+            Trie<T> root = paths;
+            if (host != null) {
+                if (hosts == null) {
+                    hosts = new Trie<>();
+                }
+                Trie<T> hostNode = hosts.insert(host.toLowerCase());
+                if (hostNode.hostPaths == null) {
+                    hostNode.hostPaths = new Trie<>();
+                }
+                root = hostNode.hostPaths;
+            }
+            String key = exact ? path : prefixKey(path);
+            Trie<T> node = root.insert(key);
+            if ((exact ? node.exact : node.prefix) != null) {
+                throw new IllegalArgumentException(String.format("Two routes serve %s path %s%s",
+                                                                 exact ? "exact" : "prefix", path,
+                                                                 host == null ? "" : " on host " + host));
+            }
+            if (exact) {
+                node.exact = route;
+            } else {
+                node.prefix = route;
+            }
+            return this;
+        }
+
+        /**
+         * Prefixes are stored without a trailing slash, the root prefix as the empty string.
+         */
+        private static String prefixKey(String path) {
+            int end = path.length();
+            while (end > 0 && path.charAt(end - 1) == '/') {
+                end--;
+            }
+            return path.substring(0, end);
+        }
+
+        RouteTable<T> build() {
+            return new RouteTable<>(compile(new char[0], paths), hosts == null ? null : compile(new char[0], hosts));
+        }
+
+        /**
+         * Turns the character trie into the radix tree: chains of nodes that hold no route and have a single
+         * child collapse into one edge label.
+         */
+        private static <T> Node<T> compile(char[] label, Trie<T> trie) {
+            StringBuilder edge = new StringBuilder().append(label);
+            Trie<T> node = trie;
+            while (label.length > 0 && node.isPassThrough()) {
+                Map.Entry<Character, Trie<T>> only = node.children.firstEntry();
+                edge.append(only.getKey().charValue());
+                node = only.getValue();
+            }
+            char[] firsts = new char[node.children.size()];
+            Node<T>[] children = nodes(firsts.length);
+            int i = 0;
+            for (Map.Entry<Character, Trie<T>> child : node.children.entrySet()) {
+                firsts[i] = child.getKey();
+                children[i++] = compile(new char[] {child.getKey()}, child.getValue());
+            }
+            return new Node<>(edge.toString().toCharArray(), firsts, children, node.prefix, node.exact,
+                              node.hostPaths == null ? null : compile(new char[0], node.hostPaths));
+        }
+    }
+
+    /**
+     * Array of {@code length} nodes. Arrays of a generic type cannot be created, only of the wildcard type, and
+     * the array never leaves the tree, so the cast is safe.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> Node<T>[] nodes(int length) {
+        return (Node<T>[]) new Node<?>[length];
+    }
+
+    /**
+     * Uncompressed character trie the radix tree is built from.
+     */
+    private static final class Trie<T> {
+        private final TreeMap<Character, Trie<T>> children = new TreeMap<>();
+        private T prefix;
+        private T exact;
+        private Trie<T> hostPaths;
+
+        Trie<T> insert(String key) {
+            Trie<T> node = this;
+            for (int i = 0; i < key.length(); i++) {
+                node = node.children.computeIfAbsent(key.charAt(i), c -> new Trie<>());
+            }
+            return node;
+        }
+
+        boolean isPassThrough() {
+            return children.size() == 1 && prefix == null && exact == null && hostPaths == null;
+        }
+    }
+}
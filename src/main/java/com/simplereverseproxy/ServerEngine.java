@@ -0,0 +1,17 @@
+package com.simplereverseproxy;
+
+/**
+ * Network engine {@link ReverseProxyServer} runs on. Both engines serve the same routes and throttle rules.
+ */
+public enum ServerEngine {
+    /**
+     * The JDK's {@code com.sun.net.httpserver.HttpServer}, one executor thread per in-flight exchange.
+     */
+    HTTP_SERVER,
+    /**
+     * Selector based event loops, one per core by default, that parse HTTP/1.1 themselves and relay upstream
+     * response bytes through direct buffers. Supports keep-alive and pipelining towards clients and keeps idle
+     * upstream connections for reuse. Only plain http upstreams are supported.
+     */
+    NIO
+}
@@ -0,0 +1,174 @@
+package com.simplereverseproxy;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Sliding window rate limit per {@link ThrottleKey}, for limits like "10000 requests per second per route". The
+ * rule counts the requests of the current and of the previous fixed window and estimates the requests of the
+ * last full window as the current count plus the previous count weighted by how much of the previous window
+ * still overlaps it. That avoids the doubled bursts at window boundaries of plain fixed windows with two
+ * counters instead of a log of timestamps.
+ *
+ * Both counters and the window they belong to are packed into one {@code long} per key, so a decision is a
+ * single compare and set. Key state lives in a bounded {@link RateLimitTable}, see {@link Builder#maxKeys(int)}.
+ */
+public final class SlidingWindowThrottleRule implements ThrottleRule {
+
+    // State layout: window index (low 20 bits) | previous window count (22 bits) | current window count (22 bits).
+    private static final int COUNT_BITS = 22;
+    private static final int WINDOW_SHIFT = 2 * COUNT_BITS;
+    private static final long COUNT_MASK = (1L << COUNT_BITS) - 1;
+    private static final long WINDOW_MASK = (1L << (64 - WINDOW_SHIFT)) - 1;
+    private static final long COUNTS_MASK = (1L << WINDOW_SHIFT) - 1;
+
+    /**
+     * Highest number of requests a window can allow.
+     */
+    public static final int MAX_LIMIT = (int) COUNT_MASK;
+
+    private final ThrottleKey key;
+    private final long limit;
+    private final long windowNanos;
+    private final RateLimitTable table;
+    private final long origin = System.nanoTime();
+
+    private SlidingWindowThrottleRule(Builder b) {
+        if (b.limit <= 0 || b.limit > MAX_LIMIT) {
+            throw new IllegalArgumentException(String.format("Sliding window limit must be between 1 and %d", MAX_LIMIT));
+        }
+        if (b.window == null || b.window.isNegative() || b.window.isZero()) {
+            throw new IllegalArgumentException("Sliding window must be longer than 0");
+        }
+        key = b.key;
+        limit = b.limit;
+        windowNanos = b.window.toNanos();
+        table = new RateLimitTable(b.maxKeys, this::isIdle);
+    }
+
+    @Override
+    public boolean throttleRequest(HttpExchange request) {
+        long now = System.nanoTime() - origin;
+        long window = now / windowNanos;
+        // Share of the previous window that still lies within the last full window length.
+        double overlap = (double) (windowNanos - (now - window * windowNanos)) / windowNanos;
+        RateLimitTable.Slot slot = table.slot(key.keyOf(request), now);
+        while (true) {
+            long state = slot.get();
+            long current = state & COUNT_MASK;
+            long previous = (state >>> COUNT_BITS) & COUNT_MASK;
+            long stateWindow = state >>> WINDOW_SHIFT;
+            if (stateWindow != (window & WINDOW_MASK)) {
+                previous = stateWindow == ((window - 1) & WINDOW_MASK) ? current : 0;
+                current = 0;
+            }
+            if (previous * overlap + current + 1 > limit) {
+                return true;
+            }
+            long updated = (window & WINDOW_MASK) << WINDOW_SHIFT | previous << COUNT_BITS | (current + 1);
+            if (slot.compareAndSet(state, updated)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Time until the estimate of the key drops low enough for another request: the current window's count
+     * alone has to fit, and the weight of the previous window shrinks as time passes.
+     */
+    @Override
+    public long retryAfterMillis(HttpExchange request) {
+        long now = System.nanoTime() - origin;
+        long window = now / windowNanos;
+        long windowEnd = (window + 1) * windowNanos;
+        long state = table.state(key.keyOf(request));
+        long stateWindow = state >>> WINDOW_SHIFT;
+        long current = state & COUNT_MASK;
+        long previous = (state >>> COUNT_BITS) & COUNT_MASK;
+        if (stateWindow != (window & WINDOW_MASK)) {
+            previous = stateWindow == ((window - 1) & WINDOW_MASK) ? current : 0;
+            current = 0;
+        }
+        long wait;
+        if (current + 1 > limit) {
+            // Once the window rolls over this window's count becomes the previous one, weighted from 1 downwards.
+            double overlapNeeded = (double) (limit - 1) / current;
+            wait = windowEnd - now + (long) (windowNanos * (1 - overlapNeeded));
+        } else if (previous > 0) {
+            double overlapNeeded = (double) (limit - current - 1) / previous;
+            wait = windowEnd - (long) (windowNanos * overlapNeeded) - now;
+        } else {
+            wait = 0;
+        }
+        return wait <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+    }
+
+    /**
+     * State counts nothing any more once both of its windows are over. Window indexes are kept modulo 2^20, a
+     * key left alone in the table for that many windows may see its old counts again, at most for one window.
+     */
+    private boolean isIdle(long state, long now) {
+        if ((state & COUNTS_MASK) == 0) {
+            return true;
+        }
+        long window = now / windowNanos;
+        long stateWindow = state >>> WINDOW_SHIFT;
+        return stateWindow != (window & WINDOW_MASK) && stateWindow != ((window - 1) & WINDOW_MASK);
+    }
+
+    /**
+     * Number of keys whose state was evicted while still limiting them, because the table was full.
+     */
+    public long getEvictions() {
+        return table.getEvictions();
+    }
+
+    /**
+     * Number of keys currently limited by this rule.
+     */
+    int trackedKeys() {
+        return table.liveKeys(System.nanoTime() - origin);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int limit;
+        private Duration window;
+        private ThrottleKey key = ThrottleKey.remoteAddress();
+        private int maxKeys = RateLimitTable.DEFAULT_MAX_KEYS;
+
+        /**
+         * At most {@code limit} requests within any {@code window}, up to {@link SlidingWindowThrottleRule#MAX_LIMIT}.
+         */
+        public Builder limit(int limit, Duration window) {
+            this.limit = limit;
+            this.window = window;
+            return this;
+        }
+
+        /**
+         * What requests are counted against, the client address by default.
+         */
+        public Builder key(ThrottleKey key) {
+            this.key = key;
+            return this;
+        }
+
+        /**
+         * Number of keys state is kept for, 65536 by default. Rounded up to a power of two.
+         */
+        public Builder maxKeys(int maxKeys) {
+            this.maxKeys = maxKeys;
+            return this;
+        }
+
+        public SlidingWindowThrottleRule build() {
+            return new SlidingWindowThrottleRule(this);
+        }
+    }
+}
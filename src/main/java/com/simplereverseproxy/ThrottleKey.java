@@ -0,0 +1,55 @@
+package com.simplereverseproxy;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * What a rate limiting {@link ThrottleRule} counts requests against. Requests with the same key share one
+ * budget. Keys are 64 bit hashes so looking one up allocates nothing.
+ */
+@FunctionalInterface
+public interface ThrottleKey {
+
+    long keyOf(HttpExchange request);
+
+    /**
+     * Every client address gets its own budget.
+     */
+    static ThrottleKey remoteAddress() {
+        return ThrottleKey::remoteAddressKey;
+    }
+
+    /**
+     * Every value of the request header {@code name}, such as an API key, gets its own budget. Requests without
+     * the header are counted against their client address.
+     */
+    static ThrottleKey header(String name) {
+        return request -> {
+            String value = request.getRequestHeaders().getFirst(name);
+            return value != null ? RequestKeys.hash64(value, null) : remoteAddressKey(request);
+        };
+    }
+
+    /**
+     * All requests of the routes the rule is configured on share one budget.
+     */
+    static ThrottleKey route() {
+        return request -> 1;
+    }
+
+    private static long remoteAddressKey(HttpExchange request) {
+        InetSocketAddress remote = request.getRemoteAddress();
+        InetAddress address = remote != null ? remote.getAddress() : null;
+        if (address == null) {
+            return 0;
+        }
+        if (address instanceof Inet4Address) {
+            // The hash code of an IPv4 address is the address itself.
+            return RequestKeys.mix(address.hashCode() & 0xFFFFFFFFL);
+        }
+        return RequestKeys.hash64(address.getAddress());
+    }
+}
@@ -5,4 +5,12 @@ import com.sun.net.httpserver.HttpExchange;
 @FunctionalInterface
 public interface ThrottleRule {
     boolean throttleRequest(HttpExchange request);
+
+    /**
+     * How long the client of a request this rule just throttled should wait before trying again, in
+     * milliseconds. Only called after {@link #throttleRequest} returned true, 0 if the rule can not tell.
+     */
+    default long retryAfterMillis(HttpExchange request) {
+        return 0;
+    }
 }
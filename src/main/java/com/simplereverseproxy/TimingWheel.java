@@ -0,0 +1,266 @@
+package com.simplereverseproxy;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Proxy wide hierarchical timing wheel that tells the owners of expiring state, such as the request tables of
+ * throttle rules, when an entry is due. One thread serves every rule of every route instead of a scheduler
+ * thread per rule, and no full scans of the owners' state are needed: an entry is touched when it is scheduled,
+ * at most once per wheel level it cascades down through, and when it fires.
+ *
+ * Level 0 has {@link #LEVEL_0_SLOTS} slots of one tick each, every level above has {@link #UPPER_LEVEL_SLOTS}
+ * slots each spanning a full turn of the level below. Entries go into the lowest level whose range covers their
+ * deadline and move down a level each time the level below completes a turn. Deadlines beyond the top level are
+ * capped, the owner simply asks for the remaining time again when the entry fires.
+ *
+ * Entries are plain primitives in growable arrays, so scheduling does not allocate once the arrays have grown
+ * to the working set. Callers append to striped staging buffers, the wheel itself is only touched by its thread.
+ *
+ * The wheel runs while at least one {@link ReverseProxyServer} is started, see {@link #retain()} and
+ * {@link #release()}. Entries scheduled while it is stopped are kept and handled once it runs again.
+ */
+final class TimingWheel {
+
+    private static final Logger logger = Logger.getLogger(TimingWheel.class.getSimpleName());
+
+    static final long TICK_MILLIS = 100;
+    static final int LEVEL_0_SLOTS = 256;
+    static final int UPPER_LEVEL_SLOTS = 64;
+    private static final int LEVELS = 4;
+    private static final int[] SHIFTS = {0, 8, 14, 20};
+    private static final long MAX_DELAY_TICKS = (1L << 26) - 1;
+    private static final int STAGING_STRIPES = 16;
+
+    private static final TimingWheel SHARED = new TimingWheel("timing-wheel");
+
+    /**
+     * Owner of scheduled entries, called on the wheel thread when an entry is due.
+     */
+    interface Expiry {
+        /**
+         * @return milliseconds until the entry should be looked at again, or a negative value when it is done
+         */
+        long onExpiry(long key, long stamp, long nowMillis);
+    }
+
+    private final String threadName;
+    private final Entries[] staging = new Entries[STAGING_STRIPES];
+    private final Entries[][] wheel = new Entries[LEVELS][];
+    private final Entries drained = new Entries();
+    private final long startNanos = System.nanoTime();
+    private long currentTick;
+    private int retainCount;
+    private Thread thread;
+
+    TimingWheel(String threadName) {
+        this.threadName = threadName;
+        for (int i = 0; i < STAGING_STRIPES; i++) {
+            staging[i] = new Entries();
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            wheel[level] = new Entries[level == 0 ? LEVEL_0_SLOTS : UPPER_LEVEL_SLOTS];
+            for (int slot = 0; slot < wheel[level].length; slot++) {
+                wheel[level][slot] = new Entries();
+            }
+        }
+    }
+
+    static TimingWheel shared() {
+        return SHARED;
+    }
+
+    /**
+     * Has {@code owner} called back for {@code key} once {@code delayMillis} have passed. Thread safe and
+     * allocation free once the staging buffers have grown.
+     */
+    void schedule(Expiry owner, long key, long stamp, long delayMillis) {
+        long deadlineTick = tickAt(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+        Entries stripe = staging[(int) Thread.currentThread().getId() & (STAGING_STRIPES - 1)];
+        synchronized (stripe) {
+            stripe.add(owner, key, stamp, deadlineTick);
+        }
+    }
+
+    private long tickAt(long nanos) {
+        long ticks = TimeUnit.NANOSECONDS.toMillis(nanos - startNanos) / TICK_MILLIS;
+        // Round up, an entry must never fire before its deadline.
+        return ticks + 1;
+    }
+
+    /**
+     * Starts the wheel thread if it is not running yet. Every call has to be paired with {@link #release()}.
+     */
+    synchronized void retain() {
+        retainCount++;
+        // A thread still stopping sees the count and keeps running, so there is never a second one.
+        if (thread == null) {
+            thread = new Thread(this::run, threadName);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stops the wheel thread once every {@link #retain()} has been released, waiting up to a second for it to
+     * finish the tick it is in.
+     */
+    synchronized void release() {
+        if (retainCount == 0 || --retainCount > 0) {
+            return;
+        }
+        Thread stopping = thread;
+        LockSupport.unpark(stopping);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        try {
+            while (thread == stopping && retainCount == 0 && stopping != Thread.currentThread()) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    break;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    synchronized boolean isRunning() {
+        return thread != null;
+    }
+
+    private void run() {
+        while (true) {
+            synchronized (this) {
+                if (retainCount == 0) {
+                    thread = null;
+                    notifyAll();
+                    return;
+                }
+            }
+            drainStaging();
+            long targetTick = tickAt(System.nanoTime()) - 1;
+            while (currentTick < targetTick) {
+                advance(System.currentTimeMillis());
+            }
+            LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS));
+        }
+    }
+
+    private void drainStaging() {
+        for (Entries stripe : staging) {
+            synchronized (stripe) {
+                drained.addAll(stripe);
+                stripe.clear();
+            }
+        }
+        for (int i = 0; i < drained.size; i++) {
+            insert(drained.owners[i], drained.keys[i], drained.stamps[i], drained.deadlines[i]);
+        }
+        drained.clear();
+    }
+
+    private void insert(Expiry owner, long key, long stamp, long deadlineTick) {
+        long delta = deadlineTick - currentTick;
+        if (delta <= 0) {
+            // Already due, fire with the next tick.
+            deadlineTick = currentTick + 1;
+            delta = 1;
+        } else if (delta > MAX_DELAY_TICKS) {
+            deadlineTick = currentTick + MAX_DELAY_TICKS;
+            delta = MAX_DELAY_TICKS;
+        }
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1L << SHIFTS[level + 1]) {
+            level++;
+        }
+        Entries[] slots = wheel[level];
+        slots[(int) (deadlineTick >>> SHIFTS[level]) & (slots.length - 1)].add(owner, key, stamp, deadlineTick);
+    }
+
+    /**
+     * Moves the wheel one tick forward: cascades the upper level slots that are due into the levels below,
+     * then fires the level 0 slot of the new tick.
+     */
+    private void advance(long nowMillis) {
+        currentTick++;
+        for (int level = 1; level < LEVELS; level++) {
+            if ((currentTick & ((1L << SHIFTS[level]) - 1)) != 0) {
+                break;
+            }
+            Entries[] slots = wheel[level];
+            Entries due = slots[(int) (currentTick >>> SHIFTS[level]) & (slots.length - 1)];
+            drained.addAll(due);
+            due.clear();
+            for (int i = 0; i < drained.size; i++) {
+                insert(drained.owners[i], drained.keys[i], drained.stamps[i], drained.deadlines[i]);
+            }
+            drained.clear();
+        }
+        Entries slot = wheel[0][(int) currentTick & (LEVEL_0_SLOTS - 1)];
+        drained.addAll(slot);
+        slot.clear();
+        for (int i = 0; i < drained.size; i++) {
+            long again;
+            try {
+                again = drained.owners[i].onExpiry(drained.keys[i], drained.stamps[i], nowMillis);
+            } catch (RuntimeException e) {
+                logger.severe(String.format("%s: expiry callback failed %s", threadName, e));
+                continue;
+            }
+            if (again >= 0) {
+                insert(drained.owners[i], drained.keys[i], drained.stamps[i],
+                       currentTick + Math.max(1, (again + TICK_MILLIS - 1) / TICK_MILLIS));
+            }
+        }
+        drained.clear();
+    }
+
+    /**
+     * Growable parallel arrays holding entries without an object per entry.
+     */
+    private static final class Entries {
+        private Expiry[] owners = new Expiry[16];
+        private long[] keys = new long[16];
+        private long[] stamps = new long[16];
+        private long[] deadlines = new long[16];
+        private int size;
+
+        void add(Expiry owner, long key, long stamp, long deadline) {
+            if (size == keys.length) {
+                grow(size * 2);
+            }
+            owners[size] = owner;
+            keys[size] = key;
+            stamps[size] = stamp;
+            deadlines[size] = deadline;
+            size++;
+        }
+
+        void addAll(Entries other) {
+            if (size + other.size > keys.length) {
+                grow(Math.max(keys.length * 2, size + other.size));
+            }
+            System.arraycopy(other.owners, 0, owners, size, other.size);
+            System.arraycopy(other.keys, 0, keys, size, other.size);
+            System.arraycopy(other.stamps, 0, stamps, size, other.size);
+            System.arraycopy(other.deadlines, 0, deadlines, size, other.size);
+            size += other.size;
+        }
+
+        void clear() {
+            // Drop the owner references so rules of removed routes can be collected.
+            Arrays.fill(owners, 0, size, null);
+            size = 0;
+        }
+
+        private void grow(int capacity) {
+            owners = Arrays.copyOf(owners, capacity);
+            keys = Arrays.copyOf(keys, capacity);
+            stamps = Arrays.copyOf(stamps, capacity);
+            deadlines = Arrays.copyOf(deadlines, capacity);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.simplereverseproxy;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import com.sun.net.httpserver.HttpExchange;
+
+/**
+ * Token bucket rate limit per {@link ThrottleKey}, for limits like "500 requests per second per client with bursts
+ * of 50". Implemented as the generic cell rate algorithm: instead of a token count the rule keeps, per key, the
+ * theoretical arrival time the next request would have if requests arrived exactly at the configured rate. A
+ * request is let through if that time is less than a burst ahead of now, which moves it one interval further.
+ * The whole state is one {@code long} per key, so a decision is a single compare and set.
+ *
+ * Key state lives in a bounded {@link RateLimitTable}, see {@link Builder#maxKeys(int)}.
+ */
+public final class TokenBucketThrottleRule implements ThrottleRule {
+
+    private final ThrottleKey key;
+    // Nanoseconds between two requests at the configured rate.
+    private final long interval;
+    // How far the theoretical arrival time may run ahead of now, a full burst of intervals.
+    private final long tolerance;
+    private final RateLimitTable table;
+    // Times are taken relative to this so they are never negative and a state of 0 is always in the past.
+    private final long origin = System.nanoTime();
+
+    private TokenBucketThrottleRule(Builder b) {
+        if (b.requests <= 0 || b.per == null || b.per.isNegative() || b.per.isZero()) {
+            throw new IllegalArgumentException("Token bucket rate must be a positive number of requests per duration");
+        }
+        if (b.burst <= 0) {
+            throw new IllegalArgumentException("Token bucket burst must be greater than 0");
+        }
+        key = b.key;
+        interval = Math.max(1, b.per.toNanos() / b.requests);
+        tolerance = interval * b.burst;
+        table = new RateLimitTable(b.maxKeys, (tat, now) -> tat <= now);
+    }
+
+    @Override
+    public boolean throttleRequest(HttpExchange request) {
+        long now = System.nanoTime() - origin;
+        RateLimitTable.Slot slot = table.slot(key.keyOf(request), now);
+        while (true) {
+            long arrival = slot.get();
+            long next = Math.max(arrival, now) + interval;
+            if (next - now > tolerance) {
+                return true;
+            }
+            if (slot.compareAndSet(arrival, next)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Time until the key's theoretical arrival time is back within a burst of now.
+     */
+    @Override
+    public long retryAfterMillis(HttpExchange request) {
+        long now = System.nanoTime() - origin;
+        long wait = table.state(key.keyOf(request)) + interval - tolerance - now;
+        return wait <= 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(wait) + 1;
+    }
+
+    /**
+     * Number of keys whose state was evicted while still limiting them, because the table was full.
+     */
+    public long getEvictions() {
+        return table.getEvictions();
+    }
+
+    /**
+     * Number of keys currently limited by this rule.
+     */
+    int trackedKeys() {
+        return table.liveKeys(System.nanoTime() - origin);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private long requests;
+        private Duration per;
+        private int burst = 1;
+        private ThrottleKey key = ThrottleKey.remoteAddress();
+        private int maxKeys = RateLimitTable.DEFAULT_MAX_KEYS;
+
+        /**
+         * Sustained rate of {@code requests} per {@code per}.
+         */
+        public Builder rate(long requests, Duration per) {
+            this.requests = requests;
+            this.per = per;
+            return this;
+        }
+
+        /**
+         * Number of requests a key may send at once after being idle, 1 by default.
+         */
+        public Builder burst(int burst) {
+            this.burst = burst;
+            return this;
+        }
+
+        /**
+         * What requests are counted against, the client address by default.
+         */
+        public Builder key(ThrottleKey key) {
+            this.key = key;
+            return this;
+        }
+
+        /**
+         * Number of keys state is kept for, 65536 by default. Rounded up to a power of two.
+         */
+        public Builder maxKeys(int maxKeys) {
+            this.maxKeys = maxKeys;
+            return this;
+        }
+
+        public TokenBucketThrottleRule build() {
+            return new TokenBucketThrottleRule(this);
+        }
+    }
+}
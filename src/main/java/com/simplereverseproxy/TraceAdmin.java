@@ -0,0 +1,96 @@
+package com.simplereverseproxy;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * Admin endpoint for request tracing, served at {@link #CONTEXT}.
+ * <ul>
+ *     <li>{@code GET} dumps the kept traces, newest first, with the time spent in every phase</li>
+ *     <li>{@code PUT} changes what is traced, e.g. {@code {"sampleRate": 0.01, "slowerThanMillis": 250}}, a
+ *     missing field turns that kind of tracing off</li>
+ * </ul>
+ */
+final class TraceAdmin implements HttpHandler {
+
+    static final String CONTEXT = "/admin/traces";
+
+    private static final Logger logger = Logger.getLogger(TraceAdmin.class.getSimpleName());
+
+    private final RequestTracer tracer;
+
+    TraceAdmin(RequestTracer tracer) {
+        this.tracer = tracer;
+    }
+
+    @Override
+    public void handle(HttpExchange request) throws IOException {
+        String method = request.getRequestMethod().toUpperCase();
+        if (!request.getRequestURI().getPath().equals(CONTEXT)) {
+            respond(request, 404, Collections.singletonMap("error", "Unknown admin endpoint"));
+            return;
+        }
+        if (method.equals("GET")) {
+            List<Object> traces = new ArrayList<>();
+            for (RequestTrace trace : tracer.getTraces()) {
+                traces.add(trace.describe());
+            }
+            Map<String, Object> body = settings();
+            body.put("traces", traces);
+            respond(request, 200, body);
+            return;
+        }
+        if (!method.equals("PUT")) {
+            respond(request, 405, Collections.singletonMap("error", "Use GET or PUT"));
+            return;
+        }
+        try {
+            Object parsed = Json.parse(new String(request.getRequestBody().readAllBytes(), StandardCharsets.UTF_8));
+            if (!(parsed instanceof Map)) {
+                throw new IllegalArgumentException("body must be a JSON object");
+            }
+            Map<?, ?> settings = (Map<?, ?>) parsed;
+            Object sampleRate = settings.get("sampleRate");
+            Object slowerThanMillis = settings.get("slowerThanMillis");
+            if (sampleRate != null && !(sampleRate instanceof Number)
+                || slowerThanMillis != null && !(slowerThanMillis instanceof Long)) {
+                throw new IllegalArgumentException("sampleRate must be a number and slowerThanMillis a whole number");
+            }
+            tracer.configure(sampleRate == null ? 0 : ((Number) sampleRate).doubleValue(),
+                             slowerThanMillis == null ? null : Duration.ofMillis((Long) slowerThanMillis));
+            logger.info(String.format("Tracing sample rate %s, slow request threshold %s", tracer.getSampleRate(),
+                                      tracer.getSlowerThan()));
+            respond(request, 200, settings());
+        } catch (IllegalArgumentException e) {
+            respond(request, 400, Collections.singletonMap("error", e.getMessage()));
+        }
+    }
+
+    private Map<String, Object> settings() {
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("sampleRate", tracer.getSampleRate());
+        settings.put("slowerThanMillis", tracer.getSlowerThan().toMillis());
+        settings.put("capacity", tracer.getCapacity());
+        return settings;
+    }
+
+    private static void respond(HttpExchange request, int status, Object body) throws IOException {
+        byte[] response = Json.write(body).getBytes(StandardCharsets.UTF_8);
+        request.getResponseHeaders().set("Content-Type", "application/json");
+        request.sendResponseHeaders(status, response.length);
+        OutputStream os = request.getResponseBody();
+        os.write(response);
+        os.close();
+    }
+}
@@ -0,0 +1,205 @@
+package com.simplereverseproxy;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One upstream endpoint of a route. Besides its address it tracks the number of requests currently sent to it
+ * and an exponentially weighted moving average of its response latency, which the {@link LoadBalancer}s read
+ * to pick an endpoint, and the outcome of its calls in its {@link CircuitBreaker} if the route has breakers. All
+ * counters are plain atomics so recording a request never takes a lock. Routes with active health checks probe
+ * it with a {@link HealthCheck} as well.
+ */
+public final class Upstream {
+
+    public static final int DEFAULT_WEIGHT = 1;
+
+    // Weight of the newest sample in the latency average.
+    private static final double EWMA_ALPHA = 0.3;
+
+    private final String hostUrl;
+    private final URI uri;
+    private final int weight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong requests = new AtomicLong();
+    // Double bits of the average latency in nanoseconds, 0 until the first response.
+    private final AtomicLong ewmaLatencyNanos = new AtomicLong(Double.doubleToRawLongBits(0));
+    private UpstreamClient client;
+    private CircuitBreaker circuitBreaker;
+    private HealthCheck healthCheck;
+
+    Upstream(String hostUrl, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Upstream weight must be greater than 0");
+        }
+        this.hostUrl = hostUrl;
+        this.uri = URI.create(hostUrl);
+        this.weight = weight;
+    }
+
+    public String getHostUrl() {
+        return hostUrl;
+    }
+
+    URI getURI() {
+        return uri;
+    }
+
+    /**
+     * Gives the upstream its client, done once by its route before the route is published.
+     */
+    void client(UpstreamClient client) {
+        this.client = client;
+    }
+
+    /**
+     * Client sending the requests of this upstream. Its connection permits cap the connections to this upstream
+     * alone, so a slow upstream cannot take the connections of the others.
+     */
+    UpstreamClient getClient() {
+        return client;
+    }
+
+    /**
+     * Connections held for this upstream, see {@link UpstreamClient#getStats()}.
+     */
+    public UpstreamClient.ConnectionPoolStats getConnectionPoolStats() {
+        return client.getStats();
+    }
+
+    /**
+     * Gives the upstream a breaker, done once by its route before the route is published.
+     */
+    void circuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Breaker ejecting this upstream while it fails, or null if its route has no circuit breaking.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Gives the upstream its health check, done once by its route before the route is published.
+     */
+    void healthCheck(HealthCheck healthCheck) {
+        this.healthCheck = healthCheck;
+    }
+
+    /**
+     * Active health check of this upstream, or null if its route does not probe its upstreams.
+     */
+    public HealthCheck getHealthCheck() {
+        return healthCheck;
+    }
+
+    /**
+     * Whether the upstream may be sent a request now, false while it is unhealthy or its breaker ejects it. The
+     * breaker is only asked for healthy upstreams, so an unhealthy one takes none of its probe calls.
+     */
+    boolean allowRequest() {
+        return (healthCheck == null || healthCheck.isHealthy())
+               && (circuitBreaker == null || circuitBreaker.allowRequest());
+    }
+
+    /**
+     * Time until a request refused by {@link #allowRequest()} may be let through: the next health check of an
+     * unhealthy upstream, or the end of the open period of its breaker.
+     */
+    long getRetryAfterMillis() {
+        if (healthCheck != null && !healthCheck.isHealthy()) {
+            return healthCheck.getIntervalMillis();
+        }
+        return circuitBreaker == null ? 0 : circuitBreaker.getRetryAfterMillis();
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Number of requests sent to this upstream that have not finished yet.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * Moving average of the time until the upstream answered, in milliseconds.
+     */
+    public double getLatencyMillis() {
+        return latencyNanos() / 1_000_000d;
+    }
+
+    double latencyNanos() {
+        return Double.longBitsToDouble(ewmaLatencyNanos.get());
+    }
+
+    /**
+     * Marks the start of a request to this upstream and returns the start time to pass to
+     * {@link #recordLatency(long, int)}.
+     */
+    long begin() {
+        inFlight.incrementAndGet();
+        requests.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a response with {@code status} to a request started at {@code startNanos}, a 5xx status counting
+     * as a failed call for the breaker.
+     *
+     * @return the recorded latency
+     */
+    long recordLatency(long startNanos, int status) {
+        long latency = System.nanoTime() - startNanos;
+        recordLatencyNanos(latency);
+        if (circuitBreaker != null) {
+            circuitBreaker.record(status >= 500, latency);
+        }
+        return latency;
+    }
+
+    /**
+     * Records a request the upstream did not answer, counted as if it took {@code penaltyNanos}.
+     */
+    void recordFailure(long penaltyNanos) {
+        recordLatencyNanos(penaltyNanos);
+        if (circuitBreaker != null) {
+            circuitBreaker.record(true, penaltyNanos);
+        }
+    }
+
+    void recordLatencyNanos(long sample) {
+        for (;;) {
+            long current = ewmaLatencyNanos.get();
+            double average = Double.longBitsToDouble(current);
+            double updated = average == 0 ? sample : average + EWMA_ALPHA * (sample - average);
+            if (ewmaLatencyNanos.compareAndSet(current, Double.doubleToRawLongBits(updated))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Marks the end of a request started with {@link #begin()}.
+     */
+    void end() {
+        inFlight.decrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s weight=%d inFlight=%d requests=%d latency=%.2fms%s%s",
+                             hostUrl, weight, getInFlight(), getRequests(), getLatencyMillis(),
+                             circuitBreaker == null ? "" : " circuit=" + circuitBreaker.getState(),
+                             healthCheck == null ? "" : healthCheck.isHealthy() ? " healthy" : " unhealthy");
+    }
+}
@@ -0,0 +1,413 @@
+package com.simplereverseproxy;
+
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.simplereverseproxy.exceptions.UpstreamBusyException;
+
+/**
+ * Long-lived HTTP client used to talk to one upstream server of a route. Connections to the upstream are kept
+ * alive and reused across requests instead of paying for a new client, selector thread and handshake on every
+ * proxied request. The upstreams of a route each have their own instance, all sending on one JDK client, whose
+ * pool keeps the connections of each address apart.
+ *
+ * The JDK client does not expose its connection pool, so the number of concurrent exchanges with the upstream is
+ * capped here with a semaphore and the open, idle and handshake counts reported by {@link #getStats()} are estimates
+ * derived from that concurrency, not observed from sockets: an HTTP/1.1 connection is assumed to be opened only
+ * when every connection we already know of is busy, and the known connections are assumed closed once they have
+ * been idle for the keep-alive timeout. A pool that closes connections earlier, or an upstream that does not
+ * keep them alive, opens more connections than reported.
+ *
+ * The keep-alive timeout is one JVM wide setting of the JDK client, see
+ * {@link ReverseProxyServer.Builder#upstreamKeepAliveTimeout}.
+ */
+public final class UpstreamClient {
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+    // Keep-alive timeout of the JDK client when the property is not set.
+    static final Duration DEFAULT_KEEP_ALIVE_TIMEOUT = Duration.ofSeconds(1200);
+
+    private static final String KEEP_ALIVE_PROPERTY = "jdk.httpclient.keepalive.timeout";
+
+    private static volatile ExecutorService sharedExecutor;
+    private static boolean clientBuilt;
+
+    private final HttpClient httpClient;
+    private final Executor executor;
+    private final Semaphore connectionPermits;
+    private final ConcurrentLinkedQueue<CompletableFuture<Void>> waiters = new ConcurrentLinkedQueue<>();
+    private final int maxConnections;
+    private final long keepAliveNanos;
+    // Only true once the upstream actually negotiated HTTP/2, a preference alone does not multiplex anything.
+    private volatile boolean multiplexed;
+
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicInteger knownConnections = new AtomicInteger();
+    private final AtomicLong lastActivity = new AtomicLong(System.nanoTime());
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+
+    private UpstreamClient(Builder b, UpstreamClient sharing) {
+        maxConnections = b.maxConnections;
+        connectionPermits = new Semaphore(maxConnections, true);
+        keepAliveNanos = TimeUnit.SECONDS.toNanos(keepAliveTimeoutInForce());
+        if (sharing != null) {
+            executor = sharing.executor;
+            httpClient = sharing.httpClient;
+            return;
+        }
+
+        executor = b.executor != null ? b.executor : sharedExecutor();
+        HttpClient.Builder clientBuilder = HttpClient.newBuilder()
+                                                     .version(b.version)
+                                                     .executor(executor);
+        if (b.connectTimeout != null) {
+            clientBuilder.connectTimeout(b.connectTimeout);
+        }
+        httpClient = clientBuilder.build();
+    }
+
+    /**
+     * Seconds the JDK client keeps idle connections open, it reads the property when the first client of the JVM
+     * is created.
+     */
+    private static synchronized long keepAliveTimeoutInForce() {
+        clientBuilt = true;
+        String current = System.getProperty(KEEP_ALIVE_PROPERTY);
+        if (current != null) {
+            try {
+                return Long.parseLong(current.trim());
+            } catch (NumberFormatException e) {
+                // The JDK client falls back to its default as well.
+            }
+        }
+        return DEFAULT_KEEP_ALIVE_TIMEOUT.getSeconds();
+    }
+
+    /**
+     * Sets the JVM wide keep-alive timeout of the JDK client, see
+     * {@link ReverseProxyServer.Builder#upstreamKeepAliveTimeout}.
+     *
+     * @throws IllegalArgumentException if another timeout is already in force or a client was built before
+     */
+    static synchronized void applyKeepAliveTimeout(Duration keepAliveTimeout) {
+        if (keepAliveTimeout == null || keepAliveTimeout.isNegative() || keepAliveTimeout.isZero()) {
+            throw new IllegalArgumentException("Keep-alive timeout must be positive");
+        }
+        long seconds = Math.max(1, keepAliveTimeout.getSeconds());
+        String current = System.getProperty(KEEP_ALIVE_PROPERTY);
+        if (current != null && !current.trim().equals(String.valueOf(seconds))) {
+            throw new IllegalArgumentException(String.format(
+                    "Upstream keep-alive timeout is one JVM wide setting, already %s s, cannot be %d s",
+                    current, seconds));
+        }
+        if (current == null && clientBuilt) {
+            throw new IllegalArgumentException(
+                    "Upstream keep-alive timeout has to be set before the first route of the JVM is built");
+        }
+        System.setProperty(KEEP_ALIVE_PROPERTY, String.valueOf(seconds));
+    }
+
+    /**
+     * Executor shared by every upstream client that was not given a dedicated one.
+     */
+    public static Executor sharedExecutor() {
+        if (sharedExecutor == null) {
+            synchronized (UpstreamClient.class) {
+                if (sharedExecutor == null) {
+                    AtomicInteger threadCount = new AtomicInteger();
+                    sharedExecutor = Executors.newCachedThreadPool(r -> {
+                        Thread t = new Thread(r, "upstream-client-" + threadCount.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+                }
+            }
+        }
+        return sharedExecutor;
+    }
+
+    public HttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sends the request once a connection permit is available. Throws {@link UpstreamBusyException} if no
+     * permit frees up within {@code acquireTimeoutMillis}.
+     */
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler,
+                                    long acquireTimeoutMillis) throws IOException, InterruptedException {
+        acquire(acquireTimeoutMillis);
+        try {
+            HttpResponse<T> response = httpClient.send(request, bodyHandler);
+            onResponse(response);
+            return response;
+        } finally {
+            release();
+        }
+    }
+
+    /**
+     * Non blocking variant of {@link #send}. The permit is held until the returned future completes.
+     */
+    public <T> CompletableFuture<HttpResponse<T>> sendAsync(HttpRequest request,
+                                                            HttpResponse.BodyHandler<T> bodyHandler) {
+        return httpClient.sendAsync(request, bodyHandler).thenApply(response -> {
+            onResponse(response);
+            return response;
+        });
+    }
+
+    /**
+     * Opens up to {@code connections} keep-alive connections by sending {@code request} that many times at once,
+     * each on a free connection permit, so later requests find them in the pool. A request sent after another was
+     * answered may reuse its connection, so fewer can be opened. Completes with the number of requests that were
+     * answered.
+     */
+    CompletableFuture<Integer> warmUp(HttpRequest request, int connections) {
+        AtomicInteger answered = new AtomicInteger();
+        List<CompletableFuture<?>> sent = new ArrayList<>(connections);
+        for (int i = 0; i < connections && connectionPermits.tryAcquire(); i++) {
+            onAcquire();
+            sent.add(httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                               .whenComplete((response, error) -> {
+                                   release();
+                                   if (error == null) {
+                                       answered.incrementAndGet();
+                                   }
+                               }));
+        }
+        return CompletableFuture.allOf(sent.toArray(new CompletableFuture<?>[0]))
+                                .handle((ignored, error) -> answered.get());
+    }
+
+    void acquire(long acquireTimeoutMillis) throws InterruptedException {
+        if (!connectionPermits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw busy(acquireTimeoutMillis);
+        }
+        onAcquire();
+    }
+
+    /**
+     * Completes once a connection permit is held, without blocking the caller. Waiters are handed permits
+     * directly by {@link #release()}, and fail with {@link UpstreamBusyException} after the timeout.
+     */
+    CompletableFuture<Void> acquireAsync(long acquireTimeoutMillis) {
+        if (connectionPermits.tryAcquire()) {
+            onAcquire();
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        waiters.add(waiter);
+        // A permit may have been released between the failed attempt and queueing the waiter.
+        if (connectionPermits.tryAcquire()) {
+            waiters.remove(waiter);
+            if (waiter.complete(null)) {
+                onAcquire();
+            } else {
+                release(false);
+            }
+        }
+        return waiter.orTimeout(acquireTimeoutMillis, TimeUnit.MILLISECONDS)
+                     .exceptionally(error -> {
+                         throw error instanceof TimeoutException ? busy(acquireTimeoutMillis)
+                                                                 : new CompletionException(error);
+                     });
+    }
+
+    void release() {
+        release(true);
+    }
+
+    private void release(boolean acquired) {
+        if (acquired) {
+            inUse.decrementAndGet();
+            lastActivity.set(System.nanoTime());
+        }
+        CompletableFuture<Void> waiter;
+        while ((waiter = waiters.poll()) != null) {
+            if (waiter.complete(null)) {
+                onAcquire();
+                return;
+            }
+        }
+        connectionPermits.release();
+    }
+
+    private static UpstreamBusyException busy(long acquireTimeoutMillis) {
+        return new UpstreamBusyException(
+                String.format("No upstream connection available within %d ms", acquireTimeoutMillis));
+    }
+
+    /**
+     * Executor the upstream client completes its futures on.
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    void onResponse(HttpResponse<?> response) {
+        if (!multiplexed && response.version() == HttpClient.Version.HTTP_2) {
+            multiplexed = true;
+        }
+    }
+
+    private void onAcquire() {
+        long now = System.nanoTime();
+        int busy = inUse.incrementAndGet();
+        requests.incrementAndGet();
+        if (now - lastActivity.get() > keepAliveNanos) {
+            // Everything we knew about has been idle long enough to be closed by the pool.
+            knownConnections.set(busy - 1);
+        }
+        lastActivity.set(now);
+        int needed = multiplexed ? 1 : busy;
+        for (;;) {
+            int known = knownConnections.get();
+            if (needed <= known) {
+                return;
+            }
+            if (knownConnections.compareAndSet(known, needed)) {
+                handshakes.addAndGet(needed - known);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Connections in use and requests sent as counted, open, idle and handshakes as estimated, see the class
+     * comment.
+     */
+    public ConnectionPoolStats getStats() {
+        long now = System.nanoTime();
+        int busy = inUse.get();
+        int open = knownConnections.get();
+        if (now - lastActivity.get() > keepAliveNanos) {
+            open = busy;
+        }
+        open = Math.max(open, multiplexed ? Math.min(busy, 1) : busy);
+        return new ConnectionPoolStats(open, Math.max(0, open - busy), busy, requests.get(), handshakes.get());
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public static class Builder {
+        private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        private Duration connectTimeout;
+        private HttpClient.Version version = HttpClient.Version.HTTP_1_1;
+        private Executor executor;
+
+        public Builder maxConnections(int maxConnections) {
+            if (maxConnections <= 0) {
+                throw new IllegalArgumentException("maxConnections must be greater than 0");
+            }
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        public Builder connectTimeout(Duration connectTimeout) {
+            this.connectTimeout = connectTimeout;
+            return this;
+        }
+
+        public Builder version(HttpClient.Version version) {
+            this.version = version;
+            return this;
+        }
+
+        public Builder executor(Executor executor) {
+            this.executor = executor;
+            return this;
+        }
+
+        public UpstreamClient build() {
+            return new UpstreamClient(this, null);
+        }
+
+        /**
+         * Client with its own connection permits and statistics that sends on the JDK client of {@code sharing},
+         * for another upstream of the same route.
+         */
+        UpstreamClient build(UpstreamClient sharing) {
+            return new UpstreamClient(this, sharing);
+        }
+    }
+
+    /**
+     * Point in time view of the connections held for an upstream, or the upstreams of a route added up.
+     * Connections in use and requests are counted, the other figures are estimated from concurrency, see
+     * {@link UpstreamClient}.
+     */
+    public static final class ConnectionPoolStats {
+        private final int estimatedOpen;
+        private final int estimatedIdle;
+        private final int inUse;
+        private final long requests;
+        private final long estimatedHandshakes;
+
+        ConnectionPoolStats(int estimatedOpen, int estimatedIdle, int inUse, long requests, long estimatedHandshakes) {
+            this.estimatedOpen = estimatedOpen;
+            this.estimatedIdle = estimatedIdle;
+            this.inUse = inUse;
+            this.requests = requests;
+            this.estimatedHandshakes = estimatedHandshakes;
+        }
+
+        ConnectionPoolStats plus(ConnectionPoolStats other) {
+            return new ConnectionPoolStats(estimatedOpen + other.estimatedOpen, estimatedIdle + other.estimatedIdle,
+                                           inUse + other.inUse, requests + other.requests,
+                                           estimatedHandshakes + other.estimatedHandshakes);
+        }
+
+        public int getEstimatedOpen() {
+            return estimatedOpen;
+        }
+
+        public int getEstimatedIdle() {
+            return estimatedIdle;
+        }
+
+        public int getInUse() {
+            return inUse;
+        }
+
+        public long getRequests() {
+            return requests;
+        }
+
+        /**
+         * Connections the pool is estimated to have opened, a lower bound of the real handshakes.
+         */
+        public long getEstimatedHandshakes() {
+            return estimatedHandshakes;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("estimatedOpen=%d estimatedIdle=%d inUse=%d requests=%d estimatedHandshakes=%d",
+                                 estimatedOpen, estimatedIdle, inUse, requests, estimatedHandshakes);
+        }
+    }
+}
@@ -0,0 +1,7 @@
+package com.simplereverseproxy.exceptions;
+
+public class RouteOverloadedException extends RuntimeException {
+    public RouteOverloadedException(String format) {
+        super(format);
+    }
+}
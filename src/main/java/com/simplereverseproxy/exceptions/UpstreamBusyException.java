@@ -0,0 +1,7 @@
+package com.simplereverseproxy.exceptions;
+
+public class UpstreamBusyException extends RuntimeException {
+    public UpstreamBusyException(String format) {
+        super(format);
+    }
+}
@@ -0,0 +1,17 @@
+package com.simplereverseproxy.exceptions;
+
+public class UpstreamUnavailableException extends RuntimeException {
+    private final long retryAfterMillis;
+
+    public UpstreamUnavailableException(String format, long retryAfterMillis) {
+        super(format);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * Time until the first ejected upstream is tried again.
+     */
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+}
@@ -1,9 +1,14 @@
 package com.simplereverseproxy;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpClient;
@@ -11,11 +16,27 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpRequest.BodyPublishers;
 import java.net.http.HttpResponse;
 import java.net.http.HttpResponse.BodyHandlers;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 import org.junit.Test;
 import com.sun.net.httpserver.HttpServer;
+import com.simplereverseproxy.exceptions.UpstreamBusyException;
 
 /**
  * Unit test for simple App.
@@ -24,7 +45,16 @@ public class AppTest {
 
     private static final Logger logger = Logger.getLogger(AppTest.class.getSimpleName());
 
+    private static final int STREAM_CHUNK_SIZE = 64 * 1024;
+    private static final int STREAM_CHUNKS = 32;
+
     private static HttpServer service1, service2;
+    private static final AtomicInteger cachedRequests = new AtomicInteger();
+    private static final AtomicInteger herdRequests = new AtomicInteger();
+    // Client ports of the connections the proxy opened to the stubs, one per connection actually accepted.
+    private static final Set<Integer> upstreamConnections = ConcurrentHashMap.newKeySet();
+    private static final AtomicInteger hedgeRequests = new AtomicInteger();
+    private static final AtomicBoolean service2Healthy = new AtomicBoolean(true);
 
 
     @BeforeClass
@@ -32,6 +62,7 @@ public class AppTest {
         logger.info("Setting up backstream servers");
         service1 = HttpServer.create(new InetSocketAddress("localhost", 9000), 0);
         service1.createContext("/app1", (req) -> {
+            upstreamConnections.add(req.getRemoteAddress().getPort());
             StringBuilder sb = new StringBuilder();
             sb.append("Response from service 1.");
             sb.append("Query : " + req.getRequestURI().getQuery());
@@ -40,6 +71,69 @@ public class AppTest {
             os.write(sb.toString().getBytes());
             os.close();
         });
+        service1.createContext("/stream", (req) -> {
+            // Unknown length so the response is chunked all the way through the proxy.
+            String query = req.getRequestURI().getQuery();
+            int chunks = query == null ? STREAM_CHUNKS : Integer.parseInt(query.replaceAll(".*chunks=(\\d+).*", "$1"));
+            req.sendResponseHeaders(200, 0);
+            OutputStream os = req.getResponseBody();
+            byte[] chunk = new byte[STREAM_CHUNK_SIZE];
+            for (int i=0; i < chunks; i++) {
+                java.util.Arrays.fill(chunk, (byte) i);
+                os.write(chunk);
+            }
+            os.close();
+        });
+        service1.createContext("/lb", (req) -> {
+            upstreamConnections.add(req.getRemoteAddress().getPort());
+            byte[] response = "service 1".getBytes();
+            req.sendResponseHeaders(200, response.length);
+            OutputStream os = req.getResponseBody();
+            os.write(response);
+            os.close();
+        });
+        service1.createContext("/cached", (req) -> {
+            cachedRequests.incrementAndGet();
+            String query = req.getRequestURI().getQuery();
+            String etag = "\"v1\"";
+            if (query.contains("mode=fresh")) {
+                req.getResponseHeaders().set("Cache-Control", "max-age=60");
+            } else if (query.contains("mode=swr")) {
+                req.getResponseHeaders().set("Cache-Control", "max-age=1, stale-while-revalidate=30");
+            } else {
+                req.getResponseHeaders().set("Cache-Control", "no-cache");
+            }
+            req.getResponseHeaders().set("ETag", etag);
+            if (etag.equals(req.getRequestHeaders().getFirst("If-None-Match"))) {
+                req.sendResponseHeaders(304, -1);
+                req.close();
+                return;
+            }
+            byte[] response = ("Cached body " + query).getBytes();
+            req.getResponseHeaders().set("Content-Type", "text/plain");
+            req.sendResponseHeaders(200, response.length);
+            OutputStream os = req.getResponseBody();
+            os.write(response);
+            os.close();
+        });
+        service1.createContext("/health", (req) -> {
+            upstreamConnections.add(req.getRemoteAddress().getPort());
+            // With a body: the JDK client does not reuse a connection after a bodiless answer, defeating pre-warming.
+            req.sendResponseHeaders(200, 2);
+            req.getResponseBody().write("ok".getBytes());
+            req.close();
+        });
+        service1.createContext("/compressible", (req) -> {
+            String query = req.getRequestURI().getQuery();
+            byte[] response = compressibleBody(Integer.parseInt(query.replaceAll(".*size=(\\d+).*", "$1")));
+            req.getResponseHeaders().set("Content-Type", query.contains("type=png") ? "image/png" : "application/json");
+            req.getResponseHeaders().set("Cache-Control", "max-age=60");
+            req.getResponseHeaders().set("ETag", "\"c1\"");
+            req.sendResponseHeaders(200, response.length);
+            OutputStream os = req.getResponseBody();
+            os.write(response);
+            os.close();
+        });
         service1.start();
 
         service2 = HttpServer.create(new InetSocketAddress("localhost", 9001), 0);
@@ -52,6 +146,75 @@ public class AppTest {
             os.write(sb.toString().getBytes());
             os.close();
         });
+        service2.createContext("/slow", (req) -> {
+            String query = req.getRequestURI().getQuery();
+            try {
+                Thread.sleep(Long.parseLong(query.split("&")[0].split("=")[1]));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            String response = "Slow response";
+            req.sendResponseHeaders(200, response.length());
+            OutputStream os = req.getResponseBody();
+            os.write(response.getBytes());
+            os.close();
+        });
+        service2.createContext("/lb", (req) -> {
+            upstreamConnections.add(req.getRemoteAddress().getPort());
+            byte[] response = "service 2".getBytes();
+            req.sendResponseHeaders(200, response.length);
+            OutputStream os = req.getResponseBody();
+            os.write(response);
+            os.close();
+        });
+        service2.createContext("/herd", (req) -> {
+            herdRequests.incrementAndGet();
+            try {
+                Thread.sleep(300);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] response = ("Herd " + req.getRequestURI().getQuery()).getBytes();
+            req.sendResponseHeaders(200, response.length);
+            OutputStream os = req.getResponseBody();
+            os.write(response);
+            os.close();
+        });
+        service2.createContext("/health", (req) -> {
+            upstreamConnections.add(req.getRemoteAddress().getPort());
+            req.sendResponseHeaders(service2Healthy.get() ? 200 : 503, 2);
+            req.getResponseBody().write("ok".getBytes());
+            req.close();
+        });
+        service2.createContext("/hedge", (req) -> {
+            // Every other request is slow, so a hedge sent after the first one is answered right away.
+            if (hedgeRequests.incrementAndGet() % 2 == 1) {
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] response = "Hedged".getBytes();
+            req.sendResponseHeaders(200, response.length);
+            OutputStream os = req.getResponseBody();
+            os.write(response);
+            os.close();
+        });
+        service2.createContext("/stall", (req) -> {
+            // Sends the head and the start of the body, then nothing for longer than the proxy waits.
+            req.sendResponseHeaders(200, 1024);
+            OutputStream os = req.getResponseBody();
+            os.write(new byte[16]);
+            os.flush();
+            try {
+                Thread.sleep(2000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            req.close();
+        });
+        service2.setExecutor(Executors.newCachedThreadPool());
         service2.start();
     }
 
@@ -88,7 +251,7 @@ public class AppTest {
 
         // Call again and the request will be throttled since it is canonical identical
         response = client.send(httpRequest, BodyHandlers.ofByteArray());
-        assertTrue(response.statusCode() == 404);
+        assertTrue(response.statusCode() == 429);
         assertTrue(new String(response.body()).contains("Too many requests. Try again later"));
 
         Thread.sleep(1000); // Pass the throttle threshold and try again
@@ -113,7 +276,7 @@ public class AppTest {
                                      .uri(new URI("http://localhost:8000/app1/"+ i+1))
                                      .GET().build();
             response = client.send(httpRequest, BodyHandlers.ofByteArray());
-            assertTrue(response.statusCode() == 404);
+            assertTrue(response.statusCode() == 429);
             assertTrue(new String(response.body()).contains("Too many requests. Try again later"));
         }
 
@@ -156,7 +319,7 @@ public class AppTest {
                                  .GET().build();
         // Call again and the request will be throttled since it is canonical identical
         response = client.send(httpRequest, BodyHandlers.ofByteArray());
-        assertTrue(response.statusCode() == 404);
+        assertTrue(response.statusCode() == 429);
         assertTrue(new String(response.body()).contains("Too many requests. Try again later"));
 
         Thread.sleep(5000);
@@ -185,7 +348,7 @@ public class AppTest {
 
 
         response = client.send(httpRequest, BodyHandlers.ofByteArray());
-        assertTrue(response.statusCode() == 404);
+        assertTrue(response.statusCode() == 429);
         assertTrue(new String(response.body()).contains("Too many requests. Try again later"));
 
         httpRequest = HttpRequest.newBuilder()
@@ -248,7 +411,7 @@ public class AppTest {
                                      .uri(new URI("http://localhost:8000/app1/"+ i+1))
                                      .GET().build();
             response = client.send(httpRequest, BodyHandlers.ofByteArray());
-            assertTrue(response.statusCode() == 404);
+            assertTrue(response.statusCode() == 429);
             assertTrue(new String(response.body()).contains("Too many requests. Try again later"));
         }
 
@@ -267,5 +430,1529 @@ public class AppTest {
         proxyServer.shutdown();
     }
 
+    @Test
+    public void testUpstreamConnectionsAreReused() throws Exception {
+        final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                 .hostName("localhost").port(8000)
+                                                                 .routeConfig(RouteConfig.builder().appContext("app1")
+                                                                                         .hostUrl("http://localhost:9000")
+                                                                                         .maxConnections(4).build())
+                                                                 .build();
+        proxyServer.start();
+        upstreamConnections.clear();
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            for (int i=0; i < 10; i++) {
+                HttpRequest httpRequest = HttpRequest.newBuilder()
+                                                     .uri(new URI("http://localhost:8000/app1/reuse" + i))
+                                                     .GET().build();
+                HttpResponse<byte[]> response = client.send(httpRequest, BodyHandlers.ofByteArray());
+                assertTrue(response.statusCode() == 200);
+            }
+
+            // Sequential requests only ever need a single upstream connection, as accepted by the stub.
+            assertEquals(1, upstreamConnections.size());
+            UpstreamClient.ConnectionPoolStats stats = proxyServer.getConnectionPoolStats("app1");
+            assertEquals(10, stats.getRequests());
+            assertEquals(1, stats.getEstimatedHandshakes());
+            assertEquals(0, stats.getInUse());
+        } finally {
+            proxyServer.shutdown();
+        }
+
+        // The cap is per upstream, one busy upstream leaves the connections of the other alone.
+        RouteConfig pair = RouteConfig.builder().appContext("pair").hostUrl("http://localhost:9000")
+                                      .upstream("http://localhost:9001").maxConnections(1).build();
+        UpstreamClient first = pair.getUpstreams().get(0).getClient();
+        UpstreamClient second = pair.getUpstreams().get(1).getClient();
+        assertTrue(first.getHttpClient() == second.getHttpClient());
+        first.acquire(0);
+        try {
+            first.acquire(0);
+            fail("The first upstream has a single connection");
+        } catch (UpstreamBusyException expected) {
+        }
+        second.acquire(0);
+        assertEquals(1, pair.getUpstreams().get(1).getConnectionPoolStats().getInUse());
+        assertEquals(2, pair.getConnectionPoolStats().getInUse());
+        first.release();
+        second.release();
+
+        // The JDK client has read its keep-alive timeout by now, it can no longer be changed.
+        try {
+            ReverseProxyServer.builder().upstreamKeepAliveTimeout(Duration.ofSeconds(7));
+            fail("The keep-alive timeout is read with the first client");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testStreamingRelay() throws Exception {
+        final Server proxyServer = ReverseProxyServer.builder()
+                                                     .hostName("localhost").port(8000)
+                                                     .bufferPool(4096, 4)
+                                                     .routeConfig(RouteConfig.builder().appContext("stream")
+                                                                             .hostUrl("http://localhost:9000")
+                                                                             .streaming(true).build())
+                                                     .build();
+        proxyServer.start();
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            HttpRequest httpRequest = HttpRequest.newBuilder()
+                                                 .uri(new URI("http://localhost:8000/stream"))
+                                                 .GET().build();
+            HttpResponse<byte[]> response = client.send(httpRequest, BodyHandlers.ofByteArray());
+            assertEquals(200, response.statusCode());
+            byte[] body = response.body();
+            assertEquals(STREAM_CHUNK_SIZE * STREAM_CHUNKS, body.length);
+            for (int i=0; i < STREAM_CHUNKS; i++) {
+                assertEquals((byte) i, body[i * STREAM_CHUNK_SIZE]);
+                assertEquals((byte) i, body[(i + 1) * STREAM_CHUNK_SIZE - 1]);
+            }
+        } finally {
+            proxyServer.shutdown();
+        }
+    }
+
+    @Test
+    public void testClientHangingUpIsNotAnUpstreamFailure() throws Exception {
+        for (boolean streaming : new boolean[] {true, false}) {
+            final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                     .hostName("localhost").port(8000)
+                                                                     .routeConfig(RouteConfig.builder().appContext("stream")
+                                                                                             .hostUrl("http://localhost:9000")
+                                                                                             .streaming(streaming)
+                                                                                             .circuitBreaker(CircuitBreaker.builder().minimumCalls(1))
+                                                                                             .concurrencyLimit(ConcurrencyLimiter.fixed(4))
+                                                                                             .build())
+                                                                     .build();
+            proxyServer.start();
+            try {
+                // 32 MiB is far more than the socket buffers hold, the proxy is still writing when the client resets.
+                try (Socket socket = new Socket("localhost", 8000)) {
+                    socket.getOutputStream().write("GET /stream?chunks=512 HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                    assertTrue(socket.getInputStream().read(new byte[1024]) > 0);
+                    socket.setSoLinger(true, 0);
+                }
+                ConcurrencyLimiter limiter = proxyServer.getConcurrencyLimiter("stream");
+                awaitPermitsReturned(limiter);
+                assertEquals(0, limiter.getInFlight());
+                assertEquals("streaming " + streaming, 0, proxyServer.getMetrics("stream").getUpstreamErrors());
+                assertEquals("streaming " + streaming, CircuitBreaker.State.CLOSED,
+                             proxyServer.getUpstreams("stream").get(0).getCircuitBreaker().getState());
+            } finally {
+                proxyServer.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncRoutingDoesNotHoldWorkerThreads() throws Exception {
+        final Server proxyServer = ReverseProxyServer.builder()
+                                                     .hostName("localhost").port(8000)
+                                                     .threadPoolSize(1).requestTimeout(1000)
+                                                     .asyncRouting(true)
+                                                     .routeConfig(RouteConfig.builder().appContext("slow")
+                                                                             .hostUrl("http://localhost:9001").build())
+                                                     .build();
+        proxyServer.start();
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            long start = System.currentTimeMillis();
+            CompletableFuture<?>[] responses = new CompletableFuture<?>[4];
+            for (int i=0; i < responses.length; i++) {
+                HttpRequest httpRequest = HttpRequest.newBuilder()
+                                                     .uri(new URI("http://localhost:8000/slow?delay=500&i=" + i))
+                                                     .GET().build();
+                responses[i] = client.sendAsync(httpRequest, BodyHandlers.ofString())
+                                     .thenAccept(response -> assertEquals(response.body(), 200, response.statusCode()));
+            }
+            CompletableFuture.allOf(responses).join();
+            // A single worker thread blocking on each upstream call would need at least 2 seconds.
+            assertTrue(System.currentTimeMillis() - start < 1500);
+
+            HttpRequest httpRequest = HttpRequest.newBuilder()
+                                                 .uri(new URI("http://localhost:8000/slow?delay=1500"))
+                                                 .GET().build();
+            HttpResponse<String> response = client.send(httpRequest, BodyHandlers.ofString());
+            assertEquals(504, response.statusCode());
+        } finally {
+            proxyServer.shutdown();
+        }
+    }
+
+    @Test
+    public void testNioEngine() throws Exception {
+        final Server proxyServer = ReverseProxyServer.builder()
+                                                     .hostName("localhost").port(8000)
+                                                     .engine(ServerEngine.NIO).eventLoops(2)
+                                                     .requestTimeout(1000)
+                                                     .routeConfig(RouteConfig.builder().appContext("app1")
+                                                                             .hostUrl("http://localhost:9000")
+                                                                             .throttleRule(new TimeBasedThrottleRule(5000))
+                                                                             .build())
+                                                     .routeConfig(RouteConfig.builder().appContext("stream")
+                                                                             .hostUrl("http://localhost:9000").build())
+                                                     .routeConfig(RouteConfig.builder().appContext("slow")
+                                                                             .hostUrl("http://localhost:9001").build())
+                                                     .build();
+        proxyServer.start();
+        try {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder()
+                                                                   .uri(new URI("http://localhost:8000/app1/nio?q=1"))
+                                                                   .GET().build(), BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            assertTrue(response.body().contains("Response from service 1.Query : q=1"));
+
+            response = client.send(HttpRequest.newBuilder().uri(new URI("http://localhost:8000/app1/nio?q=1")).GET().build(),
+                                   BodyHandlers.ofString());
+            assertEquals(429, response.statusCode());
+            assertTrue(response.body().contains("Too many requests. Try again later"));
+
+            response = client.send(HttpRequest.newBuilder().uri(new URI("http://localhost:8000/unknown")).GET().build(),
+                                   BodyHandlers.ofString());
+            assertEquals(404, response.statusCode());
+
+            // Chunked upstream body relayed untouched.
+            HttpResponse<byte[]> streamed = client.send(HttpRequest.newBuilder()
+                                                                   .uri(new URI("http://localhost:8000/stream")).GET().build(),
+                                                        BodyHandlers.ofByteArray());
+            assertEquals(200, streamed.statusCode());
+            assertEquals(STREAM_CHUNK_SIZE * STREAM_CHUNKS, streamed.body().length);
+            assertEquals((byte) (STREAM_CHUNKS - 1), streamed.body()[streamed.body().length - 1]);
+
+            response = client.send(HttpRequest.newBuilder().uri(new URI("http://localhost:8000/slow?delay=1500")).GET().build(),
+                                   BodyHandlers.ofString());
+            assertEquals(504, response.statusCode());
+
+            response = client.send(HttpRequest.newBuilder().uri(new URI("http://localhost:8000/config?app=app1&time=100"))
+                                              .POST(BodyPublishers.noBody()).build(), BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            assertTrue(response.body().contains("Update successfully applied"));
+
+            // Two pipelined requests on one connection are answered in order.
+            try (java.net.Socket socket = new java.net.Socket("localhost", 8000)) {
+                String requests = "GET /app1/pipelined?n=1 HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                                  + "GET /app1/pipelined?n=2 HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+                socket.getOutputStream().write(requests.getBytes());
+                String responses = new String(socket.getInputStream().readAllBytes());
+                assertTrue(responses.indexOf("Query : n=1") > 0);
+                assertTrue(responses.indexOf("Query : n=2") > responses.indexOf("Query : n=1"));
+            }
+        } finally {
+            proxyServer.shutdown();
+        }
+    }
+
+    @Test
+    public void testNioTimesOutStalledResponses() throws Exception {
+        final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                 .hostName("localhost").port(8000)
+                                                                 .engine(ServerEngine.NIO).requestTimeout(400)
+                                                                 .routeConfig(RouteConfig.builder().appContext("stall")
+                                                                                         .hostUrl("http://localhost:9001")
+                                                                                         .concurrencyLimit(ConcurrencyLimiter.fixed(4))
+                                                                                         .build())
+                                                                 .routeConfig(RouteConfig.builder().appContext("stream")
+                                                                                         .hostUrl("http://localhost:9000")
+                                                                                         .concurrencyLimit(ConcurrencyLimiter.fixed(4))
+                                                                                         .build())
+                                                                 .build();
+        proxyServer.start();
+        try {
+            // The upstream stops in the middle of the body, the client gets a cut short response.
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            long start = System.currentTimeMillis();
+            try {
+                get(client, "http://localhost:8000/stall");
+                fail("A stalled response must be cut short");
+            } catch (IOException expected) {
+            }
+            assertTrue(System.currentTimeMillis() - start < 1500);
+            awaitPermitsReturned(proxyServer.getConcurrencyLimiter("stall"));
+            assertEquals(0, proxyServer.getConcurrencyLimiter("stall").getInFlight());
+            assertEquals(1, proxyServer.getMetrics("stall").getUpstreamTimeouts());
+
+            // The client stops reading, its connection is closed and the upstream let go.
+            try (Socket socket = new Socket("localhost", 8000)) {
+                socket.getOutputStream().write("GET /stream?chunks=512 HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes());
+                awaitCondition(() -> proxyServer.getUpstreams("stream").get(0).getRequests() == 1);
+                awaitPermitsReturned(proxyServer.getConcurrencyLimiter("stream"));
+                assertEquals(0, proxyServer.getConcurrencyLimiter("stream").getInFlight());
+                assertEquals(0, proxyServer.getUpstreams("stream").get(0).getInFlight());
+                assertEquals(0, proxyServer.getMetrics("stream").getUpstreamErrors());
+            }
+        } finally {
+            proxyServer.shutdown();
+        }
+    }
+
+    @Test
+    public void testLoadBalancingAcrossUpstreams() throws Exception {
+        final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                     .hostName("localhost").port(8000)
+                                                     .routeConfig(RouteConfig.builder().appContext("lb")
+                                                                             .hostUrl("http://localhost:9000")
+                                                                             .upstream("http://localhost:9001")
+                                                                             .build())
+                                                     .build();
+        proxyServer.start();
+        HttpClient client = HttpClient.newHttpClient();
+        int[] served = new int[2];
+        try {
+            for (int i = 0; i < 10; i++) {
+                HttpResponse<String> response = client.send(HttpRequest.newBuilder()
+                                                                       .uri(new URI("http://localhost:8000/lb?i=" + i))
+                                                                       .GET().build(), BodyHandlers.ofString());
+                assertEquals(200, response.statusCode());
+                served[response.body().equals("service 1") ? 0 : 1]++;
+            }
+            assertEquals(5, served[0]);
+            assertEquals(5, served[1]);
+            for (Upstream upstream : proxyServer.getUpstreams("lb")) {
+                assertEquals(5, upstream.getRequests());
+                assertEquals(0, upstream.getInFlight());
+                assertTrue(upstream.getLatencyMillis() > 0);
+            }
+        } finally {
+            proxyServer.shutdown();
+        }
+
+        final ReverseProxyServer hashingProxy = ReverseProxyServer.builder()
+                                                     .hostName("localhost").port(8000)
+                                                     .routeConfig(RouteConfig.builder().appContext("lb")
+                                                                             .upstream("http://localhost:9000")
+                                                                             .upstream("http://localhost:9001")
+                                                                             .loadBalancing(LoadBalancingStrategy.CONSISTENT_HASH)
+                                                                             .build())
+                                                     .build();
+        hashingProxy.start();
+        try {
+            served = new int[2];
+            for (int key = 0; key < 20; key++) {
+                String first = null;
+                for (int i = 0; i < 3; i++) {
+                    // Same parameters in a different order are the same request key.
+                    String query = i % 2 == 0 ? "a=" + key + "&b=1" : "b=1&a=" + key;
+                    HttpResponse<String> response = client.send(HttpRequest.newBuilder()
+                                                                           .uri(new URI("http://localhost:8000/lb?" + query))
+                                                                           .GET().build(), BodyHandlers.ofString());
+                    if (first == null) {
+                        first = response.body();
+                        served[first.equals("service 1") ? 0 : 1]++;
+                    }
+                    assertEquals(first, response.body());
+                }
+            }
+            assertTrue(served[0] > 0 && served[1] > 0);
+        } finally {
+            hashingProxy.shutdown();
+        }
+    }
+
+    @Test
+    public void testResponseCache() throws Exception {
+        final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                     .hostName("localhost").port(8000)
+                                                     .routeConfig(RouteConfig.builder().appContext("cached")
+                                                                             .hostUrl("http://localhost:9000")
+                                                                             .responseCache(1024 * 1024)
+                                                                             .concurrencyLimit(ConcurrencyLimiter.fixed(4))
+                                                                             .build())
+                                                     .build();
+        proxyServer.start();
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+
+            // Fresh for a minute, parameter order does not matter.
+            cachedRequests.set(0);
+            HttpResponse<String> response = get(client, "http://localhost:8000/cached?mode=fresh&a=1");
+            assertEquals("MISS", response.headers().firstValue("X-Cache").orElse(null));
+            assertEquals("text/plain", response.headers().firstValue("Content-Type").orElse(null));
+            response = get(client, "http://localhost:8000/cached?a=1&mode=fresh");
+            assertEquals(200, response.statusCode());
+            assertEquals("HIT", response.headers().firstValue("X-Cache").orElse(null));
+            assertEquals("Cached body mode=fresh&a=1", response.body());
+            assertEquals(1, cachedRequests.get());
+
+            // The client already has this version.
+            HttpResponse<String> notModified = client.send(HttpRequest.newBuilder()
+                                                                      .uri(new URI("http://localhost:8000/cached?mode=fresh&a=1"))
+                                                                      .header("If-None-Match", "\"v1\"").GET().build(),
+                                                           BodyHandlers.ofString());
+            assertEquals(304, notModified.statusCode());
+            assertEquals(1, cachedRequests.get());
+
+            // no-cache is revalidated with the ETag on every request.
+            get(client, "http://localhost:8000/cached?mode=etag");
+            response = get(client, "http://localhost:8000/cached?mode=etag");
+            assertEquals(200, response.statusCode());
+            assertEquals("REVALIDATED", response.headers().firstValue("X-Cache").orElse(null));
+            assertEquals("Cached body mode=etag", response.body());
+            assertEquals(3, cachedRequests.get());
+
+            // Expired but within stale-while-revalidate, served stale and refreshed in the background.
+            get(client, "http://localhost:8000/cached?mode=swr");
+            Thread.sleep(1100);
+            response = get(client, "http://localhost:8000/cached?mode=swr");
+            assertEquals("STALE", response.headers().firstValue("X-Cache").orElse(null));
+            assertEquals("Cached body mode=swr", response.body());
+            for (int i = 0; i < 50 && cachedRequests.get() < 5; i++) {
+                Thread.sleep(20);
+            }
+            assertEquals(5, cachedRequests.get());
+            Thread.sleep(50);
+            response = get(client, "http://localhost:8000/cached?mode=swr");
+            assertEquals("HIT", response.headers().firstValue("X-Cache").orElse(null));
+
+            ResponseCache.CacheStats stats = proxyServer.getCacheStats("cached");
+            assertEquals(3, stats.getEntries());
+            assertTrue(stats.getBytes() > 0);
+            assertTrue(stats.getHitRatio() > 0.5);
+
+            // The refresh takes a permit, a route at its limit skips it and the next stale hit refreshes.
+            ConcurrencyLimiter limiter = proxyServer.getConcurrencyLimiter("cached");
+            Thread.sleep(1100);
+            awaitPermitsReturned(limiter);
+            int held = 0;
+            while (limiter.tryAcquire()) {
+                held++;
+            }
+            assertEquals(4, held);
+            int before = cachedRequests.get();
+            response = get(client, "http://localhost:8000/cached?mode=swr");
+            assertEquals("STALE", response.headers().firstValue("X-Cache").orElse(null));
+            Thread.sleep(100);
+            assertEquals(before, cachedRequests.get());
+            for (int i = 0; i < held; i++) {
+                limiter.release(0, ConcurrencyLimiter.Outcome.IGNORED);
+            }
+            response = get(client, "http://localhost:8000/cached?mode=swr");
+            assertEquals("STALE", response.headers().firstValue("X-Cache").orElse(null));
+            awaitCondition(() -> cachedRequests.get() == before + 1);
+            awaitPermitsReturned(limiter);
+            assertEquals(0, limiter.getInFlight());
+        } finally {
+            proxyServer.shutdown();
+        }
+    }
+
+    private static HttpResponse<String> get(HttpClient client, String uri) throws Exception {
+        return client.send(HttpRequest.newBuilder().uri(new URI(uri)).GET().build(), BodyHandlers.ofString());
+    }
+
+    @Test
+    public void testIdenticalRequestsAreCoalesced() throws Exception {
+        for (boolean asyncRouting : new boolean[] {false, true}) {
+            final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                         .hostName("localhost").port(8000)
+                                                         .threadPoolSize(20).asyncRouting(asyncRouting)
+                                                         .routeConfig(RouteConfig.builder().appContext("herd")
+                                                                                 .hostUrl("http://localhost:9001")
+                                                                                 .coalesceRequests()
+                                                                                 .build())
+                                                         .build();
+            proxyServer.start();
+            try {
+                herdRequests.set(0);
+                HttpClient client = HttpClient.newHttpClient();
+                List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+                for (int i = 0; i < 10; i++) {
+                    responses.add(client.sendAsync(HttpRequest.newBuilder()
+                                                              .uri(new URI("http://localhost:8000/herd?a=1&b=2"))
+                                                              .GET().build(), BodyHandlers.ofString()));
+                }
+                for (CompletableFuture<HttpResponse<String>> response : responses) {
+                    assertEquals(200, response.get().statusCode());
+                    assertEquals("Herd a=1&b=2", response.get().body());
+                }
+                RequestCoalescer.CoalescingStats stats = proxyServer.getCoalescingStats("herd");
+                assertEquals(herdRequests.get(), stats.getLeaders());
+                assertEquals(10, stats.getLeaders() + stats.getCollapsed());
+                assertTrue("upstream saw " + herdRequests.get() + " requests", herdRequests.get() <= 2);
+                assertEquals(0, stats.getInFlight());
+            } finally {
+                proxyServer.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testThrottleKeysAndStoreUnderContention() throws Exception {
+        assertEquals(RequestKeys.hash64("/app1/x", "a=1&b=2"), RequestKeys.hash64("/app1/x", "b=2&a=1"));
+        assertTrue(RequestKeys.hash64("/app1/x", "a=1&b=2") != RequestKeys.hash64("/app1/x", "a=2&b=1"));
+        assertTrue(RequestKeys.hash64("/app1/x", "a=1") != RequestKeys.hash64("/app1/xa=1", null));
+
+        // Of many threads racing on the same key exactly one gets through.
+        LongLongTable table = new LongLongTable();
+        int threads = 16;
+        for (int round = 0; round < 50; round++) {
+            long key = RequestKeys.hash64("/race", "round=" + round);
+            AtomicInteger admitted = new AtomicInteger();
+            java.util.concurrent.CountDownLatch start = new java.util.concurrent.CountDownLatch(1);
+            List<Thread> racers = new ArrayList<>();
+            for (int i = 0; i < threads; i++) {
+                Thread racer = new Thread(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    if (table.setIfExpired(key, 1000, 500)) {
+                        admitted.incrementAndGet();
+                    }
+                });
+                racer.start();
+                racers.add(racer);
+            }
+            start.countDown();
+            for (Thread racer : racers) {
+                racer.join();
+            }
+            assertEquals(1, admitted.get());
+        }
+
+        // Grows, expires and shifts entries back without losing any.
+        for (long i = 1; i <= 10_000; i++) {
+            assertTrue(table.setIfExpired(RequestKeys.mix(i), i % 2 == 0 ? 100 : 2000, 500));
+        }
+        assertEquals(10_050, table.size());
+        assertEquals(5_000, table.removeExpired(1000, 500));
+        assertEquals(5_050, table.size());
+        for (long i = 1; i <= 10_000; i++) {
+            assertEquals(i % 2 == 0 ? -1 : 2000, table.get(RequestKeys.mix(i), -1));
+        }
+    }
+
+    @Test
+    public void testThrottleStateExpiresOnSharedTimingWheel() throws Exception {
+        int threadsBefore = Thread.activeCount();
+        for (int i = 0; i < 100; i++) {
+            new TimeBasedThrottleRule(1000);
+        }
+        assertTrue(Thread.activeCount() <= threadsBefore + 2);
+
+        TimeBasedThrottleRule rule = new TimeBasedThrottleRule(200);
+        final Server proxyServer = ReverseProxyServer.builder()
+                                                     .hostName("localhost").port(8000)
+                                                     .routeConfig(RouteConfig.builder().appContext("app1")
+                                                                             .hostUrl("http://localhost:9000")
+                                                                             .throttleRule(rule).build())
+                                                     .build();
+        proxyServer.start();
+        try {
+            assertTrue(TimingWheel.shared().isRunning());
+            HttpClient client = HttpClient.newHttpClient();
+            for (int i = 0; i < 5; i++) {
+                assertEquals(200, get(client, "http://localhost:8000/app1/expiry?i=" + i).statusCode());
+            }
+            assertEquals(429, get(client, "http://localhost:8000/app1/expiry?i=0").statusCode());
+            assertEquals(5, rule.trackedRequests());
+            for (int i = 0; i < 40 && rule.trackedRequests() > 0; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(0, rule.trackedRequests());
+            assertEquals(200, get(client, "http://localhost:8000/app1/expiry?i=0").statusCode());
+        } finally {
+            proxyServer.shutdown();
+        }
+        assertTrue(!TimingWheel.shared().isRunning());
+
+        // Servers starting while another one stops share the stopping thread rather than start a second one.
+        TimingWheel wheel = new TimingWheel("wheel-under-test");
+        AtomicInteger most = new AtomicInteger();
+        List<Thread> servers = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            servers.add(new Thread(() -> {
+                for (int i = 0; i < 100; i++) {
+                    wheel.retain();
+                    most.accumulateAndGet(threadsNamed("wheel-under-test"), Math::max);
+                    wheel.release();
+                }
+            }));
+        }
+        servers.forEach(Thread::start);
+        for (Thread server : servers) {
+            server.join();
+        }
+        assertEquals(1, most.get());
+        assertFalse(wheel.isRunning());
+        assertEquals(0, threadsNamed("wheel-under-test"));
+
+        // Nor when the stopping thread is stuck in a callback for longer than release waits for it.
+        CountDownLatch stuck = new CountDownLatch(1);
+        wheel.retain();
+        wheel.schedule((key, stamp, nowMillis) -> {
+            stuck.countDown();
+            long end = System.nanoTime() + 1_500_000_000L;
+            while (System.nanoTime() < end) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException ignored) {
+                }
+            }
+            return -1;
+        }, 0, 0, 0);
+        stuck.await();
+        wheel.release();
+        wheel.retain();
+        assertEquals(1, threadsNamed("wheel-under-test"));
+        wheel.release();
+        assertFalse(wheel.isRunning());
+        assertEquals(0, threadsNamed("wheel-under-test"));
+    }
+
+    private static int threadsNamed(String name) {
+        return (int) Thread.getAllStackTraces().keySet().stream()
+                           .filter(thread -> thread.getName().equals(name) && thread.isAlive()).count();
+    }
+
+    @Test
+    public void testTokenBucketAndSlidingWindowRules() throws Exception {
+        TokenBucketThrottleRule perApiKey = TokenBucketThrottleRule.builder()
+                                                                   .rate(1, Duration.ofMinutes(1)).burst(3)
+                                                                   .key(ThrottleKey.header("X-Api-Key"))
+                                                                   .build();
+        SlidingWindowThrottleRule perRoute = SlidingWindowThrottleRule.builder()
+                                                                      .limit(5, Duration.ofMinutes(1))
+                                                                      .key(ThrottleKey.route())
+                                                                      .build();
+        TokenBucketThrottleRule bounded = TokenBucketThrottleRule.builder()
+                                                                 .rate(1, Duration.ofMinutes(1))
+                                                                 .key(ThrottleKey.header("X-Api-Key"))
+                                                                 .maxKeys(4)
+                                                                 .build();
+        final Server proxyServer = ReverseProxyServer.builder()
+                                                     .hostName("localhost").port(8000)
+                                                     .routeConfig(RouteConfig.builder().appContext("app1")
+                                                                             .hostUrl("http://localhost:9000")
+                                                                             .throttleRule(perApiKey).build())
+                                                     .routeConfig(RouteConfig.builder().appContext("app2")
+                                                                             .hostUrl("http://localhost:9001")
+                                                                             .throttleRule(perRoute).build())
+                                                     .routeConfig(RouteConfig.builder().appContext("lb")
+                                                                             .hostUrl("http://localhost:9000")
+                                                                             .throttleRule(bounded).build())
+                                                     .build();
+        proxyServer.start();
+        HttpClient client = HttpClient.newHttpClient();
+        try {
+            // A burst of 3 per API key, every key has its own bucket.
+            for (int i = 0; i < 3; i++) {
+                assertEquals(200, getWithApiKey(client, "http://localhost:8000/app1/rate?i=" + i, "alice").statusCode());
+            }
+            assertEquals(429, getWithApiKey(client, "http://localhost:8000/app1/rate?i=3", "alice").statusCode());
+            assertEquals(200, getWithApiKey(client, "http://localhost:8000/app1/rate?i=4", "bob").statusCode());
+            assertEquals(2, perApiKey.trackedKeys());
+
+            // 5 requests per window for the whole route, whoever sends them.
+            for (int i = 0; i < 5; i++) {
+                assertEquals(200, getWithApiKey(client, "http://localhost:8000/app2/window?i=" + i, "key" + i).statusCode());
+            }
+            assertEquals(429, get(client, "http://localhost:8000/app2/window?i=5").statusCode());
+
+            // A flood of distinct keys never grows the state beyond its bound.
+            for (int i = 0; i < 20; i++) {
+                assertEquals(200, getWithApiKey(client, "http://localhost:8000/lb/flood", "flood" + i).statusCode());
+            }
+            assertTrue(bounded.trackedKeys() <= 4);
+            assertTrue(bounded.getEvictions() >= 16);
+        } finally {
+            proxyServer.shutdown();
+        }
+    }
+
+    private static HttpResponse<String> getWithApiKey(HttpClient client, String uri, String apiKey) throws Exception {
+        return client.send(HttpRequest.newBuilder().uri(new URI(uri)).header("X-Api-Key", apiKey).GET().build(),
+                           BodyHandlers.ofString());
+    }
+
+    @Test
+    public void testThrottlePipelineStopsAtFirstReject() throws Exception {
+        AtomicInteger firstCalls = new AtomicInteger();
+        AtomicInteger lastCalls = new AtomicInteger();
+        ThrottleRule first = request -> {
+            firstCalls.incrementAndGet();
+            return false;
+        };
+        ThrottleRule rejecting = new ThrottleRule() {
+            @Override
+            public boolean throttleRequest(com.sun.net.httpserver.HttpExchange request) {
+                return true;
+            }
+
+            @Override
+            public long retryAfterMillis(com.sun.net.httpserver.HttpExchange request) {
+                return 2500;
+            }
+        };
+        ThrottleRule last = request -> {
+            lastCalls.incrementAndGet();
+            return false;
+        };
+        final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                 .hostName("localhost").port(8000)
+                                                                 .routeConfig(RouteConfig.builder().appContext("app1")
+                                                                                         .hostUrl("http://localhost:9000")
+                                                                                         .throttleRule(first)
+                                                                                         .throttleRule(rejecting)
+                                                                                         .throttleRule(last).build())
+                                                                 .build();
+        proxyServer.start();
+        try {
+            HttpResponse<String> response = get(HttpClient.newHttpClient(), "http://localhost:8000/app1/pipeline");
+            assertEquals(429, response.statusCode());
+            assertEquals("3", response.headers().firstValue("Retry-After").orElse(null));
+            assertEquals(1, firstCalls.get());
+            assertEquals(0, lastCalls.get());
+
+            List<ThrottlePipeline.RuleStats> stats = proxyServer.getThrottleStats("app1");
+            assertTrue(stats.get(0).getRule() == first && stats.get(1).getRule() == rejecting
+                       && stats.get(2).getRule() == last);
+            assertEquals(1, stats.get(1).getEvaluations());
+            assertEquals(1, stats.get(1).getRejects());
+            assertEquals(0, stats.get(2).getEvaluations());
+        } finally {
+            proxyServer.shutdown();
+        }
+
+        // An adaptive pipeline moves a cheap rule that throttles often in front of an expensive one that never does.
+        ThrottleRule expensive = request -> {
+            long until = System.nanoTime() + 20_000;
+            while (System.nanoTime() < until) {
+                Thread.onSpinWait();
+            }
+            return false;
+        };
+        ThrottleRule cheap = request -> true;
+        ThrottlePipeline adaptive = new ThrottlePipeline(List.of(expensive, cheap), true);
+        for (int i = 0; i < 20 * ThrottlePipeline.REORDER_INTERVAL; i++) {
+            assertTrue(adaptive.evaluate(null) == cheap);
+        }
+        assertTrue(adaptive.getStats().get(0).getRule() == cheap);
+        ThrottlePipeline fixed = new ThrottlePipeline(List.of(expensive, cheap), false);
+        for (int i = 0; i < 2 * ThrottlePipeline.REORDER_INTERVAL; i++) {
+            fixed.evaluate(null);
+        }
+        assertTrue(fixed.getStats().get(0).getRule() == expensive);
+    }
+
+    @Test
+    public void testRadixRouteMatching() throws Exception {
+        RouteTable.Builder<String> builder = RouteTable.builder();
+        for (int i = 0; i < 10_000; i++) {
+            builder.add(null, "/apps/app" + i, false, "app" + i);
+        }
+        builder.add(null, "/apps/app42/admin", true, "admin")
+               .add("Tenant.Example", "/apps/app42", false, "tenant")
+               .add(null, "/", false, "root");
+        RouteTable<String> table = builder.build();
+        assertEquals("app42", table.match(null, "/apps/app42/orders/1"));
+        assertEquals("app4200", table.match(null, "/apps/app4200"));
+        assertEquals("admin", table.match(null, "/apps/app42/admin"));
+        assertEquals("app42", table.match(null, "/apps/app42/admin/users"));
+        assertEquals("root", table.match(null, "/apps/app99999"));
+        assertEquals("tenant", table.match("tenant.example:8000", "/apps/app42/x"));
+        assertEquals("app43", table.match("TENANT.example", "/apps/app43"));
+
+        for (ServerEngine engine : ServerEngine.values()) {
+            final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                     .hostName("localhost").port(8000).engine(engine)
+                                                                     .routeConfig(RouteConfig.builder().appContext("lb")
+                                                                                             .hostUrl("http://localhost:9000")
+                                                                                             .build())
+                                                                     .routeConfig(RouteConfig.builder().appContext("lb-v2")
+                                                                                             .path("/lb/v2")
+                                                                                             .hostUrl("http://localhost:9001")
+                                                                                             .build())
+                                                                     .routeConfig(RouteConfig.builder().appContext("lb-v2-health")
+                                                                                             .exactPath("/lb/v2/health")
+                                                                                             .hostUrl("http://localhost:9000")
+                                                                                             .build())
+                                                                     .routeConfig(RouteConfig.builder().appContext("lb-internal")
+                                                                                             .path("/lb").virtualHost("internal.example")
+                                                                                             .hostUrl("http://localhost:9001")
+                                                                                             .build())
+                                                                     .build();
+            proxyServer.start();
+            try {
+                HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+                assertEquals("service 1", get(client, "http://localhost:8000/lb/orders").body());
+                assertEquals("service 2", get(client, "http://localhost:8000/lb/v2").body());
+                assertEquals("service 2", get(client, "http://localhost:8000/lb/v2/orders").body());
+                assertEquals("service 1", get(client, "http://localhost:8000/lb/v2x").body());
+                assertEquals("service 1", get(client, "http://localhost:8000/lb/v2/health").body());
+                assertEquals("service 2", get(client, "http://localhost:8000/lb/v2/health/deep").body());
+                assertEquals(404, get(client, "http://localhost:8000/lbx").statusCode());
+                try (java.net.Socket socket = new java.net.Socket("localhost", 8000)) {
+                    socket.getOutputStream().write(("GET /lb/orders HTTP/1.1\r\nHost: Internal.Example:8000\r\n"
+                                                    + "Connection: close\r\n\r\n").getBytes());
+                    assertTrue(new String(socket.getInputStream().readAllBytes()).endsWith("service 2"));
+                }
+            } finally {
+                proxyServer.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testRouteTableHotReload() throws Exception {
+        for (ServerEngine engine : ServerEngine.values()) {
+            final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                     .hostName("localhost").port(8000).engine(engine)
+                                                                     .routeConfig(RouteConfig.builder().appContext("app1")
+                                                                                             .hostUrl("http://localhost:9000")
+                                                                                             .build())
+                                                                     .build();
+            proxyServer.start();
+            try {
+                HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+                String lb = "{\"appContext\": \"lb\", \"upstreams\": [\"http://localhost:9001\"],"
+                            + " \"throttleRules\": [{\"type\": \"timeBased\", \"millis\": 60000}]}";
+                HttpResponse<String> response = adminRoutes(client, "POST", "{\"routes\": [" + lb + "]}");
+                assertEquals(200, response.statusCode());
+                assertTrue(response.body().contains("\"version\":1"));
+                assertEquals("service 2", get(client, "http://localhost:8000/lb/reload").body());
+                assertEquals(429, get(client, "http://localhost:8000/lb/reload").statusCode());
+                List<Upstream> upstreams = proxyServer.getUpstreams("lb");
 
+                // An unchanged route keeps its throttle state and upstreams, a new one is added next to it.
+                String lbV2 = "{\"appContext\": \"lb-v2\", \"path\": \"/lb/v2\", \"upstreams\": [\"http://localhost:9000\"]}";
+                assertEquals(200, adminRoutes(client, "POST", "{\"routes\": [" + lb + ", " + lbV2 + "]}").statusCode());
+                assertEquals(429, get(client, "http://localhost:8000/lb/reload").statusCode());
+                assertTrue(upstreams == proxyServer.getUpstreams("lb"));
+                assertEquals("service 1", get(client, "http://localhost:8000/lb/v2/reload").body());
+                assertEquals(200, get(client, "http://localhost:8000/app1/reload").statusCode());
+
+                // Invalid or conflicting tables are rejected as a whole.
+                assertEquals(400, adminRoutes(client, "POST", "{\"routes\": [{\"appContext\": \"bad\", \"upstreams\": []}]}")
+                                        .statusCode());
+                assertEquals(400, adminRoutes(client, "POST", "{\"routes\": [{\"appContext\": \"dup\", \"path\": \"/lb\","
+                                                              + " \"upstreams\": [\"http://localhost:9000\"]}]}").statusCode());
+                assertEquals(400, adminRoutes(client, "POST", "{\"routes\": [").statusCode());
+                assertTrue(adminRoutes(client, "GET", null).body().startsWith("{\"version\":2,"));
+
+                // A complete table replaces every route.
+                assertEquals(200, adminRoutes(client, "PUT", "{\"routes\": [{\"appContext\": \"only\", \"path\": \"/lb\","
+                                                             + " \"upstreams\": [\"http://localhost:9000\"]}]}").statusCode());
+                assertEquals("service 1", get(client, "http://localhost:8000/lb/reload").body());
+                assertEquals(404, get(client, "http://localhost:8000/app1/reload").statusCode());
+            } finally {
+                proxyServer.shutdown();
+            }
+        }
+
+        // Readers keep matching while the table is swapped as fast as possible.
+        RouteConfig first = RouteConfig.builder().appContext("hot").hostUrl("http://localhost:9000").build();
+        RouteConfig second = RouteConfig.builder().appContext("hot").hostUrl("http://localhost:9001").build();
+        RequestRouter router = new RequestRouter(Collections.singleton(first), 1000);
+        AtomicBoolean swapping = new AtomicBoolean(true);
+        AtomicInteger misses = new AtomicInteger();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread reader = new Thread(() -> {
+                while (swapping.get()) {
+                    if (router.getSnapshot().getTable().match(null, "/hot/path") == null) {
+                        misses.incrementAndGet();
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < 10_000; i++) {
+            router.updateRoutes(Collections.singleton(i % 2 == 0 ? second : first),
+                                Collections.emptyList(), false);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+        swapping.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertEquals(0, misses.get());
+        assertEquals(10_000, router.getSnapshot().getVersion());
+        assertTrue("10000 swaps took " + elapsedMillis + " ms", elapsedMillis < 5_000);
+    }
+
+    private static HttpResponse<String> adminRoutes(HttpClient client, String method, String body) throws Exception {
+        return client.send(HttpRequest.newBuilder().uri(new URI("http://localhost:8000/admin/routes"))
+                                      .method(method, body == null ? BodyPublishers.noBody() : BodyPublishers.ofString(body))
+                                      .build(), BodyHandlers.ofString());
+    }
+
+    @Test
+    public void testRouteMetricsOnPrometheusEndpoint() throws Exception {
+        for (long value = 0; value < (1L << 32); value = value * 3 / 2 + 1) {
+            long highest = LatencyHistogram.highestValue(LatencyHistogram.index(value));
+            assertTrue("bucket of " + value, highest >= value && highest - value <= value / 64);
+        }
+        // A histogram recorded from one thread keeps a single stripe, contention adds at most MAX_STRIPES.
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 1000; i++) {
+            histogram.recordNanos(i * 1000L);
+        }
+        assertEquals(1, histogram.stripes());
+        List<Thread> recorders = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            recorders.add(new Thread(() -> {
+                for (int i = 0; i < 100_000; i++) {
+                    histogram.recordNanos(1000);
+                }
+            }));
+        }
+        recorders.forEach(Thread::start);
+        for (Thread recorder : recorders) {
+            recorder.join();
+        }
+        assertTrue(histogram.stripes() <= LatencyHistogram.MAX_STRIPES);
+        assertEquals(401_000, histogram.snapshot().getCount());
+        for (ServerEngine engine : ServerEngine.values()) {
+            final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                     .hostName("localhost").port(8000).engine(engine)
+                                                                     .routeConfig(RouteConfig.builder().appContext("lb")
+                                                                                             .hostUrl("http://localhost:9000")
+                                                                                             .throttleRule(new TimeBasedThrottleRule(60_000))
+                                                                                             .build())
+                                                                     .routeConfig(RouteConfig.builder().appContext("down")
+                                                                                             .hostUrl("http://localhost:9009")
+                                                                                             .build())
+                                                                     .build();
+            proxyServer.start();
+            try {
+                HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+                assertEquals("service 1", get(client, "http://localhost:8000/lb/metered").body());
+                assertEquals(429, get(client, "http://localhost:8000/lb/metered").statusCode());
+                assertEquals(502, get(client, "http://localhost:8000/down/metered").statusCode());
+
+                // Responses are recorded once they were written, poll until the last one shows up.
+                String[] expected = {
+                        "proxy_responses_total{route=\"lb\",code=\"2xx\"} 1",
+                        "proxy_responses_total{route=\"lb\",code=\"4xx\"} 1",
+                        "proxy_throttled_total{route=\"lb\"} 1",
+                        "proxy_upstream_received_bytes_total{route=\"lb\"} 9",
+                        "proxy_sent_bytes_total{route=\"lb\"} " + (9 + RequestRouter.TOO_MANY_REQUESTS.length()),
+                        "proxy_request_duration_seconds_count{route=\"lb\"} 2",
+                        "proxy_upstream_duration_seconds_count{route=\"lb\"} 1",
+                        "proxy_request_duration_seconds_bucket{route=\"lb\",le=\"+Inf\"} 2",
+                        "proxy_responses_total{route=\"down\",code=\"5xx\"} 1",
+                        "proxy_upstream_errors_total{route=\"down\"} 1",
+                        "proxy_upstream_timeouts_total{route=\"down\"} 0"};
+                HttpResponse<String> metrics = null;
+                long deadline = System.currentTimeMillis() + 2_000;
+                do {
+                    metrics = get(client, "http://localhost:8000/metrics");
+                } while (!containsLines(metrics.body(), expected) && System.currentTimeMillis() < deadline);
+                assertEquals(200, metrics.statusCode());
+                assertEquals(MetricsEndpoint.CONTENT_TYPE, metrics.headers().firstValue("Content-Type").orElse(null));
+                for (String line : expected) {
+                    assertTrue(engine + " exports " + line, metrics.body().contains(line + "\n"));
+                }
+                assertEquals(2, proxyServer.getMetrics("lb").getRequestLatency().snapshot().getCount());
+            } finally {
+                proxyServer.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void testCircuitBreakerEjectsFailingUpstream() throws Exception {
+        for (ServerEngine engine : ServerEngine.values()) {
+            CircuitBreaker.Builder breaker = CircuitBreaker.builder().minimumCalls(2)
+                                                           .openDuration(Duration.ofMinutes(1), Duration.ofMinutes(5));
+            final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                     .hostName("localhost").port(8000).engine(engine)
+                                                                     .routeConfig(RouteConfig.builder().appContext("lb")
+                                                                                             .hostUrl("http://localhost:9000")
+                                                                                             .upstream("http://localhost:9009")
+                                                                                             .circuitBreaker(breaker)
+                                                                                             .build())
+                                                                     .routeConfig(RouteConfig.builder().appContext("down")
+                                                                                             .hostUrl("http://localhost:9009")
+                                                                                             .circuitBreaker(breaker)
+                                                                                             .build())
+                                                                     .build();
+            proxyServer.start();
+            try {
+                HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+                // Round robin sends every other request to the dead upstream until its second failure opens it.
+                int[] statuses = new int[600];
+                for (int i = 0; i < 10; i++) {
+                    statuses[get(client, "http://localhost:8000/lb/breaker?i=" + i).statusCode()]++;
+                }
+                assertEquals(engine.name(), 8, statuses[200]);
+                assertEquals(engine.name(), 2, statuses[502]);
+                Upstream dead = proxyServer.getUpstreams("lb").get(1);
+                assertEquals(CircuitBreaker.State.OPEN, dead.getCircuitBreaker().getState());
+                assertEquals(3, dead.getCircuitBreaker().getRejected());
+                assertEquals(CircuitBreaker.State.CLOSED, proxyServer.getUpstreams("lb").get(0).getCircuitBreaker().getState());
+
+                // With its only upstream ejected the route fails fast.
+                assertEquals(502, get(client, "http://localhost:8000/down/breaker").statusCode());
+                assertEquals(502, get(client, "http://localhost:8000/down/breaker").statusCode());
+                HttpResponse<String> rejected = get(client, "http://localhost:8000/down/breaker");
+                assertEquals(503, rejected.statusCode());
+                assertEquals(RequestRouter.UPSTREAM_UNAVAILABLE, rejected.body());
+                assertTrue(Long.parseLong(rejected.headers().firstValue("Retry-After").orElse("0")) >= 59);
+                assertEquals(1, proxyServer.getMetrics("down").getUnavailable());
+                assertTrue(get(client, "http://localhost:8000/metrics").body().contains(
+                        "proxy_upstream_circuit_state{route=\"down\",upstream=\"http://localhost:9009\"} 1\n"));
+            } finally {
+                proxyServer.shutdown();
+            }
+        }
+
+        // Half open: the first probe after the open period is let through, its success closes the breaker.
+        CircuitBreaker breaker = CircuitBreaker.builder().minimumCalls(1).halfOpenCalls(1)
+                                               .openDuration(Duration.ofMillis(50), Duration.ofMillis(200))
+                                               .build("probe");
+        breaker.record(true, 0);
+        assertFalse(breaker.allowRequest());
+        Thread.sleep(60);
+        assertTrue(breaker.allowRequest());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertFalse(breaker.allowRequest());
+        // A failed probe opens it again for twice as long.
+        breaker.record(true, 0);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertTrue(breaker.getRetryAfterMillis() > 50);
+        Thread.sleep(110);
+        assertTrue(breaker.allowRequest());
+        breaker.record(false, 0);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(2, breaker.getOpenings());
+    }
+
+    @Test
+    public void testConcurrencyLimitShedsExcessOfSlowRoute() throws Exception {
+        for (ServerEngine engine : ServerEngine.values()) {
+            final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                     .hostName("localhost").port(8000).engine(engine)
+                                                                     .threadPoolSize(8)
+                                                                     .routeConfig(RouteConfig.builder().appContext("slow")
+                                                                                             .hostUrl("http://localhost:9001")
+                                                                                             .concurrencyLimit(ConcurrencyLimiter.fixed(2))
+                                                                                             .build())
+                                                                     .routeConfig(RouteConfig.builder().appContext("app1")
+                                                                                             .hostUrl("http://localhost:9000")
+                                                                                             .build())
+                                                                     .build();
+            proxyServer.start();
+            try {
+                HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+                List<CompletableFuture<HttpResponse<String>>> slow = new ArrayList<>();
+                for (int i = 0; i < 6; i++) {
+                    slow.add(client.sendAsync(HttpRequest.newBuilder()
+                                                         .uri(new URI("http://localhost:8000/slow?delay=800&i=" + i))
+                                                         .GET().build(), BodyHandlers.ofString()));
+                }
+                // The slow route holds two requests at most, the other route is served meanwhile.
+                long deadline = System.currentTimeMillis() + 2_000;
+                while (proxyServer.getConcurrencyLimiter("slow").getRejected() < 4
+                       && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+                assertEquals(2, proxyServer.getConcurrencyLimiter("slow").getInFlight());
+                assertEquals(200, get(client, "http://localhost:8000/app1").statusCode());
+                assertTrue(get(client, "http://localhost:8000/metrics").body().contains(
+                        "proxy_inflight_requests{route=\"slow\"} 2\n"));
+                int[] statuses = new int[600];
+                for (CompletableFuture<HttpResponse<String>> response : slow) {
+                    HttpResponse<String> answered = response.join();
+                    statuses[answered.statusCode()]++;
+                    if (answered.statusCode() == 503) {
+                        assertEquals(RequestRouter.ROUTE_OVERLOADED, answered.body());
+                    }
+                }
+                assertEquals(engine.name(), 2, statuses[200]);
+                assertEquals(engine.name(), 4, statuses[503]);
+                awaitPermitsReturned(proxyServer.getConcurrencyLimiter("slow"));
+                assertEquals(0, proxyServer.getConcurrencyLimiter("slow").getInFlight());
+                assertEquals(4, proxyServer.getConcurrencyLimiter("slow").getRejected());
+            } finally {
+                proxyServer.shutdown();
+            }
+        }
+
+        // An adaptive limit grows while latency holds steady and shrinks once it rises.
+        ConcurrencyLimiter adaptive = ConcurrencyLimiter.adaptive().limits(10, 2, 100)
+                                                        .window(Duration.ofMillis(1)).build();
+        for (int window = 0; window < 40; window++) {
+            saturate(adaptive, 1_000_000);
+        }
+        int grown = adaptive.getLimit();
+        assertTrue("grew to " + grown, grown > 10);
+        for (int window = 0; window < 40; window++) {
+            saturate(adaptive, 20_000_000);
+        }
+        assertTrue("shrank to " + adaptive.getLimit(), adaptive.getLimit() < grown / 2);
+    }
+
+    @Test
+    public void testQueueDelaySheddingAnswersStaleRequests() throws Exception {
+        final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                 .hostName("localhost").port(8000)
+                                                                 .threadPoolSize(1)
+                                                                 .loadShedding(Duration.ofMillis(5), Duration.ofMillis(150), 100)
+                                                                 .routeConfig(RouteConfig.builder().appContext("slow")
+                                                                                         .hostUrl("http://localhost:9001")
+                                                                                         .build())
+                                                                 .build();
+        proxyServer.start();
+        try {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                responses.add(client.sendAsync(HttpRequest.newBuilder()
+                                                          .uri(new URI("http://localhost:8000/slow?delay=100&i=" + i))
+                                                          .GET().build(), BodyHandlers.ofString()));
+            }
+            // One worker serves a request every 100ms, once the queue stood for an interval the rest are shed.
+            int[] statuses = new int[600];
+            for (CompletableFuture<HttpResponse<String>> response : responses) {
+                HttpResponse<String> answered = response.join();
+                statuses[answered.statusCode()]++;
+                if (answered.statusCode() == 503) {
+                    assertEquals(RequestRouter.SERVER_OVERLOADED, answered.body());
+                    assertEquals("1", answered.headers().firstValue("Retry-After").orElse(null));
+                }
+            }
+            AdmissionQueue queue = proxyServer.getAdmissionQueue();
+            assertTrue("served " + statuses[200], statuses[200] >= 3);
+            assertTrue("shed " + statuses[503], statuses[503] >= 1);
+            assertEquals(8, statuses[200] + statuses[503]);
+            assertEquals(statuses[503], queue.getShed());
+            assertEquals(0, queue.getDepth());
+            assertTrue(queue.getSojournTimes().snapshot().getMaxMicros() >= 300_000);
+            String metrics = get(client, "http://localhost:8000/metrics").body();
+            assertTrue(metrics.contains("proxy_queue_shed_total " + statuses[503] + "\n"));
+            assertTrue(metrics.contains("proxy_queue_sojourn_seconds_count "));
+        } finally {
+            proxyServer.shutdown();
+        }
+    }
+
+    @Test
+    public void testFairQueuingIsolatesRoutes() throws Exception {
+        // Workers are run by hand so the order requests are taken in is deterministic.
+        List<Runnable> workers = new ArrayList<>();
+        FairScheduler scheduler = new FairScheduler(workers::add, null, null, 0);
+        RouteConfig heavy = RouteConfig.builder().appContext("heavy").hostUrl("http://localhost:9000")
+                                       .scheduling(RoutePriority.NORMAL, 3).build();
+        RouteConfig light = RouteConfig.builder().appContext("light").hostUrl("http://localhost:9000").build();
+        RouteConfig urgent = RouteConfig.builder().appContext("urgent").hostUrl("http://localhost:9000")
+                                        .scheduling(RoutePriority.HIGH, 1).build();
+        StringBuilder served = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            scheduler.submit(heavy, task(served, 'h'));
+            scheduler.submit(light, task(served, 'l'));
+        }
+        scheduler.submit(urgent, task(served, 'u'));
+        scheduler.submit(urgent, task(served, 'u'));
+        assertEquals(8, scheduler.getDepth("heavy"));
+        workers.forEach(Runnable::run);
+        assertEquals("uuhhhlhhhlhhllllll", served.toString());
+        assertEquals(0, scheduler.getDepth("heavy"));
+        assertEquals(8, heavy.getMetrics().getQueueLatency().snapshot().getCount());
+
+        // Removed routes lose their queue, right away when it is empty and otherwise once it has been drained.
+        workers.clear();
+        scheduler.submit(heavy, task(served, 'h'));
+        scheduler.retainRoutes(Collections.singleton("urgent"));
+        assertEquals(2, scheduler.getRouteQueues());
+        workers.forEach(Runnable::run);
+        assertEquals(1, scheduler.getRouteQueues());
+        assertEquals(0, scheduler.getDepth("heavy"));
+        workers.clear();
+        served.setLength(0);
+        scheduler.submit(light, task(served, 'l'));
+        scheduler.submit(urgent, task(served, 'u'));
+        workers.forEach(Runnable::run);
+        assertEquals("ul", served.toString());
+        assertEquals(2, scheduler.getRouteQueues());
+
+        final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                 .hostName("localhost").port(8000)
+                                                                 .threadPoolSize(1).fairQueuing(true)
+                                                                 .routeConfig(RouteConfig.builder().appContext("slow")
+                                                                                         .hostUrl("http://localhost:9001")
+                                                                                         .build())
+                                                                 .routeConfig(RouteConfig.builder().appContext("app1")
+                                                                                         .hostUrl("http://localhost:9000")
+                                                                                         .scheduling(RoutePriority.HIGH, 1)
+                                                                                         .build())
+                                                                 .build();
+        proxyServer.start();
+        try {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            List<CompletableFuture<HttpResponse<String>>> slow = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                slow.add(client.sendAsync(HttpRequest.newBuilder()
+                                                     .uri(new URI("http://localhost:8000/slow?delay=200&i=" + i))
+                                                     .GET().build(), BodyHandlers.ofString()));
+            }
+            long deadline = System.currentTimeMillis() + 2_000;
+            while (!get(client, "http://localhost:8000/metrics").body().contains("proxy_route_queue_depth{route=\"slow\"} 3\n")
+                   && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // The only worker is busy with the slow route, app1 is next in line rather than behind its queue.
+            long start = System.nanoTime();
+            assertEquals(200, get(client, "http://localhost:8000/app1").statusCode());
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            assertTrue("app1 took " + millis + "ms", millis < 400);
+            assertTrue(slow.stream().filter(CompletableFuture::isDone).count() <= 2);
+            for (CompletableFuture<HttpResponse<String>> response : slow) {
+                assertEquals(200, response.join().statusCode());
+            }
+            assertTrue(get(client, "http://localhost:8000/metrics").body().contains(
+                    "proxy_route_queue_wait_seconds_count{route=\"slow\"} 4\n"));
+        } finally {
+            proxyServer.shutdown();
+        }
+    }
+
+    @Test
+    public void testHedgingAndRetryBudget() throws Exception {
+        final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                 .hostName("localhost").port(8000)
+                                                                 .routeConfig(RouteConfig.builder().appContext("hedge")
+                                                                                         .hostUrl("http://localhost:9001")
+                                                                                         .retryPolicy(RetryPolicy.builder()
+                                                                                                                 .hedgeAfter(Duration.ofMillis(50)))
+                                                                                         .build())
+                                                                 .routeConfig(RouteConfig.builder().appContext("lb")
+                                                                                         .hostUrl("http://localhost:9009")
+                                                                                         .upstream("http://localhost:9000")
+                                                                                         .retryPolicy(RetryPolicy.builder()
+                                                                                                                 .retryOnConnectFailure(1))
+                                                                                         .build())
+                                                                 .build();
+        proxyServer.start();
+        try {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            hedgeRequests.set(0);
+            // The first request takes a second, the hedge sent after 50ms answers and the first one is cancelled.
+            long start = System.nanoTime();
+            HttpResponse<String> hedged = get(client, "http://localhost:8000/hedge");
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            assertEquals(200, hedged.statusCode());
+            assertEquals("Hedged", hedged.body());
+            assertTrue("hedged request took " + millis + "ms", millis < 600);
+            RetryPolicy hedging = proxyServer.getRetryPolicy("hedge");
+            assertEquals(1, hedging.getHedges());
+            assertEquals(1, hedging.getHedgeWins());
+
+            // Every other request goes to the dead upstream first and is retried on the live one.
+            for (int i = 0; i < 6; i++) {
+                HttpResponse<String> response = get(client, "http://localhost:8000/lb?i=" + i);
+                assertEquals(200, response.statusCode());
+                assertEquals("service 1", response.body());
+            }
+            RetryPolicy retrying = proxyServer.getRetryPolicy("lb");
+            assertTrue(retrying.getRetries() >= 3);
+            assertEquals(0, retrying.getHedges());
+            String metrics = get(client, "http://localhost:8000/metrics").body();
+            assertTrue(metrics.contains("proxy_hedge_wins_total{route=\"hedge\"} 1\n"));
+            assertTrue(metrics.contains("proxy_retries_total{route=\"lb\"} " + retrying.getRetries() + "\n"));
+        } finally {
+            proxyServer.shutdown();
+        }
+
+        // Without a refill the bucket holds ten tokens, then every two requests pay for one more retry.
+        RetryPolicy budget = RetryPolicy.builder().retryOnConnectFailure(1).budget(0.5, 0).build(new RouteMetrics());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(budget.tryRetry());
+        }
+        assertFalse(budget.tryRetry());
+        assertEquals(1, budget.getBudgetExhausted());
+        budget.deposit();
+        budget.deposit();
+        assertTrue(budget.tryRetry());
+        assertFalse(budget.tryRetry());
+    }
+
+    @Test
+    public void testHealthChecksSkipUnhealthyUpstreamAndPrewarm() throws Exception {
+        final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                 .hostName("localhost").port(8000)
+                                                                 .routeConfig(RouteConfig.builder().appContext("lb")
+                                                                                         .hostUrl("http://localhost:9000")
+                                                                                         .upstream("http://localhost:9001")
+                                                                                         .healthCheck(HealthCheck.builder()
+                                                                                                                 .interval(Duration.ofMillis(100), Duration.ofMillis(500))
+                                                                                                                 .thresholds(1, 2)
+                                                                                                                 .warmConnections(3))
+                                                                                         .build())
+                                                                 .build();
+        upstreamConnections.clear();
+        proxyServer.start();
+        HealthCheck check1 = proxyServer.getUpstreams("lb").get(0).getHealthCheck();
+        HealthCheck check2 = proxyServer.getUpstreams("lb").get(1).getHealthCheck();
+        try {
+            // Connections are opened before the first request, which then needs no handshake of its own.
+            awaitCondition(() -> check1.getWarmedConnections() == 3 && check2.getWarmedConnections() == 3);
+            // A warm-up request sent after another was answered may reuse its connection, so fewer than six
+            // connections can be open, but every one of them is kept for the requests that follow.
+            Set<Integer> warmed = new java.util.HashSet<>(upstreamConnections);
+            assertTrue("warmed " + warmed, warmed.size() >= 2);
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            for (int i = 0; i < 4; i++) {
+                assertEquals(200, get(client, "http://localhost:8000/lb?i=" + i).statusCode());
+            }
+            assertEquals(warmed, upstreamConnections);
+
+            // Two failed probes in a row take service 2 out of the rotation without a single failed request.
+            service2Healthy.set(false);
+            awaitCondition(() -> !check2.isHealthy());
+            for (int i = 0; i < 6; i++) {
+                HttpResponse<String> response = get(client, "http://localhost:8000/lb?i=" + i);
+                assertEquals(200, response.statusCode());
+                assertEquals("service 1", response.body());
+            }
+            assertTrue(check2.getFailedChecks() >= 2);
+            assertTrue(get(client, "http://localhost:8000/metrics").body().contains(
+                    "proxy_upstream_healthy{route=\"lb\",upstream=\"http://localhost:9001\"} 0\n"));
+
+            // Back in the rotation after one passed probe, with fresh connections warmed for it.
+            service2Healthy.set(true);
+            awaitCondition(() -> check2.isHealthy() && check2.getWarmedConnections() == 6);
+            int served2 = 0;
+            for (int i = 0; i < 6; i++) {
+                served2 += get(client, "http://localhost:8000/lb?i=" + i).body().equals("service 2") ? 1 : 0;
+            }
+            assertEquals(3, served2);
+        } finally {
+            service2Healthy.set(true);
+            proxyServer.shutdown();
+        }
+        long checks = check1.getChecks();
+        Thread.sleep(400);
+        assertTrue(check1.getChecks() <= checks + 1);
+    }
+
+    @Test
+    public void testResponseCompression() throws Exception {
+        RouteConfig compressible = RouteConfig.builder().appContext("compressible")
+                                              .hostUrl("http://localhost:9000")
+                                              .responseCache(1024 * 1024)
+                                              .compression(ResponseCompression.builder().level(6).minSize(1024)
+                                                                              .deflate(true))
+                                              .build();
+        RouteConfig stream = RouteConfig.builder().appContext("stream").hostUrl("http://localhost:9000")
+                                        .streaming(true)
+                                        .compression(ResponseCompression.builder())
+                                        .build();
+        final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                 .hostName("localhost").port(8000)
+                                                                 .routeConfig(compressible)
+                                                                 .routeConfig(stream)
+                                                                 .build();
+        proxyServer.start();
+        HttpClient client = HttpClient.newHttpClient();
+        ResponseCompression compression = compressible.getCompression();
+        try {
+            byte[] expected = compressibleBody(20_000);
+            HttpResponse<byte[]> response = get(client, "/compressible?size=20000", "gzip, deflate;q=0.5");
+            assertEquals("MISS", response.headers().firstValue("X-Cache").orElse(null));
+            assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElse(null));
+            assertEquals("Accept-Encoding", response.headers().firstValue("Vary").orElse(null));
+            assertEquals("W/\"c1\"", response.headers().firstValue("ETag").orElse(null));
+            assertTrue(response.body().length < expected.length / 4);
+            assertTrue(java.util.Arrays.equals(expected, new GZIPInputStream(
+                    new ByteArrayInputStream(response.body())).readAllBytes()));
+            assertEquals(1, compression.getCompressedResponses());
+
+            // Hits are served from the compressed variant kept with the entry, not compressed again.
+            response = get(client, "/compressible?size=20000", "gzip");
+            assertEquals("HIT", response.headers().firstValue("X-Cache").orElse(null));
+            assertTrue(java.util.Arrays.equals(expected, new GZIPInputStream(
+                    new ByteArrayInputStream(response.body())).readAllBytes()));
+            assertEquals(1, compression.getCompressedResponses());
+            response = get(client, "/compressible?size=20000", "deflate");
+            assertEquals("deflate", response.headers().firstValue("Content-Encoding").orElse(null));
+            assertTrue(java.util.Arrays.equals(expected, new InflaterInputStream(
+                    new ByteArrayInputStream(response.body())).readAllBytes()));
+            assertEquals(2, compression.getCompressedResponses());
+            response = get(client, "/compressible?size=20000", null);
+            assertFalse(response.headers().firstValue("Content-Encoding").isPresent());
+            assertTrue(java.util.Arrays.equals(expected, response.body()));
+            response = get(client, "/compressible?size=20000", "gzip;q=0");
+            assertFalse(response.headers().firstValue("Content-Encoding").isPresent());
+
+            // The weak tag of the compressed response revalidates the entry.
+            HttpResponse<byte[]> notModified = client.send(HttpRequest.newBuilder()
+                                                                      .uri(new URI("http://localhost:8000/compressible?size=20000"))
+                                                                      .header("Accept-Encoding", "gzip")
+                                                                      .header("If-None-Match", "W/\"c1\"").GET().build(),
+                                                           BodyHandlers.ofByteArray());
+            assertEquals(304, notModified.statusCode());
+
+            // Small bodies and content that is compressed already are sent as they are.
+            response = get(client, "/compressible?size=100", "gzip");
+            assertFalse(response.headers().firstValue("Content-Encoding").isPresent());
+            assertEquals(100, response.body().length);
+            response = get(client, "/compressible?size=20000&type=png", "gzip");
+            assertFalse(response.headers().firstValue("Content-Encoding").isPresent());
+            assertEquals(20_000, response.body().length);
+            assertEquals(2, compression.getCompressedResponses());
+
+            // Streamed bodies are compressed as they are relayed.
+            response = get(client, "/stream", "gzip");
+            assertEquals("gzip", response.headers().firstValue("Content-Encoding").orElse(null));
+            byte[] body = new GZIPInputStream(new ByteArrayInputStream(response.body())).readAllBytes();
+            assertEquals(STREAM_CHUNK_SIZE * STREAM_CHUNKS, body.length);
+            assertEquals((byte) (STREAM_CHUNKS - 1), body[body.length - 1]);
+            assertEquals(STREAM_CHUNK_SIZE * STREAM_CHUNKS, stream.getCompression().getBytesIn());
+            assertTrue(new String(get(client, "/metrics", null).body()).contains(
+                    "proxy_compressed_responses_total{route=\"compressible\"} 2\n"));
+        } finally {
+            proxyServer.shutdown();
+        }
+    }
+
+    private static HttpResponse<byte[]> get(HttpClient client, String path, String acceptEncoding) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder().uri(new URI("http://localhost:8000" + path)).GET();
+        if (acceptEncoding != null) {
+            request.header("Accept-Encoding", acceptEncoding);
+        }
+        return client.send(request.build(), BodyHandlers.ofByteArray());
+    }
+
+    /**
+     * JSON like body of {@code size} bytes, repetitive enough to compress well.
+     */
+    private static byte[] compressibleBody(int size) {
+        StringBuilder sb = new StringBuilder(size + 64);
+        for (int i = 0; sb.length() < size; i++) {
+            sb.append("{\"id\":").append(i).append(",\"name\":\"item-").append(i % 17).append("\",\"ok\":true},");
+        }
+        return sb.substring(0, size).getBytes();
+    }
+
+    private static void awaitCondition(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(condition.getAsBoolean());
+    }
+
+    private static FairScheduler.Task task(StringBuilder served, char route) {
+        return new FairScheduler.Task() {
+            @Override
+            public void run() {
+                served.append(route);
+            }
+
+            @Override
+            public void shed() {
+                served.append('!');
+            }
+        };
+    }
+
+    /**
+     * Fills {@code limiter} up to its limit and releases every request as having taken {@code nanos}.
+     */
+    private static void saturate(ConcurrencyLimiter limiter, long nanos) throws InterruptedException {
+        int admitted = 0;
+        while (limiter.tryAcquire()) {
+            admitted++;
+        }
+        Thread.sleep(2);
+        for (int i = 0; i < admitted; i++) {
+            limiter.release(nanos, ConcurrencyLimiter.Outcome.SUCCESS);
+        }
+    }
+
+    /**
+     * Waits up to a second for {@code limiter} to get back every permit. A permit is returned right after the
+     * response is written, so the client may see the response first.
+     */
+    private static void awaitPermitsReturned(ConcurrencyLimiter limiter) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 1_000;
+        while (limiter.getInFlight() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static boolean containsLines(String body, String[] lines) {
+        for (String line : lines) {
+            if (!body.contains(line + "\n")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void testRequestTracingPhases() throws Exception {
+        for (ServerEngine engine : ServerEngine.values()) {
+            RequestTracer tracer = RequestTracer.builder().sampleRate(1).capacity(8).build();
+            final ReverseProxyServer proxyServer = ReverseProxyServer.builder()
+                                                                     .hostName("localhost").port(8000).engine(engine)
+                                                                     .tracer(tracer)
+                                                                     .routeConfig(RouteConfig.builder().appContext("lb")
+                                                                                             .hostUrl("http://localhost:9000")
+                                                                                             .build())
+                                                                     .routeConfig(RouteConfig.builder().appContext("slow")
+                                                                                             .hostUrl("http://localhost:9001")
+                                                                                             .build())
+                                                                     .build();
+            proxyServer.start();
+            try {
+                HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+                assertEquals("service 1", get(client, "http://localhost:8000/lb/traced").body());
+                RequestTrace trace = awaitTrace(tracer, 1);
+                assertEquals("lb", trace.getRoute());
+                assertEquals(200, trace.getStatus());
+                assertEquals("/lb/traced", trace.getPath());
+                assertTrue(engine + " phases " + trace.getPhaseNanos(), trace.getPhaseNanos().keySet().containsAll(
+                        EnumSet.of(RequestTrace.Phase.ROUTE, RequestTrace.Phase.THROTTLE,
+                                             RequestTrace.Phase.CONNECT, RequestTrace.Phase.FIRST_BYTE,
+                                             RequestTrace.Phase.WRITE)));
+                long phases = 0;
+                for (long nanos : trace.getPhaseNanos().values()) {
+                    assertTrue(nanos >= 0);
+                    phases += nanos;
+                }
+                assertEquals(trace.getTotalNanos(), phases);
+
+                // Only slow requests are kept once sampling is off.
+                HttpResponse<String> settings = client.send(
+                        HttpRequest.newBuilder().uri(new URI("http://localhost:8000/admin/traces"))
+                                   .PUT(BodyPublishers.ofString("{\"slowerThanMillis\": 300}")).build(),
+                        BodyHandlers.ofString());
+                assertEquals(200, settings.statusCode());
+                assertEquals(0, tracer.getSampleRate(), 0);
+                assertEquals("service 1", get(client, "http://localhost:8000/lb/fast").body());
+                assertEquals("Slow response", get(client, "http://localhost:8000/slow?time=400").body());
+                trace = awaitTrace(tracer, 2);
+                assertEquals("slow", trace.getRoute());
+                assertTrue(trace.getTotalNanos() >= 300_000_000L);
+                assertEquals(2, tracer.getTraces().size());
+
+                String dump = get(client, "http://localhost:8000/admin/traces").body();
+                assertTrue(dump, dump.startsWith("{\"sampleRate\":0.0,\"slowerThanMillis\":300,\"capacity\":8,"));
+                assertTrue(dump, dump.contains("\"path\":\"/slow\",\"route\":\"slow\",\"status\":200"));
+                assertTrue(dump, dump.contains("\"first_byte\":"));
+            } finally {
+                proxyServer.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Newest trace once {@code count} traces were kept, traces are kept after the response was written.
+     */
+    private static RequestTrace awaitTrace(RequestTracer tracer, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 2_000;
+        while (tracer.getTraces().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, tracer.getTraces().size());
+        return tracer.getTraces().get(0);
+    }
 }